@@ -0,0 +1,167 @@
+package com.hellion23.tuplediff.api;
+
+import com.hellion23.tuplediff.api.io.ColumnarTupleFile;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates the in-memory Schemas and Tuples the benchmarks run on. Rows are generated in key order; composite keys
+ * have low cardinality leading fields, so that, as with real data, most key comparisons look at every key field.
+ *
+ * @author: Hermann Leung
+ * Date: 3/9/2015
+ */
+public class BenchmarkData {
+    public enum KeyType {STRING, LONG, DECIMAL}
+    public enum FieldType {STRING, DOUBLE, DECIMAL}
+
+    public static Schema schema (KeyType keyType, int keyFields, FieldType fieldType, int compareFields) {
+        List<Field> keys = new ArrayList<Field>();
+        List<Field> compares = new ArrayList<Field>();
+        for (int k=0; k<keyFields; k++) {
+            keys.add(field("KEY_" + k, keyClass(keyType)));
+        }
+        for (int f=0; f<compareFields; f++) {
+            compares.add(field("FIELD_" + f, fieldClass(fieldType)));
+        }
+        List<Field> all = new ArrayList<Field>(keys);
+        all.addAll(compares);
+        return new ColumnarTupleFile.StoredSchema(keys, compares, all);
+    }
+
+    static Field field (String name, Class fieldClass) {
+        Field f = new Field();
+        f.setName(name);
+        f.setFieldClass(fieldClass);
+        return f;
+    }
+
+    static Class keyClass (KeyType keyType) {
+        switch (keyType) {
+            case STRING: return String.class;
+            case LONG: return Long.class;
+            default: return BigDecimal.class;
+        }
+    }
+
+    static Class fieldClass (FieldType fieldType) {
+        switch (fieldType) {
+            case STRING: return String.class;
+            case DOUBLE: return Double.class;
+            default: return BigDecimal.class;
+        }
+    }
+
+    /**
+     * The values of row number row; rows are in key order. A changed row differs from the unchanged row of the same
+     * number in its first compare field.
+     */
+    public static Comparable [] values (Schema schema, KeyType keyType, FieldType fieldType, int row, boolean changed) {
+        int keyFields = schema.getKeyFields().size();
+        Comparable [] values = new Comparable[schema.size()];
+        for (int k=0; k<keyFields; k++) {
+            // Leading fields change every 1000^(keyFields-1-k) rows.
+            long v = row;
+            for (int d=k; d<keyFields-1; d++) {
+                v /= 1000;
+            }
+            values[k] = keyValue(keyType, k == keyFields - 1 ? row : v);
+        }
+        for (int f=keyFields; f<values.length; f++) {
+            values[f] = fieldValue(fieldType, row * 31L + f + (changed && f == keyFields ? 1 : 0));
+        }
+        return values;
+    }
+
+    static Comparable keyValue (KeyType keyType, long v) {
+        switch (keyType) {
+            case STRING: return String.format("K%012d", v);
+            case LONG: return v;
+            default: return BigDecimal.valueOf(v);
+        }
+    }
+
+    static Comparable fieldValue (FieldType fieldType, long v) {
+        switch (fieldType) {
+            case STRING: return "value-" + v;
+            case DOUBLE: return v * 0.25;
+            default: return BigDecimal.valueOf(v, 2);
+        }
+    }
+
+    /**
+     * count rows of which changeRatio, picked at random from seed, are changed.
+     */
+    public static List<Tuple> rows (Schema schema, KeyType keyType, FieldType fieldType, int count,
+                                    double changeRatio, long seed) {
+        Random random = new Random(seed);
+        List<Tuple> rows = new ArrayList<Tuple>(count);
+        for (int r=0; r<count; r++) {
+            boolean changed = changeRatio > 0 && random.nextDouble() < changeRatio;
+            rows.add(new Tuple(schema, values(schema, keyType, fieldType, r, changed)));
+        }
+        return rows;
+    }
+
+    /**
+     * A TupleStream over a List of Tuples, reopened for every comparison.
+     */
+    public static class ListTupleStream implements TupleStream {
+        final Schema schema;
+        final List<Tuple> rows;
+        String name;
+        int next;
+
+        public ListTupleStream(Schema schema, List<Tuple> rows) {
+            this.schema = schema;
+            this.rows = rows;
+        }
+
+        @Override
+        public void open() {
+            next = 0;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < rows.size();
+        }
+
+        @Override
+        public Tuple getNext() {
+            return rows.get(next++);
+        }
+
+        @Override
+        public void close() {}
+
+        @Override
+        public TupleStreamKey getTupleStreamKey() {
+            return schema.getTupleStreamKey();
+        }
+
+        @Override
+        public void setTupleStreamKey(TupleStreamKey key) {}
+
+        @Override
+        public Schema getSchema() {
+            return schema;
+        }
+
+        @Override
+        public void setSchema(Schema schema) {}
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void setName(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.hellion23.tuplediff.api;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks whose names match the arguments (all of them without arguments) with the GC profiler, which adds
+ * the bytes allocated per operation (gc.alloc.rate.norm) to every score.
+ *
+ * @author: Hermann Leung
+ * Date: 3/9/2015
+ */
+public class BenchmarkRunner {
+    public static void main (String args[]) throws RunnerException {
+        OptionsBuilder builder = new OptionsBuilder();
+        if (args.length == 0) {
+            builder.include("com\\.hellion23\\.tuplediff\\..*Benchmark");
+        }
+        for (String include : args) {
+            builder.include(include);
+        }
+        Options options = builder.addProfiler(GCProfiler.class).build();
+        new Runner(options).run();
+    }
+}
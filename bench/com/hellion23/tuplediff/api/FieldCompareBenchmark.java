@@ -0,0 +1,85 @@
+package com.hellion23.tuplediff.api;
+
+import com.hellion23.tuplediff.api.listener.ListCompareEventListener;
+import com.hellion23.tuplediff.api.monitor.TupleComparisonMonitor;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TupleComparison.getBreakFields, the field by field comparison of a pair of Tuples with equal keys, on pairs that
+ * match and pairs that break, with and without fingerprints.
+ *
+ * @author: Hermann Leung
+ * Date: 3/9/2015
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FieldCompareBenchmark {
+    static final int PAIRS = 1024;
+
+    @Param({"STRING", "DOUBLE", "DECIMAL"})
+    BenchmarkData.FieldType fieldType;
+
+    @Param({"4", "16"})
+    int compareFields;
+
+    @Param({"false", "true"})
+    boolean fingerprint;
+
+    TupleComparison tc;
+    Tuple [] left, matching, breaking;
+
+    @Setup
+    public void setup () {
+        Schema schema = BenchmarkData.schema(BenchmarkData.KeyType.LONG, 1, fieldType, compareFields);
+        BenchmarkData.ListTupleStream stream = new BenchmarkData.ListTupleStream(schema, null);
+        Config config = new Config("FieldCompareBenchmark");
+        config.setLeftStream(stream);
+        config.setRightStream(stream);
+        config.setFingerprintCompare(fingerprint);
+        TupleComparisonMonitor monitor = new TupleComparisonMonitor();
+        monitor.setPublishMBean(false);
+        monitor.setHealthCheckIntervalMillis(0);
+        tc = new TupleComparison(config, monitor, new ListCompareEventListener());
+        // Resolves the comparators and, with fingerprint set, the Schema's fingerprinted fields.
+        tc.initialize();
+
+        // Created after initialize() so that their fingerprints are computed.
+        left = rows(schema, 0);
+        matching = rows(schema, 0);
+        breaking = rows(schema, 1);
+    }
+
+    private Tuple [] rows (Schema schema, double changeRatio) {
+        List<Tuple> rows = BenchmarkData.rows(schema, BenchmarkData.KeyType.LONG, fieldType, PAIRS, changeRatio, 0);
+        return rows.toArray(new Tuple[rows.size()]);
+    }
+
+    @TearDown
+    public void tearDown () {
+        tc.cleanup();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public void matchingPairs (Blackhole bh) {
+        for (int i=0; i<PAIRS; i++) {
+            bh.consume(tc.getBreakFields(left[i], matching[i]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public void breakingPairs (Blackhole bh) {
+        for (int i=0; i<PAIRS; i++) {
+            bh.consume(tc.getBreakFields(left[i], breaking[i]));
+        }
+    }
+}
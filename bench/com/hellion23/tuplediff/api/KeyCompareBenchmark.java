@@ -0,0 +1,73 @@
+package com.hellion23.tuplediff.api;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Key compareTo, the comparison made for every step of the merge, on neighbouring keys of single and composite,
+ * string and numeric keys; with the key implementation chosen for the key fields (see TupleStreamKey.KeyType) and with
+ * the field by field GENERIC one.
+ *
+ * @author: Hermann Leung
+ * Date: 3/9/2015
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class KeyCompareBenchmark {
+    static final int KEYS = 1024;
+
+    @Param({"STRING", "LONG", "DECIMAL"})
+    BenchmarkData.KeyType keyType;
+
+    @Param({"1", "3"})
+    int keyFields;
+
+    @Param({"false", "true"})
+    boolean generic;
+
+    Comparable [] keys;
+
+    @Setup
+    public void setup () {
+        Schema schema = BenchmarkData.schema(keyType, keyFields, BenchmarkData.FieldType.STRING, 1);
+        if (generic) {
+            schema.getTupleStreamKey().setKeyType(TupleStreamKey.KeyType.GENERIC);
+        }
+        List<Tuple> rows = BenchmarkData.rows(schema, keyType, BenchmarkData.FieldType.STRING, KEYS + 1, 0, 0);
+        keys = new Comparable[rows.size()];
+        for (int i=0; i<keys.length; i++) {
+            keys[i] = rows.get(i).getKey();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public void compareNeighbours (Blackhole bh) {
+        for (int i=0; i<KEYS; i++) {
+            bh.consume(keys[i].compareTo(keys[i + 1]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public void compareEqual (Blackhole bh) {
+        for (int i=0; i<KEYS; i++) {
+            bh.consume(keys[i].compareTo(keys[i]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public void hashCode (Blackhole bh) {
+        for (int i=0; i<KEYS; i++) {
+            bh.consume(keys[i].hashCode());
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.hellion23.tuplediff.api;
+
+import com.hellion23.tuplediff.api.listener.ListCompareEventListener;
+import com.hellion23.tuplediff.api.monitor.TupleComparisonMonitor;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A complete TupleComparison over two in-memory TupleStreams: the merge loop, key and field comparisons, counting and
+ * the delivery of breaks to a ListCompareEventListener, without any I/O. Score is per row.
+ *
+ * @author: Hermann Leung
+ * Date: 3/9/2015
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MergeLoopBenchmark {
+    static final int ROWS = 100000;
+
+    @Param({"STRING", "DECIMAL"})
+    BenchmarkData.KeyType keyType;
+
+    @Param({"1", "3"})
+    int keyFields;
+
+    // The fraction of rows that differ between the two sides.
+    @Param({"0", "0.1"})
+    double breakRatio;
+
+    Schema schema;
+    List<Tuple> left, right;
+
+    @Setup
+    public void setup () {
+        schema = BenchmarkData.schema(keyType, keyFields, BenchmarkData.FieldType.DECIMAL, 8);
+        left = BenchmarkData.rows(schema, keyType, BenchmarkData.FieldType.DECIMAL, ROWS, 0, 1);
+        right = BenchmarkData.rows(schema, keyType, BenchmarkData.FieldType.DECIMAL, ROWS, breakRatio, 2);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public ComparisonResult compare () {
+        Config config = new Config("MergeLoopBenchmark");
+        config.setLeftStream(new BenchmarkData.ListTupleStream(schema, left));
+        config.setRightStream(new BenchmarkData.ListTupleStream(schema, right));
+        TupleComparisonMonitor monitor = new TupleComparisonMonitor();
+        monitor.setPublishMBean(false);
+        monitor.setHealthCheckIntervalMillis(0);
+        TupleComparison tc = new TupleComparison(config, monitor, new ListCompareEventListener());
+        tc.compare();
+        return tc.getResult();
+    }
+}
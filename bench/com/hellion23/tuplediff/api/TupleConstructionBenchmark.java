@@ -0,0 +1,59 @@
+package com.hellion23.tuplediff.api;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tuple construction, made for every row read by every TupleStream: creating the key and, with fingerprinting, hashing
+ * the compare fields. SqlTupleStream's reading of the row itself is measured by db.CreateTupleBenchmark.
+ *
+ * @author: Hermann Leung
+ * Date: 3/9/2015
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TupleConstructionBenchmark {
+    static final int ROWS = 1024;
+
+    @Param({"STRING", "LONG", "DECIMAL"})
+    BenchmarkData.KeyType keyType;
+
+    @Param({"1", "3"})
+    int keyFields;
+
+    @Param({"false", "true"})
+    boolean fingerprint;
+
+    Schema schema;
+    Comparable [][] values;
+
+    @Setup
+    public void setup () {
+        schema = BenchmarkData.schema(keyType, keyFields, BenchmarkData.FieldType.DECIMAL, 8);
+        if (fingerprint) {
+            int [] ordinals = new int[schema.getCompareFields().size()];
+            for (int i=0; i<ordinals.length; i++) {
+                ordinals[i] = ((Field) schema.getCompareFields().get(i)).getOrdinal();
+            }
+            schema.setFingerprintOrdinals(ordinals);
+        }
+        values = new Comparable[ROWS][];
+        for (int r=0; r<ROWS; r++) {
+            values[r] = BenchmarkData.values(schema, keyType, BenchmarkData.FieldType.DECIMAL, r, false);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void newTuple (Blackhole bh) {
+        for (int r=0; r<ROWS; r++) {
+            bh.consume(new Tuple(schema, values[r]));
+        }
+    }
+}
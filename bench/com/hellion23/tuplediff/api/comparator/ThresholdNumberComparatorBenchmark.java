@@ -0,0 +1,53 @@
+package com.hellion23.tuplediff.api.comparator;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ThresholdNumberComparator.compare, the default comparator of numeric fields, on Doubles, BigDecimals and a mix.
+ *
+ * @author: Hermann Leung
+ * Date: 3/9/2015
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ThresholdNumberComparatorBenchmark {
+    static final int VALUES = 1024;
+
+    @Param({"DOUBLE", "DECIMAL", "MIXED"})
+    String numberType;
+
+    Number [] numbers;
+
+    @Setup
+    public void setup () {
+        numbers = new Number[VALUES + 1];
+        for (int i=0; i<numbers.length; i++) {
+            boolean decimal = numberType.equals("DECIMAL") || (numberType.equals("MIXED") && i % 2 == 1);
+            numbers[i] = decimal ? BigDecimal.valueOf(i * 25L, 2) : (Number) (i * 0.25);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void compare (Blackhole bh) {
+        for (int i=0; i<VALUES; i++) {
+            bh.consume(ThresholdNumberComparator.DEFAULT.compare(numbers[i], numbers[i + 1]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void compareEqual (Blackhole bh) {
+        for (int i=0; i<VALUES; i++) {
+            bh.consume(ThresholdNumberComparator.DEFAULT.compare(numbers[i], numbers[i]));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.hellion23.tuplediff.api.db;
+
+import com.hellion23.tuplediff.api.Tuple;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetProvider;
+import java.sql.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SqlTupleStream.createTuple, the conversion of a JDBC row into a Tuple. The rows are queried once from an in-memory
+ * Derby database into a CachedRowSet, so the score excludes the driver's fetching and is per row.
+ *
+ * @author: Hermann Leung
+ * Date: 3/9/2015
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CreateTupleBenchmark {
+    static final int ROWS = 1024;
+    static final String TABLE = "TD_BENCH_ROWS";
+
+    @Param({"4", "16"})
+    int compareFields;
+
+    Connection connection;
+    SqlTupleStream stream;
+    CachedRowSet rows;
+
+    @Setup
+    public void setup () throws Exception {
+        Class.forName("org.apache.derby.jdbc.EmbeddedDriver");
+        connection = DriverManager.getConnection("jdbc:derby:memory:tuplediffBench;create=true");
+        Statement stmt = connection.createStatement();
+        try {
+            stmt.execute("DROP TABLE " + TABLE);
+        }
+        catch (SQLException e) {
+            // Not there yet.
+        }
+        StringBuilder ddl = new StringBuilder("CREATE TABLE " + TABLE + " (ID BIGINT, NAME VARCHAR(64)");
+        StringBuilder insert = new StringBuilder("INSERT INTO " + TABLE + " VALUES (?, ?");
+        for (int f=0; f<compareFields; f++) {
+            ddl.append(", ").append(f % 2 == 0 ? "AMOUNT_" : "LABEL_").append(f)
+                    .append(f % 2 == 0 ? " DECIMAL(18, 4)" : " VARCHAR(64)");
+            insert.append(", ?");
+        }
+        stmt.execute(ddl.append(")").toString());
+        stmt.close();
+
+        PreparedStatement ps = connection.prepareStatement(insert.append(")").toString());
+        for (int r=0; r<ROWS; r++) {
+            ps.setLong(1, r);
+            ps.setString(2, "name-" + r);
+            for (int f=0; f<compareFields; f++) {
+                if (f % 2 == 0) {
+                    ps.setBigDecimal(f + 3, java.math.BigDecimal.valueOf(r * 31L + f, 4));
+                }
+                else {
+                    ps.setString(f + 3, "label-" + (r * 31L + f));
+                }
+            }
+            ps.addBatch();
+        }
+        ps.executeBatch();
+        ps.close();
+
+        String sql = "SELECT * FROM " + TABLE;
+        stream = SqlTupleStream.create(connection, sql, new String[]{"ID"});
+        stream.setName("CreateTupleBenchmark");
+        stream.init();
+
+        Statement query = connection.createStatement();
+        ResultSet rs = query.executeQuery(sql);
+        rows = RowSetProvider.newFactory().createCachedRowSet();
+        rows.populate(rs);
+        rs.close();
+        query.close();
+    }
+
+    @TearDown
+    public void tearDown () throws SQLException {
+        rows.close();
+        stream.close();
+        connection.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void createTuple (Blackhole bh) throws SQLException {
+        rows.beforeFirst();
+        while (rows.next()) {
+            Tuple t = stream.createTuple(rows);
+            bh.consume(t);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.hellion23.tuplediff.api;
+
+import com.hellion23.tuplediff.api.comparator.FieldComparator;
+import com.hellion23.tuplediff.api.comparator.FieldComparatorFactory;
+import com.hellion23.tuplediff.api.db.SqlSchema;
+import com.hellion23.tuplediff.api.db.SqlTupleStream;
+import com.hellion23.tuplediff.api.listener.CompareEventListener;
+import com.hellion23.tuplediff.api.monitor.Monitor;
+
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * A two phase comparison of two SqlTupleStreams that avoids transferring the full rows of matching keys.
+ *
+ * Phase one merges the checksum streams of both sides (see SqlTupleStream.createChecksumStream), which only carry the
+ * key and a hash of the compare fields. Keys whose hashes are equal are reported as PAIR_MATCHED right away (with the
+ * narrow Tuples); all other keys are collected. Phase two looks up the full rows of the collected keys on both sides,
+ * lookupBatchSize keys per query, and compares them as usual, reporting PAIR_BREAK with break fields, PAIR_MATCHED (e.g.
+ * when values differ only within a comparator's tolerance), LEFT_BREAK or RIGHT_BREAK.
+ *
+ * Rows are hashed by the database when both sides are of the same vendor and it has a row hash expression, and in
+ * Java (which saves comparison work but not transfer) otherwise. The collected keys are held in memory, and rows
+ * modified between the phases are reported as found in phase two.
+ *
+ * @author: Hermann Leung
+ * Date: 2/23/2015
+ */
+public class ChecksumTupleComparison extends TupleComparison {
+    private static final Logger logger = Logger.getLogger(ChecksumTupleComparison.class.getName());
+
+    SqlTupleStream leftSource;
+    SqlTupleStream rightSource;
+    SqlTupleStream leftChecksum;
+    SqlTupleStream rightChecksum;
+    boolean databaseRowHash = true;
+    boolean javaRowHash;
+    int lookupBatchSize = 200;
+    // Phase one: keys of the pairs and orphans to look up in phase two.
+    final Map<Comparable, Comparable []> mismatchedKeys = new LinkedHashMap<Comparable, Comparable[]>();
+    boolean lookingUp = false;
+
+    public ChecksumTupleComparison(Config config, Monitor monitor, CompareEventListener compareEventListener) {
+        super(config, monitor, compareEventListener);
+        if (!(leftStream instanceof SqlTupleStream) || !(rightStream instanceof SqlTupleStream)) {
+            throw new TupleDiffException("ChecksumTupleComparison requires both streams to be SqlTupleStreams", this);
+        }
+        leftSource = (SqlTupleStream) leftStream;
+        rightSource = (SqlTupleStream) rightStream;
+    }
+
+    public ChecksumTupleComparison(Config config) {
+        this(config, null, null);
+    }
+
+    @Override
+    protected void initialize() throws TupleDiffException {
+        validateSchemas(leftSource, rightSource);
+        String leftVendor = ((SqlSchema) leftSource.getSchema()).getVendor();
+        String rightVendor = ((SqlSchema) rightSource.getSchema()).getVendor();
+        javaRowHash = !databaseRowHash || !leftSource.isRowHashSupported()
+                || !rightSource.isRowHashSupported() || leftVendor == null || !leftVendor.equals(rightVendor);
+        leftChecksum = leftSource.createChecksumStream(javaRowHash);
+        rightChecksum = rightSource.createChecksumStream(javaRowHash);
+        leftStream = wrapChecksumStream(leftChecksum, true);
+        rightStream = wrapChecksumStream(rightChecksum, false);
+        super.initialize();
+        monitor.reportEvent(this, Monitor.EVENT_STATS_ATTRIBUTE, "rowHash", javaRowHash ? "JAVA" : "DATABASE");
+    }
+
+    @Override
+    protected void compareTuples() {
+        super.compareTuples();
+        leftChecksum.close();
+        rightChecksum.close();
+        if (!notCancelled) {
+            return;
+        }
+        logger.info(getName() + " looking up " + mismatchedKeys.size() + " keys whose row hashes differ");
+        monitor.reportEvent(this, Monitor.EVENT_STATS_ATTRIBUTE, "mismatchedKeys", mismatchedKeys.size());
+
+        // Compare the full rows from here on.
+        lookingUp = true;
+        leftStream = leftSource;
+        rightStream = rightSource;
+        initComparators();
+        List<Comparable []> batch = new ArrayList<Comparable[]>(lookupBatchSize);
+        for (Iterator<Comparable []> i = mismatchedKeys.values().iterator(); notCancelled && i.hasNext(); ) {
+            batch.add(i.next());
+            i.remove();
+            if (batch.size() == lookupBatchSize || !i.hasNext()) {
+                compareRows(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * In phase one, compares the row hashes exactly ahead of any override: the default ThresholdNumberComparator
+     * compares Longs as doubles, which would match hashes differing only in their low bits.
+     */
+    @Override
+    protected List<FieldComparator> getComparatorOverrides() {
+        if (lookingUp) {
+            return super.getComparatorOverrides();
+        }
+        List<FieldComparator> overrides = new ArrayList<FieldComparator>();
+        overrides.add(FieldComparatorFactory.Instance().createByFieldName(SqlTupleStream.ROW_HASH_FIELD,
+                new FieldComparator.ComparableComparator()));
+        if (super.getComparatorOverrides() != null) {
+            overrides.addAll(super.getComparatorOverrides());
+        }
+        return overrides;
+    }
+
+    /**
+     * Gives sub-classes the chance to decorate the checksum streams before they are opened.
+     */
+    protected TupleStream wrapChecksumStream(SqlTupleStream checksum, boolean left) {
+        return checksum;
+    }
+
+    private void compareRows(List<Comparable []> keys) {
+        Map<Comparable, Tuple> rightRows = new HashMap<Comparable, Tuple>();
+        for (Tuple right : rightSource.fetchByKeys(keys)) {
+            rightRows.put(right.getKey(), right);
+        }
+        for (Tuple left : leftSource.fetchByKeys(keys)) {
+            Tuple right = rightRows.remove(left.getKey());
+            if (right == null) {
+                comparisonEvent(CompareEvent.TYPE.LEFT_BREAK, left, null, null);
+            }
+            else {
+                List<String> breakFields = getBreakFields(left, right);
+                if (breakFields != null) {
+                    comparisonEvent(CompareEvent.TYPE.PAIR_BREAK, left, right, breakFields);
+                }
+                else {
+                    comparisonEvent(CompareEvent.TYPE.PAIR_MATCHED, left, right, null);
+                }
+            }
+        }
+        for (Tuple right : rightRows.values()) {
+            comparisonEvent(CompareEvent.TYPE.RIGHT_BREAK, null, right, null);
+        }
+    }
+
+    /**
+     * In phase one, holds back the breaks.
+     */
+    @Override
+    protected void comparisonEvent(CompareEvent.TYPE event, Tuple left, Tuple right, List<String> breakFields) {
+        if (!lookingUp) {
+            switch (event) {
+                case PAIR_BREAK:
+                case LEFT_BREAK:
+                case RIGHT_BREAK:
+                    holdBack(left != null ? left : right);
+                    return;
+            }
+        }
+        emit(event, left, right, breakFields);
+    }
+
+    /**
+     * Called in phase one for a checksum Tuple whose key is found on one side only or whose row hash differs from
+     * the other side's; records the key to be looked up in phase two.
+     */
+    protected void holdBack(Tuple checksum) {
+        mismatchedKeys.put(checksum.getKey(), keyValues(checksum));
+    }
+
+    /**
+     * Reports the event as is.
+     */
+    protected void emit(CompareEvent.TYPE event, Tuple left, Tuple right, List<String> breakFields) {
+        super.comparisonEvent(event, left, right, breakFields);
+    }
+
+    @Override
+    protected void cleanup() {
+        super.cleanup();
+        for (SqlTupleStream stream : Arrays.asList(leftChecksum, rightChecksum, leftSource, rightSource)) {
+            if (stream != null) {
+                stream.close();
+            }
+        }
+    }
+
+    public boolean isDatabaseRowHash() {
+        return databaseRowHash;
+    }
+
+    /**
+     * Whether rows should be hashed by the database where possible (the default). If false, or if the streams are
+     * of different vendors, the full rows are transferred and hashed in Java.
+     */
+    public void setDatabaseRowHash(boolean databaseRowHash) {
+        this.databaseRowHash = databaseRowHash;
+    }
+
+    public int getLookupBatchSize() {
+        return lookupBatchSize;
+    }
+
+    /**
+     * The number of keys whose rows are looked up per query in phase two.
+     */
+    public void setLookupBatchSize(int lookupBatchSize) {
+        this.lookupBatchSize = lookupBatchSize;
+    }
+}
@@ -3,6 +3,7 @@ package com.hellion23.tuplediff.api;
 import com.hellion23.tuplediff.api.listener.CompareEventListener;
 import com.hellion23.tuplediff.api.listener.ListCompareEventListener;
 import com.hellion23.tuplediff.api.monitor.CompareStats;
+import com.hellion23.tuplediff.api.monitor.Metrics;
 import com.hellion23.tuplediff.api.monitor.Monitor;
 import com.hellion23.tuplediff.api.monitor.Nameable;
 import com.hellion23.tuplediff.api.monitor.Stats;
@@ -60,6 +61,10 @@ public class ComparisonResult {
         return monitor.getRightStats();
     }
 
+    public Metrics getMetrics () {
+        return tupleComparison.getMetrics();
+    }
+
     /**
      *  Invokes the TupleComparison's cancel() method.
      */
@@ -82,6 +87,9 @@ public class ComparisonResult {
             sb.append(monitor.getLeftStats().toString()).append('\n');
             sb.append(monitor.getRightStats().toString()).append('\n');
             sb.append(monitor.getCompareStats().toString()).append('\n');
+            if (getMetrics() != null) {
+                sb.append(getMetrics().toString()).append('\n');
+            }
         }
         else {
             sb.append("Uninitialized...\n");
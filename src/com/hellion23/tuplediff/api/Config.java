@@ -15,6 +15,7 @@ public class Config implements Nameable {
     TupleStream rightStream;
     String name;
     List<FieldComparator> comparatorOverrides;
+    boolean fingerprintCompare = false;
 
     public Config () {
         this (null);
@@ -75,4 +76,20 @@ public class Config implements Nameable {
         this.comparatorOverrides = comparatorOverrides;
     }
 
+    public boolean isFingerprintCompare() {
+        return fingerprintCompare;
+    }
+
+    /**
+     * If true, every Tuple carries a 64 bit fingerprint of its compare fields that use the exact (compareTo based)
+     * Comparator, and a key matched pair whose fingerprints are equal only has its remaining (e.g. threshold) fields
+     * compared individually. Costs one hash per Tuple, which pays off when most pairs are identical.
+     * There is a 1 in 2^64 chance per pair of a break being hidden by a hash collision.
+     *
+     * @param fingerprintCompare
+     */
+    public void setFingerprintCompare(boolean fingerprintCompare) {
+        this.fingerprintCompare = fingerprintCompare;
+    }
+
 }
@@ -12,6 +12,7 @@ public class Field implements Nameable, Comparable <Field> {
     protected String name;
     protected Class fieldClass;
     protected String expression;
+    protected int ordinal = -1;
 
     public String getExpression() {
         return expression;
@@ -37,6 +38,19 @@ public class Field implements Nameable, Comparable <Field> {
         this.fieldClass = fieldClass;
     }
 
+    /**
+     * The position of this Field within its Schema's list of all fields. Assigned by the Schema; Tuples created
+     * against that Schema store this Field's value at this index.
+     * @return the ordinal, or -1 if this Field has not been added to a Schema.
+     */
+    public int getOrdinal() {
+        return ordinal;
+    }
+
+    public void setOrdinal(int ordinal) {
+        this.ordinal = ordinal;
+    }
+
     @Override
     public final int compareTo(Field field) {
         if (field == null) {
@@ -0,0 +1,111 @@
+package com.hellion23.tuplediff.api;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.Date;
+
+/**
+ * 64 bit hashes of Tuple values, used to declare a pair of Tuples matched without comparing them field by field.
+ *
+ * Equal values (as defined by compareTo) hash equally for the types produced by the TupleStreams: BigDecimals are
+ * hashed by their stripped representation (so 1.0 and 1.00 hash the same), Timestamps include their nanos. Values
+ * of any other type fall back to their hashCode(). Values that compare equal but are of different classes (e.g.
+ * an Integer and a Long) hash differently, which only costs a field by field comparison.
+ *
+ * @author: Hermann Leung
+ * Date: 2/23/2015
+ */
+public class Fingerprint {
+    static final long SEED = 0x9E3779B97F4A7C15L;
+    static final long NULL_HASH = 0x5BD1E9955BD1E995L;
+
+    /**
+     * Hashes the values at the given ordinals, in the given order.
+     */
+    public static long hash64 (Comparable [] values, int [] ordinals) {
+        long h = SEED;
+        for (int ordinal : ordinals) {
+            h = mix(h ^ hash64(values[ordinal])) + SEED;
+        }
+        return mix(h ^ ordinals.length);
+    }
+
+    /**
+     * Hashes all values, in order.
+     */
+    public static long hash64 (Comparable [] values) {
+        long h = SEED;
+        for (Comparable value : values) {
+            h = mix(h ^ hash64(value)) + SEED;
+        }
+        return mix(h ^ values.length);
+    }
+
+    public static long hash64 (Comparable value) {
+        if (value == null) {
+            return NULL_HASH;
+        }
+        else if (value instanceof String) {
+            return hash64((String) value);
+        }
+        else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return mix(((Number) value).longValue());
+        }
+        else if (value instanceof Double) {
+            return mix(Double.doubleToLongBits((Double) value));
+        }
+        else if (value instanceof Float) {
+            return mix(Float.floatToIntBits((Float) value));
+        }
+        else if (value instanceof BigDecimal) {
+            BigDecimal d = (BigDecimal) value;
+            if (d.signum() == 0) {
+                return mix(0);
+            }
+            d = d.stripTrailingZeros();
+            return mix(hash64(d.unscaledValue()) ^ d.scale());
+        }
+        else if (value instanceof BigInteger) {
+            return hash64((BigInteger) value);
+        }
+        else if (value instanceof Timestamp) {
+            Timestamp t = (Timestamp) value;
+            return mix(mix(t.getTime()) ^ t.getNanos());
+        }
+        else if (value instanceof Date) {
+            return mix(((Date) value).getTime());
+        }
+        else {
+            return mix(value.hashCode());
+        }
+    }
+
+    static long hash64 (String s) {
+        long h = SEED ^ s.length();
+        for (int i=0; i<s.length(); i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001B3L;
+        }
+        return mix(h);
+    }
+
+    static long hash64 (BigInteger b) {
+        long h = SEED;
+        for (byte x : b.toByteArray()) {
+            h = (h ^ (x & 0xff)) * 0x100000001B3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * The finalizer of MurmurHash3's 64 bit variant.
+     */
+    public static long mix (long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB93FE1A85EC3L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
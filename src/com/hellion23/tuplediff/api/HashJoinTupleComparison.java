@@ -0,0 +1,310 @@
+package com.hellion23.tuplediff.api;
+
+import com.hellion23.tuplediff.api.db.SqlTupleStream;
+import com.hellion23.tuplediff.api.io.TupleSpillFile;
+import com.hellion23.tuplediff.api.listener.CompareEventListener;
+import com.hellion23.tuplediff.api.monitor.Monitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * A TupleComparison that does not need the streams to be ordered by key. The Tuples of the build side (by default the
+ * LEFT stream, which should be the smaller one) are loaded into a hash table keyed on their TupleStreamKey; the other
+ * (probe) side is then streamed past it, emitting PAIR_BREAK/PAIR_MATCHED for matches and LEFT_BREAK/RIGHT_BREAK for
+ * keys found on one side only. Breaks are not emitted in key order.
+ *
+ * As in a merge join, Tuples sharing a key are paired in the order they are read, and those left over on either side
+ * are reported as LEFT_BREAK/RIGHT_BREAK.
+ *
+ * When the build side holds more than memoryBudgetTuples Tuples, both sides are partitioned by key hash into spill
+ * files (a grace hash join) and each pair of partitions is joined separately, re-partitioning a partition that is
+ * still too large up to MAX_SPILL_DEPTH times.
+ *
+ * SqlTupleStreams are switched to unordered queries, so the database does not have to sort them.
+ *
+ * @author: Hermann Leung
+ * Date: 2/16/2015
+ */
+public class HashJoinTupleComparison extends TupleComparison {
+    private static final Logger logger = Logger.getLogger(HashJoinTupleComparison.class.getName());
+    static final int MAX_SPILL_DEPTH = 3;
+
+    public enum Side {LEFT, RIGHT}
+
+    Side buildSide = Side.LEFT;
+    int memoryBudgetTuples = 1000000;
+    int spillPartitions = 32;
+    File spillDirectory = new File(System.getProperty("java.io.tmpdir"));
+    final List<TupleSpillFile> spillFiles = new LinkedList<TupleSpillFile>();
+
+    public HashJoinTupleComparison(Config config, Monitor monitor, CompareEventListener compareEventListener) {
+        super(config, monitor, compareEventListener);
+    }
+
+    public HashJoinTupleComparison(Config config) {
+        this(config, null, null);
+    }
+
+    @Override
+    protected void prepareStreamsForReading() {
+        if (leftStream instanceof SqlTupleStream) {
+            ((SqlTupleStream) leftStream).setOrdered(false);
+        }
+        if (rightStream instanceof SqlTupleStream) {
+            ((SqlTupleStream) rightStream).setOrdered(false);
+        }
+        super.prepareStreamsForReading();
+    }
+
+    @Override
+    protected void compareTuples() {
+        boolean buildLeft = buildSide == Side.LEFT;
+        try {
+            join(new StreamIterator(buildLeft ? leftStream : rightStream, buildLeft),
+                    new StreamIterator(buildLeft ? rightStream : leftStream, !buildLeft),
+                    buildLeft, 0);
+        }
+        catch (IOException e) {
+            throw new TupleDiffException("Error spilling Tuples to " + spillDirectory + ": " + e.getMessage(), this, e);
+        }
+        finally {
+            for (TupleSpillFile f : spillFiles) {
+                f.delete();
+            }
+            spillFiles.clear();
+        }
+    }
+
+    /**
+     * Joins the build Tuples with the probe Tuples in memory, or if there are too many build Tuples, partitions both
+     * and joins each partition.
+     */
+    private void join(Iterator<Tuple> build, Iterator<Tuple> probe, boolean buildLeft, int depth) throws IOException {
+        Map<Comparable, Tuple> table = new HashMap<Comparable, Tuple>();
+        // The build Tuples whose key is already in the table, in the order read.
+        Map<Comparable, LinkedList<Tuple>> duplicates = new HashMap<Comparable, LinkedList<Tuple>>();
+        int duplicateCount = 0;
+        while (notCancelled && build.hasNext()) {
+            Tuple t = build.next();
+            Tuple previous = table.put(t.getKey(), t);
+            if (previous != null) {
+                table.put(t.getKey(), previous);
+                LinkedList<Tuple> list = duplicates.get(t.getKey());
+                if (list == null) {
+                    list = new LinkedList<Tuple>();
+                    duplicates.put(t.getKey(), list);
+                }
+                list.add(t);
+                duplicateCount++;
+            }
+            if (table.size() + duplicateCount > memoryBudgetTuples && depth < MAX_SPILL_DEPTH) {
+                spillAndJoin(table, duplicates, build, probe, buildLeft, depth);
+                return;
+            }
+        }
+        if (duplicateCount > 0) {
+            logger.warning(getName() + " found " + duplicateCount + " build side Tuples with duplicate keys");
+        }
+
+        while (notCancelled && probe.hasNext()) {
+            Tuple p = probe.next();
+            Tuple b = table.remove(p.getKey());
+            if (b != null) {
+                LinkedList<Tuple> list = duplicates.get(p.getKey());
+                if (list != null) {
+                    table.put(p.getKey(), list.removeFirst());
+                    if (list.isEmpty()) {
+                        duplicates.remove(p.getKey());
+                    }
+                }
+            }
+            if (b == null) {
+                orphan(p, !buildLeft);
+            }
+            else if (buildLeft) {
+                pair(b, p);
+            }
+            else {
+                pair(p, b);
+            }
+        }
+
+        for (Tuple b : table.values()) {
+            if (!notCancelled) break;
+            orphan(b, buildLeft);
+        }
+        for (LinkedList<Tuple> list : duplicates.values()) {
+            for (Tuple b : list) {
+                if (!notCancelled) return;
+                orphan(b, buildLeft);
+            }
+        }
+    }
+
+    private void spillAndJoin(Map<Comparable, Tuple> table, Map<Comparable, LinkedList<Tuple>> duplicates,
+                              Iterator<Tuple> build, Iterator<Tuple> probe, boolean buildLeft, int depth)
+            throws IOException {
+        logger.info(getName() + " build side exceeds " + memoryBudgetTuples + " Tuples, spilling to "
+                + spillPartitions + " partitions at depth " + depth);
+        Schema leftSchema = leftStream.getSchema();
+        Schema rightSchema = rightStream.getSchema();
+        TupleSpillFile [] buildFiles = createSpillFiles(depth, "build", buildLeft ? leftSchema : rightSchema);
+        TupleSpillFile [] probeFiles = createSpillFiles(depth, "probe", buildLeft ? rightSchema : leftSchema);
+
+        // Tuples of the same key stay in the order read.
+        for (Tuple t : table.values()) {
+            buildFiles[partitionOf(t.getKey(), depth)].write(t);
+            LinkedList<Tuple> list = duplicates.get(t.getKey());
+            if (list != null) {
+                for (Tuple d : list) {
+                    buildFiles[partitionOf(d.getKey(), depth)].write(d);
+                }
+            }
+        }
+        table.clear();
+        duplicates.clear();
+        while (notCancelled && build.hasNext()) {
+            Tuple t = build.next();
+            buildFiles[partitionOf(t.getKey(), depth)].write(t);
+        }
+        while (notCancelled && probe.hasNext()) {
+            Tuple t = probe.next();
+            probeFiles[partitionOf(t.getKey(), depth)].write(t);
+        }
+
+        for (int i=0; i<spillPartitions && notCancelled; i++) {
+            // Closed even when the join is cancelled or fails before reading them to the end.
+            TupleSpillFile.Reader buildReader = buildFiles[i].openReader();
+            TupleSpillFile.Reader probeReader = null;
+            try {
+                probeReader = probeFiles[i].openReader();
+                join(buildReader, probeReader, buildLeft, depth + 1);
+            }
+            finally {
+                buildReader.close();
+                if (probeReader != null) {
+                    probeReader.close();
+                }
+            }
+            buildFiles[i].delete();
+            probeFiles[i].delete();
+        }
+    }
+
+    private TupleSpillFile [] createSpillFiles (int depth, String side, Schema schema) throws IOException {
+        TupleSpillFile [] files = new TupleSpillFile[spillPartitions];
+        for (int i=0; i<files.length; i++) {
+            files[i] = new TupleSpillFile(spillDirectory, "tuplediff-hj-" + side + "-" + depth + "-" + i + "-", schema);
+            spillFiles.add(files[i]);
+        }
+        return files;
+    }
+
+    /**
+     * Each spill depth uses a differently seeded hash so that a partition that is still too large is split further.
+     */
+    int partitionOf (Comparable key, int depth) {
+        int h = key.hashCode() ^ (depth * 0x9E3779B9);
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (h & 0x7FFFFFFF) % spillPartitions;
+    }
+
+    private void pair(Tuple left, Tuple right) {
+        List<String> breakFields = getBreakFields(left, right);
+        if (breakFields != null) {
+            comparisonEvent(CompareEvent.TYPE.PAIR_BREAK, left, right, breakFields);
+        }
+        else {
+            comparisonEvent(CompareEvent.TYPE.PAIR_MATCHED, left, right, null);
+        }
+    }
+
+    private void orphan(Tuple t, boolean left) {
+        if (left) {
+            comparisonEvent(CompareEvent.TYPE.LEFT_BREAK, t, null, null);
+        }
+        else {
+            comparisonEvent(CompareEvent.TYPE.RIGHT_BREAK, null, t, null);
+        }
+    }
+
+    public Side getBuildSide() {
+        return buildSide;
+    }
+
+    /**
+     * The side loaded into the hash table; should be the side with fewer Tuples.
+     */
+    public void setBuildSide(Side buildSide) {
+        this.buildSide = buildSide;
+    }
+
+    public int getMemoryBudgetTuples() {
+        return memoryBudgetTuples;
+    }
+
+    /**
+     * The maximum number of build side Tuples held in memory before partitions are spilled to disk.
+     */
+    public void setMemoryBudgetTuples(int memoryBudgetTuples) {
+        this.memoryBudgetTuples = memoryBudgetTuples;
+    }
+
+    public int getSpillPartitions() {
+        return spillPartitions;
+    }
+
+    public void setSpillPartitions(int spillPartitions) {
+        this.spillPartitions = spillPartitions;
+    }
+
+    public File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    public void setSpillDirectory(File spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Reads a TupleStream, reporting the DATA_LEFT/DATA_RIGHT event of every Tuple as it is read.
+     */
+    class StreamIterator implements Iterator<Tuple> {
+        TupleStream stream;
+        CompareEvent.TYPE dataEvent;
+
+        StreamIterator(TupleStream stream, boolean left) {
+            this.stream = stream;
+            this.dataEvent = left ? CompareEvent.TYPE.DATA_LEFT : CompareEvent.TYPE.DATA_RIGHT;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return stream.hasNext();
+        }
+
+        @Override
+        public Tuple next() {
+            Tuple t = stream.getNext();
+            if (dataEvent == CompareEvent.TYPE.DATA_LEFT) {
+                comparisonEvent(dataEvent, t, null, null);
+            }
+            else {
+                comparisonEvent(dataEvent, null, t, null);
+            }
+            return t;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package com.hellion23.tuplediff.api;
+
+import com.hellion23.tuplediff.api.comparator.FieldComparator;
+import com.hellion23.tuplediff.api.db.SqlField;
+import com.hellion23.tuplediff.api.db.SqlSchema;
+import com.hellion23.tuplediff.api.db.SqlTupleStream;
+import com.hellion23.tuplediff.api.io.*;
+import com.hellion23.tuplediff.api.listener.CompareEventListener;
+import com.hellion23.tuplediff.api.monitor.Monitor;
+import com.hellion23.tuplediff.api.monitor.Monitorable;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * A ChecksumTupleComparison that remembers, between runs, the (key, row hash) entries of each side and the breaks
+ * found, in snapshotDirectory under the name of the Config.
+ *
+ * While the checksum streams are merged, each side's fresh entries are compared with its snapshot of the previous
+ * run to collect the keys that were added, removed or whose row hash changed on either side. The rows of a break whose
+ * key did not change on either side are not looked up again; the break of the previous run is reported instead. Only
+ * breaks involving changed keys are looked up and compared in full, so a rerun over unchanged tables reads nothing
+ * but keys and hashes and still produces a complete ComparisonResult.
+ *
+ * The snapshots and breaks are replaced when a comparison completes without being cancelled. They are not used if
+ * the Schemas or row hash function changed since they were written; after changing comparator settings, delete
+ * them. The three files are replaced one after the other, so each carries the generation of the run that wrote it;
+ * a set of mixed generations (left by a crash in between) is not used either. The changed keys and the previous
+ * breaks are held in memory.
+ *
+ * @author: Hermann Leung
+ * Date: 2/25/2015
+ */
+public class IncrementalTupleComparison extends ChecksumTupleComparison {
+    private static final Logger logger = Logger.getLogger(IncrementalTupleComparison.class.getName());
+    static final String LEFT = "left";
+    static final String RIGHT = "right";
+
+    File snapshotDirectory;
+    // Written into both snapshots and the breaks of this run.
+    final String generation = UUID.randomUUID().toString();
+    SnapshotStream leftSnapshot;
+    SnapshotStream rightSnapshot;
+    boolean incremental = false;
+    // Keys (of either side) added, removed or changed since the previous run.
+    final Set<Comparable []> changedKeys = new TreeSet<Comparable[]>(KeyRangePartitioner.KEY_ORDER);
+    Map<Comparable [], CompareEvent> previousBreaks;
+    long carriedForward = 0;
+    File breaksFile;
+    File breaksTempFile;
+    DataOutputStream breaksOut;
+
+    public IncrementalTupleComparison(Config config, Monitor monitor, CompareEventListener compareEventListener,
+                                      File snapshotDirectory) {
+        super(config, monitor, compareEventListener);
+        this.snapshotDirectory = snapshotDirectory;
+    }
+
+    public IncrementalTupleComparison(Config config, File snapshotDirectory) {
+        this(config, null, null, snapshotDirectory);
+    }
+
+    @Override
+    protected TupleStream wrapChecksumStream(SqlTupleStream checksum, boolean left) {
+        SqlTupleStream source = left ? leftSource : rightSource;
+        File file = snapshotFile(left ? LEFT : RIGHT);
+        String signature = signature(source);
+        try {
+            KeyHashSnapshot.Reader previous = null;
+            if (KeyHashSnapshot.exists(file)) {
+                previous = new KeyHashSnapshot.Reader(file);
+                if (!signature.equals(previous.getSignature())) {
+                    logger.info(getName() + " ignoring snapshot " + file + " of a different signature");
+                    previous.close();
+                    previous = null;
+                }
+            }
+            int keySize = source.getSchema().getKeyFields().size();
+            SnapshotStream snapshot = new SnapshotStream(checksum, previous,
+                    new KeyHashSnapshot.Writer(file, signature, generation, keySize));
+            if (left)
+                leftSnapshot = snapshot;
+            else
+                rightSnapshot = snapshot;
+            return snapshot;
+        }
+        catch (IOException e) {
+            throw new TupleDiffException("Could not open snapshot " + file + ": " + e.getMessage(), this, e);
+        }
+    }
+
+    @Override
+    protected void compareTuples() {
+        breaksFile = snapshotFile("breaks");
+        breaksTempFile = new File(breaksFile.getPath() + ".tmp");
+        try {
+            if (leftSnapshot.previous != null && rightSnapshot.previous != null) {
+                String previousGeneration = leftSnapshot.previous.getGeneration();
+                if (previousGeneration.equals(rightSnapshot.previous.getGeneration())) {
+                    previousBreaks = readBreaks(previousGeneration);
+                    incremental = previousBreaks != null;
+                }
+                else {
+                    logger.info(getName() + " ignoring snapshots of different generations");
+                }
+            }
+            monitor.reportEvent(this, Monitor.EVENT_STATS_ATTRIBUTE, "incremental", incremental);
+            breaksOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(breaksTempFile)));
+            TupleSerializer.writeString(breaksOut, breaksSignature());
+            TupleSerializer.writeString(breaksOut, generation);
+        }
+        catch (IOException e) {
+            throw new TupleDiffException("Could not open breaks of the previous run " + breaksFile + ": "
+                    + e.getMessage(), this, e);
+        }
+
+        super.compareTuples();
+
+        if (notCancelled) {
+            try {
+                leftSnapshot.next.commit();
+                rightSnapshot.next.commit();
+                breaksOut.writeBoolean(false);
+                breaksOut.close();
+                if (breaksFile.exists() && !breaksFile.delete()) {
+                    throw new IOException("Could not replace " + breaksFile);
+                }
+                if (!breaksTempFile.renameTo(breaksFile)) {
+                    throw new IOException("Could not rename " + breaksTempFile + " to " + breaksFile);
+                }
+            }
+            catch (IOException e) {
+                throw new TupleDiffException("Could not save snapshots of " + getName() + ": " + e.getMessage(),
+                        this, e);
+            }
+            monitor.reportEvent(this, Monitor.EVENT_STATS_ATTRIBUTE, "changedKeys", changedKeys.size());
+            monitor.reportEvent(this, Monitor.EVENT_STATS_ATTRIBUTE, "carriedForwardBreaks", carriedForward);
+            logger.info(getName() + " found " + changedKeys.size() + " changed keys, carried forward "
+                    + carriedForward + " breaks");
+        }
+    }
+
+    /**
+     * Reports the previous run's break for an unchanged key instead of looking it up.
+     */
+    @Override
+    protected void holdBack(Tuple checksum) {
+        if (incremental) {
+            Comparable [] key = keyValues(checksum);
+            if (!changedKeys.contains(key)) {
+                CompareEvent previous = previousBreaks.remove(key);
+                if (previous != null) {
+                    carriedForward++;
+                    recordBreak(previous);
+                    emit(previous.getType(), previous.getLeftTuple(), previous.getRightTuple(),
+                            previous.getBreakFields());
+                    return;
+                }
+            }
+        }
+        super.holdBack(checksum);
+    }
+
+    @Override
+    protected void comparisonEvent(CompareEvent.TYPE event, Tuple left, Tuple right, List<String> breakFields) {
+        if (lookingUp && event != CompareEvent.TYPE.PAIR_MATCHED) {
+            recordBreak(new CompareEvent(event, left, right, breakFields));
+        }
+        super.comparisonEvent(event, left, right, breakFields);
+    }
+
+    private void recordBreak(CompareEvent event) {
+        try {
+            breaksOut.writeBoolean(true);
+            CompareEventSerializer.writeEvent(breaksOut, event);
+        }
+        catch (IOException e) {
+            throw new TupleDiffException("Could not save break to " + breaksTempFile + ": " + e.getMessage(), this, e);
+        }
+    }
+
+    /**
+     * @return the breaks of the previous run by key, or null if there are none of the current signature and the
+     * given generation of the snapshots.
+     */
+    private Map<Comparable [], CompareEvent> readBreaks (String snapshotGeneration) throws IOException {
+        if (!breaksFile.isFile()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new MappedInputStream(breaksFile));
+        try {
+            if (!breaksSignature().equals(TupleSerializer.readString(in))) {
+                logger.info(getName() + " ignoring breaks " + breaksFile + " of a different signature");
+                return null;
+            }
+            if (!snapshotGeneration.equals(TupleSerializer.readString(in))) {
+                logger.info(getName() + " ignoring breaks " + breaksFile + " of a different generation");
+                return null;
+            }
+            Map<Comparable [], CompareEvent> breaks = new TreeMap<Comparable[], CompareEvent>(
+                    KeyRangePartitioner.KEY_ORDER);
+            Schema leftSchema = leftSource.getSchema();
+            Schema rightSchema = rightSource.getSchema();
+            while (in.readBoolean()) {
+                CompareEvent event = CompareEventSerializer.readEvent(in, leftSchema, rightSchema);
+                breaks.put(keyValues(event.getLeftTuple() != null ? event.getLeftTuple() : event.getRightTuple()),
+                        event);
+            }
+            return breaks;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    @Override
+    protected void cleanup() {
+        super.cleanup();
+        for (SnapshotStream snapshot : Arrays.asList(leftSnapshot, rightSnapshot)) {
+            if (snapshot != null) {
+                snapshot.closeSnapshots();
+            }
+        }
+        if (breaksOut != null) {
+            try {breaksOut.close();} catch (IOException e) {}
+            breaksTempFile.delete();
+        }
+    }
+
+    File snapshotFile(String suffix) {
+        return new File(snapshotDirectory, getName().replaceAll("[^A-Za-z0-9._-]", "_") + "." + suffix);
+    }
+
+    /**
+     * Describes how a side's keys and hashes are produced.
+     */
+    String signature(SqlTupleStream source) {
+        SqlSchema schema = (SqlSchema) source.getSchema();
+        StringBuilder sb = new StringBuilder(String.valueOf(schema.getVendor()));
+        sb.append(javaRowHash ? " JAVA" : " DATABASE").append(" all:");
+        for (SqlField f : schema.getAllFields()) {
+            sb.append(f.getName()).append('=').append(f.getFieldClass().getName()).append(',');
+        }
+        sb.append(" key:");
+        for (SqlField f : schema.getKeyFields()) {
+            sb.append(f.getName()).append(',');
+        }
+        sb.append(" compare:");
+        for (SqlField f : schema.getCompareFields()) {
+            sb.append(f.getName()).append(',');
+        }
+        return sb.toString();
+    }
+
+    String breaksSignature() {
+        StringBuilder sb = new StringBuilder(signature(leftSource)).append('\n').append(signature(rightSource));
+        if (config.getComparatorOverrides() != null) {
+            for (FieldComparator fc : config.getComparatorOverrides()) {
+                sb.append('\n').append(fc.getName());
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Passes the Tuples of a checksum stream through, writing them to the new snapshot and, if the comparison is
+     * incremental, collecting the keys that differ from the previous snapshot.
+     */
+    class SnapshotStream implements TupleStream, Monitorable {
+        final SqlTupleStream checksum;
+        final KeyHashSnapshot.Reader previous;
+        final KeyHashSnapshot.Writer next;
+        final int keySize;
+        boolean previousStarted = false;
+        boolean previousAvailable = false;
+
+        SnapshotStream(SqlTupleStream checksum, KeyHashSnapshot.Reader previous, KeyHashSnapshot.Writer next) {
+            this.checksum = checksum;
+            this.previous = previous;
+            this.next = next;
+            this.keySize = checksum.getSchema().getKeyFields().size();
+        }
+
+        @Override
+        public Tuple getNext() {
+            Tuple t = checksum.getNext();
+            Comparable [] key = keyValues(t);
+            Comparable hash = t.getValue(keySize);
+            try {
+                if (incremental) {
+                    diff(key, hash);
+                }
+                next.write(key, hash);
+            }
+            catch (IOException e) {
+                throw new TupleDiffException("Could not read or write the snapshot of " + getName() + ": "
+                        + e.getMessage(), this, e);
+            }
+            return t;
+        }
+
+        @Override
+        public boolean hasNext() {
+            boolean hasNext = checksum.hasNext();
+            if (!hasNext && incremental) {
+                try {
+                    // Whatever remains of the previous snapshot has been removed.
+                    while (advancePrevious()) {
+                        changedKeys.add(previous.getKey());
+                        previousAvailable = false;
+                    }
+                }
+                catch (IOException e) {
+                    throw new TupleDiffException("Could not read the snapshot of " + getName() + ": "
+                            + e.getMessage(), this, e);
+                }
+            }
+            return hasNext;
+        }
+
+        private void diff (Comparable [] key, Comparable hash) throws IOException {
+            int comp = -1;
+            while (advancePrevious() && (comp = TupleStreamKey.compareKeyValues(previous.getKey(), key)) < 0) {
+                changedKeys.add(previous.getKey());
+                previousAvailable = false;
+            }
+            if (previousAvailable && comp == 0) {
+                if (!hash.equals(previous.getHash())) {
+                    changedKeys.add(key);
+                }
+                previousAvailable = false;
+            }
+            else {
+                changedKeys.add(key);
+            }
+        }
+
+        /**
+         * Makes sure the previous snapshot is positioned at an entry not yet diffed, if there is one.
+         */
+        private boolean advancePrevious () throws IOException {
+            if (!previousAvailable && (!previousStarted || previous.getKey() != null)) {
+                previousStarted = true;
+                previousAvailable = previous.advance();
+            }
+            return previousAvailable;
+        }
+
+        void closeSnapshots () {
+            try {
+                if (previous != null) previous.close();
+                next.close();
+            }
+            catch (IOException e) {
+                logger.warning(getName() + " could not close snapshots: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void open() {
+            checksum.open();
+        }
+
+        @Override
+        public void close() {
+            checksum.close();
+        }
+
+        @Override
+        public TupleStreamKey getTupleStreamKey() {
+            return checksum.getTupleStreamKey();
+        }
+
+        @Override
+        public void setTupleStreamKey(TupleStreamKey key) {
+            checksum.setTupleStreamKey(key);
+        }
+
+        @Override
+        public Schema getSchema() {
+            return checksum.getSchema();
+        }
+
+        @Override
+        public void setSchema(Schema schema) {
+            checksum.setSchema(schema);
+        }
+
+        @Override
+        public void setMonitor(Monitor monitor) {
+            checksum.setMonitor(monitor);
+        }
+
+        @Override
+        public void setName(String name) {
+            checksum.setName(name);
+        }
+
+        @Override
+        public String getName() {
+            return checksum.getName();
+        }
+    }
+}
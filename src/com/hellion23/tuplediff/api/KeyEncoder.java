@@ -0,0 +1,364 @@
+package com.hellion23.tuplediff.api;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Encodes key values into bytes whose unsigned lexicographic (memcmp) order is the order of
+ * TupleStreamKey.compareKeyValues: field by field, with nulls first, as the streams' "order by ... nulls first" sorts
+ * them. Comparing, hashing or storing a key is then a matter of comparing, hashing or storing a byte array.
+ *
+ * Each field is a tag byte (NULL or VALUE) followed, for a value, by a self-delimiting encoding:
+ * - Long, Integer, Short, Byte: 8 bytes big endian with the sign bit flipped, so all integral types encode alike.
+ * - Double, Float: the IEEE bits, flipped so that they order as Double.compareTo does.
+ * - Date (incl. Timestamp): the millis as a long, then the nanos of the second as an int.
+ * - BigDecimal: sign, then the decimal exponent and digits of the value with trailing zeros stripped, inverted for
+ *   negative values, so that values equal by compareTo (1.0, 1.00) encode alike.
+ * - String: each UTF-16 code unit below 0x7F as one byte (unit + 1), others as three bytes (0x80 | top 2 bits, then
+ *   7 bits, 7 bits), terminated by 0x00; code unit order, as String.compareTo, and one byte per ASCII character.
+ * Values of other classes cannot be encoded; see isEncodable.
+ *
+ * @author: Hermann Leung
+ * Date: 3/10/2015
+ */
+public class KeyEncoder {
+    static final byte NULL = 0x00;
+    static final byte VALUE = 0x01;
+    static final byte NEGATIVE = 0x01;
+    static final byte ZERO = 0x02;
+    static final byte POSITIVE = 0x03;
+
+    /**
+     * @return true if values of the class can be encoded.
+     */
+    public static boolean isEncodable (Class c) {
+        return c != null && (isIntegral(c) || c == Double.class || c == Float.class || c == BigDecimal.class
+                || c == String.class || Date.class.isAssignableFrom(c));
+    }
+
+    /**
+     * @return the class whose encoding values of class c share: Long for integral classes, Double for Float, Date for
+     * its sub-classes, and c itself otherwise. Only keys of the same encoding classes field by field are comparable.
+     */
+    static Class encodingClass (Class c) {
+        if (isIntegral(c)) {
+            return Long.class;
+        }
+        if (c == Float.class) {
+            return Double.class;
+        }
+        if (c != null && Date.class.isAssignableFrom(c)) {
+            return Date.class;
+        }
+        return c;
+    }
+
+    static boolean isIntegral (Class c) {
+        return c == Long.class || c == Integer.class || c == Short.class || c == Byte.class;
+    }
+
+    /**
+     * Encodes the values of fields ordinals (in key field order).
+     * @throws TupleDiffException if a value cannot be encoded.
+     */
+    public static byte [] encode (Comparable [] values, int [] ordinals) {
+        Buffer buf = new Buffer(ordinals.length * 10);
+        for (int ordinal : ordinals) {
+            encodeValue(buf, values[ordinal]);
+        }
+        return buf.toByteArray();
+    }
+
+    /**
+     * Encodes the values of fields ordinals (in key field order) into an EncodedKey, packed without an intermediate
+     * byte array.
+     */
+    public static TupleStreamKey.EncodedKey encodeKey (Comparable [] values, int [] ordinals) {
+        Buffer buf = new Buffer(ordinals.length * 10);
+        for (int ordinal : ordinals) {
+            encodeValue(buf, values[ordinal]);
+        }
+        return new TupleStreamKey.EncodedKey(buf.toWords(), buf.size);
+    }
+
+    /**
+     * Encodes all values, in order.
+     */
+    public static byte [] encode (Comparable [] values) {
+        Buffer buf = new Buffer(values.length * 10);
+        for (Comparable value : values) {
+            encodeValue(buf, value);
+        }
+        return buf.toByteArray();
+    }
+
+    static void encodeValue (Buffer buf, Comparable v) {
+        if (v == null) {
+            buf.put(NULL);
+            return;
+        }
+        buf.put(VALUE);
+        if (v instanceof Long || v instanceof Integer || v instanceof Short || v instanceof Byte) {
+            buf.putLong(((Number) v).longValue() ^ Long.MIN_VALUE);
+        }
+        else if (v instanceof String) {
+            String s = (String) v;
+            for (int i=0; i<s.length(); i++) {
+                char c = s.charAt(i);
+                if (c < 0x7F) {
+                    buf.put((byte) (c + 1));
+                }
+                else {
+                    buf.put((byte) (0x80 | c >>> 14));
+                    buf.put((byte) (c >>> 7 & 0x7F));
+                    buf.put((byte) (c & 0x7F));
+                }
+            }
+            buf.put((byte) 0);
+        }
+        else if (v instanceof BigDecimal) {
+            encodeDecimal(buf, (BigDecimal) v);
+        }
+        else if (v instanceof Double || v instanceof Float) {
+            long bits = Double.doubleToLongBits(((Number) v).doubleValue());
+            buf.putLong(bits < 0 ? ~bits : bits ^ Long.MIN_VALUE);
+        }
+        else if (v instanceof Date) {
+            long millis = ((Date) v).getTime();
+            int nanos = v instanceof Timestamp ? ((Timestamp) v).getNanos()
+                    : (int) ((millis % 1000 + 1000) % 1000) * 1000000;
+            buf.putLong(millis ^ Long.MIN_VALUE);
+            buf.putInt(nanos);
+        }
+        else {
+            throw new TupleDiffException("Cannot encode key value " + v + " of " + v.getClass(), null);
+        }
+    }
+
+    /**
+     * The value is 0.d1d2...dn x 10^exponent with d1 != 0 and dn != 0; larger exponents, then larger digit strings,
+     * are larger magnitudes.
+     */
+    static void encodeDecimal (Buffer buf, BigDecimal bd) {
+        int signum = bd.signum();
+        if (signum == 0) {
+            buf.put(ZERO);
+            return;
+        }
+        BigDecimal stripped = bd.stripTrailingZeros();
+        String digits = stripped.unscaledValue().abs().toString();
+        int exponent = digits.length() - stripped.scale();
+        int flip = signum < 0 ? 0xFF : 0;
+        buf.put(signum < 0 ? NEGATIVE : POSITIVE);
+        int e = exponent ^ Integer.MIN_VALUE;
+        buf.putInt(signum < 0 ? ~e : e);
+        for (int i=0; i<digits.length(); i++) {
+            buf.put((byte) (digits.charAt(i) ^ flip));
+        }
+        buf.put((byte) flip);
+    }
+
+    /**
+     * Decodes the values of an encoded key, creating values of the classes of the key fields. Decimals are decoded
+     * with trailing zeros stripped, e.g. 1.00 as 1.
+     */
+    public static Comparable [] decode (byte [] bytes, List<? extends Field> keyFields) {
+        Comparable [] values = new Comparable[keyFields.size()];
+        int [] pos = new int[1];
+        for (int i=0; i<values.length; i++) {
+            values[i] = decodeValue(bytes, pos, keyFields.get(i).getFieldClass());
+        }
+        return values;
+    }
+
+    static Comparable decodeValue (byte [] b, int [] pos, Class c) {
+        if (b[pos[0]++] == NULL) {
+            return null;
+        }
+        if (isIntegral(c)) {
+            long v = getLong(b, pos) ^ Long.MIN_VALUE;
+            return c == Long.class ? (Comparable) v : c == Integer.class ? (Comparable) (int) v
+                    : c == Short.class ? (Comparable) (short) v : (Comparable) (byte) v;
+        }
+        else if (c == String.class) {
+            StringBuilder sb = new StringBuilder();
+            int lead;
+            while ((lead = b[pos[0]++] & 0xFF) != 0) {
+                if (lead < 0x80) {
+                    sb.append((char) (lead - 1));
+                }
+                else {
+                    sb.append((char) ((lead & 0x03) << 14 | (b[pos[0]++] & 0x7F) << 7 | (b[pos[0]++] & 0x7F)));
+                }
+            }
+            return sb.toString();
+        }
+        else if (c == BigDecimal.class) {
+            byte sign = b[pos[0]++];
+            if (sign == ZERO) {
+                return BigDecimal.ZERO;
+            }
+            int flip = sign == NEGATIVE ? 0xFF : 0;
+            int e = getInt(b, pos);
+            int exponent = (flip != 0 ? ~e : e) ^ Integer.MIN_VALUE;
+            StringBuilder digits = new StringBuilder();
+            int d;
+            while ((d = (b[pos[0]++] ^ flip) & 0xFF) != 0) {
+                digits.append((char) d);
+            }
+            BigDecimal bd = new BigDecimal(new BigInteger(digits.toString()), digits.length() - exponent);
+            if (bd.scale() < 0) {
+                bd = bd.setScale(0);
+            }
+            return flip != 0 ? bd.negate() : bd;
+        }
+        else if (c == Double.class || c == Float.class) {
+            long bits = getLong(b, pos);
+            double d = Double.longBitsToDouble(bits < 0 ? bits ^ Long.MIN_VALUE : ~bits);
+            return c == Double.class ? (Comparable) d : (Comparable) (float) d;
+        }
+        else if (c != null && Date.class.isAssignableFrom(c)) {
+            long millis = getLong(b, pos) ^ Long.MIN_VALUE;
+            int nanos = getInt(b, pos);
+            if (c == Timestamp.class) {
+                Timestamp ts = new Timestamp(millis);
+                ts.setNanos(nanos);
+                return ts;
+            }
+            return c == java.sql.Date.class ? new java.sql.Date(millis) : new Date(millis);
+        }
+        throw new TupleDiffException("Cannot decode key values of " + c, null);
+    }
+
+    static long getLong (byte [] b, int [] pos) {
+        long v = 0;
+        for (int i=0; i<8; i++) {
+            v = v << 8 | (b[pos[0]++] & 0xFF);
+        }
+        return v;
+    }
+
+    static int getInt (byte [] b, int [] pos) {
+        int v = 0;
+        for (int i=0; i<4; i++) {
+            v = v << 8 | (b[pos[0]++] & 0xFF);
+        }
+        return v;
+    }
+
+    /**
+     * Compares encoded keys as unsigned bytes; a key that is a prefix of another is smaller.
+     */
+    public static int compare (byte [] a, byte [] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i=0; i<n; i++) {
+            if (a[i] != b[i]) {
+                return (a[i] & 0xFF) - (b[i] & 0xFF);
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Packs an encoding into big endian longs, zero padded, so that it can be compared 8 bytes at a time by
+     * compare(long[], int, long[], int).
+     */
+    public static long [] pack (byte [] bytes) {
+        long [] words = new long[(bytes.length + 7) >>> 3];
+        for (int i=0; i<bytes.length; i++) {
+            words[i >>> 3] |= (bytes[i] & 0xFFL) << (56 - ((i & 7) << 3));
+        }
+        return words;
+    }
+
+    public static byte [] unpack (long [] words, int length) {
+        byte [] bytes = new byte[length];
+        for (int i=0; i<length; i++) {
+            bytes[i] = (byte) (words[i >>> 3] >>> (56 - ((i & 7) << 3)));
+        }
+        return bytes;
+    }
+
+    /**
+     * Compares packed encodings of the given lengths in bytes; the same order as compare(byte[], byte[]), as the
+     * zero padding sorts before any byte and ties are broken by length.
+     */
+    public static int compare (long [] a, int aLength, long [] b, int bLength) {
+        int n = Math.min(a.length, b.length);
+        for (int i=0; i<n; i++) {
+            long x = a[i];
+            long y = b[i];
+            if (x != y) {
+                return x + Long.MIN_VALUE < y + Long.MIN_VALUE ? -1 : 1;
+            }
+        }
+        return aLength - bLength;
+    }
+
+    /**
+     * A 64 bit hash of a packed encoding; equal keys have equal encodings and so equal hashes.
+     */
+    public static long hash64 (long [] words, int length) {
+        long h = Fingerprint.SEED ^ length;
+        for (long w : words) {
+            h = Fingerprint.mix(h ^ w) + Fingerprint.SEED;
+        }
+        return Fingerprint.mix(h);
+    }
+
+    public static String toString (byte [] bytes) {
+        return Arrays.toString(bytes);
+    }
+
+    /**
+     * A growable byte array.
+     */
+    static class Buffer {
+        byte [] bytes;
+        int size;
+
+        Buffer (int capacity) {
+            bytes = new byte[Math.max(16, capacity)];
+        }
+
+        void put (byte b) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, size * 2);
+            }
+            bytes[size++] = b;
+        }
+
+        void putLong (long v) {
+            for (int shift=56; shift>=0; shift-=8) {
+                put((byte) (v >>> shift));
+            }
+        }
+
+        void putInt (int v) {
+            for (int shift=24; shift>=0; shift-=8) {
+                put((byte) (v >>> shift));
+            }
+        }
+
+        byte [] toByteArray () {
+            return Arrays.copyOf(bytes, size);
+        }
+
+        long [] toWords () {
+            long [] words = new long[(size + 7) >>> 3];
+            int i = 0;
+            for (int w=0; w<words.length; w++) {
+                long word = 0;
+                for (int j=0; j<8; j++, i++) {
+                    word = word << 8 | (i < size ? bytes[i] & 0xFFL : 0);
+                }
+                words[w] = word;
+            }
+            return words;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.hellion23.tuplediff.api;
+
+import java.util.Arrays;
+
+/**
+ * A contiguous range of TupleStreamKey values, expressed as the values of the key fields (in key field order) at
+ * the lower and upper bounds. A null bound means the range is unbounded on that side. Keys are ordered the way
+ * TupleStreamKey orders them, i.e. field by field with nulls first. Bounds of encodable values are also kept
+ * encoded by KeyEncoder, so that Tuples with encoded keys are placed without extracting their key values.
+ *
+ * @author: Hermann Leung
+ * Date: 2/9/2015
+ */
+public class KeyRange {
+    Comparable [] lower;
+    boolean lowerInclusive;
+    Comparable [] upper;
+    boolean upperInclusive;
+    TupleStreamKey.EncodedKey encodedLower;
+    TupleStreamKey.EncodedKey encodedUpper;
+    boolean encoded;
+
+    public KeyRange(Comparable[] lower, boolean lowerInclusive, Comparable[] upper, boolean upperInclusive) {
+        this.lower = lower;
+        this.lowerInclusive = lowerInclusive;
+        this.upper = upper;
+        this.upperInclusive = upperInclusive;
+        this.encoded = isEncodable(lower) && isEncodable(upper);
+        if (encoded) {
+            encodedLower = lower == null ? null : new TupleStreamKey.EncodedKey(KeyEncoder.encode(lower));
+            encodedUpper = upper == null ? null : new TupleStreamKey.EncodedKey(KeyEncoder.encode(upper));
+        }
+    }
+
+    private static boolean isEncodable (Comparable [] values) {
+        if (values != null) {
+            for (Comparable v : values) {
+                if (v != null && !KeyEncoder.isEncodable(v.getClass())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the range of keys strictly greater than the given key values.
+     */
+    public static KeyRange after (Comparable [] lower) {
+        return new KeyRange(lower, false, null, false);
+    }
+
+    public Comparable[] getLower() {
+        return lower;
+    }
+
+    public boolean isLowerInclusive() {
+        return lowerInclusive;
+    }
+
+    public Comparable[] getUpper() {
+        return upper;
+    }
+
+    public boolean isUpperInclusive() {
+        return upperInclusive;
+    }
+
+    public boolean contains (Comparable [] key) {
+        if (lower != null) {
+            int c = TupleStreamKey.compareKeyValues(key, lower);
+            if (c < 0 || (c == 0 && !lowerInclusive))
+                return false;
+        }
+        if (upper != null) {
+            int c = TupleStreamKey.compareKeyValues(key, upper);
+            if (c > 0 || (c == 0 && !upperInclusive))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return -1 if the Tuple's key is below this range, 0 if within it, 1 if above it.
+     */
+    public int position (Tuple tuple) {
+        Comparable key = tuple.getKey();
+        if (encoded && key instanceof TupleStreamKey.EncodedKey) {
+            TupleStreamKey.EncodedKey encodedKey = (TupleStreamKey.EncodedKey) key;
+            if (encodedLower != null) {
+                int c = encodedKey.compareTo(encodedLower);
+                if (c < 0 || (c == 0 && !lowerInclusive))
+                    return -1;
+            }
+            if (encodedUpper != null) {
+                int c = encodedKey.compareTo(encodedUpper);
+                if (c > 0 || (c == 0 && !upperInclusive))
+                    return 1;
+            }
+            return 0;
+        }
+        Comparable [] values = TupleComparison.keyValues(tuple);
+        if (contains(values)) {
+            return 0;
+        }
+        return lower != null && TupleStreamKey.compareKeyValues(values, lower) <= 0 ? -1 : 1;
+    }
+
+    public String toString () {
+        return (lower == null ? "(*" : (lowerInclusive ? "[" : "(") + Arrays.toString(lower)) + ", " +
+                (upper == null ? "*)" : Arrays.toString(upper) + (upperInclusive ? "]" : ")"));
+    }
+}
@@ -0,0 +1,50 @@
+package com.hellion23.tuplediff.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Splits the key space into contiguous KeyRanges holding roughly the same number of Tuples, using a sample of keys.
+ * Boundaries are taken at the quantiles of the sorted sample, so densely populated regions of the key space get
+ * narrower ranges than sparse ones. A key that accounts for more than one quantile (heavy skew on a single key) can
+ * not be split, in which case fewer ranges than requested are returned.
+ *
+ * @author: Hermann Leung
+ * Date: 2/9/2015
+ */
+public class KeyRangePartitioner {
+    static final Comparator<Comparable []> KEY_ORDER = new Comparator<Comparable[]>() {
+        @Override
+        public int compare(Comparable[] o1, Comparable[] o2) {
+            return TupleStreamKey.compareKeyValues(o1, o2);
+        }
+    };
+
+    /**
+     * @param sample key values sampled from the streams being compared (may be unsorted; is sorted in place).
+     * @param partitions the number of ranges wanted.
+     * @return at most partitions ranges, in key order, that together cover the whole key space.
+     */
+    public static List<KeyRange> partition (List<Comparable []> sample, int partitions) {
+        assert (partitions > 0);
+        Collections.sort(sample, KEY_ORDER);
+        List<Comparable []> boundaries = new ArrayList<Comparable[]>();
+        for (int i=1; i<partitions && sample.size() > 0; i++) {
+            Comparable [] b = sample.get((int) ((long) i * sample.size() / partitions));
+            if (boundaries.isEmpty() || KEY_ORDER.compare(boundaries.get(boundaries.size() - 1), b) < 0) {
+                boundaries.add(b);
+            }
+        }
+
+        List<KeyRange> ranges = new ArrayList<KeyRange>(boundaries.size() + 1);
+        Comparable [] lower = null;
+        for (Comparable [] b : boundaries) {
+            ranges.add(new KeyRange(lower, true, b, false));
+            lower = b;
+        }
+        ranges.add(new KeyRange(lower, true, null, false));
+        return ranges;
+    }
+}
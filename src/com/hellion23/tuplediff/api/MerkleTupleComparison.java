@@ -0,0 +1,148 @@
+package com.hellion23.tuplediff.api;
+
+import com.hellion23.tuplediff.api.db.KeyHashBucket;
+import com.hellion23.tuplediff.api.db.SqlSchema;
+import com.hellion23.tuplediff.api.db.SqlTupleStream;
+import com.hellion23.tuplediff.api.listener.CompareEventListener;
+import com.hellion23.tuplediff.api.monitor.Monitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A comparison of two SqlTupleStreams of the same database vendor that avoids reading the rows of matching parts of
+ * the tables altogether, for very large tables of which only a few rows differ.
+ *
+ * Rows are grouped into KeyHashBuckets by a hash of their key computed in the database. Starting with the whole
+ * table, each round splits the buckets whose contents differ into fanout child buckets and has each database compute
+ * the row count and the sum of the row hashes (over the key and compare columns) of every child bucket in a single
+ * GROUP BY query. Child buckets with equal checksums are counted as matched (reported as a BULK_MATCH_EVENT) without
+ * transferring their rows. Differing buckets holding at most leafRows rows on either side, or that cannot be split
+ * further, are compared row by row by TupleComparisons over streams restricted to leafBucketsPerComparison buckets at
+ * a time, whose events are forwarded to this comparison as for a PartitionedTupleComparison.
+ *
+ * Every round scans both tables once in the database. Leaf comparisons run in parallel (up to parallelism) only if
+ * both streams have a ConnectionFactory; otherwise they run one at a time over the streams' own connections.
+ *
+ * @author: Hermann Leung
+ * Date: 2/24/2015
+ */
+public class MerkleTupleComparison extends PartitionedTupleComparison {
+    private static final Logger logger = Logger.getLogger(MerkleTupleComparison.class.getName());
+
+    SqlTupleStream leftSource;
+    SqlTupleStream rightSource;
+    int fanout = 16;
+    long leafRows = 1000;
+    int leafBucketsPerComparison = 64;
+
+    public MerkleTupleComparison(Config config, Monitor monitor, CompareEventListener compareEventListener) {
+        super(config, monitor, compareEventListener, Runtime.getRuntime().availableProcessors());
+    }
+
+    public MerkleTupleComparison(Config config) {
+        this(config, null, null);
+    }
+
+    @Override
+    protected void prepareStreamsForReading() {
+        if (!(leftStream instanceof SqlTupleStream) || !(rightStream instanceof SqlTupleStream)) {
+            throw new TupleDiffException("MerkleTupleComparison requires both streams to be SqlTupleStreams", this);
+        }
+        leftSource = (SqlTupleStream) leftStream;
+        rightSource = (SqlTupleStream) rightStream;
+        String leftVendor = ((SqlSchema) leftSource.getSchema()).getVendor();
+        String rightVendor = ((SqlSchema) rightSource.getSchema()).getVendor();
+        if (!leftSource.isKeyHashBucketSupported() || !rightSource.isKeyHashBucketSupported()
+                || leftVendor == null || !leftVendor.equals(rightVendor)) {
+            throw new TupleDiffException("MerkleTupleComparison requires both streams to be of the same database " +
+                    "vendor, one that supports key hash buckets. Found " + leftVendor + " and " + rightVendor, this);
+        }
+        if (leftSource.getConnectionFactory() == null || rightSource.getConnectionFactory() == null) {
+            setParallelism(1);
+        }
+    }
+
+    @Override
+    protected void compareTuples() {
+        List<KeyHashBucket> pending = new ArrayList<KeyHashBucket>();
+        List<KeyHashBucket> leaves = new ArrayList<KeyHashBucket>();
+        pending.add(KeyHashBucket.root());
+        long matched = 0;
+        int rounds = 0;
+        while (!pending.isEmpty() && notCancelled) {
+            rounds++;
+            Map<Long, KeyHashBucket.Checksum> left = leftSource.checksumBuckets(pending, fanout);
+            Map<Long, KeyHashBucket.Checksum> right = rightSource.checksumBuckets(pending, fanout);
+            List<KeyHashBucket> differing = new ArrayList<KeyHashBucket>();
+            for (KeyHashBucket parent : pending) {
+                for (int i=0; i<fanout; i++) {
+                    KeyHashBucket child = parent.child(i, fanout);
+                    KeyHashBucket.Checksum l = left.get(child.getPath());
+                    KeyHashBucket.Checksum r = right.get(child.getPath());
+                    if (l == null && r == null) {
+                        continue;
+                    }
+                    else if (l != null && l.equals(r)) {
+                        matched += l.getCount();
+                        monitor.reportEvent(this, BULK_MATCH_EVENT, l.getCount());
+                    }
+                    else if (!child.canSplit(fanout)
+                            || Math.max(l == null ? 0 : l.getCount(), r == null ? 0 : r.getCount()) <= leafRows) {
+                        leaves.add(child);
+                    }
+                    else {
+                        differing.add(child);
+                    }
+                }
+            }
+            logger.info(getName() + " round " + rounds + ": " + differing.size() + " buckets to split, "
+                    + leaves.size() + " leaf buckets, " + matched + " rows matched");
+            pending = differing;
+        }
+        monitor.reportEvent(this, Monitor.EVENT_STATS_ATTRIBUTE, "rounds", rounds);
+        monitor.reportEvent(this, Monitor.EVENT_STATS_ATTRIBUTE, "leafBuckets", leaves.size());
+
+        List<TupleComparison> leafComparisons = new ArrayList<TupleComparison>();
+        for (int i=0; i<leaves.size() && notCancelled; i+=leafBucketsPerComparison) {
+            List<KeyHashBucket> group = leaves.subList(i, Math.min(leaves.size(), i + leafBucketsPerComparison));
+            leafComparisons.add(createPartitionComparison(getName() + " - leaf buckets " + (i + 1) + "-"
+                    + (i + group.size()) + "/" + leaves.size(),
+                    leftSource.createBucketPartition(group), rightSource.createBucketPartition(group)));
+        }
+        runPartitions(leafComparisons);
+    }
+
+    public int getFanout() {
+        return fanout;
+    }
+
+    /**
+     * The number of child buckets a differing bucket is split into per round.
+     */
+    public void setFanout(int fanout) {
+        assert (fanout > 1);
+        this.fanout = fanout;
+    }
+
+    public long getLeafRows() {
+        return leafRows;
+    }
+
+    /**
+     * Differing buckets with at most this many rows on either side are compared row by row rather than split.
+     */
+    public void setLeafRows(long leafRows) {
+        this.leafRows = leafRows;
+    }
+
+    public int getLeafBucketsPerComparison() {
+        return leafBucketsPerComparison;
+    }
+
+    public void setLeafBucketsPerComparison(int leafBucketsPerComparison) {
+        this.leafBucketsPerComparison = leafBucketsPerComparison;
+    }
+}
@@ -0,0 +1,26 @@
+package com.hellion23.tuplediff.api;
+
+import java.util.List;
+
+/**
+ * A TupleStream that can be split into independent TupleStreams each covering a contiguous KeyRange, so that
+ * a comparison can be run over several ranges concurrently. See {@link PartitionedTupleComparison}.
+ *
+ * @author: Hermann Leung
+ * Date: 2/9/2015
+ */
+public interface PartitionableTupleStream extends TupleStream {
+
+    /**
+     * Returns a sample of the key values of this stream (each array holds the values of the key fields in key field
+     * order). The sample does not need to be sorted. This stream does not need to be open.
+     * @param sampleSize the approximate number of keys wanted.
+     */
+    public List<Comparable []> sampleKeys(int sampleSize);
+
+    /**
+     * Creates a new, un-opened TupleStream that emits only the Tuples of this stream whose keys fall within the range.
+     * The new stream uses its own resources (e.g. DB connection) so it can be read concurrently with other partitions.
+     */
+    public PartitionableTupleStream createPartition(KeyRange range);
+}
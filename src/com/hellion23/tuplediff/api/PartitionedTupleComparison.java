@@ -0,0 +1,335 @@
+package com.hellion23.tuplediff.api;
+
+import com.hellion23.tuplediff.api.listener.CompareEventListener;
+import com.hellion23.tuplediff.api.monitor.CompareStats;
+import com.hellion23.tuplediff.api.monitor.Metrics;
+import com.hellion23.tuplediff.api.monitor.Monitor;
+import com.hellion23.tuplediff.api.monitor.Nameable;
+import com.hellion23.tuplediff.api.monitor.TupleComparisonMonitor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * A TupleComparison that splits the key space into contiguous KeyRanges and compares each range with its own
+ * TupleComparison (and therefore its own pair of streams/DB sessions) concurrently.
+ *
+ * Range boundaries are the quantiles of a sample of keys drawn from both streams, so every range holds about the same
+ * number of Tuples regardless of how the keys are distributed (see {@link KeyRangePartitioner}). Both streams must be
+ * PartitionableTupleStreams and are only used for sampling; the partitions read the data.
+ *
+ * The partitions' compare events are counted, in batches, into this comparison's CompareStats and forwarded to its
+ * Monitor, and their breaks to this comparison's CompareEventListener, so the ComparisonResult looks like that of a
+ * single comparison. Breaks are not delivered in key order across partitions.
+ *
+ * @author: Hermann Leung
+ * Date: 2/9/2015
+ */
+public class PartitionedTupleComparison extends TupleComparison {
+    private static final Logger logger = Logger.getLogger(PartitionedTupleComparison.class.getName());
+    // The number of compare events a partition counts before merging them into this comparison.
+    static final int MERGE_EVENTS = 1024;
+    int partitions;
+    int parallelism;
+    int samplesPerPartition = 100;
+    final List<TupleComparison> partitionComparisons = Collections.synchronizedList(new ArrayList<TupleComparison>());
+    // Not this object: compare() holds this object's lock while the partitions run.
+    final Object resultLock = new Object();
+
+    public PartitionedTupleComparison(Config config, Monitor monitor, CompareEventListener compareEventListener,
+                                      int partitions) {
+        super(config, monitor, compareEventListener);
+        assert (partitions > 0);
+        this.partitions = partitions;
+        this.parallelism = partitions;
+    }
+
+    public PartitionedTupleComparison(Config config, int partitions) {
+        this(config, null, null, partitions);
+    }
+
+    /**
+     * The streams themselves are never read; each partition opens its own.
+     */
+    @Override
+    protected void prepareStreamsForReading() {
+        if (!(leftStream instanceof PartitionableTupleStream && rightStream instanceof PartitionableTupleStream)) {
+            throw new TupleDiffException("Both streams must be PartitionableTupleStreams to be compared by partition",
+                    this);
+        }
+    }
+
+    @Override
+    protected void compareTuples() {
+        List<KeyRange> ranges = createKeyRanges();
+        monitor.reportEvent(this, Monitor.EVENT_STATS_ATTRIBUTE, "partitions", ranges.size());
+        logger.info(getName() + " comparing " + ranges.size() + " partitions: " + ranges);
+        List<TupleComparison> partitions = new ArrayList<TupleComparison>(ranges.size());
+        for (int i=0; i<ranges.size() && notCancelled; i++) {
+            partitions.add(createPartitionComparison(ranges.get(i), i, ranges.size()));
+        }
+        runPartitions(partitions);
+    }
+
+    /**
+     * Runs the partition comparisons, at most parallelism at a time, and waits for all of them to complete.
+     */
+    protected void runPartitions(List<TupleComparison> partitions) {
+        ExecutorService partitionExecutor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(parallelism, partitions.size())));
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(partitions.size());
+            for (final TupleComparison partition : partitions) {
+                partitionComparisons.add(partition);
+                futures.add(partitionExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (notCancelled) {
+                            partition.compare();
+                        }
+                    }
+                }));
+            }
+            awaitPartitions(futures);
+        }
+        finally {
+            partitionExecutor.shutdownNow();
+        }
+    }
+
+    protected List<KeyRange> createKeyRanges() {
+        int sampleSize = partitions * samplesPerPartition;
+        List<Comparable []> sample = new ArrayList<Comparable[]>(sampleSize * 2);
+        sample.addAll(((PartitionableTupleStream) leftStream).sampleKeys(sampleSize));
+        sample.addAll(((PartitionableTupleStream) rightStream).sampleKeys(sampleSize));
+        return KeyRangePartitioner.partition(sample, partitions);
+    }
+
+    protected TupleComparison createPartitionComparison(KeyRange range, int index, int total) {
+        return createPartitionComparison(getName() + " - partition " + (index + 1) + "/" + total,
+                ((PartitionableTupleStream) leftStream).createPartition(range),
+                ((PartitionableTupleStream) rightStream).createPartition(range));
+    }
+
+    /**
+     * Creates a TupleComparison of the two streams with this comparison's settings, whose events are forwarded to
+     * this comparison.
+     */
+    protected TupleComparison createPartitionComparison(String name, TupleStream left, TupleStream right) {
+        return new TupleComparison(createPartitionConfig(name, left, right), new PartitionMonitor(),
+                new PartitionListener());
+    }
+
+    /**
+     * @return a Config of the two streams with this comparison's settings.
+     */
+    protected Config createPartitionConfig(String name, TupleStream left, TupleStream right) {
+        Config partitionConfig = new Config(name);
+        partitionConfig.setComparatorOverrides(config.getComparatorOverrides());
+        partitionConfig.setFingerprintCompare(config.isFingerprintCompare());
+        partitionConfig.setLeftStream(left);
+        partitionConfig.setRightStream(right);
+        return partitionConfig;
+    }
+
+    private void awaitPartitions(List<Future<?>> futures) {
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel();
+                throw new TupleDiffException("Interrupted waiting for partitions of " + getName(), this, e);
+            }
+            catch (ExecutionException e) {
+                cancelPartitions();
+                Throwable cause = e.getCause();
+                if (cause instanceof TupleDiffException) {
+                    throw (TupleDiffException) cause;
+                }
+                throw new TupleDiffException("Partition of " + getName() + " failed: " + cause.getMessage(),
+                        this, cause);
+            }
+        }
+    }
+
+    @Override
+    public void cancel() {
+        super.cancel();
+        cancelPartitions();
+    }
+
+    private void cancelPartitions () {
+        synchronized (partitionComparisons) {
+            for (TupleComparison tc : partitionComparisons) {
+                tc.cancel();
+            }
+        }
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    public void setPartitions(int partitions) {
+        this.partitions = partitions;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * The maximum number of partitions compared at the same time. Defaults to the number of partitions.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public int getSamplesPerPartition() {
+        return samplesPerPartition;
+    }
+
+    /**
+     * The number of keys sampled from each stream per requested partition. Larger samples place the range
+     * boundaries more accurately.
+     */
+    public void setSamplesPerPartition(int samplesPerPartition) {
+        this.samplesPerPartition = samplesPerPartition;
+    }
+
+    /**
+     * Counts a partition's compare events into its own CompareStats, and buffers them for the Monitor of the
+     * PartitionedTupleComparison if it is subscribed to them, so partitions do not contend with each other on every
+     * event. Every MERGE_EVENTS events, and when the partition ends, the counts are added to the CompareStats of the
+     * PartitionedTupleComparison and the buffered events forwarded to its Monitor as though they had been reported by
+     * it. Metrics are recorded into those of the PartitionedTupleComparison directly. Health is checked, and metrics
+     * published, by the Monitor of the PartitionedTupleComparison only.
+     */
+    class PartitionMonitor extends TupleComparisonMonitor {
+        // The counts already added to the CompareStats of the PartitionedTupleComparison, by CompareEvent.TYPE ordinal.
+        final long [] merged = new long[CompareEvent.TYPE.values().length];
+        // The parameters of the COMPARE_EVENTs not yet forwarded.
+        final List<Object []> pendingEvents = new ArrayList<Object[]>();
+
+        PartitionMonitor() {
+            setHealthCheckIntervalMillis(0);
+            setPublishMBean(false);
+        }
+
+        @Override
+        protected CompareStats createCompareStats(TupleComparison tc) {
+            return new PartitionStats(tc);
+        }
+
+        @Override
+        public Metrics getMetrics() {
+            return PartitionedTupleComparison.this.metrics;
+        }
+
+        @Override
+        public boolean isSubscribed(String eventName) {
+            return COMPARE_EVENT.equals(eventName) ? reportCompareEvents : super.isSubscribed(eventName);
+        }
+
+        @Override
+        public void reportEvent(Nameable source, String eventName, Object... params) throws TupleDiffException {
+            if (COMPARE_EVENT.equals(eventName)) {
+                synchronized (this) {
+                    pendingEvents.add(params);
+                }
+            }
+            else {
+                super.reportEvent(source, eventName, params);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                merge();
+            }
+            finally {
+                super.close();
+            }
+        }
+
+        /**
+         * Adds the counts since the last merge to the CompareStats of the PartitionedTupleComparison and forwards the
+         * buffered events to its Monitor. Called by the comparing thread, or by a thread cancelling the partition.
+         */
+        synchronized void merge() {
+            CompareStats stats = getCompareStats();
+            if (stats == null) {
+                return;
+            }
+            Monitor parentMonitor = PartitionedTupleComparison.this.monitor;
+            CompareStats parentStats = parentMonitor.getCompareStats();
+            for (CompareEvent.TYPE type : CompareEvent.TYPE.values()) {
+                long count = stats.getCount(type);
+                parentStats.add(type, count - merged[type.ordinal()]);
+                merged[type.ordinal()] = count;
+            }
+            if (!pendingEvents.isEmpty()) {
+                synchronized (parentMonitor) {
+                    for (Object [] params : pendingEvents) {
+                        parentMonitor.reportEvent(PartitionedTupleComparison.this, COMPARE_EVENT, params);
+                    }
+                }
+                pendingEvents.clear();
+            }
+        }
+
+        /**
+         * Merges into the PartitionedTupleComparison every MERGE_EVENTS events counted. Counted by the comparing
+         * thread only.
+         */
+        class PartitionStats extends CompareStats {
+            int unmerged;
+
+            PartitionStats(TupleComparison tc) {
+                super(tc);
+            }
+
+            @Override
+            public void count(CompareEvent.TYPE type) {
+                super.count(type);
+                if (++unmerged >= MERGE_EVENTS) {
+                    unmerged = 0;
+                    merge();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forwards a partition's breaks into the result of the PartitionedTupleComparison.
+     */
+    class PartitionListener implements CompareEventListener<Collection<CompareEvent>> {
+        @Override
+        public void handleCompareEvent(CompareEvent compareEvent) {
+            synchronized (resultLock) {
+                getResult().handleCompareEvent(compareEvent);
+            }
+        }
+
+        @Override
+        public Collection<CompareEvent> getCompareEvents() {
+            return getResult().getListener().getCompareEvents();
+        }
+
+        @Override
+        public void init(Config config) {}
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,396 @@
+package com.hellion23.tuplediff.api;
+
+import com.hellion23.tuplediff.api.comparator.ComparisonPlan;
+import com.hellion23.tuplediff.api.db.SqlTupleStream;
+import com.hellion23.tuplediff.api.io.CompareEventSerializer;
+import com.hellion23.tuplediff.api.io.MappedInputStream;
+import com.hellion23.tuplediff.api.io.TupleSerializer;
+import com.hellion23.tuplediff.api.listener.CompareEventListener;
+import com.hellion23.tuplediff.api.monitor.Monitor;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * A TupleComparison of two SqlTupleStreams that periodically saves a checkpoint, in checkpointDirectory under the name
+ * of the Config, so that a comparison that failed part way can be resumed instead of started over.
+ *
+ * A checkpoint records the key of the last reported result: because the streams are merged in key order, every key
+ * up to and including it has been read and compared on both sides. It also records the totals of the comparison so
+ * far and the length of the breaks file, to which every break is appended. The breaks file is synced to disk before
+ * the checkpoint referring to it is written, and checkpoints replace each other atomically (temp file and rename).
+ *
+ * When a checkpoint of the same Schemas and comparators exists and resume is set (the default), both queries are
+ * restricted to the keys after the checkpointed key (see KeyRange.after) and the totals are reported with
+ * TupleComparison.RESUMED_EVENT, so the CompareStats are those of an uninterrupted run. Rows changed after the
+ * checkpoint was taken are only seen if their keys follow it.
+ *
+ * The breaks recorded up to the checkpoint are passed to the CompareEventListener again only if replayBreaks is set.
+ * It is by default only when no CompareEventListener is given, i.e. for the in-memory ListCompareEventListener of the
+ * ComparisonResult, which starts out empty. A CompareEventListener given by the caller is assumed to be a persistent
+ * sink (e.g. a SpillingCompareEventListener or JdbcCompareEventListener) that already received them in the failed run.
+ * Breaks it received after the checkpoint are delivered again, as their keys are compared again.
+ *
+ * The checkpoint and breaks files are deleted once a comparison completes; they are kept if it fails or is cancelled.
+ *
+ * @author: Hermann Leung
+ * Date: 2/27/2015
+ */
+public class ResumableTupleComparison extends TupleComparison {
+    private static final Logger logger = Logger.getLogger(ResumableTupleComparison.class.getName());
+    static final int MAGIC = 0x54444350;
+    static final int VERSION = 2;
+    // The clock is only read every CHECK_EVERY results.
+    static final int CHECK_EVERY = 1024;
+
+    File checkpointDirectory;
+    long checkpointIntervalMillis = 60000;
+    boolean resume = true;
+    boolean resumed = false;
+    boolean replayBreaks;
+    File checkpointFile;
+    File breaksFile;
+    FileOutputStream breaksFileOut;
+    DataOutputStream breaksOut;
+    long lastCheckpointMillis;
+    long checkpoints = 0;
+    int sinceCheck = 0;
+    boolean completed = false;
+    // The Tuple whose key is the last one compared on both sides, and the totals up to and including it.
+    Tuple lastCompared;
+    long totalLeft, totalRight, totalOnlyLeft, totalOnlyRight, totalBreaks, totalMatched;
+
+    public ResumableTupleComparison(Config config, Monitor monitor, CompareEventListener compareEventListener,
+                                    File checkpointDirectory) {
+        super(config, monitor, compareEventListener);
+        if (!(leftStream instanceof SqlTupleStream) || !(rightStream instanceof SqlTupleStream)) {
+            throw new TupleDiffException("ResumableTupleComparison requires both streams to be SqlTupleStreams", this);
+        }
+        this.checkpointDirectory = checkpointDirectory;
+        this.replayBreaks = compareEventListener == null;
+    }
+
+    public ResumableTupleComparison(Config config, File checkpointDirectory) {
+        this(config, null, null, checkpointDirectory);
+    }
+
+    /**
+     * Restricts the streams to the keys after the checkpoint, if resuming, before they are opened.
+     */
+    @Override
+    protected void prepareStreamsForReading() {
+        checkpointFile = checkpointFile("checkpoint");
+        breaksFile = checkpointFile("checkpoint-breaks");
+        try {
+            if (resume && checkpointFile.isFile()) {
+                resumeFromCheckpoint();
+            }
+            if (!resumed) {
+                checkpointFile.delete();
+                breaksFile.delete();
+            }
+            // Appends to the breaks that were recorded up to the checkpoint, if any.
+            breaksFileOut = new FileOutputStream(breaksFile, resumed);
+            breaksOut = new DataOutputStream(new BufferedOutputStream(breaksFileOut));
+        }
+        catch (IOException e) {
+            throw new TupleDiffException("Could not resume " + getName() + " from " + checkpointFile + ": "
+                    + e.getMessage(), this, e);
+        }
+        monitor.reportEvent(this, Monitor.EVENT_STATS_ATTRIBUTE, "resumed", resumed);
+        lastCheckpointMillis = System.currentTimeMillis();
+        super.prepareStreamsForReading();
+    }
+
+    private void resumeFromCheckpoint() throws IOException {
+        Comparable [] lastKey;
+        long breaksLength;
+        long breaksCount;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpointFile)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(checkpointFile + " is not a checkpoint");
+            }
+            if (in.readInt() != VERSION) {
+                logger.info(getName() + " ignoring checkpoint " + checkpointFile + " of another version");
+                return;
+            }
+            if (!signature().equals(TupleSerializer.readString(in))) {
+                logger.info(getName() + " ignoring checkpoint " + checkpointFile
+                        + " of different Schemas or comparators");
+                return;
+            }
+            lastKey = new Comparable[in.readInt()];
+            for (int i=0; i<lastKey.length; i++) {
+                lastKey[i] = (Comparable) TupleSerializer.readValue(in);
+            }
+            breaksLength = in.readLong();
+            breaksCount = in.readLong();
+            totalLeft = in.readLong();
+            totalRight = in.readLong();
+            totalOnlyLeft = in.readLong();
+            totalOnlyRight = in.readLong();
+            totalBreaks = in.readLong();
+            totalMatched = in.readLong();
+        }
+        finally {
+            in.close();
+        }
+        if (breaksFile.length() < breaksLength) {
+            throw new IOException(breaksFile + " is shorter than recorded by the checkpoint");
+        }
+        // Drop breaks written after the checkpoint; their keys will be compared again.
+        RandomAccessFile raf = new RandomAccessFile(breaksFile, "rw");
+        try {
+            raf.setLength(breaksLength);
+        }
+        finally {
+            raf.close();
+        }
+        if (replayBreaks) {
+            restoreBreaks(breaksCount);
+        }
+
+        KeyRange remaining = KeyRange.after(lastKey);
+        ((SqlTupleStream) leftStream).addKeyRange(remaining);
+        ((SqlTupleStream) rightStream).addKeyRange(remaining);
+        monitor.reportEvent(this, RESUMED_EVENT, totalLeft, totalRight, totalOnlyLeft, totalOnlyRight,
+                totalBreaks, totalMatched);
+        resumed = true;
+        logger.info(getName() + " resuming after key " + Arrays.toString(lastKey) + " with " + breaksCount
+                + " breaks " + (replayBreaks ? "restored" : "already delivered"));
+    }
+
+    /**
+     * Passes the breaks recorded up to the checkpoint to the CompareEventListener.
+     */
+    private void restoreBreaks(long count) throws IOException {
+        if (count == 0) {
+            return;
+        }
+        Schema leftSchema = leftStream.getSchema();
+        Schema rightSchema = rightStream.getSchema();
+        DataInputStream in = new DataInputStream(new MappedInputStream(breaksFile));
+        try {
+            for (long i=0; i<count; i++) {
+                getResult().handleCompareEvent(CompareEventSerializer.readEvent(in, leftSchema, rightSchema));
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    @Override
+    protected void compareTuples() {
+        super.compareTuples();
+        if (notCancelled) {
+            completed = true;
+            monitor.reportEvent(this, Monitor.EVENT_STATS_ATTRIBUTE, "checkpoints", checkpoints);
+        }
+    }
+
+    /**
+     * Counts and records the results, and saves a checkpoint after a result once checkpointIntervalMillis passed.
+     */
+    @Override
+    protected void comparisonEvent(CompareEvent.TYPE event, Tuple left, Tuple right, List<String> breakFields) {
+        super.comparisonEvent(event, left, right, breakFields);
+        switch (event) {
+            case DATA_LEFT:
+            case DATA_RIGHT:
+                // Rows read but not compared yet are read again on resume, so only compared ones are counted.
+                return;
+            case PAIR_MATCHED:
+                totalMatched++;
+                break;
+            case PAIR_BREAK:
+                totalBreaks++;
+                recordBreak(new CompareEvent(event, left, right, breakFields));
+                break;
+            case LEFT_BREAK:
+                totalOnlyLeft++;
+                recordBreak(new CompareEvent(event, left, right, breakFields));
+                break;
+            case RIGHT_BREAK:
+                totalOnlyRight++;
+                recordBreak(new CompareEvent(event, left, right, breakFields));
+                break;
+        }
+        if (left != null) totalLeft++;
+        if (right != null) totalRight++;
+        lastCompared = left != null ? left : right;
+        if (++sinceCheck >= CHECK_EVERY) {
+            sinceCheck = 0;
+            if (System.currentTimeMillis() - lastCheckpointMillis >= checkpointIntervalMillis) {
+                checkpoint();
+            }
+        }
+    }
+
+    private void recordBreak(CompareEvent compareEvent) {
+        try {
+            CompareEventSerializer.writeEvent(breaksOut, compareEvent);
+        }
+        catch (IOException e) {
+            throw new TupleDiffException("Could not save break to " + breaksFile + ": " + e.getMessage(), this, e);
+        }
+    }
+
+    /**
+     * Syncs the breaks to disk and then replaces the checkpoint with one at the last compared key.
+     */
+    protected void checkpoint() {
+        if (lastCompared == null) {
+            return;
+        }
+        File tempFile = new File(checkpointFile.getPath() + ".tmp");
+        try {
+            breaksOut.flush();
+            breaksFileOut.getFD().sync();
+            long breaksLength = breaksFileOut.getChannel().position();
+            Comparable [] lastKey = keyValues(lastCompared);
+
+            FileOutputStream fileOut = new FileOutputStream(tempFile);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                TupleSerializer.writeString(out, signature());
+                out.writeInt(lastKey.length);
+                for (Comparable value : lastKey) {
+                    TupleSerializer.writeValue(out, value);
+                }
+                out.writeLong(breaksLength);
+                out.writeLong(totalBreaks + totalOnlyLeft + totalOnlyRight);
+                out.writeLong(totalLeft);
+                out.writeLong(totalRight);
+                out.writeLong(totalOnlyLeft);
+                out.writeLong(totalOnlyRight);
+                out.writeLong(totalBreaks);
+                out.writeLong(totalMatched);
+                out.flush();
+                fileOut.getFD().sync();
+            }
+            finally {
+                out.close();
+            }
+            if (checkpointFile.exists() && !checkpointFile.delete()) {
+                throw new IOException("Could not replace " + checkpointFile);
+            }
+            if (!tempFile.renameTo(checkpointFile)) {
+                throw new IOException("Could not rename " + tempFile + " to " + checkpointFile);
+            }
+            checkpoints++;
+            lastCheckpointMillis = System.currentTimeMillis();
+            logger.info(getName() + " checkpoint after key " + Arrays.toString(lastKey));
+        }
+        catch (IOException e) {
+            tempFile.delete();
+            throw new TupleDiffException("Could not save checkpoint " + checkpointFile + ": " + e.getMessage(),
+                    this, e);
+        }
+    }
+
+    @Override
+    protected void cleanup() {
+        super.cleanup();
+        if (breaksOut != null) {
+            try {
+                breaksOut.close();
+            }
+            catch (IOException e) {
+                logger.warning(getName() + " could not close " + breaksFile + ": " + e.getMessage());
+            }
+            breaksOut = null;
+        }
+        if (completed) {
+            checkpointFile.delete();
+            breaksFile.delete();
+        }
+    }
+
+    File checkpointFile(String suffix) {
+        return new File(checkpointDirectory, getName().replaceAll("[^A-Za-z0-9._-]", "_") + "." + suffix);
+    }
+
+    /**
+     * Describes the fields of both sides and how each compare field is compared; a checkpoint of different Schemas or
+     * comparators (e.g. another threshold) is not resumed from. Comparators other than ThresholdNumberComparators are
+     * described by their class.
+     */
+    String signature() {
+        StringBuilder sb = new StringBuilder();
+        for (Schema<?> schema : Arrays.<Schema<?>>asList(leftStream.getSchema(), rightStream.getSchema())) {
+            sb.append("all:");
+            for (Field f : schema.getAllFields()) {
+                sb.append(f.getName()).append('=').append(f.getFieldClass().getName()).append(',');
+            }
+            sb.append(" key:");
+            for (Field f : schema.getKeyFields()) {
+                sb.append(f.getName()).append(',');
+            }
+            sb.append(" compare:");
+            for (Field f : schema.getCompareFields()) {
+                sb.append(f.getName()).append(',');
+            }
+            sb.append('\n');
+        }
+        sb.append("comparators:");
+        for (int i=0; i<plan.size(); i++) {
+            sb.append(plan.getFieldName(i)).append('=').append(plan.getComparator(i).getClass().getName());
+            if (plan.getKind(i) == ComparisonPlan.Kind.THRESHOLD) {
+                sb.append('[').append(plan.getThreshold(i)).append(']');
+            }
+            sb.append(',');
+        }
+        return sb.toString();
+    }
+
+    public File getCheckpointDirectory() {
+        return checkpointDirectory;
+    }
+
+    public long getCheckpointIntervalMillis() {
+        return checkpointIntervalMillis;
+    }
+
+    /**
+     * The minimum time between checkpoints. Each checkpoint syncs the breaks file and writes a small file.
+     */
+    public void setCheckpointIntervalMillis(long checkpointIntervalMillis) {
+        this.checkpointIntervalMillis = checkpointIntervalMillis;
+    }
+
+    public boolean isResume() {
+        return resume;
+    }
+
+    /**
+     * Whether to resume from an existing checkpoint of this comparison. If false, the checkpoint is discarded.
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    public boolean isReplayBreaks() {
+        return replayBreaks;
+    }
+
+    /**
+     * Whether to pass the breaks recorded up to the checkpoint to the CompareEventListener again on resume. Set it
+     * only for a listener that did not receive them in the failed run, e.g. one that keeps them in memory.
+     */
+    public void setReplayBreaks(boolean replayBreaks) {
+        this.replayBreaks = replayBreaks;
+    }
+
+    /**
+     * @return whether this comparison was resumed from a checkpoint.
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+}
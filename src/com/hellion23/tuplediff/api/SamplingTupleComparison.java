@@ -0,0 +1,308 @@
+package com.hellion23.tuplediff.api;
+
+import com.hellion23.tuplediff.api.db.KeyHashBucket;
+import com.hellion23.tuplediff.api.db.SqlSchema;
+import com.hellion23.tuplediff.api.db.SqlTupleStream;
+import com.hellion23.tuplediff.api.listener.CompareEventListener;
+import com.hellion23.tuplediff.api.monitor.Monitor;
+import com.hellion23.tuplediff.api.monitor.SampleEstimate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+/**
+ * A comparison of a random sample of the keys of two PartitionableTupleStreams, for a quick estimate of how far apart they are
+ * rather than a list of every break. The same keys are selected on both sides, the sample is compared as usual (its
+ * breaks reach the CompareEventListener and its totals the CompareStats), and the break rates of the whole
+ * comparison, per break type and per compare field, are estimated with confidence intervals into the CompareStats'
+ * SampleEstimate.
+ *
+ * Keys are sampled in one of two ways (see Method):
+ * HASH: by a hash of the key computed in the database (as for MerkleTupleComparison), selecting the keys whose hash
+ * falls into `clusters` randomly chosen residues modulo about clusters / fraction. Each key is in the sample or not
+ * independently of the others, but both tables are scanned in full. Requires both streams to be of the same database
+ * vendor, one that supports key hash buckets. Unlike TABLESAMPLE, which picks different blocks in each database, the
+ * selection is the same on both sides.
+ * RANGE: by key range. The key space is split into about clusters / fraction ranges of roughly equal size (from a
+ * sample of the keys of both streams, as for PartitionedTupleComparison) of which `clusters` are chosen at random, so
+ * each partition query reads a single index range. Neighbouring keys are sampled together, which the estimate allows
+ * for, but sampling keys scans the key columns of both tables. Any PartitionableTupleStreams can be sampled by range.
+ * AUTO, the default, uses HASH where possible and RANGE otherwise.
+ *
+ * SqlTupleStreams are compared in parallel only if both have a ConnectionFactory; otherwise one cluster at a time
+ * over the streams' own connections.
+ *
+ * @author: Hermann Leung
+ * Date: 3/11/2015
+ */
+public class SamplingTupleComparison extends PartitionedTupleComparison {
+    private static final Logger logger = Logger.getLogger(SamplingTupleComparison.class.getName());
+    // Key ranges to choose from at most: bounds the keys sampled to place their boundaries.
+    static final int MAX_RANGES = 10000;
+
+    public enum Method {
+        AUTO, HASH, RANGE
+    }
+
+    double fraction;
+    Method method = Method.AUTO;
+    int clusters = 32;
+    double confidence = 0.95;
+    long seed = System.nanoTime();
+    // The compare fields by name, indexing the field break counts of the Clusters.
+    Map<String, Integer> fieldIndexes;
+
+    /**
+     * @param fraction the fraction of keys to compare, in (0, 1].
+     */
+    public SamplingTupleComparison(Config config, Monitor monitor, CompareEventListener compareEventListener,
+                                   double fraction) {
+        super(config, monitor, compareEventListener, 1);
+        assert (fraction > 0 && fraction <= 1);
+        this.fraction = fraction;
+        this.parallelism = Runtime.getRuntime().availableProcessors();
+        this.samplesPerPartition = 10;
+    }
+
+    public SamplingTupleComparison(Config config, double fraction) {
+        this(config, null, null, fraction);
+    }
+
+    @Override
+    protected void prepareStreamsForReading() {
+        super.prepareStreamsForReading();
+        boolean sql = leftStream instanceof SqlTupleStream && rightStream instanceof SqlTupleStream;
+        String leftVendor = sql ? ((SqlSchema) leftStream.getSchema()).getVendor() : null;
+        String rightVendor = sql ? ((SqlSchema) rightStream.getSchema()).getVendor() : null;
+        boolean hashable = sql && ((SqlTupleStream) leftStream).isKeyHashBucketSupported()
+                && ((SqlTupleStream) rightStream).isKeyHashBucketSupported()
+                && leftVendor != null && leftVendor.equals(rightVendor);
+        if (method == Method.AUTO) {
+            method = hashable ? Method.HASH : Method.RANGE;
+        }
+        else if (method == Method.HASH && !hashable) {
+            throw new TupleDiffException("Sampling by key hash requires both streams to be SqlTupleStreams of the " +
+                    "same database vendor, one that supports key hash buckets. Found " + leftVendor + " and "
+                    + rightVendor, this);
+        }
+        if (sql && (((SqlTupleStream) leftStream).getConnectionFactory() == null
+                || ((SqlTupleStream) rightStream).getConnectionFactory() == null)) {
+            setParallelism(1);
+        }
+    }
+
+    @Override
+    protected void compareTuples() {
+        List<Field> compareFields = leftStream.getSchema().getCompareFields();
+        fieldIndexes = new HashMap<String, Integer>();
+        for (Field field : compareFields) {
+            fieldIndexes.put(field.getName(), fieldIndexes.size());
+        }
+        Random random = new Random(seed);
+        List<Cluster> sample = new ArrayList<Cluster>();
+        double sampled = method == Method.HASH ? sampleByHash(random, sample) : sampleByRange(random, sample);
+        monitor.reportEvent(this, Monitor.EVENT_STATS_ATTRIBUTE, "sampleMethod", method);
+        monitor.reportEvent(this, Monitor.EVENT_STATS_ATTRIBUTE, "sampleFraction", sampled);
+        logger.info(getName() + " comparing a " + method + " sample of " + sample.size() + " clusters, "
+                + sampled * 100 + "% of keys, seed " + seed);
+        runPartitions(new ArrayList<TupleComparison>(sample));
+        if (notCancelled) {
+            SampleEstimate estimate = estimate(sample, sampled);
+            compareStats.setSampleEstimate(estimate);
+            logger.info(getName() + estimate);
+        }
+    }
+
+    /**
+     * Selects clusters residues of the key hash modulo about clusters / fraction, in groups of one per parallel
+     * partition.
+     * @return the fraction of keys sampled.
+     */
+    protected double sampleByHash(Random random, List<Cluster> sample) {
+        long divisor = Math.min(KeyHashBucket.MAX_DIVISOR, Math.max(clusters, Math.round(clusters / fraction)));
+        TreeSet<Long> residues = new TreeSet<Long>();
+        while (residues.size() < clusters) {
+            residues.add((long) (random.nextDouble() * divisor));
+        }
+        List<KeyHashBucket> buckets = new ArrayList<KeyHashBucket>(clusters);
+        for (long residue : residues) {
+            buckets.add(new KeyHashBucket(1, residue, divisor));
+        }
+        int groups = Math.max(1, Math.min(parallelism, clusters));
+        for (int g=0; g<groups; g++) {
+            List<KeyHashBucket> group = buckets.subList(g * clusters / groups, (g + 1) * clusters / groups);
+            sample.add(new Cluster(getName() + " - sample buckets " + (g + 1) + "/" + groups,
+                    ((SqlTupleStream) leftStream).createBucketPartition(group),
+                    ((SqlTupleStream) rightStream).createBucketPartition(group)));
+        }
+        return (double) clusters / divisor;
+    }
+
+    /**
+     * Splits the key space into about clusters / fraction ranges and selects clusters of them.
+     * @return the fraction of keys sampled.
+     */
+    protected double sampleByRange(Random random, List<Cluster> sample) {
+        setPartitions((int) Math.min(MAX_RANGES, Math.ceil(clusters / fraction)));
+        List<KeyRange> ranges = createKeyRanges();
+        int selected = (int) Math.max(1, Math.min(ranges.size(), Math.round(fraction * ranges.size())));
+        List<Integer> indexes = new ArrayList<Integer>(ranges.size());
+        for (int i=0; i<ranges.size(); i++) {
+            indexes.add(i);
+        }
+        Collections.shuffle(indexes, random);
+        indexes = new ArrayList<Integer>(indexes.subList(0, selected));
+        Collections.sort(indexes);
+        for (int i : indexes) {
+            KeyRange range = ranges.get(i);
+            sample.add(new Cluster(getName() + " - sample range " + (i + 1) + "/" + ranges.size(),
+                    createRangePartition(leftStream, range), createRangePartition(rightStream, range)));
+        }
+        return (double) selected / ranges.size();
+    }
+
+    /**
+     * SqlTupleStreams without a ConnectionFactory share their connection with their partitions.
+     */
+    private static TupleStream createRangePartition(TupleStream stream, KeyRange range) {
+        if (stream instanceof SqlTupleStream) {
+            return ((SqlTupleStream) stream).createRangePartition(range);
+        }
+        return ((PartitionableTupleStream) stream).createPartition(range);
+    }
+
+    protected SampleEstimate estimate(List<Cluster> sample, double sampled) {
+        int n = sample.size();
+        long [] keys = new long[n], pairs = new long[n], onlyLeft = new long[n], onlyRight = new long[n],
+                breaks = new long[n];
+        long [][] fieldBreaks = new long[fieldIndexes.size()][n];
+        for (int i=0; i<n; i++) {
+            Cluster c = sample.get(i);
+            keys[i] = c.onlyLeft + c.onlyRight + c.breaks + c.matched;
+            pairs[i] = c.breaks + c.matched;
+            onlyLeft[i] = c.onlyLeft;
+            onlyRight[i] = c.onlyRight;
+            breaks[i] = c.breaks;
+            for (int f=0; f<fieldBreaks.length; f++) {
+                fieldBreaks[f][i] = c.fieldBreaks[f];
+            }
+        }
+        SampleEstimate estimate = new SampleEstimate(sampled, confidence, method == Method.RANGE, keys, pairs);
+        estimate.addBreakRate(CompareEvent.TYPE.LEFT_BREAK, onlyLeft);
+        estimate.addBreakRate(CompareEvent.TYPE.RIGHT_BREAK, onlyRight);
+        estimate.addBreakRate(CompareEvent.TYPE.PAIR_BREAK, breaks);
+        List<Field> compareFields = leftStream.getSchema().getCompareFields();
+        for (Field field : compareFields) {
+            estimate.addFieldBreakRate(field.getName(), fieldBreaks[fieldIndexes.get(field.getName())]);
+        }
+        return estimate;
+    }
+
+    /**
+     * A partition of the sample, which counts its keys by outcome for the estimate. Events are classified by the
+     * Tuples they carry, so a PAIR_BREAK with a single Tuple counts as a break of that side only.
+     */
+    class Cluster extends TupleComparison {
+        long onlyLeft;
+        long onlyRight;
+        long breaks;
+        long matched;
+        final long [] fieldBreaks;
+
+        Cluster(String name, TupleStream left, TupleStream right) {
+            super(createPartitionConfig(name, left, right), new PartitionMonitor(), new PartitionListener());
+            fieldBreaks = new long[fieldIndexes.size()];
+        }
+
+        @Override
+        protected void comparisonEvent(CompareEvent.TYPE event, Tuple left, Tuple right, List<String> breakFields) {
+            switch (event) {
+                case PAIR_MATCHED:
+                    matched++;
+                    break;
+                case LEFT_BREAK:
+                    onlyLeft++;
+                    break;
+                case RIGHT_BREAK:
+                    onlyRight++;
+                    break;
+                case PAIR_BREAK:
+                    if (left == null) {
+                        onlyRight++;
+                    }
+                    else if (right == null) {
+                        onlyLeft++;
+                    }
+                    else {
+                        breaks++;
+                        for (String fieldName : breakFields) {
+                            fieldBreaks[fieldIndexes.get(fieldName)]++;
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+            super.comparisonEvent(event, left, right, breakFields);
+        }
+    }
+
+    public double getFraction() {
+        return fraction;
+    }
+
+    public void setFraction(double fraction) {
+        assert (fraction > 0 && fraction <= 1);
+        this.fraction = fraction;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public void setMethod(Method method) {
+        this.method = method;
+    }
+
+    public int getClusters() {
+        return clusters;
+    }
+
+    /**
+     * The number of key ranges, or key hash residues, sampled. More clusters give narrower intervals for range samples
+     * (whose variance is estimated between clusters) at the cost of more, smaller partition queries. Defaults to 32.
+     */
+    public void setClusters(int clusters) {
+        assert (clusters > 0);
+        this.clusters = clusters;
+    }
+
+    public double getConfidence() {
+        return confidence;
+    }
+
+    /**
+     * The confidence level of the estimated intervals. Defaults to 0.95.
+     */
+    public void setConfidence(double confidence) {
+        this.confidence = confidence;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Seeds the random selection of the sample, so that the same keys can be sampled again (as long as the data and,
+     * for range samples, the key sample placing the range boundaries do not change).
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+}
@@ -4,6 +4,7 @@ import com.hellion23.tuplediff.api.db.SqlField;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -14,10 +15,14 @@ import java.util.Map;
 public abstract class Schema <T extends Field> {
     protected List<T> allFields;
     protected Map<String, T> allFieldMap;
+    // The position of each Field in allFields, by name. Field.getOrdinal() is only that of the Schema that last
+    // indexed the Field.
+    protected Map<String, Integer> ordinalMap;
     protected List<T> keyFields;
     protected List<T > compareFields;
     protected TupleStreamKey tupleStreamKey;
     protected boolean strict = false;
+    protected int [] fingerprintOrdinals;
 
     public TupleStreamKey getTupleStreamKey() {
         return tupleStreamKey;
@@ -34,6 +39,46 @@ public abstract class Schema <T extends Field> {
     }
     public T getField (String name) {return allFieldMap.get(name);}
 
+    /**
+     * @return the ordinal of the named Field in this Schema, i.e. the index of its value in Tuples of this Schema, or
+     * -1 if there is no such Field.
+     */
+    public int getOrdinal (String name) {
+        Integer ordinal = ordinalMap.get(name);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    public int size () {
+        return allFields.size();
+    }
+
+    /**
+     * Assigns each Field its ordinal (position in allFields) and builds the name lookup. Sub-classes must call this
+     * once allFields has been populated; Tuples of this Schema are stored as arrays indexed by these ordinals.
+     */
+    protected void indexFields () {
+        allFieldMap = new HashMap<String, T>();
+        ordinalMap = new HashMap<String, Integer>();
+        for (int i=0; i<allFields.size(); i++) {
+            T f = allFields.get(i);
+            f.setOrdinal(i);
+            allFieldMap.put(f.getName(), f);
+            ordinalMap.put(f.getName(), i);
+        }
+    }
+
+    /**
+     * @return the ordinals of the Fields hashed into each Tuple's fingerprint, or null if Tuples of this Schema are
+     * not fingerprinted. See {@link Config#setFingerprintCompare(boolean)}.
+     */
+    public int[] getFingerprintOrdinals() {
+        return fingerprintOrdinals;
+    }
+
+    public void setFingerprintOrdinals(int[] fingerprintOrdinals) {
+        this.fingerprintOrdinals = fingerprintOrdinals;
+    }
+
     public boolean isStrict() {
         return strict;
     }
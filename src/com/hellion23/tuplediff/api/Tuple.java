@@ -1,20 +1,49 @@
 package com.hellion23.tuplediff.api;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
+ * A single row emitted by a TupleStream. Values are stored in an array indexed by each Field's ordinal within the
+ * Tuple's Schema (see {@link Schema#getOrdinal(String)}), so looking up a value by Field is a simple array access.
+ *
  * @author: Hermann Leung
  * Date: 6/3/14
  */
 public class Tuple <T extends Field> {
     Schema schema;
-    Map<T, Comparable> fieldToValues;
+    Comparable [] values;
     Comparable key;
+    long fingerprint;
+    // Built by getAllValues() the first time it is called.
+    Map<T, Comparable> allValues;
 
-     public Tuple(Schema schema, Map<T, Comparable> row) {
+    /**
+     * @param schema
+     * @param values the values of this row, indexed by Field ordinal. The array is not copied.
+     */
+    public Tuple(Schema schema, Comparable [] values) {
         this.schema = schema;
-        this.fieldToValues = row;
+        this.values = values;
         key = schema.getTupleStreamKey().createKeyForTuple(this);
+        int [] fingerprintOrdinals = schema.getFingerprintOrdinals();
+        if (fingerprintOrdinals != null) {
+            fingerprint = Fingerprint.hash64(values, fingerprintOrdinals);
+        }
+    }
+
+    public Tuple(Schema schema, Map<T, Comparable> row) {
+        this (schema, toValues(schema, row));
+    }
+
+    private static Comparable [] toValues (Schema schema, Map<? extends Field, Comparable> row) {
+        Comparable [] values = new Comparable[schema.size()];
+        for (Map.Entry<? extends Field, Comparable> e : row.entrySet()) {
+            values[schema.getOrdinal(e.getKey().getName())] = e.getValue();
+        }
+        return values;
     }
 
     public Schema getSchema() {
@@ -33,18 +62,59 @@ public class Tuple <T extends Field> {
         this.key = key;
     }
 
+    /**
+     * @return the hash of this Tuple's fingerprinted Fields (see {@link Schema#getFingerprintOrdinals()}), or 0 if
+     * the Schema has none.
+     */
+    public long getFingerprint () {
+        return fingerprint;
+    }
+
+    /**
+     * @return the value of the Field of this Tuple's Schema named as f. Ordinals are only meaningful within the Schema
+     * that last assigned them, so f's ordinal is used directly only if f is this Schema's Field at that ordinal;
+     * otherwise (e.g. f is a Field of the other stream's Schema) it is looked up by name.
+     */
     public Comparable getValue (T f) {
-        return fieldToValues.get(f);
+        int ordinal = f.getOrdinal();
+        if (ordinal >= 0 && ordinal < values.length && schema.getAllFields().get(ordinal) == f) {
+            return values[ordinal];
+        }
+        return getValue(f.getName());
+    }
+
+    public Comparable getValue (int ordinal) {
+        return values[ordinal];
     }
 
     public Comparable getValue (String name) {
-        return fieldToValues.get(schema.getField(name));
+        int ordinal = schema.getOrdinal(name);
+        return ordinal < 0 ? null : values[ordinal];
+    }
+
+    /**
+     * @return the backing array of values, indexed by Field ordinal.
+     */
+    public Comparable [] getValues () {
+        return values;
     }
 
-    public Map<T, Comparable> getAllValues () { return fieldToValues; }
+    /**
+     * Convenience view of this Tuple as an unmodifiable Field to value Map, built the first time it is asked for.
+     */
+    public Map<T, Comparable> getAllValues () {
+        if (allValues == null) {
+            List<T> fields = schema.getAllFields();
+            Map<T, Comparable> m = new LinkedHashMap<T, Comparable>();
+            for (int i=0; i<fields.size(); i++) {
+                m.put(fields.get(i), values[i]);
+            }
+            allValues = Collections.unmodifiableMap(m);
+        }
+        return allValues;
+    }
 
     public String toString () {
-        return fieldToValues.toString();
+        return getAllValues().toString();
     }
 }
-
@@ -1,19 +1,29 @@
 package com.hellion23.tuplediff.api;
 
+import com.hellion23.tuplediff.api.comparator.ComparisonPlan;
 import com.hellion23.tuplediff.api.comparator.FieldComparator;
 import com.hellion23.tuplediff.api.comparator.FieldComparatorFactory;
 import com.hellion23.tuplediff.api.db.SqlTupleStream;
 import com.hellion23.tuplediff.api.listener.CompareEventListener;
 import com.hellion23.tuplediff.api.listener.ListCompareEventListener;
+import com.hellion23.tuplediff.api.monitor.CompareStats;
+import com.hellion23.tuplediff.api.monitor.LatencyHistogram;
+import com.hellion23.tuplediff.api.monitor.ManagedMonitor;
+import com.hellion23.tuplediff.api.monitor.Metrics;
 import com.hellion23.tuplediff.api.monitor.Monitor;
+import com.hellion23.tuplediff.api.monitor.Monitorable;
 import com.hellion23.tuplediff.api.monitor.Nameable;
 import com.hellion23.tuplediff.api.monitor.TupleComparisonMonitor;
 
 import java.sql.Connection;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /**
@@ -22,17 +32,36 @@ import java.util.logging.Logger;
  */
 public class TupleComparison implements Nameable {
     public final static String COMPARE_EVENT = "COMPARE_EVENT";
+    // Reported instead of the individual events for a number of pairs known to match without having been read, e.g.
+    // by MerkleTupleComparison. Param: the number of pairs.
+    public final static String BULK_MATCH_EVENT = "BULK_MATCH";
+    // Reported by a comparison resumed from a checkpoint (see ResumableTupleComparison) for the Tuples compared before
+    // the checkpoint. Params: totalLeft, totalRight, totalOnlyLeft, totalOnlyRight, totalBreaks, totalMatched.
+    public final static String RESUMED_EVENT = "RESUMED";
     private static final Logger logger = Logger.getLogger(Field.class.getName());
     TupleStream leftStream;
     TupleStream rightStream;
     Config config;
-    private ThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(2);
+    // Opens the streams of all comparisons. Its daemon threads are created as needed and expire when idle, so
+    // comparisons neither hold on to threads once their streams are open nor keep the JVM from exiting.
+    private static final ExecutorService openExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60,
+            TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            daemonThreadFactory("TupleComparison - open"));
     private ComparisonResult result;
     volatile boolean notCancelled = true;
     volatile boolean alreadyRan = false;
     String name;
-    Map<Field, FieldComparator> fieldComparators;
+    // The comparison of the compare fields, compiled at initialization.
+    ComparisonPlan plan;
     protected Monitor monitor;
+    // Resolved from the Monitor at initialization: the CompareStats counted for every Tuple, whether the Monitor
+    // also wants every COMPARE_EVENT reported, and the latencies recorded.
+    CompareStats compareStats;
+    boolean reportCompareEvents;
+    Metrics metrics;
+    LatencyHistogram compareLatency;
+    LatencyHistogram dispatchLatency;
+    int pairsCompared = 0;
     protected CompareEventListener compareEventListener;
 
     public TupleComparison (Config config, Monitor monitor, CompareEventListener compareEventListener) {
@@ -58,9 +87,13 @@ public class TupleComparison implements Nameable {
         else
             this.compareEventListener = compareEventListener;
 
-        // Setup default monitor if none provided.
-        if (monitor == null)
-            this.monitor = new TupleComparisonMonitor();
+        // Setup default monitor if none provided. Nothing else sees its events, so it need not be reported every
+        // COMPARE_EVENT.
+        if (monitor == null) {
+            TupleComparisonMonitor defaultMonitor = new TupleComparisonMonitor();
+            defaultMonitor.unsubscribe(COMPARE_EVENT);
+            this.monitor = defaultMonitor;
+        }
         else
             this.monitor = monitor;
 
@@ -97,17 +130,47 @@ public class TupleComparison implements Nameable {
         monitor.setLeftStream(leftStream);
         monitor.setRightStream(rightStream);
         monitor.init();
+        compareStats = monitor.getCompareStats();
+        if (monitor instanceof ManagedMonitor) {
+            reportCompareEvents = ((ManagedMonitor) monitor).isSubscribed(COMPARE_EVENT);
+            metrics = ((ManagedMonitor) monitor).getMetrics();
+        }
+        else {
+            reportCompareEvents = true;
+            metrics = new Metrics();
+        }
+        compareLatency = metrics.getCompareLatency();
+        dispatchLatency = metrics.getDispatchLatency();
+        if (leftStream instanceof Monitorable) {
+            ((Monitorable) leftStream).setMonitor(monitor);
+        }
+        if (rightStream instanceof Monitorable) {
+            ((Monitorable) rightStream).setMonitor(monitor);
+        }
+        if (compareEventListener instanceof Monitorable) {
+            ((Monitorable) compareEventListener).setMonitor(monitor);
+        }
     }
 
+    /**
+     * Compiles the ComparisonPlan and sets the fingerprinted fields of the Schemas (see Config.setFingerprintCompare).
+     * Must run before the streams create Tuples. Schemas have already been validated, so the compare fields of both
+     * are the same, though their positions may differ.
+     */
     protected void initComparators () {
-        fieldComparators = new HashMap <Field, FieldComparator>();
+        Schema leftSchema = leftStream.getSchema();
+        Schema rightSchema = rightStream.getSchema();
+        plan = FieldComparatorFactory.Instance().compile(leftSchema, rightSchema, getComparatorOverrides(),
+                config.isFingerprintCompare());
+        leftSchema.setFingerprintOrdinals(plan.getLeftFingerprintOrdinals());
+        rightSchema.setFingerprintOrdinals(plan.getRightFingerprintOrdinals());
+    }
 
-        // schemas have already been checked, so whichever schema's fields we use, it should be identical to the other
-        // so we'll arbitrarily use the LEFT stream's schema:
-        for (Field field : (List <Field>) leftStream.getSchema().getCompareFields()) {
-            FieldComparator fc = FieldComparatorFactory.Instance().resolveField(field, config.getComparatorOverrides());
-            fieldComparators.put(field, fc);
-        }
+    /**
+     * The FieldComparator overrides the ComparisonPlan is compiled with; the Config's by default.
+     */
+    protected List<FieldComparator> getComparatorOverrides () {
+        return config.getComparatorOverrides();
     }
 
     protected void prepareStreamsForReading () {
@@ -116,8 +179,8 @@ public class TupleComparison implements Nameable {
         StreamRunnable leftRunnable = new StreamRunnable(monitor, leftStream, doneSignal);
         StreamRunnable rightRunnable = new StreamRunnable(monitor, rightStream, doneSignal);
 
-        executor.execute(leftRunnable);
-        executor.execute(rightRunnable);
+        openExecutor.execute(leftRunnable);
+        openExecutor.execute(rightRunnable);
 
         // Wait until both streams are ready to be read.
         try {doneSignal.await();} catch (InterruptedException e) {}
@@ -148,7 +211,7 @@ public class TupleComparison implements Nameable {
             // do actual comparison of data
             compareTuples();
 
-            monitor.reportEvent(this, Monitor.EVENT_STOP_NORMAL);
+            monitor.reportEvent(this, notCancelled ? Monitor.EVENT_STOP_NORMAL : Monitor.EVENT_STOP_CANCELLED);
         }
         catch (Exception ex) {
 
@@ -164,9 +227,10 @@ public class TupleComparison implements Nameable {
                         + ex.getMessage(), this, ex);
             }
 
-            // Report the event:
+            // Report the event; exceptions of a cancelled comparison are likely due to its streams having been closed.
             if (monitor != null) {
-                monitor.reportEvent(tde.getSource(), Monitor.EVENT_STOP_ABNORMAL, tde);
+                monitor.reportEvent(tde.getSource(), notCancelled ? Monitor.EVENT_STOP_ABNORMAL :
+                        Monitor.EVENT_STOP_CANCELLED, tde);
             }
 
 
@@ -189,13 +253,36 @@ public class TupleComparison implements Nameable {
         return result;
     }
 
-    private void cleanup () {
+    public Config getConfig() {
+        return config;
+    }
+
+    /**
+     * @return the latency Metrics of the comparison: those of its Monitor if it is a ManagedMonitor, otherwise its
+     * own. Null until the comparison starts.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public Monitor getMonitor() {
+        return monitor;
+    }
+
+    protected void cleanup () {
         leftStream.close();
         rightStream.close();
-        this.compareEventListener.close();
+        try {
+            this.compareEventListener.close();
+        }
+        finally {
+            if (monitor instanceof ManagedMonitor) {
+                ((ManagedMonitor) monitor).close();
+            }
+        }
     }
 
-    private void compareTuples() {
+    protected void compareTuples() {
         Tuple left, right;
         int i = 0;
         while (notCancelled) {
@@ -269,7 +356,10 @@ public class TupleComparison implements Nameable {
     }
 
     protected void comparisonEvent (CompareEvent.TYPE event, Tuple left, Tuple right, List<String> breakFields) {
-        monitor.reportEvent(this, COMPARE_EVENT, event, left, right, breakFields);
+        compareStats.count(event);
+        if (reportCompareEvents) {
+            monitor.reportEvent(this, COMPARE_EVENT, event, left, right, breakFields);
+        }
         switch (event) {
             case DATA_LEFT:
             case DATA_RIGHT:
@@ -278,7 +368,9 @@ public class TupleComparison implements Nameable {
             case PAIR_BREAK:
             case LEFT_BREAK:
             case RIGHT_BREAK:
+                long start = System.nanoTime();
                 result.handleCompareEvent(new CompareEvent(event, left, right, breakFields));
+                dispatchLatency.record(System.nanoTime() - start);
                 break;
         }
     }
@@ -290,6 +382,21 @@ public class TupleComparison implements Nameable {
         }
     }
 
+    /**
+     * @return a ThreadFactory of daemon threads named prefix-1, prefix-2...
+     */
+    public static ThreadFactory daemonThreadFactory (final String prefix) {
+        return new ThreadFactory() {
+            final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
     public boolean isCancelled () {
         return !notCancelled;
     }
@@ -298,22 +405,34 @@ public class TupleComparison implements Nameable {
         return alreadyRan;
     }
 
-    private List<String> getBreakFields(Tuple left, Tuple right) {
-        List <Field> compareFields = left.getSchema().getCompareFields();
-        List<String> breakFields = null;
-        for (Field f : compareFields) {
-            int answer = fieldComparators.get(f).getComparator().compare(left.getValue(f.getName()), right.getValue(f.getName()));
-            if (answer != 0) {
-                if (breakFields == null) {
-                    breakFields = new LinkedList<String>();
-                }
-                breakFields.add(f.getName());
-            }
+    protected List<String> getBreakFields(Tuple left, Tuple right) {
+        // One pair in COMPARE_SAMPLE_INTERVAL is timed.
+        if (++pairsCompared % Metrics.COMPARE_SAMPLE_INTERVAL != 0) {
+            return findBreakFields(left, right);
         }
-
+        long start = System.nanoTime();
+        List<String> breakFields = findBreakFields(left, right);
+        compareLatency.record(System.nanoTime() - start);
         return breakFields;
     }
 
+    private List<String> findBreakFields(Tuple left, Tuple right) {
+        return plan.findBreakFields(left, right);
+    }
+
+    /**
+     * @return the values of the Tuple's key fields, in key field order.
+     */
+    protected static Comparable [] keyValues(Tuple tuple) {
+        Schema schema = tuple.getSchema();
+        List<? extends Field> keyFields = schema.getKeyFields();
+        Comparable [] key = new Comparable[keyFields.size()];
+        for (int i=0; i<key.length; i++) {
+            key[i] = tuple.getValue(schema.getOrdinal(keyFields.get(i).getName()));
+        }
+        return key;
+    }
+
     protected void validateSchemas(TupleStream left, TupleStream right) throws TupleDiffException {
         List<String> errors = new LinkedList<String>();
 
@@ -328,6 +447,7 @@ public class TupleComparison implements Nameable {
         if (errors.size()!=0) {
             throw new TupleDiffException("Schema Validation Failed. \n" + errors.toString(),  this );
         }
+        TupleStreamKey.align(left.getSchema().getTupleStreamKey(), right.getSchema().getTupleStreamKey());
     }
 
     private void compareFields (List<? extends Field> leftFields, List<? extends Field> rightFields,
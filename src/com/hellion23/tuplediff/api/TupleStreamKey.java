@@ -1,7 +1,10 @@
 package com.hellion23.tuplediff.api;
 
+import java.math.BigDecimal;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.logging.Logger;
 
 /**
  * A TupleStreamKey encapsulates several concepts:
@@ -15,19 +18,38 @@ import java.util.List;
  * A TupleStreamKey is shared by both TupleStreams being compared. The createKeyForTuple method is used by both
  * TupleStreams to generate the key.
  *
+ * The key implementation is chosen from the classes of the key fields when they are set (see KeyType): a primitive
+ * long for a single integral key field, a KeyEncoder byte encoding for other keys of encodable classes, and the
+ * field by field TKComparable otherwise. Keys of different KeyTypes cannot be compared, so TupleComparison aligns
+ * the KeyTypes of the two TupleStreams being compared (see align).
+ *
  * @author: Hermann Leung
  * Date: 9/26/2014
  */
 public class TupleStreamKey
 {
+    private static final Logger logger = Logger.getLogger(TupleStreamKey.class.getName());
+
+    public enum KeyType {
+        /** Compares the key values field by field; works for values of any Comparable class. */
+        GENERIC,
+        /** A single Long, Integer, Short or Byte key field, held as a primitive long. */
+        LONG,
+        /** Key fields of classes KeyEncoder can encode, held as a memcmp comparable byte array. */
+        ENCODED
+    }
+
     List<? extends Field> fields;
+    KeyType keyType = KeyType.GENERIC;
+    // The ordinals of the key fields in the Schema of the last Tuple keyed; Tuples of a stream share a Schema.
+    volatile KeyOrdinals keyOrdinals;
 
     public TupleStreamKey () {
         fields = new LinkedList<Field>();
     }
 
     public TupleStreamKey(List<? extends Field> fields) {
-        this.fields = fields;
+        setFields(fields);
     }
 
     public List<? extends Field> getFields() {
@@ -36,10 +58,199 @@ public class TupleStreamKey
 
     public void setFields(List<? extends Field> fields) {
         this.fields = fields;
+        this.keyType = selectKeyType(fields);
+    }
+
+    static KeyType selectKeyType (List<? extends Field> fields) {
+        if (fields == null || fields.isEmpty()) {
+            return KeyType.GENERIC;
+        }
+        if (fields.size() == 1 && KeyEncoder.isIntegral(fields.get(0).getFieldClass())) {
+            return KeyType.LONG;
+        }
+        for (Field f : fields) {
+            if (!KeyEncoder.isEncodable(f.getFieldClass())) {
+                return KeyType.GENERIC;
+            }
+        }
+        return KeyType.ENCODED;
     }
 
-    public TKComparable createKeyForTuple (Tuple tuple) {
-        return new TKComparable(tuple);
+    public KeyType getKeyType() {
+        return keyType;
+    }
+
+    /**
+     * Overrides the KeyType chosen from the key fields' classes. Must be set before the TupleStream creates Tuples.
+     */
+    public void setKeyType(KeyType keyType) {
+        this.keyType = keyType;
+    }
+
+    /**
+     * Makes the keys of two TupleStreams comparable with each other: if the classes of their key fields led to
+     * different KeyTypes, or the key fields at any position are of classes encoded differently (see
+     * KeyEncoder.encodingClass), e.g. a BigDecimal and an Integer, both fall back to GENERIC.
+     */
+    public static void align (TupleStreamKey left, TupleStreamKey right) {
+        if (left == null || right == null) {
+            return;
+        }
+        if (left.keyType != right.keyType || (left.keyType != KeyType.GENERIC && !sameEncoding(left, right))) {
+            logger.info("Key types " + left.keyType + " and " + right.keyType + " of " + left.fields + " and "
+                    + right.fields + " are not comparable, comparing keys field by field");
+            left.keyType = KeyType.GENERIC;
+            right.keyType = KeyType.GENERIC;
+        }
+    }
+
+    private static boolean sameEncoding (TupleStreamKey left, TupleStreamKey right) {
+        if (left.fields.size() != right.fields.size()) {
+            return false;
+        }
+        for (int i=0; i<left.fields.size(); i++) {
+            if (KeyEncoder.encodingClass(left.fields.get(i).getFieldClass())
+                    != KeyEncoder.encodingClass(right.fields.get(i).getFieldClass())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Comparable createKeyForTuple (Tuple tuple) {
+        switch (keyType) {
+            case LONG:
+                Comparable v = tuple.getValue(ordinalsOf(tuple.getSchema())[0]);
+                if (v == null) {
+                    return LongKey.NULL_KEY;
+                }
+                if (!(v instanceof Long || v instanceof Integer || v instanceof Short || v instanceof Byte)) {
+                    throw new TupleDiffException("Key field " + fields.get(0).getName() + " is declared "
+                            + fields.get(0).getFieldClass().getName() + " but has a value of " + v.getClass(), null);
+                }
+                return new LongKey(((Number) v).longValue());
+            case ENCODED:
+                return KeyEncoder.encodeKey(tuple.getValues(), ordinalsOf(tuple.getSchema()));
+            default:
+                return new TKComparable(tuple);
+        }
+    }
+
+    private int [] ordinalsOf (Schema schema) {
+        KeyOrdinals k = keyOrdinals;
+        if (k == null || k.schema != schema) {
+            List<? extends Field> keyFields = schema.getKeyFields();
+            int [] ordinals = new int[keyFields.size()];
+            for (int i=0; i<ordinals.length; i++) {
+                ordinals[i] = schema.getOrdinal(keyFields.get(i).getName());
+            }
+            k = new KeyOrdinals(schema, ordinals);
+            keyOrdinals = k;
+        }
+        return k.ordinals;
+    }
+
+    static class KeyOrdinals {
+        final Schema schema;
+        final int [] ordinals;
+
+        KeyOrdinals(Schema schema, int[] ordinals) {
+            this.schema = schema;
+            this.ordinals = ordinals;
+        }
+    }
+
+    /**
+     * The key of a single integral key field; the null key orders first.
+     */
+    public static class LongKey implements Comparable<LongKey> {
+        static final LongKey NULL_KEY = new LongKey(0, true);
+
+        final long value;
+        final boolean isNull;
+
+        LongKey(long value) {
+            this(value, false);
+        }
+
+        private LongKey(long value, boolean isNull) {
+            this.value = value;
+            this.isNull = isNull;
+        }
+
+        @Override
+        public int compareTo(LongKey o) {
+            if (isNull || o.isNull) {
+                return isNull == o.isNull ? 0 : isNull ? -1 : 1;
+            }
+            return value < o.value ? -1 : value == o.value ? 0 : 1;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof LongKey && ((LongKey) o).value == value && ((LongKey) o).isNull == isNull;
+        }
+
+        @Override
+        public int hashCode() {
+            return isNull ? 0 : (int) (value ^ (value >>> 32));
+        }
+
+        public String toString () {
+            return isNull ? "[null]" : "[" + value + "]";
+        }
+    }
+
+    /**
+     * A key encoded by KeyEncoder, held packed into longs (see KeyEncoder.pack) so that it is compared and hashed 8
+     * bytes at a time.
+     */
+    public static class EncodedKey implements Comparable<EncodedKey> {
+        final long [] words;
+        final int length;
+        int hash;
+
+        public EncodedKey(byte[] bytes) {
+            this(KeyEncoder.pack(bytes), bytes.length);
+        }
+
+        EncodedKey(long[] words, int length) {
+            this.words = words;
+            this.length = length;
+        }
+
+        /**
+         * @return the encoding, as KeyEncoder.encode returned it.
+         */
+        public byte [] getBytes() {
+            return KeyEncoder.unpack(words, length);
+        }
+
+        @Override
+        public int compareTo(EncodedKey o) {
+            return KeyEncoder.compare(words, length, o.words, o.length);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof EncodedKey && length == ((EncodedKey) o).length
+                    && Arrays.equals(words, ((EncodedKey) o).words);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = hash;
+            if (h == 0) {
+                long h64 = KeyEncoder.hash64(words, length);
+                h = (int) (h64 ^ (h64 >>> 32));
+                hash = h;
+            }
+            return h;
+        }
+
+        public String toString () {
+            return KeyEncoder.toString(getBytes());
+        }
     }
 
     static class TKComparable implements Comparable<TKComparable> {
@@ -55,22 +266,62 @@ public class TupleStreamKey
 
         @Override
         public int compareTo(TKComparable o) {
-            int ans = 0;
-            for (int i=0; i<c.length; i++) {
-                final Comparable a = c[i];
-                final Comparable b = o.c[i];
-                if (a == null && b == null)
-                    continue;
-                else if (a==null)
-                    return -1;
-                else if (b==null)
-                    return 1;
-                else
-                    ans = a.compareTo(b);
-                if (ans !=0 )
-                    return ans;
+            return compareKeyValues(c, o.c);
+        }
+
+        /**
+         * Consistent with compareTo, so that keys can be matched through hash tables.
+         */
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TKComparable && compareKeyValues(c, ((TKComparable) o).c) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = 1;
+            for (Comparable v : c) {
+                h = 31 * h + hashKeyValue(v);
             }
-            return ans;
+            return h;
+        }
+    }
+
+    /**
+     * Hashes a key value such that values which compare equal hash equally; BigDecimals that differ only in scale
+     * (e.g. 1.0 and 1.00) compare equal but have different hashCodes.
+     */
+    static int hashKeyValue (Comparable v) {
+        if (v == null) {
+            return 0;
+        }
+        else if (v instanceof BigDecimal) {
+            BigDecimal bd = (BigDecimal) v;
+            return bd.signum() == 0 ? 0 : bd.stripTrailingZeros().hashCode();
+        }
+        return v.hashCode();
+    }
+
+    /**
+     * Compares two sets of key values (in key field order) field by field, with nulls ordered first. This is the
+     * order in which TupleStreams must emit their Tuples.
+     */
+    public static int compareKeyValues (Comparable [] c, Comparable [] d) {
+        int ans = 0;
+        for (int i=0; i<c.length; i++) {
+            final Comparable a = c[i];
+            final Comparable b = d[i];
+            if (a == null && b == null)
+                continue;
+            else if (a==null)
+                return -1;
+            else if (b==null)
+                return 1;
+            else
+                ans = a.compareTo(b);
+            if (ans !=0 )
+                return ans;
         }
+        return ans;
     }
 }
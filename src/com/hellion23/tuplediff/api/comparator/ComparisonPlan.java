@@ -0,0 +1,288 @@
+package com.hellion23.tuplediff.api.comparator;
+
+import com.hellion23.tuplediff.api.Field;
+import com.hellion23.tuplediff.api.Schema;
+import com.hellion23.tuplediff.api.Tuple;
+import com.hellion23.tuplediff.api.TupleDiffException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The field by field comparison of a pair of Tuples with equal keys, compiled once per comparison by
+ * FieldComparatorFactory.compile from the compare fields of the two Schemas and their resolved FieldComparators.
+ *
+ * Each compare field is assigned the cheapest Kind of comparison that gives the result its Comparator would, and the
+ * fields are grouped by Kind, so that findBreakFields runs one loop per Kind with a single, inlineable comparison in
+ * each rather than a Comparator interface call per field. Nothing is allocated for a pair without breaks. The Kind
+ * follows the field classes of both sides; a field whose classes the library Comparators cannot compare (e.g. a
+ * ComparableComparator between an Integer and a Long) fails the compilation.
+ *
+ * Immutable, and so shared by the partitions of a comparison.
+ *
+ * @author: Hermann Leung
+ * Date: 3/10/2015
+ */
+public final class ComparisonPlan {
+
+    public enum Kind {
+        /** String, integral, Boolean and Character fields compared by ComparableComparator: equals() agrees. */
+        EQUALS,
+        /** Other fields compared by ComparableComparator, e.g. BigDecimals, whose equals() depends on scale. */
+        COMPARE_TO,
+        /** Fields compared by a ThresholdNumberComparator. */
+        THRESHOLD,
+        /** Fields compared by any other Comparator. */
+        CUSTOM
+    }
+
+    final String [] fieldNames;
+    final int [] leftOrdinals;
+    final int [] rightOrdinals;
+    final Kind [] kinds;
+    final Comparator [] comparators;
+    final double [] thresholds;
+    final Pass all;
+    // The fields not hashed into the fingerprints; null if Tuples are not fingerprinted.
+    final Pass unfingerprinted;
+    final int [] leftFingerprintOrdinals;
+    final int [] rightFingerprintOrdinals;
+
+    /**
+     * The fields compared in one findBreakFields, as indexes into the plan's arrays, grouped by Kind.
+     */
+    static final class Pass {
+        final int [] equalsFields;
+        final int [] compareToFields;
+        final int [] thresholdFields;
+        final int [] customFields;
+
+        Pass(Kind [] kinds, List<Integer> fields) {
+            equalsFields = select(kinds, fields, Kind.EQUALS);
+            compareToFields = select(kinds, fields, Kind.COMPARE_TO);
+            thresholdFields = select(kinds, fields, Kind.THRESHOLD);
+            customFields = select(kinds, fields, Kind.CUSTOM);
+        }
+
+        private static int [] select (Kind [] kinds, List<Integer> fields, Kind kind) {
+            List<Integer> selected = new ArrayList<Integer>();
+            for (int i : fields) {
+                if (kinds[i] == kind) {
+                    selected.add(i);
+                }
+            }
+            return toArray(selected);
+        }
+    }
+
+    ComparisonPlan (Schema left, Schema right, List<FieldComparator> fieldComparators, boolean fingerprint) {
+        List<Field> fields = left.getCompareFields();
+        int size = fields.size();
+        fieldNames = new String[size];
+        leftOrdinals = new int[size];
+        rightOrdinals = new int[size];
+        kinds = new Kind[size];
+        comparators = new Comparator[size];
+        thresholds = new double[size];
+
+        List<Integer> allFields = new ArrayList<Integer>();
+        List<Integer> exact = new ArrayList<Integer>();
+        List<Integer> inexact = new ArrayList<Integer>();
+        for (int i=0; i<size; i++) {
+            Field field = fields.get(i);
+            Comparator comparator = fieldComparators.get(i).getComparator();
+            fieldNames[i] = field.getName();
+            leftOrdinals[i] = left.getOrdinal(field.getName());
+            rightOrdinals[i] = right.getOrdinal(field.getName());
+            comparators[i] = comparator;
+            kinds[i] = kindOf(field, right.getField(field.getName()), comparator);
+            if (kinds[i] == Kind.THRESHOLD) {
+                thresholds[i] = ((ThresholdNumberComparator) comparator).threshold;
+            }
+            allFields.add(i);
+            // Fields compared exactly can be hashed: equal fingerprints then mean equal values.
+            if (comparator instanceof FieldComparator.ComparableComparator) {
+                exact.add(i);
+            }
+            else {
+                inexact.add(i);
+            }
+        }
+        all = new Pass(kinds, allFields);
+        if (fingerprint && !exact.isEmpty()) {
+            unfingerprinted = new Pass(kinds, inexact);
+            leftFingerprintOrdinals = new int[exact.size()];
+            rightFingerprintOrdinals = new int[exact.size()];
+            for (int i=0; i<exact.size(); i++) {
+                leftFingerprintOrdinals[i] = leftOrdinals[exact.get(i)];
+                rightFingerprintOrdinals[i] = rightOrdinals[exact.get(i)];
+            }
+        }
+        else {
+            unfingerprinted = null;
+            leftFingerprintOrdinals = null;
+            rightFingerprintOrdinals = null;
+        }
+    }
+
+    /**
+     * Sub-classes of the library Comparators may compare differently, so only the exact classes are specialized.
+     */
+    static Kind kindOf (Field left, Field right, Comparator comparator) throws TupleDiffException {
+        Class l = left.getFieldClass();
+        Class r = right.getFieldClass();
+        if (comparator.getClass() == ThresholdNumberComparator.class) {
+            if (!Number.class.isAssignableFrom(l) || !Number.class.isAssignableFrom(r)) {
+                throw incompatible(left, right, comparator);
+            }
+            return Kind.THRESHOLD;
+        }
+        if (comparator.getClass() == FieldComparator.ComparableComparator.class) {
+            if (l == r && (l == String.class || l == Long.class || l == Integer.class || l == Short.class
+                    || l == Byte.class || l == Boolean.class || l == Character.class)) {
+                return Kind.EQUALS;
+            }
+            if (!mutuallyComparable(l, r)) {
+                throw incompatible(left, right, comparator);
+            }
+            return Kind.COMPARE_TO;
+        }
+        return Kind.CUSTOM;
+    }
+
+    /**
+     * @return whether the closest common super class of the two classes is Comparable, as for Dates and Timestamps,
+     * so that compareTo() of either accepts the other; not for e.g. Integers and Longs, which only share Number.
+     */
+    static boolean mutuallyComparable (Class l, Class r) {
+        for (Class c = l; c != null; c = c.getSuperclass()) {
+            if (c.isAssignableFrom(r)) {
+                return Comparable.class.isAssignableFrom(c);
+            }
+        }
+        return false;
+    }
+
+    private static TupleDiffException incompatible (Field left, Field right, Comparator comparator) {
+        return new TupleDiffException("Field " + left.getName() + " is a " + left.getFieldClass().getName()
+                + " on the left and a " + right.getFieldClass().getName() + " on the right, which "
+                + comparator.getClass().getSimpleName() + " cannot compare", null);
+    }
+
+    /**
+     * @return the names of the compare fields on which the Tuples differ, in compare field order, or null if none do.
+     */
+    public List<String> findBreakFields (Tuple left, Tuple right) {
+        Pass pass = unfingerprinted != null && left.getFingerprint() == right.getFingerprint() ? unfingerprinted : all;
+        Comparable [] l = left.getValues();
+        Comparable [] r = right.getValues();
+        long [] broken = null;
+
+        for (int i : pass.equalsFields) {
+            Comparable a = l[leftOrdinals[i]];
+            Comparable b = r[rightOrdinals[i]];
+            if (a == null ? b != null : !a.equals(b)) {
+                broken = mark(broken, i);
+            }
+        }
+        for (int i : pass.compareToFields) {
+            Comparable a = l[leftOrdinals[i]];
+            Comparable b = r[rightOrdinals[i]];
+            if (a == null || b == null ? a != b : a.compareTo(b) != 0) {
+                broken = mark(broken, i);
+            }
+        }
+        for (int i : pass.thresholdFields) {
+            Number a = (Number) l[leftOrdinals[i]];
+            Number b = (Number) r[rightOrdinals[i]];
+            // Equal values are within any threshold; saves converting e.g. BigDecimals to doubles.
+            if (a != null && a.equals(b)) {
+                continue;
+            }
+            double difference = (a == null ? 0 : a.doubleValue()) - (b == null ? 0 : b.doubleValue());
+            double absDiff = difference < 0 ? -difference : difference;
+            if (!(absDiff < thresholds[i]) && (difference > 0 || difference < 0)) {
+                broken = mark(broken, i);
+            }
+        }
+        for (int i : pass.customFields) {
+            if (comparators[i].compare(l[leftOrdinals[i]], r[rightOrdinals[i]]) != 0) {
+                broken = mark(broken, i);
+            }
+        }
+
+        if (broken == null) {
+            return null;
+        }
+        List<String> breakFields = new ArrayList<String>(4);
+        for (int w=0; w<broken.length; w++) {
+            for (long bits = broken[w]; bits != 0; bits &= bits - 1) {
+                breakFields.add(fieldNames[(w << 6) + Long.numberOfTrailingZeros(bits)]);
+            }
+        }
+        return breakFields;
+    }
+
+    private long [] mark (long [] broken, int i) {
+        if (broken == null) {
+            broken = new long[(fieldNames.length + 63) >>> 6];
+        }
+        broken[i >>> 6] |= 1L << i;
+        return broken;
+    }
+
+    static int [] toArray (List<Integer> list) {
+        int [] a = new int[list.size()];
+        for (int i=0; i<a.length; i++) {
+            a[i] = list.get(i);
+        }
+        return a;
+    }
+
+    /**
+     * @return the ordinals of the left Schema's fields to hash into fingerprints, or null if not fingerprinted.
+     */
+    public int [] getLeftFingerprintOrdinals() {
+        return leftFingerprintOrdinals;
+    }
+
+    public int [] getRightFingerprintOrdinals() {
+        return rightFingerprintOrdinals;
+    }
+
+    public boolean isFingerprinted() {
+        return unfingerprinted != null;
+    }
+
+    public int size () {
+        return fieldNames.length;
+    }
+
+    public String getFieldName (int i) {
+        return fieldNames[i];
+    }
+
+    public Kind getKind (int i) {
+        return kinds[i];
+    }
+
+    public Comparator getComparator (int i) {
+        return comparators[i];
+    }
+
+    /**
+     * @return the threshold of a THRESHOLD field.
+     */
+    public double getThreshold (int i) {
+        return thresholds[i];
+    }
+
+    public String toString () {
+        StringBuilder sb = new StringBuilder("ComparisonPlan[");
+        for (int i=0; i<fieldNames.length; i++) {
+            sb.append(i == 0 ? "" : ", ").append(fieldNames[i]).append(':').append(kinds[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
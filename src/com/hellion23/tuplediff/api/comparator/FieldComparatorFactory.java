@@ -2,8 +2,10 @@ package com.hellion23.tuplediff.api.comparator;
 
 
 import com.hellion23.tuplediff.api.Field;
+import com.hellion23.tuplediff.api.Schema;
 import com.hellion23.tuplediff.api.TupleDiffException;
 
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
@@ -41,6 +43,21 @@ public class FieldComparatorFactory {
        return getDefault(field);
     }
 
+    /**
+     * Resolves the FieldComparator of every compare field and compiles the comparison of Tuples of the left and
+     * right Schemas. The left Schema's compare fields are used; the right Schema must have fields of the same names.
+     * @param fco the overrides, see {@link com.hellion23.tuplediff.api.Config#setComparatorOverrides(List)}.
+     * @param fingerprint whether exactly compared fields are hashed into the Tuples' fingerprints.
+     */
+    public ComparisonPlan compile (Schema left, Schema right, List<FieldComparator> fco, boolean fingerprint) {
+        List<Field> fields = left.getCompareFields();
+        List<FieldComparator> resolved = new ArrayList<FieldComparator>(fields.size());
+        for (Field field : fields) {
+            resolved.add(resolveField(field, fco));
+        }
+        return new ComparisonPlan(left, right, resolved, fingerprint);
+    }
+
     public FieldComparator getDefault (Field field) {
         if (defaultFieldComparators != null && defaultFieldComparators.size() > 0) {
             for (FieldComparator dFC : defaultFieldComparators) {
@@ -0,0 +1,50 @@
+package com.hellion23.tuplediff.api.db;
+
+/**
+ * Decides how many rows a SqlTupleStream should fetch per round trip. After each batch the time spent fetching is
+ * weighed against the time the other party (the comparison draining the buffer) spent on it: if the consumer ended up
+ * waiting on the database the batch is doubled to amortize round trips; if fetching is cheap relative to consumption
+ * the batch is halved to keep buffered memory down. The size always stays within [min, max].
+ *
+ * @author: Hermann Leung
+ * Date: 2/2/2015
+ */
+public class AdaptiveBatchSizer {
+    final int min;
+    final int max;
+    int current;
+
+    public AdaptiveBatchSizer(int initial, int min, int max) {
+        assert (min > 0 && min <= max);
+        this.min = min;
+        this.max = max;
+        this.current = Math.max(min, Math.min(max, initial));
+    }
+
+    /**
+     * @param fetchNanos time spent reading the last batch from the ResultSet.
+     * @param consumeNanos time the consumer spent on the last batch (draining it, or keeping the producer blocked).
+     * @return the batch size to use for the next batch.
+     */
+    public int adjust (long fetchNanos, long consumeNanos) {
+        if (fetchNanos > consumeNanos) {
+            current = Math.min(max, current * 2);
+        }
+        else if (fetchNanos * 4 < consumeNanos) {
+            current = Math.max(min, current / 2);
+        }
+        return current;
+    }
+
+    public int getCurrent() {
+        return current;
+    }
+
+    public int getMin() {
+        return min;
+    }
+
+    public int getMax() {
+        return max;
+    }
+}
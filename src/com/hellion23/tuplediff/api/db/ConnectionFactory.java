@@ -0,0 +1,15 @@
+package com.hellion23.tuplediff.api.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Supplies new JDBC Connections to the same database. SqlTupleStreams use it when they need sessions in addition to
+ * the one they were created with, e.g. to read several key ranges of the same query concurrently.
+ *
+ * @author: Hermann Leung
+ * Date: 2/9/2015
+ */
+public interface ConnectionFactory {
+    public Connection createConnection() throws SQLException;
+}
@@ -0,0 +1,375 @@
+package com.hellion23.tuplediff.api.db;
+
+import com.hellion23.tuplediff.api.*;
+import com.hellion23.tuplediff.api.listener.AsyncCompareEventListener;
+import com.hellion23.tuplediff.api.listener.CompareEventListener;
+import com.hellion23.tuplediff.api.monitor.Monitor;
+import com.hellion23.tuplediff.api.monitor.Monitorable;
+
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Writes CompareEvents into a database table, one row per event, using JDBC batches of batchSize rows and committing
+ * once at least commitInterval rows have been written since the last commit. Remaining rows are written and committed
+ * on close(), which TupleComparison calls when the comparison ends.
+ *
+ * The table has the columns COMPARISON_NAME, one column per key field (named after the field), BREAK_TYPE,
+ * BREAK_FIELDS (a comma separated list), LEFT_VALUES and RIGHT_VALUES. The values columns hold "FIELD=value" pairs of
+ * the break fields, or of all compare fields for one-sided breaks, cut to maxValueLength characters. With createTable
+ * set the table is created, if it does not exist, when the first event arrives; key column types follow the key
+ * fields' classes.
+ *
+ * The listener keeps no events in memory, so getCompareEvents() is always empty. Inserts run on the comparison thread
+ * unless the listener is wrapped with onWriterThread().
+ *
+ * @author: Hermann Leung
+ * Date: 3/6/2015
+ */
+public class JdbcCompareEventListener implements CompareEventListener<Collection<CompareEvent>>, Monitorable {
+    private static final Logger logger = Logger.getLogger(JdbcCompareEventListener.class.getName());
+    public static final String COMPARISON_NAME = "COMPARISON_NAME";
+    public static final String BREAK_TYPE = "BREAK_TYPE";
+    public static final String BREAK_FIELDS = "BREAK_FIELDS";
+    public static final String LEFT_VALUES = "LEFT_VALUES";
+    public static final String RIGHT_VALUES = "RIGHT_VALUES";
+
+    final ConnectionFactory connectionFactory;
+    final String table;
+    Connection connection;
+    boolean ownConnection;
+    PreparedStatement stmt;
+    String name;
+    String comparisonName;
+    Monitor monitor;
+    int batchSize = 1000;
+    int commitInterval = 10000;
+    int maxValueLength = 4000;
+    boolean createTable = false;
+    List<? extends Field> keyFields;
+    int [] keyTypes;
+    int batched = 0;
+    long uncommitted = 0;
+    long written = 0;
+    long batches = 0;
+    long commits = 0;
+
+    /**
+     * Writes over a connection opened from the ConnectionFactory in init() and closed by close().
+     */
+    public JdbcCompareEventListener(ConnectionFactory connectionFactory, String table) {
+        this.connectionFactory = connectionFactory;
+        this.table = table;
+    }
+
+    /**
+     * Writes over the given connection, which is committed but left open. Its auto-commit is switched off.
+     */
+    public JdbcCompareEventListener(Connection connection, String table) {
+        this.connectionFactory = null;
+        this.connection = connection;
+        this.table = table;
+    }
+
+    @Override
+    public void init(Config config) {
+        comparisonName = config == null ? null : config.getName();
+        try {
+            if (connection == null) {
+                connection = connectionFactory.createConnection();
+                ownConnection = true;
+            }
+            connection.setAutoCommit(false);
+        }
+        catch (SQLException e) {
+            throw new TupleDiffException("Could not connect to write breaks to " + table + ": " + e.getMessage(),
+                    this, e);
+        }
+    }
+
+    @Override
+    public synchronized void handleCompareEvent(CompareEvent compareEvent) {
+        Tuple tuple = compareEvent.getLeftTuple() != null ? compareEvent.getLeftTuple() : compareEvent.getRightTuple();
+        try {
+            if (stmt == null) {
+                prepare(tuple.getSchema());
+            }
+            int i = 1;
+            stmt.setString(i++, comparisonName);
+            for (int k=0; k<keyFields.size(); k++) {
+                Comparable value = tuple.getValue(keyFields.get(k).getName());
+                if (value == null) {
+                    stmt.setNull(i++, keyTypes[k]);
+                }
+                else {
+                    stmt.setObject(i++, value);
+                }
+            }
+            stmt.setString(i++, compareEvent.getType().name());
+            List<String> breakFields = compareEvent.getBreakFields();
+            stmt.setString(i++, breakFields == null ? null : truncate(join(breakFields)));
+            stmt.setString(i++, values(compareEvent.getLeftTuple(), breakFields));
+            stmt.setString(i, values(compareEvent.getRightTuple(), breakFields));
+            stmt.addBatch();
+            if (++batched >= batchSize) {
+                flush(false);
+            }
+        }
+        catch (SQLException e) {
+            throw error("Could not write break to " + table, e);
+        }
+    }
+
+    private void prepare (Schema<?> schema) throws SQLException {
+        keyFields = schema.getKeyFields();
+        keyTypes = new int[keyFields.size()];
+        for (int k=0; k<keyTypes.length; k++) {
+            Field f = keyFields.get(k);
+            keyTypes[k] = f instanceof SqlField ? ((SqlField) f).getColumnType() : sqlType(f.getFieldClass());
+        }
+        if (createTable) {
+            createTableIfMissing();
+        }
+        StringBuilder columns = new StringBuilder(COMPARISON_NAME);
+        StringBuilder params = new StringBuilder("?");
+        for (Field f : keyFields) {
+            columns.append(", ").append(f.getName());
+            params.append(", ?");
+        }
+        columns.append(", ").append(BREAK_TYPE).append(", ").append(BREAK_FIELDS).append(", ")
+                .append(LEFT_VALUES).append(", ").append(RIGHT_VALUES);
+        params.append(", ?, ?, ?, ?");
+        String sql = "insert into " + table + " (" + columns + ") values (" + params + ")";
+        logger.info(getName() + " writing breaks with " + sql);
+        stmt = connection.prepareStatement(sql);
+    }
+
+    private void createTableIfMissing () throws SQLException {
+        DatabaseMetaData md = connection.getMetaData();
+        String [] names = new String[] {table, table.toUpperCase(), table.toLowerCase()};
+        for (String n : names) {
+            ResultSet rs = md.getTables(null, null, n, null);
+            try {
+                if (rs.next()) {
+                    return;
+                }
+            }
+            finally {
+                rs.close();
+            }
+        }
+        StringBuilder ddl = new StringBuilder("create table ").append(table).append(" (")
+                .append(COMPARISON_NAME).append(" varchar(255)");
+        for (int k=0; k<keyFields.size(); k++) {
+            ddl.append(", ").append(keyFields.get(k).getName()).append(' ')
+                    .append(columnDefinition(keyFields.get(k).getFieldClass()));
+        }
+        ddl.append(", ").append(BREAK_TYPE).append(" varchar(20), ")
+                .append(BREAK_FIELDS).append(" varchar(").append(maxValueLength).append("), ")
+                .append(LEFT_VALUES).append(" varchar(").append(maxValueLength).append("), ")
+                .append(RIGHT_VALUES).append(" varchar(").append(maxValueLength).append("))");
+        logger.info(getName() + " creating break table: " + ddl);
+        Statement s = connection.createStatement();
+        try {
+            s.execute(ddl.toString());
+        }
+        finally {
+            s.close();
+        }
+        connection.commit();
+    }
+
+    static int sqlType (Class<?> fieldClass) {
+        if (fieldClass == Integer.class || fieldClass == Short.class) return Types.INTEGER;
+        if (fieldClass == Long.class) return Types.BIGINT;
+        if (fieldClass == BigDecimal.class) return Types.DECIMAL;
+        if (fieldClass == Double.class || fieldClass == Float.class) return Types.DOUBLE;
+        if (fieldClass == java.sql.Date.class) return Types.DATE;
+        if (fieldClass == Timestamp.class || fieldClass == java.util.Date.class) return Types.TIMESTAMP;
+        return Types.VARCHAR;
+    }
+
+    static String columnDefinition (Class<?> fieldClass) {
+        switch (sqlType(fieldClass)) {
+            case Types.INTEGER: return "integer";
+            case Types.BIGINT: return "bigint";
+            case Types.DECIMAL: return "decimal(31, 8)";
+            case Types.DOUBLE: return "double precision";
+            case Types.DATE: return "date";
+            case Types.TIMESTAMP: return "timestamp";
+            default: return "varchar(255)";
+        }
+    }
+
+    /**
+     * "FIELD=value" pairs of the break fields or, without break fields, of all compare fields of the Tuple.
+     */
+    private String values (Tuple tuple, List<String> breakFields) {
+        if (tuple == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        if (breakFields != null && !breakFields.isEmpty()) {
+            for (String f : breakFields) {
+                sb.append(sb.length() == 0 ? "" : ", ").append(f).append('=').append(tuple.getValue(f));
+            }
+        }
+        else {
+            for (Object o : tuple.getSchema().getCompareFields()) {
+                Field f = (Field) o;
+                sb.append(sb.length() == 0 ? "" : ", ").append(f.getName()).append('=')
+                        .append(tuple.getValue(f.getName()));
+            }
+        }
+        return truncate(sb.toString());
+    }
+
+    private static String join (List<String> strings) {
+        StringBuilder sb = new StringBuilder();
+        for (String s : strings) {
+            sb.append(sb.length() == 0 ? "" : ",").append(s);
+        }
+        return sb.toString();
+    }
+
+    private String truncate (String s) {
+        return s.length() > maxValueLength ? s.substring(0, maxValueLength) : s;
+    }
+
+    /**
+     * Executes the pending batch, committing when commitInterval rows are uncommitted or when forced.
+     */
+    private void flush (boolean commit) throws SQLException {
+        if (batched > 0) {
+            stmt.executeBatch();
+            written += batched;
+            uncommitted += batched;
+            batches++;
+            batched = 0;
+        }
+        if (uncommitted > 0 && (commit || uncommitted >= commitInterval)) {
+            connection.commit();
+            uncommitted = 0;
+            commits++;
+        }
+    }
+
+    private TupleDiffException error (String message, SQLException e) {
+        SQLException cause = e instanceof BatchUpdateException && e.getNextException() != null
+                ? e.getNextException() : e;
+        return new TupleDiffException(message + ": " + cause.getMessage(), this, e);
+    }
+
+    /**
+     * Writes and commits the remaining rows and closes the statement, and the connection if this listener opened it.
+     */
+    @Override
+    public synchronized void close() {
+        if (connection == null) {
+            return;
+        }
+        try {
+            if (stmt != null) {
+                flush(true);
+                stmt.close();
+                stmt = null;
+            }
+        }
+        catch (SQLException e) {
+            throw error("Could not write breaks to " + table, e);
+        }
+        finally {
+            if (ownConnection) {
+                try {
+                    connection.close();
+                }
+                catch (SQLException e) {
+                    logger.warning("Could not close connection of " + getName() + ": " + e.getMessage());
+                }
+                connection = null;
+            }
+        }
+        logger.info(getName() + " wrote " + written + " breaks to " + table + " in " + batches + " batches");
+        if (monitor != null) {
+            monitor.reportEvent(this, Monitor.EVENT_STATS_ATTRIBUTE, "rowsWritten", written);
+            monitor.reportEvent(this, Monitor.EVENT_STATS_ATTRIBUTE, "batches", batches);
+            monitor.reportEvent(this, Monitor.EVENT_STATS_ATTRIBUTE, "commits", commits);
+        }
+    }
+
+    /**
+     * @return an AsyncCompareEventListener running this listener's inserts on its own writer thread.
+     */
+    public AsyncCompareEventListener<Collection<CompareEvent>> onWriterThread () {
+        AsyncCompareEventListener<Collection<CompareEvent>> async =
+                new AsyncCompareEventListener<Collection<CompareEvent>>(this);
+        async.setRingSize(Math.max(batchSize * 2, 1024));
+        async.setWaitStrategy(AsyncCompareEventListener.WaitStrategy.BLOCKING);
+        return async;
+    }
+
+    @Override
+    public Collection<CompareEvent> getCompareEvents() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void setMonitor(Monitor monitor) {
+        this.monitor = monitor;
+    }
+
+    @Override
+    public String getName() {
+        return name == null ? "JdbcCompareEventListener <" + table + ">" : name;
+    }
+
+    @Override
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getCommitInterval() {
+        return commitInterval;
+    }
+
+    /**
+     * The number of rows written between commits; commits happen at batch boundaries.
+     */
+    public void setCommitInterval(int commitInterval) {
+        this.commitInterval = commitInterval;
+    }
+
+    public int getMaxValueLength() {
+        return maxValueLength;
+    }
+
+    public void setMaxValueLength(int maxValueLength) {
+        this.maxValueLength = maxValueLength;
+    }
+
+    public boolean isCreateTable() {
+        return createTable;
+    }
+
+    public void setCreateTable(boolean createTable) {
+        this.createTable = createTable;
+    }
+
+    public synchronized long getWritten() {
+        return written;
+    }
+}
@@ -0,0 +1,100 @@
+package com.hellion23.tuplediff.api.db;
+
+import java.math.BigDecimal;
+
+/**
+ * A bucket of rows selected by a hash of their key, computed by the database (see
+ * SqlTupleStream.hashNumberExpression): the rows whose key hash modulo divisor equals path. The root bucket holds
+ * all rows; the fanout children of a bucket split it by the next base-fanout digit of the key hash, so a bucket at
+ * depth d has divisor fanout^d.
+ *
+ * @author: Hermann Leung
+ * Date: 2/24/2015
+ */
+public class KeyHashBucket {
+    /**
+     * Key hashes are 48 bit non-negative numbers; buckets can be split until their divisor reaches this.
+     */
+    public static final long MAX_DIVISOR = 1L << 48;
+
+    final int depth;
+    final long path;
+    final long divisor;
+
+    public KeyHashBucket(int depth, long path, long divisor) {
+        this.depth = depth;
+        this.path = path;
+        this.divisor = divisor;
+    }
+
+    public static KeyHashBucket root () {
+        return new KeyHashBucket(0, 0, 1);
+    }
+
+    /**
+     * @return the index-th of the fanout children of this bucket.
+     */
+    public KeyHashBucket child (int index, int fanout) {
+        return new KeyHashBucket(depth + 1, path + index * divisor, divisor * fanout);
+    }
+
+    public boolean canSplit (int fanout) {
+        return divisor * fanout <= MAX_DIVISOR;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public long getPath() {
+        return path;
+    }
+
+    public long getDivisor() {
+        return divisor;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + path + " mod " + divisor + "]";
+    }
+
+    /**
+     * The number of rows of a bucket and the sum of their row hashes. Buckets with equal Checksums are taken to hold
+     * the same rows.
+     */
+    public static class Checksum {
+        final long count;
+        final BigDecimal hashSum;
+
+        public Checksum(long count, BigDecimal hashSum) {
+            this.count = count;
+            this.hashSum = hashSum;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public BigDecimal getHashSum() {
+            return hashSum;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Checksum)) return false;
+            Checksum c = (Checksum) o;
+            return count == c.count && (hashSum == null ? c.hashSum == null : hashSum.compareTo(c.hashSum) == 0);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (count ^ (count >>> 32));
+        }
+
+        @Override
+        public String toString() {
+            return count + " rows, hash sum " + hashSum;
+        }
+    }
+}
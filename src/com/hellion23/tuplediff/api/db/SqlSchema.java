@@ -5,7 +5,6 @@ import com.hellion23.tuplediff.api.TupleStreamKey;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 
 /**
  * Created by margaret on 9/30/2014.
@@ -23,10 +22,7 @@ public class SqlSchema extends Schema <SqlField> {
         this.keyFields = new ArrayList<SqlField> (keyFields);
         this.tupleStreamKey = tupleStreamKey;
         this.strict = false;
-        allFieldMap = new HashMap<String, SqlField>();
-        for (SqlField f : allFields) {
-            allFieldMap.put(f.getName(), f);
-        }
+        indexFields();
     }
 
     public String getVendor() {
@@ -1,36 +1,95 @@
 package com.hellion23.tuplediff.api.db;
 
 import com.hellion23.tuplediff.api.*;
+import com.hellion23.tuplediff.api.monitor.ManagedMonitor;
 import com.hellion23.tuplediff.api.monitor.Monitor;
+import com.hellion23.tuplediff.api.monitor.Monitorable;
+import com.hellion23.tuplediff.api.monitor.StreamMetrics;
 
 import java.io.Serializable;
 import java.sql.*;
 import java.util.*;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
  * Created by margaret on 9/30/2014.
+ *
+ * By default rows are read from the ResultSet on the caller's thread, bufferSize rows at a time, whenever the buffer
+ * runs dry. When prefetch is enabled, open() starts a producer thread that keeps a bounded buffer of
+ * prefetchCapacity Tuples filled, so the JDBC round trips of this stream overlap with the comparison (and with the
+ * other stream). Exceptions raised by the producer are re-thrown as TupleDiffExceptions from hasNext()/getNext().
+ *
+ * The query runs on a forward-only, read-only cursor. If disableAutoCommit is set, auto-commit is switched off before
+ * the query runs, since some drivers (e.g. PostgreSQL) otherwise materialize the whole result set instead of streaming
+ * it, and switched back on when the stream is closed. The number of rows fetched per round trip is fetchSize (or
+ * bufferSize if unset) and, if adaptive batch sizing is on, is adjusted between minBatchSize and maxBatchSize by an
+ * AdaptiveBatchSizer. The values in effect are
+ * reported to the Monitor as Stats attributes of this stream.
+ *
+ * The stream can be restricted to KeyRanges, in which case the query is wrapped as
+ * "select * from (sql) TD_BASE where ..." with the range predicates bound as parameters. Given a ConnectionFactory it
+ * can also split itself into partitions that each read one KeyRange over their own connection.
+ *
+ * For ChecksumTupleComparison a stream creates a narrow checksum stream (see createChecksumStream) emitting only the
+ * key columns and a hash of the compare columns, computed by the database where the vendor sub-class provides a row
+ * hash expression. Full rows are then looked up for selected keys only, with fetchByKeys().
+ *
+ * Vendors with a hashNumberExpression also support MerkleTupleComparison: checksumBuckets() aggregates row hashes per
+ * KeyHashBucket in the database, and createBucketPartition() restricts a stream to a set of KeyHashBuckets.
  */
-public class SqlTupleStream implements TupleStream {
+public class SqlTupleStream implements PartitionableTupleStream, Monitorable {
 
     private static final Logger logger = Logger.getLogger(TupleComparison.class.getName());
+    static final long PREFETCH_POLL_MILLIS = 100;
+    static final String BASE_ALIAS = "TD_BASE";
+    public static final String ROW_HASH_FIELD = "TD_ROW_HASH";
     String name;
-    boolean stopped = false;
+    volatile boolean stopped = false;
+    volatile boolean queryStarted = false;
     Connection connection;
+    ConnectionFactory connectionFactory;
     PreparedStatement stmt;
     ResultSet rs;
     String baseSql;
     String runSql;
+    List<Object> runSqlParams;
+    List<KeyRange> keyRanges = new ArrayList<KeyRange>();
+    List<KeyHashBucket> keyHashBuckets = new ArrayList<KeyHashBucket>();
     SqlSchema sqlSchema;
     TupleStreamKey tupleStreamKey;
     String [] primaryKeys;
     String [] includeFieldNames;
     String [] excludeFieldNames;
     int bufferSize = 50;
-    LinkedBlockingQueue <Tuple> buffer = new LinkedBlockingQueue<Tuple>();
+    int fetchSize = 0;
+    boolean adaptiveBatchSize = false;
+    int minBatchSize = 50;
+    int maxBatchSize = 10000;
+    boolean disableAutoCommit = false;
+    boolean autoCommitDisabled = false;
+    AdaptiveBatchSizer batchSizer;
+    long lastFetchEnd;
+    Monitor monitor;
+    StreamMetrics streamMetrics;
+    boolean prefetch = false;
+    int prefetchCapacity = 1000;
+    BlockingQueue <Tuple> buffer;
+    Tuple next;
+    Thread prefetchThread;
+    volatile boolean prefetchDone = false;
+    volatile Exception prefetchException;
     List <SqlField> allFields;
     boolean initialized = false;
+    boolean ordered = true;
+    // Set on checksum streams only: the stream whose rows are hashed, whether they are hashed in Java rather than by
+    // the database, and the hashed fields of the source's Schema in name order.
+    SqlTupleStream checksumSource;
+    boolean javaRowHash;
+    List<SqlField> rowHashFields;
+    boolean sharedConnection = false;
 
     public static SqlTupleStream create (Connection connection, String sql, String primaryKeys[]) {
         try {
@@ -42,6 +101,9 @@ public class SqlTupleStream implements TupleStream {
                 case "Microsoft SQL Server":
                     ts = new SQLServerTupleStream(connection, sql, primaryKeys);
                     break;
+                case "PostgreSQL":
+                    ts = new PostgreSQLTupleStream(connection, sql, primaryKeys);
+                    break;
                 default:
                     ts = new SqlTupleStream(connection, sql, primaryKeys);
                     break;
@@ -53,7 +115,22 @@ public class SqlTupleStream implements TupleStream {
         }
     }
 
-    private SqlTupleStream ( Connection connection, String sql, String [] primaryKeys ) {
+    /**
+     * Creates a SqlTupleStream reading from a connection obtained from the connectionFactory, which the stream keeps
+     * to open additional connections (e.g. for partitions).
+     */
+    public static SqlTupleStream create (ConnectionFactory connectionFactory, String sql, String primaryKeys[]) {
+        try {
+            SqlTupleStream ts = create(connectionFactory.createConnection(), sql, primaryKeys);
+            ts.setConnectionFactory(connectionFactory);
+            return ts;
+        }
+        catch (SQLException ex) {
+            throw new RuntimeException ("Error creating SQLTupleStream", ex);
+        }
+    }
+
+    protected SqlTupleStream ( Connection connection, String sql, String [] primaryKeys ) {
         assert (connection != null);
         assert (sql != null);
         assert (primaryKeys != null && primaryKeys.length > 0);
@@ -80,7 +157,25 @@ public class SqlTupleStream implements TupleStream {
                 sqlSchema = createSchemaFor();
             }
             runSql = initQuerySql();
-            stmt = connection.prepareStatement(runSql);
+            if (disableAutoCommit && connection.getAutoCommit()) {
+                connection.setAutoCommit(false);
+                autoCommitDisabled = true;
+            }
+            stmt = connection.prepareStatement(runSql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            bindParameters(stmt, runSqlParams);
+            int initialFetchSize = fetchSize > 0 ? fetchSize : bufferSize;
+            if (adaptiveBatchSize) {
+                batchSizer = new AdaptiveBatchSizer(initialFetchSize, minBatchSize, maxBatchSize);
+                initialFetchSize = batchSizer.getCurrent();
+                bufferSize = initialFetchSize;
+            }
+            stmt.setFetchSize(initialFetchSize);
+            reportAttribute("fetchSize", initialFetchSize);
+            reportAttribute("cursor", "TYPE_FORWARD_ONLY, CONCUR_READ_ONLY");
+            reportAttribute("autoCommit", connection.getAutoCommit());
+            if (batchSizer != null) {
+                reportAttribute("batchSizeRange", "[" + minBatchSize + ", " + maxBatchSize + "]");
+            }
             initialized = true;
 //            monitor.handleEvent(this, STATE.RUNNING, "INIT_END");
         }
@@ -189,9 +284,536 @@ public class SqlTupleStream implements TupleStream {
     }
 
     protected String initQuerySql () {
-        StringBuilder orderBy = new StringBuilder("\norder by ");
-        constructOrderByClause(orderBy, sqlSchema.getKeyFields());
-        return baseSql + orderBy ;
+        runSqlParams = new ArrayList<Object>();
+        StringBuilder sql = new StringBuilder();
+        if (checksumSource != null && !javaRowHash) {
+            List<SqlField> keyFields = sqlSchema.getKeyFields();
+            sql.append("select ");
+            for (SqlField key : keyFields) {
+                sql.append(key.getColumnName()).append(", ");
+            }
+            sql.append(rowHashExpression(rowHashFields)).append(" as ").append(ROW_HASH_FIELD);
+            sql.append("\nfrom (").append(baseSql).append(") ").append(BASE_ALIAS);
+            constructWhereClause(sql, runSqlParams);
+        }
+        else if (keyRanges.isEmpty() && keyHashBuckets.isEmpty()) {
+            sql.append(baseSql);
+        }
+        else {
+            sql.append("select * from (").append(baseSql).append(") ").append(BASE_ALIAS);
+            constructWhereClause(sql, runSqlParams);
+        }
+        if (ordered) {
+            StringBuilder orderBy = new StringBuilder("\norder by ");
+            constructOrderByClause(orderBy, sqlSchema.getKeyFields());
+            sql.append(orderBy);
+        }
+        return sql.toString() ;
+    }
+
+    /**
+     * Appends "where" and the predicates restricting the query to all of this stream's KeyRanges and KeyHashBuckets,
+     * if there are any. Values are appended to params in the order of the placeholders.
+     * @return whether anything was appended.
+     */
+    protected boolean constructWhereClause (StringBuilder sb, List<Object> params) {
+        List<SqlField> keyFields = sqlSchema.getKeyFields();
+        String conjunction = "\nwhere ";
+        if (!keyHashBuckets.isEmpty()) {
+            sb.append(conjunction);
+            constructBucketPredicate(sb, keyHashBuckets);
+            conjunction = "\nand ";
+        }
+        for (KeyRange range : keyRanges) {
+            if (range.getLower() != null) {
+                sb.append(conjunction);
+                constructBoundPredicate(sb, params, keyFields, range.getLower(), false, range.isLowerInclusive());
+                conjunction = "\nand ";
+            }
+            if (range.getUpper() != null) {
+                sb.append(conjunction);
+                constructBoundPredicate(sb, params, keyFields, range.getUpper(), true, range.isUpperInclusive());
+                conjunction = "\nand ";
+            }
+        }
+        return !conjunction.startsWith("\nwhere");
+    }
+
+    /**
+     * Appends the predicate selecting the rows of any of the buckets: (mod(keyhash, d1) = p1 or ...)
+     */
+    protected void constructBucketPredicate (StringBuilder sb, List<KeyHashBucket> buckets) {
+        String keyHash = hashNumberExpression(sqlSchema.getKeyFields());
+        sb.append("(");
+        for (int i=0; i<buckets.size(); i++) {
+            if (i > 0) sb.append(" or ");
+            KeyHashBucket bucket = buckets.get(i);
+            sb.append(bucketExpression(keyHash, 1, bucket.getDivisor())).append(" = ").append(bucket.getPath());
+        }
+        sb.append(")");
+    }
+
+    /**
+     * Appends the predicate selecting the keys above (or below if upper is true) the bound, comparing the key
+     * columns lexicographically with nulls first:
+     * (k1 > ?) or (k1 = ? and k2 > ?) or ... or (k1 = ? and ... and kn >= ?)
+     */
+    protected void constructBoundPredicate (StringBuilder sb, List<Object> params, List<SqlField> keyFields,
+                                            Comparable [] bound, boolean upper, boolean inclusive) {
+        sb.append("(");
+        for (int i=0; i<keyFields.size(); i++) {
+            if (i > 0) sb.append(" or ");
+            sb.append("(");
+            for (int j=0; j<i; j++) {
+                constructComparison(sb, params, keyFields.get(j), "=", bound[j]);
+                sb.append(" and ");
+            }
+            String op = upper ? "<" : ">";
+            if (inclusive && i == keyFields.size() - 1) op += "=";
+            constructComparison(sb, params, keyFields.get(i), op, bound[i]);
+            sb.append(")");
+        }
+        sb.append(")");
+    }
+
+    /**
+     * Appends "column op value", treating SQL nulls as ordered before all values like TupleStreamKey does.
+     */
+    protected void constructComparison (StringBuilder sb, List<Object> params, SqlField field, String op,
+                                        Comparable value) {
+        String column = keyColumnExpression(field);
+        if (value == null) {
+            switch (op) {
+                case "=":
+                case "<=":
+                    sb.append(column).append(" is null");
+                    break;
+                case ">":
+                    sb.append(column).append(" is not null");
+                    break;
+                case ">=":
+                    sb.append("1=1");
+                    break;
+                default:
+                    sb.append("1=0");
+                    break;
+            }
+        }
+        else if (op.startsWith("<")) {
+            sb.append("(").append(column).append(" is null or ");
+            sb.append(column).append(' ').append(op).append(' ').append(keyParameterExpression(field)).append(")");
+            params.add(value);
+        }
+        else {
+            sb.append(column).append(' ').append(op).append(' ').append(keyParameterExpression(field));
+            params.add(value);
+        }
+    }
+
+    /**
+     * Appends "column = ?" (or "column is null") on the bare column, so that lookups by key can use the primary key
+     * index. Where keyColumnExpression wraps a string column (e.g. in a binary collation), the wrapped comparison is added
+     * as a residual predicate on the rows found through the index, so that keys equal only under the column's own
+     * collation (e.g. a case insensitive one) do not match.
+     */
+    protected void constructKeyEquality (StringBuilder sb, List<Object> params, SqlField field, Comparable value) {
+        if (value == null) {
+            sb.append(field.getColumnName()).append(" is null");
+            return;
+        }
+        sb.append(field.getColumnName()).append(" = ?");
+        params.add(value);
+        String column = keyColumnExpression(field);
+        if (String.class.equals(field.getFieldClass()) && !column.equals(field.getColumnName())) {
+            sb.append(" and ").append(column).append(" = ").append(keyParameterExpression(field));
+            params.add(value);
+        }
+    }
+
+    /**
+     * The expression used for a key column in range predicates. Should be overridden by specific db implementations
+     * whose order by clause sorts the column differently from its default comparison.
+     */
+    protected String keyColumnExpression (SqlField field) {
+        return field.getColumnName();
+    }
+
+    /**
+     * The placeholder expression compared against keyColumnExpression(field).
+     */
+    protected String keyParameterExpression (SqlField field) {
+        return "?";
+    }
+
+    /**
+     * The SQL expression hashing the given columns of a row, or null if the database has none (the default), in which
+     * case checksum streams hash rows in Java. The columns are referenced as columns of the TD_BASE sub-query.
+     * Implementations must distinguish nulls from values and must not lose precision when converting values to text,
+     * as rows whose hashes are equal are taken to be equal.
+     */
+    protected String rowHashExpression (List<SqlField> fields) {
+        return null;
+    }
+
+    public boolean isRowHashSupported () {
+        return rowHashExpression(Collections.<SqlField>emptyList()) != null;
+    }
+
+    /**
+     * An SQL expression hashing the given columns (like rowHashExpression) to a non-negative integer below
+     * KeyHashBucket.MAX_DIVISOR, or null if the database has none (the default).
+     */
+    protected String hashNumberExpression (List<SqlField> fields) {
+        return null;
+    }
+
+    public boolean isKeyHashBucketSupported () {
+        return hashNumberExpression(Collections.<SqlField>emptyList()) != null;
+    }
+
+    /**
+     * The SQL expression for floor(hash / divisor) mod modulus, for a non-negative integer hash.
+     */
+    protected String bucketExpression (String hash, long divisor, long modulus) {
+        return "mod(floor((" + hash + ") / " + divisor + "), " + modulus + ")";
+    }
+
+    /**
+     * The SQL aggregate summing an integer expression, without overflowing.
+     */
+    protected String sumExpression (String expression) {
+        return "sum(" + expression + ")";
+    }
+
+    /**
+     * Splits the given buckets (all of the same depth) into their fanout children and aggregates, in a single query,
+     * the number of rows and the sum of the row hashes of every child bucket (within this stream's KeyRanges). Rows
+     * are hashed with their keys (see checksumFields), so values swapped between the keys of a bucket change its sum.
+     * @return the Checksums of the non-empty child buckets by path.
+     */
+    public Map<Long, KeyHashBucket.Checksum> checksumBuckets (List<KeyHashBucket> parents, int fanout) {
+        SqlSchema schema = (SqlSchema) getSchema();
+        long childDivisor = parents.get(0).getDivisor() * fanout;
+        String keyHash = hashNumberExpression(schema.getKeyFields());
+        String rowHash = hashNumberExpression(checksumFields());
+        String bucket = bucketExpression(keyHash, 1, childDivisor);
+        List<Object> params = new ArrayList<Object>();
+        StringBuilder sql = new StringBuilder("select ").append(bucket).append(", count(*), ")
+                .append(sumExpression(rowHash))
+                .append("\nfrom (").append(baseSql).append(") ").append(BASE_ALIAS);
+        boolean restricted = constructWhereClause(sql, params);
+        if (parents.get(0).getDepth() > 0) {
+            sql.append(restricted ? "\nand " : "\nwhere ");
+            constructBucketPredicate(sql, parents);
+        }
+        sql.append("\ngroup by ").append(bucket);
+
+        Map<Long, KeyHashBucket.Checksum> checksums = new HashMap<Long, KeyHashBucket.Checksum>();
+        PreparedStatement bucketStmt = null;
+        try {
+            bucketStmt = connection.prepareStatement(sql.toString(),
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            bindParameters(bucketStmt, params);
+            ResultSet buckets = bucketStmt.executeQuery();
+            while (buckets.next()) {
+                checksums.put(buckets.getLong(1), new KeyHashBucket.Checksum(buckets.getLong(2),
+                        buckets.getBigDecimal(3)));
+            }
+            buckets.close();
+        }
+        catch (SQLException e) {
+            throw new TupleDiffException("Could not aggregate bucket checksums of " + getName() + ": "
+                    + e.getMessage(), this, e);
+        }
+        finally {
+            if (bucketStmt != null) {
+                try {bucketStmt.close();} catch (SQLException e) {}
+            }
+        }
+        return checksums;
+    }
+
+    /**
+     * Creates an un-opened stream over the same query and KeyRanges, restricted to the rows in any of the buckets.
+     * The stream reads from a new connection obtained from the ConnectionFactory if there is one, and otherwise
+     * shares this stream's connection, in which case it must not be read while this stream is in use.
+     */
+    public SqlTupleStream createBucketPartition (List<KeyHashBucket> buckets) {
+        SqlTupleStream partition = connectionFactory == null ? share() : copy();
+        partition.keyHashBuckets.addAll(buckets);
+        partition.setName(getName() + " " + buckets.size() + " buckets");
+        return partition;
+    }
+
+    /**
+     * @return the compare fields in name order, the order in which rows are hashed.
+     */
+    protected List<SqlField> sortedCompareFields () {
+        List<SqlField> fields = new ArrayList<SqlField>(((SqlSchema) getSchema()).getCompareFields());
+        Collections.sort(fields, new Comparator<SqlField>() {
+            @Override
+            public int compare(SqlField f1, SqlField f2) {
+                return f1.getName().compareTo(f2.getName());
+            }
+        });
+        return fields;
+    }
+
+    /**
+     * @return the key fields followed by the compare fields in name order, the fields hashed into bucket checksums.
+     */
+    protected List<SqlField> checksumFields () {
+        List<SqlField> fields = new ArrayList<SqlField>(((SqlSchema) getSchema()).getKeyFields());
+        fields.addAll(sortedCompareFields());
+        return fields;
+    }
+
+    /**
+     * Converts the value of the row hash column to a String; binary hashes are hex encoded.
+     */
+    protected static String rowHashValue (Object o) {
+        if (o instanceof byte[]) {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : (byte[]) o) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        }
+        return o == null ? null : o.toString();
+    }
+
+    protected static void bindParameters (PreparedStatement stmt, List<Object> params) throws SQLException {
+        for (int i=0; params != null && i<params.size(); i++) {
+            stmt.setObject(i + 1, params.get(i));
+        }
+    }
+
+    /**
+     * Samples the keys of the query (within this stream's KeyRanges) by reading only the key columns and keeping a
+     * uniform reservoir sample of them.
+     */
+    @Override
+    public List<Comparable []> sampleKeys (int sampleSize) {
+        if (sqlSchema == null) {
+            sqlSchema = createSchemaFor();
+        }
+        List<SqlField> keyFields = sqlSchema.getKeyFields();
+        List<Object> params = new ArrayList<Object>();
+        StringBuilder sql = new StringBuilder("select ");
+        for (int i=0; i<keyFields.size(); i++) {
+            if (i > 0) sql.append(", ");
+            sql.append(keyFields.get(i).getColumnName());
+        }
+        sql.append(" from (").append(baseSql).append(") ").append(BASE_ALIAS);
+        constructWhereClause(sql, params);
+
+        List<Comparable []> sample = new ArrayList<Comparable[]>(sampleSize);
+        Random random = new Random(sampleSize);
+        PreparedStatement sampleStmt = null;
+        try {
+            sampleStmt = connection.prepareStatement(sql.toString(),
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            sampleStmt.setFetchSize(maxBatchSize);
+            bindParameters(sampleStmt, params);
+            ResultSet keys = sampleStmt.executeQuery();
+            long seen = 0;
+            while (keys.next()) {
+                seen++;
+                int slot = sample.size() < sampleSize ? sample.size() : (int) (random.nextDouble() * seen);
+                if (slot < sampleSize) {
+                    Comparable [] key = new Comparable[keyFields.size()];
+                    for (int i=0; i<key.length; i++) {
+                        key[i] = extractComparable(keyFields.get(i), keys, i + 1);
+                    }
+                    if (slot == sample.size())
+                        sample.add(key);
+                    else
+                        sample.set(slot, key);
+                }
+            }
+            keys.close();
+            logger.info(name + " sampled " + sample.size() + " keys out of " + seen);
+        }
+        catch (SQLException e) {
+            throw new TupleDiffException("Could not sample keys of " + getName() + ": " + e.getMessage(), this, e);
+        }
+        finally {
+            if (sampleStmt != null) {
+                try {sampleStmt.close();} catch (SQLException e) {}
+            }
+        }
+        return sample;
+    }
+
+    /**
+     * Creates a stream over the same query, restricted to the range, reading from a new connection obtained from the
+     * ConnectionFactory. The partition shares this stream's Schema and settings.
+     */
+    @Override
+    public SqlTupleStream createPartition (KeyRange range) {
+        SqlTupleStream partition = copy();
+        partition.keyRanges.add(range);
+        partition.setName(getName() + " " + range);
+        return partition;
+    }
+
+    /**
+     * Like createPartition, but if there is no ConnectionFactory the partition shares this stream's connection, in
+     * which case it must not be read while this stream (or another partition sharing it) is in use.
+     */
+    public SqlTupleStream createRangePartition (KeyRange range) {
+        SqlTupleStream partition = connectionFactory == null ? share() : copy();
+        partition.keyRanges.add(range);
+        partition.setName(getName() + " " + range);
+        return partition;
+    }
+
+    /**
+     * Creates an un-opened stream over the same query and KeyRanges with the same Schema and settings as this one,
+     * using a new connection obtained from the ConnectionFactory.
+     */
+    protected SqlTupleStream copy () {
+        if (connectionFactory == null) {
+            throw new TupleDiffException("A ConnectionFactory is required to open another connection for "
+                    + getName(), this);
+        }
+        try {
+            SqlTupleStream copy = newInstance(connectionFactory.createConnection());
+            copySettings(copy);
+            copy.sqlSchema = (SqlSchema) getSchema();
+            copy.tupleStreamKey = tupleStreamKey;
+            return copy;
+        }
+        catch (SQLException e) {
+            throw new TupleDiffException("Could not open another connection for " + getName() + ": "
+                    + e.getMessage(), this, e);
+        }
+    }
+
+    /**
+     * Like copy(), but the un-opened stream shares this stream's connection, which it leaves open when done.
+     */
+    protected SqlTupleStream share () {
+        SqlTupleStream shared = newInstance(connection);
+        copySettings(shared);
+        shared.sqlSchema = (SqlSchema) getSchema();
+        shared.tupleStreamKey = tupleStreamKey;
+        shared.sharedConnection = true;
+        return shared;
+    }
+
+    /**
+     * Creates the un-opened stream of the query over the connection for copy() and share(); sub-classes created other
+     * than by create() override it to copy themselves.
+     */
+    protected SqlTupleStream newInstance (Connection connection) {
+        return create(connection, baseSql, primaryKeys);
+    }
+
+    private void copySettings (SqlTupleStream copy) {
+        copy.connectionFactory = connectionFactory;
+        copy.keyRanges.addAll(keyRanges);
+        copy.keyHashBuckets.addAll(keyHashBuckets);
+        copy.includeFieldNames = includeFieldNames;
+        copy.excludeFieldNames = excludeFieldNames;
+        copy.bufferSize = bufferSize;
+        copy.fetchSize = fetchSize;
+        copy.adaptiveBatchSize = adaptiveBatchSize;
+        copy.minBatchSize = minBatchSize;
+        copy.maxBatchSize = maxBatchSize;
+        copy.disableAutoCommit = disableAutoCommit;
+        copy.prefetch = prefetch;
+        copy.prefetchCapacity = prefetchCapacity;
+        copy.ordered = ordered;
+        copy.setName(getName());
+    }
+
+    /**
+     * Creates an un-opened stream over the same query and KeyRanges whose Tuples consist of the key fields and a
+     * single compare field, ROW_HASH_FIELD, hashing all of this stream's compare fields. If javaRowHash is false the
+     * hash is computed by the database (see rowHashExpression), so only keys and hashes are transferred; otherwise
+     * the full rows are read and hashed with Fingerprint (a Long). Hashes are only comparable between checksum
+     * streams computing them the same way.
+     *
+     * The checksum stream shares this stream's connection and leaves it open when done, so that the rows of keys
+     * whose hashes differ can be looked up with fetchByKeys() afterwards.
+     */
+    public SqlTupleStream createChecksumStream (boolean javaRowHash) {
+        SqlSchema source = (SqlSchema) getSchema();
+        if (!javaRowHash && !isRowHashSupported()) {
+            throw new TupleDiffException(source.getVendor() + " has no row hash expression, hash rows in Java for "
+                    + getName(), this);
+        }
+        SqlTupleStream checksum = share();
+        checksum.checksumSource = this;
+        checksum.javaRowHash = javaRowHash;
+        checksum.ordered = true;
+        checksum.rowHashFields = sortedCompareFields();
+
+        // The Fields of the checksum Schema are new instances as their ordinals differ from those of the source.
+        List<SqlField> keyFields = new ArrayList<SqlField>();
+        for (SqlField key : source.getKeyFields()) {
+            keyFields.add(new SqlField(key.getName(), key.getColumnType(), key.getColumnClassName(),
+                    key.getColumnName(), keyFields.size() + 1));
+        }
+        SqlField hashField = javaRowHash ?
+                new SqlField(ROW_HASH_FIELD, Types.BIGINT, Long.class.getName(), ROW_HASH_FIELD, keyFields.size() + 1) :
+                new SqlField(ROW_HASH_FIELD, Types.VARCHAR, String.class.getName(), ROW_HASH_FIELD, keyFields.size() + 1);
+        List<SqlField> allFields = new ArrayList<SqlField>(keyFields);
+        allFields.add(hashField);
+        checksum.tupleStreamKey = new TupleStreamKey(keyFields);
+        checksum.sqlSchema = new SqlSchema(checksum.tupleStreamKey, keyFields, Arrays.asList(hashField), allFields);
+        checksum.sqlSchema.setVendor(source.getVendor());
+        checksum.sqlSchema.setVersion(source.getVersion());
+        checksum.setName(getName() + " - CHECKSUM");
+        return checksum;
+    }
+
+    /**
+     * Looks up the full rows of the given keys with a single query on this stream's connection, in no particular
+     * order. Keys that no longer exist are absent from the result. The number of keys per call should be kept well
+     * below the database's limit on bind parameters (2100 on SQL Server) divided by the number of key fields, counting
+     * string key fields twice where the vendor compares them under a collation (see constructKeyEquality).
+     */
+    public List<Tuple> fetchByKeys (List<Comparable []> keys) {
+        List<Tuple> tuples = new ArrayList<Tuple>(keys.size());
+        if (keys.isEmpty()) {
+            return tuples;
+        }
+        List<SqlField> keyFields = ((SqlSchema) getSchema()).getKeyFields();
+        List<Object> params = new ArrayList<Object>();
+        StringBuilder sql = new StringBuilder("select * from (").append(baseSql).append(") ").append(BASE_ALIAS);
+        for (int i=0; i<keys.size(); i++) {
+            sql.append(i == 0 ? "\nwhere (" : "\nor (");
+            for (int j=0; j<keyFields.size(); j++) {
+                if (j > 0) sql.append(" and ");
+                constructKeyEquality(sql, params, keyFields.get(j), keys.get(i)[j]);
+            }
+            sql.append(")");
+        }
+
+        PreparedStatement lookupStmt = null;
+        try {
+            lookupStmt = connection.prepareStatement(sql.toString(),
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            lookupStmt.setFetchSize(keys.size());
+            bindParameters(lookupStmt, params);
+            ResultSet rows = lookupStmt.executeQuery();
+            while (rows.next()) {
+                tuples.add(createTuple(rows));
+            }
+            rows.close();
+        }
+        catch (SQLException e) {
+            throw new TupleDiffException("Could not look up rows by key for " + getName() + ": " + e.getMessage(),
+                    this, e);
+        }
+        finally {
+            if (lookupStmt != null) {
+                try {lookupStmt.close();} catch (SQLException e) {}
+            }
+        }
+        return tuples;
     }
 
     /**
@@ -212,9 +834,23 @@ public class SqlTupleStream implements TupleStream {
             init ();
 //            monitor.handleEvent(this, STATE.RUNNING, "QUERY_START");
             logger.info("Begin executing query for " + name);
+            queryStarted = true;
+            if (stopped) {
+                throw new TupleDiffException("Closed before its query ran", this);
+            }
             rs = stmt.executeQuery();
             logger.info("End executing query for " + name);
-            buffer(bufferSize);
+            if (prefetch) {
+                reportAttribute("prefetchCapacity", prefetchCapacity);
+                buffer = new ArrayBlockingQueue<Tuple>(prefetchCapacity);
+                prefetchThread = new Thread(new Prefetcher(), name + " - PREFETCH");
+                prefetchThread.setDaemon(true);
+                prefetchThread.start();
+            }
+            else {
+                buffer = new ArrayBlockingQueue<Tuple>(batchSizer == null ? bufferSize : batchSizer.getMax());
+                buffer(bufferSize);
+            }
             logger.info("Completed TupleStream open for " + name);
 //            monitor.handleEvent(this, STATE.RUNNING, "QUERY_END");
         }
@@ -229,6 +865,7 @@ public class SqlTupleStream implements TupleStream {
 
     protected int buffer(int num) throws SQLException {
         assert (num>0);
+        final long fetchStart = System.nanoTime();
         for (int i=0; i<num; i++) {
             if (rs.isClosed()) {
                 return 0;
@@ -242,18 +879,58 @@ public class SqlTupleStream implements TupleStream {
                 return i;
             }
         }
+        final long fetchEnd = System.nanoTime();
+        if (streamMetrics != null) {
+            streamMetrics.recordFetch(fetchEnd - fetchStart, num);
+        }
+        if (batchSizer != null) {
+            // The consumer's share is the time since the previous batch; there is none before the first batch.
+            if (lastFetchEnd != 0) {
+                bufferSize = adjustBatchSize(fetchEnd - fetchStart, fetchStart - lastFetchEnd);
+            }
+            lastFetchEnd = fetchEnd;
+        }
         return num;
     }
 
+    /**
+     * Feeds the timings of the last batch to the AdaptiveBatchSizer and, if the batch size changed, applies it as
+     * the ResultSet's fetch size.
+     * @return the batch size to use next.
+     */
+    protected int adjustBatchSize (long fetchNanos, long consumeNanos) {
+        int before = batchSizer.getCurrent();
+        int after = batchSizer.adjust(fetchNanos, consumeNanos);
+        if (before != after) {
+            try {
+                rs.setFetchSize(after);
+            }
+            catch (SQLException e) {
+                logger.warning(name + " could not change fetch size to " + after + ": " + e.getMessage());
+            }
+            reportAttribute("batchSize", after);
+        }
+        return after;
+    }
+
+    protected void reportAttribute (String attribute, Object value) {
+        if (monitor != null) {
+            monitor.reportEvent(this, Monitor.EVENT_STATS_ATTRIBUTE, attribute, value);
+        }
+    }
+
 
     @Override
     public boolean hasNext() {
-        if (!buffer.isEmpty()) {
+        if (next != null || !buffer.isEmpty()) {
             return true;
         }
         else {
             if (stopped)
                 return false;
+            else if (prefetch) {
+                return awaitPrefetched();
+            }
             else {
                 // Get some more:
                 try {
@@ -273,27 +950,90 @@ public class SqlTupleStream implements TupleStream {
             throw new TupleDiffException("No more Tuples in this SqlTupleStream <"
                     + this.getName()  + ">",  this);
         }
+        if (next != null) {
+            Tuple t = next;
+            next = null;
+            return t;
+        }
         return buffer.poll();
     }
 
+    /**
+     * Waits until the producer thread has made a Tuple available (which is then held in next), the producer has
+     * finished, or this stream is closed.
+     */
+    private boolean awaitPrefetched () {
+        try {
+            while (next == null) {
+                next = buffer.poll(PREFETCH_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (next == null) {
+                    if (prefetchException != null) {
+                        throw new TupleDiffException("Encountered error prefetching rows for SqlTupleStream "
+                                + this.getName() + ": " + prefetchException.getMessage(), this, prefetchException);
+                    }
+                    else if (stopped || (prefetchDone && buffer.isEmpty())) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TupleDiffException("Interrupted waiting for rows from SqlTupleStream " + this.getName(), this, e);
+        }
+    }
+
     protected Tuple createTuple (ResultSet rs) throws SQLException {
-        Map<SqlField, Comparable> row = new HashMap<SqlField, Comparable>();
+        if (checksumSource != null) {
+            return createChecksumTuple(rs);
+        }
+        final List<SqlField> fields = sqlSchema.getAllFields();
+        final Comparable [] row = new Comparable[fields.size()];
 
-        for(SqlField field : sqlSchema.getAllFields()) {
-            row.put(field, extractComparable(field, rs));
+        for (int i=0; i<row.length; i++) {
+            row[i] = extractComparable(fields.get(i), rs);
         }
 
         Tuple tuple = new Tuple(sqlSchema, row);
         return tuple;
     }
 
+    /**
+     * Creates a Tuple of the checksum Schema; from the key and row hash columns, or from the full row of the source
+     * query if rows are hashed in Java.
+     */
+    protected Tuple createChecksumTuple (ResultSet rs) throws SQLException {
+        final List<SqlField> keyFields = checksumSource.sqlSchema.getKeyFields();
+        final Comparable [] row = new Comparable[keyFields.size() + 1];
+        for (int i=0; i<keyFields.size(); i++) {
+            row[i] = extractComparable(keyFields.get(i), rs, javaRowHash ? keyFields.get(i).getColumnIndex() : i + 1);
+        }
+        if (javaRowHash) {
+            final Comparable [] values = new Comparable[rowHashFields.size()];
+            for (int i=0; i<values.length; i++) {
+                values[i] = extractComparable(rowHashFields.get(i), rs);
+            }
+            row[keyFields.size()] = Fingerprint.hash64(values);
+        }
+        else {
+            row[keyFields.size()] = rowHashValue(rs.getObject(keyFields.size() + 1));
+        }
+        return new Tuple(sqlSchema, row);
+    }
+
     protected Comparable extractComparable (SqlField field, ResultSet rs) throws SQLException, TupleDiffException {
-            Object o = rs.getObject(field.getColumnIndex());
+        return extractComparable(field, rs, field.getColumnIndex());
+    }
+
+    protected Comparable extractComparable (SqlField field, ResultSet rs, int columnIndex)
+            throws SQLException, TupleDiffException {
+            Object o = rs.getObject(columnIndex);
             if (o == null || o instanceof Comparable) {
                 return (Comparable) o;
             }
             else if (o instanceof java.sql.Timestamp) {
-                return rs.getTimestamp(field.getColumnIndex());
+                return rs.getTimestamp(columnIndex);
             }
             else {
                 throw new TupleDiffException ("Field " + field.getName() + ", Class=" + o.getClass() +
@@ -348,22 +1088,258 @@ public class SqlTupleStream implements TupleStream {
         this.sqlSchema = (SqlSchema) schema;
     }
 
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /**
+     * Whether the query should be ordered by the key (the default). Comparisons that do not rely on key order, such
+     * as HashJoinTupleComparison, turn this off to spare the database the sort.
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    public ConnectionFactory getConnectionFactory() {
+        return connectionFactory;
+    }
+
+    public void setConnectionFactory(ConnectionFactory connectionFactory) {
+        this.connectionFactory = connectionFactory;
+    }
+
+    public List<KeyRange> getKeyRanges() {
+        return keyRanges;
+    }
+
+    /**
+     * Restricts this stream to Tuples whose keys fall within the range (in addition to any ranges already added).
+     * Must be called before open().
+     */
+    public void addKeyRange(KeyRange range) {
+        this.keyRanges.add(range);
+    }
+
+    @Override
+    public void setMonitor(Monitor monitor) {
+        this.monitor = monitor;
+        if (monitor instanceof ManagedMonitor) {
+            this.streamMetrics = ((ManagedMonitor) monitor).getStreamMetrics(this);
+        }
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * The JDBC fetch size (rows per round trip) to start with. If not set, bufferSize is used.
+     * @param fetchSize
+     */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    public boolean isAdaptiveBatchSize() {
+        return adaptiveBatchSize;
+    }
+
+    /**
+     * Whether the fetch/batch size may be grown or shrunk (within minBatchSize and maxBatchSize) based on measured
+     * fetch latency versus how fast the comparison consumes the Tuples. Off by default.
+     * @param adaptiveBatchSize
+     */
+    public void setAdaptiveBatchSize(boolean adaptiveBatchSize) {
+        this.adaptiveBatchSize = adaptiveBatchSize;
+    }
+
+    public int getMinBatchSize() {
+        return minBatchSize;
+    }
+
+    public void setMinBatchSize(int minBatchSize) {
+        this.minBatchSize = minBatchSize;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public boolean isDisableAutoCommit() {
+        return disableAutoCommit;
+    }
+
+    /**
+     * Whether auto-commit should be switched off on the connection before the query runs, which drivers such as
+     * PostgreSQL require to stream rows with a cursor. Off by default. The stream only reads; it rolls back and
+     * switches auto-commit back on when closed.
+     * @param disableAutoCommit
+     */
+    public void setDisableAutoCommit(boolean disableAutoCommit) {
+        this.disableAutoCommit = disableAutoCommit;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public boolean isPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * Read rows on a dedicated producer thread rather than the thread calling hasNext(). Must be set before open().
+     * @param prefetch
+     */
+    public void setPrefetch(boolean prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    public int getPrefetchCapacity() {
+        return prefetchCapacity;
+    }
+
+    /**
+     * The maximum number of Tuples the producer thread may read ahead of the consumer when prefetch is enabled.
+     * @param prefetchCapacity
+     */
+    public void setPrefetchCapacity(int prefetchCapacity) {
+        this.prefetchCapacity = prefetchCapacity;
+    }
+
+    /**
+     * Stops the producer thread, if prefetching, before closing the statement and connection it reads from: the query
+     * is cancelled so that a producer inside ResultSet.next() returns, and is waited for.
+     */
     @Override
     public void close() {
         stopped = true;
+        cancelQuery();
+        Thread producer = prefetchThread;
+        if (producer != null && producer != Thread.currentThread()) {
+            producer.interrupt();
+            boolean interrupted = false;
+            while (producer.isAlive()) {
+                try {
+                    producer.join();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
         cleanup ();
     }
 
+    /**
+     * Cancels the query if it is still executing or has rows left to fetch, as when a comparison is cancelled, so that
+     * the database cursor is released at once rather than when the query would have completed. Statements are closed
+     * once all rows have been read.
+     */
+    protected void cancelQuery () {
+        try {
+            if (queryStarted && stmt != null && !connection.isClosed() && !stmt.isClosed()) {
+                stmt.cancel();
+            }
+        }
+        catch (SQLException e) {
+            logger.warning(name + " could not cancel its query: " + e.getMessage());
+        }
+    }
+
     protected void cleanup () {
         try {
-            if (!connection.isClosed())
+            if (connection.isClosed()) {
+                return;
+            }
+            if (sharedConnection && stmt != null) {
+                stmt.close();
+            }
+            // Leave the connection as it was found, for the stream it is shared with or the pool it returns to.
+            if (autoCommitDisabled) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+                autoCommitDisabled = false;
+            }
+            if (!sharedConnection) {
                 connection.close();
+            }
         }
         catch (SQLException se) {
             logger.severe(name + " error closing DB connection.");
         }
     }
 
+    /**
+     * Drains the ResultSet into the bounded buffer, blocking whenever the consumer falls prefetchCapacity Tuples
+     * behind.
+     */
+    class Prefetcher implements Runnable {
+        @Override
+        public void run() {
+            try {
+                // A batch is timed as the time spent reading from the ResultSet versus the time spent blocked
+                // because the consumer has not caught up.
+                int batch = batchSizer == null ? bufferSize : batchSizer.getCurrent();
+                int inBatch = 0;
+                long fetchNanos = 0, blockedNanos = 0;
+                long t0 = System.nanoTime();
+                while (!stopped && rs.next()) {
+                    Tuple tuple = createTuple(rs);
+                    long t1 = System.nanoTime();
+                    if (!buffer.offer(tuple)) {
+                        buffer.put(tuple);
+                    }
+                    long t2 = System.nanoTime();
+                    fetchNanos += t1 - t0;
+                    blockedNanos += t2 - t1;
+                    t0 = t2;
+                    if (++inBatch >= batch) {
+                        if (streamMetrics != null) {
+                            streamMetrics.recordFetch(fetchNanos, inBatch);
+                            streamMetrics.setBuffer(buffer.size(), prefetchCapacity);
+                        }
+                        if (batchSizer != null) {
+                            batch = adjustBatchSize(fetchNanos, blockedNanos);
+                        }
+                        inBatch = 0;
+                        fetchNanos = blockedNanos = 0;
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                // close() was called.
+            }
+            catch (Exception e) {
+                if (!stopped) {
+                    logger.severe(name + " error prefetching rows: " + e.getMessage());
+                    prefetchException = e;
+                }
+            }
+            finally {
+                prefetchDone = true;
+                if (!stopped) {
+                    cleanup();
+                }
+            }
+        }
+    }
+
     protected static class OracleSqlTupleStream extends SqlTupleStream {
         public OracleSqlTupleStream (Connection connection, String sql, String [] primaryKeys) {
             super(connection, sql, primaryKeys);
@@ -383,15 +1359,73 @@ public class SqlTupleStream implements TupleStream {
             sb.append (" nulls first ");
         }
 
-        protected Comparable extractComparable (SqlField field, ResultSet rs) throws SQLException, TupleDiffException {
-            Object o = rs.getObject(field.getColumnIndex());
+        @Override
+        protected String keyColumnExpression (SqlField field) {
+            if (java.lang.String.class.equals(field.getFieldClass())) {
+                return "NLSSORT (" + field.getName() + ", 'NLS_SORT = BINARY')";
+            }
+            return field.getName();
+        }
+
+        @Override
+        protected String keyParameterExpression (SqlField field) {
+            if (java.lang.String.class.equals(field.getFieldClass())) {
+                return "NLSSORT (?, 'NLS_SORT = BINARY')";
+            }
+            return super.keyParameterExpression(field);
+        }
+
+        /**
+         * MD5 (STANDARD_HASH, 12c+) of the length prefixed text of the columns. The concatenation is subject to
+         * the maximum VARCHAR2 length; wider rows need to be hashed in Java.
+         */
+        @Override
+        protected String rowHashExpression (List<SqlField> fields) {
+            StringBuilder sb = new StringBuilder("STANDARD_HASH(");
+            if (fields.isEmpty()) sb.append("'-'");
+            for (int i=0; i<fields.size(); i++) {
+                if (i > 0) sb.append(" || '|' || ");
+                String text = rowHashText(fields.get(i));
+                sb.append("nvl2(").append(fields.get(i).getName()).append(", length(").append(text)
+                        .append(") || ':' || ").append(text).append(", 'N')");
+            }
+            return sb.append(", 'MD5')").toString();
+        }
+
+        @Override
+        protected String hashNumberExpression (List<SqlField> fields) {
+            return "to_number(substr(rawtohex(" + rowHashExpression(fields) + "), 1, 12), 'XXXXXXXXXXXX')";
+        }
+
+        @Override
+        protected String bucketExpression (String hash, long divisor, long modulus) {
+            return "mod(trunc((" + hash + ") / " + divisor + "), " + modulus + ")";
+        }
+
+        private String rowHashText (SqlField field) {
+            Class c = field.getFieldClass();
+            if (String.class.equals(c)) {
+                return field.getName();
+            }
+            else if (java.util.Date.class.isAssignableFrom(c)) {
+                return "to_char(cast(" + field.getName() + " as timestamp), 'YYYY-MM-DD HH24:MI:SS.FF9')";
+            }
+            else if (Number.class.isAssignableFrom(c)) {
+                return "to_char(" + field.getName() + ", 'TM9')";
+            }
+            return "to_char(" + field.getName() + ")";
+        }
+
+        protected Comparable extractComparable (SqlField field, ResultSet rs, int columnIndex)
+                throws SQLException, TupleDiffException {
+            Object o = rs.getObject(columnIndex);
 //            TODO: Fix this. Although this works for the purposes of sorting and comparing across Oracle queries, will not work when comparing vs another DB. Also could matter to downstream systems expecting an actual Date object.
-            if (o.getClass().getName().equals( "oracle.sql.TIMESTAMP")) {
-                return rs.getString(field.getColumnIndex());
+            if (o != null && o.getClass().getName().equals( "oracle.sql.TIMESTAMP")) {
+                return rs.getString(columnIndex);
 //                return rs.getTimestamp (field.getColumnIndex()+1);
             }
             else {
-                return super.extractComparable(field, rs);
+                return super.extractComparable(field, rs, columnIndex);
             }
         }
     }
@@ -413,6 +1447,104 @@ public class SqlTupleStream implements TupleStream {
                 if (i<keyFields.size()-1) sb.append(", ");
             }
         }
+
+        @Override
+        protected String keyColumnExpression (SqlField field) {
+            if (java.lang.String.class.equals(field.getFieldClass())) {
+                return field.getName() + " collate Latin1_General_BIN";
+            }
+            return field.getName();
+        }
+
+        /**
+         * MD5 (HASHBYTES) of the length prefixed text of the columns. Before SQL Server 2016 HASHBYTES accepts at
+         * most 8000 bytes; wider rows need to be hashed in Java.
+         */
+        @Override
+        protected String rowHashExpression (List<SqlField> fields) {
+            StringBuilder sb = new StringBuilder("HASHBYTES('MD5', ");
+            if (fields.isEmpty()) sb.append("N'-'");
+            for (int i=0; i<fields.size(); i++) {
+                if (i > 0) sb.append(" + N'|' + ");
+                String text = rowHashText(fields.get(i));
+                sb.append("ISNULL(CONVERT(NVARCHAR(20), DATALENGTH(").append(text).append(")) + N':' + ")
+                        .append(text).append(", N'N')");
+            }
+            return sb.append(")").toString();
+        }
+
+        @Override
+        protected String hashNumberExpression (List<SqlField> fields) {
+            return "CONVERT(BIGINT, SUBSTRING(" + rowHashExpression(fields) + ", 1, 6))";
+        }
+
+        @Override
+        protected String bucketExpression (String hash, long divisor, long modulus) {
+            return "((" + hash + ") / " + divisor + ") % " + modulus;
+        }
+
+        @Override
+        protected String sumExpression (String expression) {
+            return "sum(CAST(" + expression + " AS DECIMAL(38, 0)))";
+        }
+
+        private String rowHashText (SqlField field) {
+            Class c = field.getFieldClass();
+            if (java.util.Date.class.isAssignableFrom(c)) {
+                return "CONVERT(NVARCHAR(MAX), " + field.getName() + ", 126)";
+            }
+            else if (Double.class.equals(c) || Float.class.equals(c)) {
+                // Style 2: 16 significant digits.
+                return "CONVERT(NVARCHAR(MAX), " + field.getName() + ", 2)";
+            }
+            return "CONVERT(NVARCHAR(MAX), " + field.getName() + ")";
+        }
+    }
+
+    protected static class PostgreSQLTupleStream extends SqlTupleStream {
+        public PostgreSQLTupleStream(Connection connection, String sql, String [] primaryKeys) {
+            super(connection, sql, primaryKeys);
+        }
+
+        @Override
+        protected void constructOrderByClause (StringBuilder sb, List<SqlField> keyFields) {
+            for (int i=0; i<keyFields.size(); i++) {
+                sb.append(keyColumnExpression(keyFields.get(i))).append(" asc nulls first");
+                if (i<keyFields.size()-1) sb.append(", ");
+            }
+        }
+
+        @Override
+        protected String keyColumnExpression (SqlField field) {
+            if (java.lang.String.class.equals(field.getFieldClass())) {
+                return field.getColumnName() + " collate \"C\"";
+            }
+            return field.getColumnName();
+        }
+
+        /**
+         * md5() of the length prefixed text of the columns.
+         */
+        @Override
+        protected String rowHashExpression (List<SqlField> fields) {
+            StringBuilder sb = new StringBuilder("md5(concat_ws('|'");
+            if (fields.isEmpty()) sb.append(", '-'");
+            for (SqlField field : fields) {
+                String text = field.getColumnName() + "::text";
+                sb.append(", coalesce(length(").append(text).append(") || ':' || ").append(text).append(", 'N')");
+            }
+            return sb.append("))").toString();
+        }
+
+        @Override
+        protected String hashNumberExpression (List<SqlField> fields) {
+            return "('x' || substr(" + rowHashExpression(fields) + ", 1, 12))::bit(48)::bigint";
+        }
+
+        @Override
+        protected String bucketExpression (String hash, long divisor, long modulus) {
+            return "((" + hash + ") / " + divisor + ") % " + modulus;
+        }
     }
 
 }
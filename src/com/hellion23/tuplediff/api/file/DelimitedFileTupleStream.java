@@ -0,0 +1,500 @@
+package com.hellion23.tuplediff.api.file;
+
+import com.hellion23.tuplediff.api.*;
+import com.hellion23.tuplediff.api.monitor.Monitor;
+import com.hellion23.tuplediff.api.monitor.Monitorable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * A TupleStream over a delimited text file (e.g. CSV) that is sorted by its key columns, so files can be compared
+ * without loading them into a database first.
+ *
+ * The field names come from the header line, or from fieldNames if the file has no header. Fields are Strings unless
+ * declared otherwise with setFieldType(); String, Integer, Long, Double, BigDecimal, Boolean, java.sql.Date and
+ * java.sql.Timestamp are supported. Key, include and exclude fields are chosen as with SqlTupleStream.
+ *
+ * The file is read in chunks of about chunkSize bytes, ending at record boundaries, each memory mapped read-only and
+ * parsed straight out of the mapping by a DelimitedRecordParser. With parseThreads greater than one, up to twice as
+ * many chunks are parsed ahead concurrently; Tuples are still emitted in file order. The delimiter, quote and line
+ * breaks must be single byte characters in the file's charset (true of UTF-8 and the ISO-8859 charsets). Quoted fields
+ * must not contain line breaks.
+ *
+ * The Tuples must be in key order: getNext() throws a TupleDiffException at the first key that is not greater than the
+ * one before it. Unsorted files can be wrapped in a SortingTupleStream.
+ *
+ * @author: Hermann Leung
+ * Date: 3/2/2015
+ */
+public class DelimitedFileTupleStream implements TupleStream, Monitorable {
+    private static final Logger logger = Logger.getLogger(DelimitedFileTupleStream.class.getName());
+    // The size of the reads that look for the end of a chunk's last record.
+    static final int BOUNDARY_SCAN_SIZE = 8192;
+
+    File file;
+    String name;
+    String [] primaryKeys;
+    String [] fieldNames;
+    final Map<String, Class> fieldTypes = new HashMap<String, Class>();
+    String [] includeFieldNames;
+    String [] excludeFieldNames;
+    boolean header = true;
+    byte delimiter = ',';
+    byte quote = '"';
+    Charset charset = Charset.forName("UTF-8");
+    int chunkSize = 16 * 1024 * 1024;
+    int parseThreads = 1;
+    FileSchema schema;
+    TupleStreamKey tupleStreamKey;
+    Monitor monitor;
+
+    RandomAccessFile randomAccessFile;
+    FileChannel channel;
+    long length;
+    long dataStart;
+    long nextChunkStart;
+    DelimitedRecordParser parser;
+    ExecutorService parseExecutor;
+    final LinkedList<Future<List<Tuple>>> parsing = new LinkedList<Future<List<Tuple>>>();
+    Iterator<Tuple> current;
+    Tuple next;
+    Tuple previous;
+    long tuples;
+
+    /**
+     * @param primaryKeys the names of the key fields, by which the file is sorted.
+     */
+    public DelimitedFileTupleStream(File file, String [] primaryKeys) {
+        this.file = file;
+        this.primaryKeys = primaryKeys;
+    }
+
+    @Override
+    public void open() {
+        if (includeFieldNames != null && includeFieldNames.length > 0
+                && excludeFieldNames != null && excludeFieldNames.length > 0) {
+            throw new TupleDiffException("Include Field Names and Exclude Field Names cannot be simultaneously defined." +
+                    " Only exclude fields or include field or neither can be populated", this);
+        }
+        getSchema();
+        try {
+            openChannel();
+            nextChunkStart = dataStart;
+            parser = new DelimitedRecordParser(this, schema, delimiter, quote, charset);
+            if (parseThreads > 1) {
+                parseExecutor = Executors.newFixedThreadPool(parseThreads);
+                for (int i=0; i<parseThreads * 2; i++) {
+                    submitNextChunk();
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new TupleDiffException("Could not open " + file + ": " + e.getMessage(), this, e);
+        }
+        reportAttribute("fileBytes", length);
+        reportAttribute("chunkSize", chunkSize);
+        reportAttribute("parseThreads", parseThreads);
+    }
+
+    private void openChannel() throws IOException {
+        if (channel == null) {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            channel = randomAccessFile.getChannel();
+            length = channel.size();
+        }
+    }
+
+    private void reportAttribute (String attribute, Object value) {
+        if (monitor != null) {
+            monitor.reportEvent(this, Monitor.EVENT_STATS_ATTRIBUTE, attribute, value);
+        }
+    }
+
+    /**
+     * Reads the header (or takes the declared fieldNames) and resolves the key and compare fields.
+     */
+    protected FileSchema createSchemaFor () {
+        String [] names = fieldNames;
+        try {
+            openChannel();
+            dataStart = 0;
+            if (header) {
+                long headerEnd = findRecordEnd(0);
+                ByteBuffer bytes = ByteBuffer.allocate((int) headerEnd);
+                channel.read(bytes, 0);
+                String line = new String(bytes.array(), 0, bytes.position(), charset);
+                // Drop the line break and a byte order mark.
+                names = splitHeader(line.replaceAll("[\r\n]+$", "").replace("\uFEFF", ""));
+                dataStart = headerEnd;
+            }
+        }
+        catch (IOException e) {
+            throw new TupleDiffException("Could not read the header of " + file + ": " + e.getMessage(), this, e);
+        }
+        if (names == null || names.length == 0) {
+            throw new TupleDiffException("No field names for " + file + ": it has no header and none were declared",
+                    this);
+        }
+
+        List<FileField> allFields = new ArrayList<FileField>(names.length);
+        for (int i=0; i<names.length; i++) {
+            String declared = find(names[i], fieldTypes.keySet());
+            allFields.add(new FileField(names[i], declared == null ? String.class : fieldTypes.get(declared), i));
+        }
+
+        List<FileField> keyFields = new ArrayList<FileField>();
+        for (String pk : primaryKeys) {
+            FileField f = findField(pk, allFields);
+            if (f == null) {
+                throw new TupleDiffException(" Could not find Tuple Key " + pk + " amongst these fields: " +
+                        Arrays.toString(names), this);
+            }
+            keyFields.add(f);
+        }
+        this.tupleStreamKey = new TupleStreamKey(keyFields);
+
+        List<FileField> compareFields = new ArrayList<FileField>(allFields);
+        if (excludeFieldNames != null) {
+            for (String excludeName : excludeFieldNames) {
+                compareFields.remove(findField(excludeName, allFields));
+            }
+        }
+        else if (includeFieldNames != null) {
+            compareFields.clear();
+            for (String includeName : includeFieldNames) {
+                compareFields.add(findField(includeName, allFields));
+            }
+        }
+        compareFields.removeAll(keyFields);
+
+        FileSchema fileSchema = new FileSchema(tupleStreamKey, keyFields, compareFields, allFields);
+        fileSchema.setFile(file);
+        return fileSchema;
+    }
+
+    private String [] splitHeader (String line) {
+        List<String> names = new ArrayList<String>();
+        StringBuilder sb = new StringBuilder();
+        boolean inQuotes = false;
+        for (int i=0; i<line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == quote) {
+                inQuotes = !inQuotes;
+            }
+            else if (c == delimiter && !inQuotes) {
+                names.add(sb.toString().trim());
+                sb.setLength(0);
+            }
+            else {
+                sb.append(c);
+            }
+        }
+        names.add(sb.toString().trim());
+        return names.toArray(new String[names.size()]);
+    }
+
+    private FileField findField (String name, Collection<FileField> fields) {
+        if (name == null) return null;
+        for (FileField f : fields) {
+            if (f.getName().equalsIgnoreCase(name)) return f;
+        }
+        return null;
+    }
+
+    private String find (String name, Collection<String> names) {
+        for (String n : names) {
+            if (n.equalsIgnoreCase(name)) return n;
+        }
+        return null;
+    }
+
+    /**
+     * @return the position just after the line feed ending the record at or after position, or the file length.
+     */
+    private long findRecordEnd (long position) throws IOException {
+        ByteBuffer scan = ByteBuffer.allocate(BOUNDARY_SCAN_SIZE);
+        while (position < length) {
+            scan.clear();
+            int read = channel.read(scan, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i=0; i<read; i++) {
+                if (scan.get(i) == DelimitedRecordParser.LF) {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return length;
+    }
+
+    /**
+     * @return the mapping of the next chunk, or null at the end of the file.
+     */
+    private MappedByteBuffer mapNextChunk () throws IOException {
+        if (nextChunkStart >= length) {
+            return null;
+        }
+        long start = nextChunkStart;
+        long end = start + chunkSize >= length ? length : findRecordEnd(start + chunkSize - 1);
+        if (end - start > Integer.MAX_VALUE) {
+            throw new IOException("Record at byte " + start + " is too long");
+        }
+        nextChunkStart = end;
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+    }
+
+    private void submitNextChunk () throws IOException {
+        final long start = nextChunkStart;
+        final MappedByteBuffer chunk = mapNextChunk();
+        if (chunk != null) {
+            parsing.add(parseExecutor.submit(new Callable<List<Tuple>>() {
+                @Override
+                public List<Tuple> call() {
+                    return new DelimitedRecordParser(DelimitedFileTupleStream.this, schema, delimiter, quote, charset)
+                            .parse(chunk, start);
+                }
+            }));
+        }
+    }
+
+    /**
+     * @return the Tuples of the next chunk, or null at the end of the file.
+     */
+    private List<Tuple> nextChunk () throws IOException {
+        if (parseExecutor == null) {
+            long start = nextChunkStart;
+            MappedByteBuffer chunk = mapNextChunk();
+            return chunk == null ? null : parser.parse(chunk, start);
+        }
+        if (parsing.isEmpty()) {
+            return null;
+        }
+        Future<List<Tuple>> f = parsing.removeFirst();
+        submitNextChunk();
+        try {
+            return f.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TupleDiffException("Interrupted parsing " + file, this, e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TupleDiffException) {
+                throw (TupleDiffException) cause;
+            }
+            throw new TupleDiffException("Error parsing " + file + ": " + cause.getMessage(), this, cause);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (channel == null) {
+            return false;
+        }
+        try {
+            while (current == null || !current.hasNext()) {
+                List<Tuple> chunk = nextChunk();
+                if (chunk == null) {
+                    return false;
+                }
+                current = chunk.iterator();
+            }
+        }
+        catch (IOException e) {
+            throw new TupleDiffException("Error reading " + file + ": " + e.getMessage(), this, e);
+        }
+        next = current.next();
+        if (previous != null && previous.getKey().compareTo(next.getKey()) >= 0) {
+            throw new TupleDiffException(getName() + " is not sorted by key: " + next.getKey() + " follows "
+                    + previous.getKey() + " after " + tuples + " Tuples", this);
+        }
+        return true;
+    }
+
+    @Override
+    public Tuple getNext() {
+        if (!hasNext()) {
+            throw new TupleDiffException("No more Tuples in this DelimitedFileTupleStream <" + getName() + ">", this);
+        }
+        previous = next;
+        next = null;
+        tuples++;
+        return previous;
+    }
+
+    @Override
+    public void close() {
+        if (parseExecutor != null) {
+            parseExecutor.shutdownNow();
+            parseExecutor = null;
+        }
+        parsing.clear();
+        current = null;
+        next = null;
+        if (randomAccessFile != null) {
+            try {
+                randomAccessFile.close();
+            }
+            catch (IOException e) {
+                logger.warning("Could not close " + file + ": " + e.getMessage());
+            }
+            randomAccessFile = null;
+            channel = null;
+        }
+    }
+
+    @Override
+    public TupleStreamKey getTupleStreamKey() {
+        if (tupleStreamKey == null) {
+            getSchema();
+        }
+        return tupleStreamKey;
+    }
+
+    @Override
+    public void setTupleStreamKey(TupleStreamKey key) {
+        this.tupleStreamKey = key;
+    }
+
+    @Override
+    public Schema getSchema() {
+        if (schema == null) {
+            schema = createSchemaFor();
+        }
+        return schema;
+    }
+
+    @Override
+    public void setSchema(Schema schema) {
+        this.schema = (FileSchema) schema;
+    }
+
+    @Override
+    public void setMonitor(Monitor monitor) {
+        this.monitor = monitor;
+    }
+
+    @Override
+    public String getName() {
+        return name == null ? file.getName() : name;
+    }
+
+    @Override
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String[] getFieldNames() {
+        return fieldNames;
+    }
+
+    /**
+     * The names of the fields in column order, for files without a header.
+     */
+    public void setFieldNames(String[] fieldNames) {
+        this.fieldNames = fieldNames;
+    }
+
+    /**
+     * Declares the type of a field; fields not declared are Strings.
+     */
+    public void setFieldType(String fieldName, Class type) {
+        fieldTypes.put(fieldName, type);
+    }
+
+    public Map<String, Class> getFieldTypes() {
+        return fieldTypes;
+    }
+
+    public String[] getIncludeFieldNames() {
+        return includeFieldNames;
+    }
+
+    public void setIncludeFieldNames(String[] includeFieldNames) {
+        this.includeFieldNames = includeFieldNames;
+    }
+
+    public String[] getExcludeFieldNames() {
+        return excludeFieldNames;
+    }
+
+    public void setExcludeFieldNames(String[] excludeFieldNames) {
+        this.excludeFieldNames = excludeFieldNames;
+    }
+
+    public boolean isHeader() {
+        return header;
+    }
+
+    /**
+     * Whether the first line holds the field names. Defaults to true.
+     */
+    public void setHeader(boolean header) {
+        this.header = header;
+    }
+
+    public char getDelimiter() {
+        return (char) delimiter;
+    }
+
+    public void setDelimiter(char delimiter) {
+        this.delimiter = (byte) delimiter;
+    }
+
+    public char getQuote() {
+        return (char) quote;
+    }
+
+    public void setQuote(char quote) {
+        this.quote = (byte) quote;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * The number of bytes mapped and parsed at a time (chunks are extended to the end of their last record).
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public int getParseThreads() {
+        return parseThreads;
+    }
+
+    /**
+     * The number of threads parsing chunks ahead of the reader. Defaults to 1: parsing on the reading thread.
+     */
+    public void setParseThreads(int parseThreads) {
+        this.parseThreads = parseThreads;
+    }
+}
@@ -0,0 +1,298 @@
+package com.hellion23.tuplediff.api.file;
+
+import com.hellion23.tuplediff.api.Tuple;
+import com.hellion23.tuplediff.api.TupleDiffException;
+import com.hellion23.tuplediff.api.monitor.Nameable;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the records of a delimited file directly out of a (mapped) ByteBuffer into Tuples. Records are located and
+ * split by scanning the bytes; numbers are converted from the bytes without creating Strings, and the bytes of text
+ * values are copied into a reused buffer once before decoding. A parser is not thread safe: each parsing thread needs
+ * its own.
+ *
+ * Records end at a line feed (an optional preceding carriage return is dropped). A field may be quoted, in which case
+ * it may contain the delimiter and doubled quotes stand for one quote, but not line breaks. Blank lines are skipped.
+ * An empty unquoted field is null.
+ *
+ * @author: Hermann Leung
+ * Date: 3/2/2015
+ */
+class DelimitedRecordParser {
+    static final byte LF = '\n';
+    static final byte CR = '\r';
+    // Longest run of digits that always fits into a long.
+    static final int MAX_LONG_DIGITS = 18;
+
+    enum Type {STRING, INTEGER, LONG, DOUBLE, BIG_DECIMAL, BOOLEAN, DATE, TIMESTAMP}
+
+    final Nameable source;
+    final FileSchema schema;
+    final byte delimiter;
+    final byte quote;
+    final Charset charset;
+    final int columns;
+    final Type [] types;
+    // Bounds of the current record's fields within the buffer, and whether a quoted field contains doubled quotes.
+    final int [] starts;
+    final int [] ends;
+    final boolean [] quoted;
+    final boolean [] escaped;
+    byte [] scratch = new byte[256];
+
+    DelimitedRecordParser(Nameable source, FileSchema schema, byte delimiter, byte quote, Charset charset) {
+        this.source = source;
+        this.schema = schema;
+        this.delimiter = delimiter;
+        this.quote = quote;
+        this.charset = charset;
+        this.columns = schema.size();
+        this.types = new Type[columns];
+        for (FileField f : schema.getAllFields()) {
+            types[f.getColumnIndex()] = typeOf(source, f);
+        }
+        this.starts = new int[columns];
+        this.ends = new int[columns];
+        this.quoted = new boolean[columns];
+        this.escaped = new boolean[columns];
+    }
+
+    static Type typeOf (Nameable source, FileField field) {
+        Class c = field.getFieldClass();
+        if (c == String.class) return Type.STRING;
+        if (c == Integer.class) return Type.INTEGER;
+        if (c == Long.class) return Type.LONG;
+        if (c == Double.class) return Type.DOUBLE;
+        if (c == BigDecimal.class) return Type.BIG_DECIMAL;
+        if (c == Boolean.class) return Type.BOOLEAN;
+        if (c == java.sql.Date.class) return Type.DATE;
+        if (c == java.sql.Timestamp.class) return Type.TIMESTAMP;
+        throw new TupleDiffException("Unsupported type " + c.getName() + " of field " + field.getName(), source);
+    }
+
+    /**
+     * Parses every record between the buffer's position and limit, which must start and end at record boundaries.
+     * @param offset the position of the buffer within the file, for error messages.
+     */
+    List<Tuple> parse (ByteBuffer buf, long offset) {
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        int pos = buf.position();
+        final int limit = buf.limit();
+        while (pos < limit) {
+            int lf = pos;
+            while (lf < limit && buf.get(lf) != LF) {
+                lf++;
+            }
+            int end = lf > pos && buf.get(lf - 1) == CR ? lf - 1 : lf;
+            if (end > pos) {
+                tuples.add(parseRecord(buf, pos, end, offset));
+            }
+            pos = lf + 1;
+        }
+        return tuples;
+    }
+
+    Tuple parseRecord (ByteBuffer buf, int start, int end, long offset) {
+        split(buf, start, end, offset);
+        Comparable [] values = new Comparable[columns];
+        for (int i=0; i<columns; i++) {
+            values[i] = value(buf, i, offset + start);
+        }
+        return new Tuple(schema, values);
+    }
+
+    private void split (ByteBuffer buf, int start, int end, long offset) {
+        int col = 0;
+        int i = start;
+        while (true) {
+            if (col == columns) {
+                throw recordError("has more than " + columns + " fields", offset + start);
+            }
+            if (i < end && buf.get(i) == quote) {
+                int j = i + 1;
+                boolean doubled = false;
+                while (j < end) {
+                    if (buf.get(j) == quote) {
+                        if (j + 1 < end && buf.get(j + 1) == quote) {
+                            doubled = true;
+                            j += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    j++;
+                }
+                if (j >= end) {
+                    throw recordError("has an unterminated quoted field", offset + start);
+                }
+                starts[col] = i + 1;
+                ends[col] = j;
+                quoted[col] = true;
+                escaped[col] = doubled;
+                i = j + 1;
+                if (i < end && buf.get(i) != delimiter) {
+                    throw recordError("has characters after the closing quote of field " + (col + 1), offset + start);
+                }
+            }
+            else {
+                int j = i;
+                while (j < end && buf.get(j) != delimiter) {
+                    j++;
+                }
+                starts[col] = i;
+                ends[col] = j;
+                quoted[col] = false;
+                escaped[col] = false;
+                i = j;
+            }
+            col++;
+            if (i >= end) {
+                break;
+            }
+            // Skip the delimiter; a record ending with a delimiter has an empty last field.
+            i++;
+        }
+        if (col != columns) {
+            throw recordError("has " + col + " fields instead of " + columns, offset + start);
+        }
+    }
+
+    private Comparable value (ByteBuffer buf, int col, long recordOffset) {
+        final int s = starts[col];
+        final int e = ends[col];
+        if (s == e && !(quoted[col] && types[col] == Type.STRING)) {
+            return null;
+        }
+        try {
+            switch (types[col]) {
+                case STRING:
+                    return text(buf, col);
+                case INTEGER:
+                    long l = parseLong(buf, col);
+                    if (l < Integer.MIN_VALUE || l > Integer.MAX_VALUE) {
+                        throw new NumberFormatException("out of range");
+                    }
+                    return (int) l;
+                case LONG:
+                    return parseLong(buf, col);
+                case BIG_DECIMAL:
+                    return parseBigDecimal(buf, col);
+                case BOOLEAN:
+                    return parseBoolean(buf, col);
+                case DOUBLE:
+                    return Double.valueOf(text(buf, col));
+                case DATE:
+                    return java.sql.Date.valueOf(text(buf, col));
+                case TIMESTAMP:
+                    return java.sql.Timestamp.valueOf(text(buf, col));
+            }
+        }
+        catch (IllegalArgumentException ex) {
+            throw new TupleDiffException("Record at byte " + recordOffset + " of " + source.getName()
+                    + " has an invalid " + types[col] + " in field " + schema.getAllFields().get(col).getName()
+                    + ": " + text(buf, col), source, ex);
+        }
+        throw new IllegalStateException("Unhandled type " + types[col]);
+    }
+
+    private String text (ByteBuffer buf, int col) {
+        final int s = starts[col];
+        final int e = ends[col];
+        if (scratch.length < e - s) {
+            scratch = new byte[Math.max(e - s, scratch.length * 2)];
+        }
+        int n = 0;
+        for (int i=s; i<e; i++) {
+            byte b = buf.get(i);
+            scratch[n++] = b;
+            if (escaped[col] && b == quote) {
+                // Doubled quote: keep one.
+                i++;
+            }
+        }
+        return new String(scratch, 0, n, charset);
+    }
+
+    private long parseLong (ByteBuffer buf, int col) {
+        int i = starts[col];
+        final int e = ends[col];
+        boolean negative = false;
+        byte b = buf.get(i);
+        if (b == '-' || b == '+') {
+            negative = b == '-';
+            i++;
+        }
+        if (i == e || e - i > MAX_LONG_DIGITS) {
+            // Empty, or possibly too large for the fast path.
+            return Long.parseLong(text(buf, col).trim());
+        }
+        long v = 0;
+        for (; i<e; i++) {
+            int d = buf.get(i) - '0';
+            if (d < 0 || d > 9) {
+                return Long.parseLong(text(buf, col).trim());
+            }
+            v = v * 10 + d;
+        }
+        return negative ? -v : v;
+    }
+
+    /**
+     * Builds the BigDecimal from an unscaled long where the value has no more than MAX_LONG_DIGITS digits.
+     */
+    private BigDecimal parseBigDecimal (ByteBuffer buf, int col) {
+        int i = starts[col];
+        final int e = ends[col];
+        boolean negative = false;
+        byte b = buf.get(i);
+        if (b == '-' || b == '+') {
+            negative = b == '-';
+            i++;
+        }
+        long unscaled = 0;
+        int digits = 0;
+        int scale = -1;
+        for (; i<e; i++) {
+            b = buf.get(i);
+            if (b == '.' && scale < 0) {
+                scale = 0;
+                continue;
+            }
+            int d = b - '0';
+            if (d < 0 || d > 9 || ++digits > MAX_LONG_DIGITS) {
+                return new BigDecimal(text(buf, col).trim());
+            }
+            unscaled = unscaled * 10 + d;
+            if (scale >= 0) {
+                scale++;
+            }
+        }
+        if (digits == 0) {
+            return new BigDecimal(text(buf, col).trim());
+        }
+        return BigDecimal.valueOf(negative ? -unscaled : unscaled, Math.max(scale, 0));
+    }
+
+    private Boolean parseBoolean (ByteBuffer buf, int col) {
+        final int s = starts[col];
+        if (ends[col] - s == 1) {
+            byte b = buf.get(s);
+            if (b == '1' || b == 'Y' || b == 'y' || b == 'T' || b == 't') return Boolean.TRUE;
+            if (b == '0' || b == 'N' || b == 'n' || b == 'F' || b == 'f') return Boolean.FALSE;
+        }
+        String s2 = text(buf, col).trim();
+        if (s2.equalsIgnoreCase("true") || s2.equalsIgnoreCase("yes")) return Boolean.TRUE;
+        if (s2.equalsIgnoreCase("false") || s2.equalsIgnoreCase("no")) return Boolean.FALSE;
+        throw new IllegalArgumentException("not a boolean");
+    }
+
+    private TupleDiffException recordError (String problem, long recordOffset) {
+        return new TupleDiffException("Record at byte " + recordOffset + " of " + source.getName() + " " + problem,
+                source);
+    }
+}
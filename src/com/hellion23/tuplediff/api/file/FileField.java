@@ -0,0 +1,30 @@
+package com.hellion23.tuplediff.api.file;
+
+import com.hellion23.tuplediff.api.Field;
+
+/**
+ * A column of a delimited file.
+ *
+ * @author: Hermann Leung
+ * Date: 3/2/2015
+ */
+public class FileField extends Field {
+    int columnIndex;
+
+    /**
+     * @param columnIndex the position of the column within a record, starting at 0.
+     */
+    public FileField(String name, Class fieldClass, int columnIndex) {
+        this.name = name;
+        this.fieldClass = fieldClass;
+        this.columnIndex = columnIndex;
+    }
+
+    public int getColumnIndex() {
+        return columnIndex;
+    }
+
+    public void setColumnIndex(int columnIndex) {
+        this.columnIndex = columnIndex;
+    }
+}
@@ -0,0 +1,38 @@
+package com.hellion23.tuplediff.api.file;
+
+import com.hellion23.tuplediff.api.Schema;
+import com.hellion23.tuplediff.api.TupleStreamKey;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * The Schema of a delimited file; all fields are the file's columns in column order.
+ *
+ * @author: Hermann Leung
+ * Date: 3/2/2015
+ */
+public class FileSchema extends Schema<FileField> {
+    File file;
+
+    public FileSchema(TupleStreamKey tupleStreamKey,
+                      Collection<FileField> keyFields,
+                      Collection<FileField> compareFields,
+                      Collection<FileField> allFields) {
+        this.allFields = new ArrayList<FileField>(allFields);
+        this.compareFields = new ArrayList<FileField>(compareFields);
+        this.keyFields = new ArrayList<FileField>(keyFields);
+        this.tupleStreamKey = tupleStreamKey;
+        this.strict = false;
+        indexFields();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public void setFile(File file) {
+        this.file = file;
+    }
+}
@@ -0,0 +1,359 @@
+package com.hellion23.tuplediff.api.io;
+
+import com.hellion23.tuplediff.api.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A file of Tuples in key order, stored in blocks of up to blockRows Tuples so that a stream can be recorded once and
+ * replayed many times (see TeeTupleStream and ColumnarTupleStream).
+ *
+ * Layout: a header holding the Schema (the fields with their classes, key fields and compare fields), the blocks, the
+ * block index and a trailer pointing at the index. Within a block the values are written column by column with
+ * TupleSerializer, and the block is Deflate compressed; values of a column tend to be alike, so this compresses much
+ * better than rows. The index holds each block's position and its first and last keys, so a reader can go directly to
+ * the blocks of a KeyRange.
+ *
+ * Files are written to a temporary file next to the target, which replaces the target on commit().
+ *
+ * @author: Hermann Leung
+ * Date: 3/4/2015
+ */
+public class ColumnarTupleFile {
+    static final int MAGIC = 0x54444346;
+    static final int VERSION = 1;
+    // Trailer: index position (long) and MAGIC.
+    static final int TRAILER_SIZE = 12;
+
+    /**
+     * Writes the Tuples of a Schema, which must be added in strictly increasing key order.
+     */
+    public static class Writer implements Closeable {
+        final File file;
+        final File tempFile;
+        final Schema schema;
+        final int [] keyOrdinals;
+        final int blockRows;
+        final DataOutputStream out;
+        final Deflater deflater;
+        final List<Comparable []> rows;
+        final List<Block> blocks = new ArrayList<Block>();
+        final ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        byte [] compressed = new byte[64 * 1024];
+        long position;
+        long count;
+        Comparable [] lastKey;
+
+        public Writer (File file, Schema schema, int blockRows) throws IOException {
+            this.file = file;
+            this.tempFile = new File(file.getPath() + ".tmp");
+            this.schema = schema;
+            this.blockRows = blockRows;
+            this.rows = new ArrayList<Comparable[]>(blockRows);
+            this.keyOrdinals = ordinals(schema, schema.getKeyFields());
+            this.deflater = new Deflater(Deflater.BEST_SPEED);
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile),
+                    TupleSpillFile.BUFFER_SIZE));
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            writeHeader(new DataOutputStream(header), schema);
+            header.writeTo(out);
+            position = header.size();
+        }
+
+        public void write (Tuple tuple) throws IOException {
+            Comparable [] key = key(tuple.getValues(), keyOrdinals);
+            if (lastKey != null && TupleStreamKey.compareKeyValues(lastKey, key) >= 0) {
+                throw new IOException("Tuples are not in key order: " + tuple.getKey() + " after " + count + " Tuples");
+            }
+            lastKey = key;
+            rows.add(tuple.getValues());
+            count++;
+            if (rows.size() == blockRows) {
+                flushBlock();
+            }
+        }
+
+        private void flushBlock () throws IOException {
+            if (rows.isEmpty()) {
+                return;
+            }
+            raw.reset();
+            DataOutputStream columns = new DataOutputStream(raw);
+            int fields = schema.size();
+            for (int f=0; f<fields; f++) {
+                for (Comparable [] row : rows) {
+                    TupleSerializer.writeValue(columns, row[f]);
+                }
+            }
+            columns.flush();
+            byte [] bytes = raw.toByteArray();
+            deflater.reset();
+            deflater.setInput(bytes);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == compressed.length) {
+                    byte [] larger = new byte[compressed.length * 2];
+                    System.arraycopy(compressed, 0, larger, 0, length);
+                    compressed = larger;
+                }
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            out.write(compressed, 0, length);
+
+            Block block = new Block(position, length, bytes.length, rows.size(),
+                    key(rows.get(0), keyOrdinals), key(rows.get(rows.size() - 1), keyOrdinals));
+            blocks.add(block);
+            position += length;
+            rows.clear();
+        }
+
+        /**
+         * Writes the last block and the index, and moves the file into place.
+         */
+        public void commit () throws IOException {
+            flushBlock();
+            out.writeInt(blocks.size());
+            for (Block b : blocks) {
+                out.writeLong(b.offset);
+                out.writeInt(b.length);
+                out.writeInt(b.rawLength);
+                out.writeInt(b.rows);
+                for (Comparable v : b.firstKey) {
+                    TupleSerializer.writeValue(out, v);
+                }
+                for (Comparable v : b.lastKey) {
+                    TupleSerializer.writeValue(out, v);
+                }
+            }
+            out.writeLong(position);
+            out.writeInt(MAGIC);
+            out.close();
+            deflater.end();
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Could not replace " + file);
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Could not rename " + tempFile + " to " + file);
+            }
+        }
+
+        /**
+         * Discards the file, leaving any previous file in place.
+         */
+        @Override
+        public void close () throws IOException {
+            out.close();
+            deflater.end();
+            tempFile.delete();
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * The position, sizes and key bounds of a block.
+     */
+    static class Block {
+        final long offset;
+        final int length;
+        final int rawLength;
+        final int rows;
+        final Comparable [] firstKey;
+        final Comparable [] lastKey;
+
+        Block(long offset, int length, int rawLength, int rows, Comparable [] firstKey, Comparable [] lastKey) {
+            this.offset = offset;
+            this.length = length;
+            this.rawLength = rawLength;
+            this.rows = rows;
+            this.firstKey = firstKey;
+            this.lastKey = lastKey;
+        }
+    }
+
+    /**
+     * The Schema stored in a file; its Fields are plain Fields of the recorded classes.
+     */
+    public static class StoredSchema extends Schema<Field> {
+        public StoredSchema(Collection<Field> keyFields, Collection<Field> compareFields, Collection<Field> allFields) {
+            this.allFields = new ArrayList<Field>(allFields);
+            this.compareFields = new ArrayList<Field>(compareFields);
+            this.keyFields = new ArrayList<Field>(keyFields);
+            this.tupleStreamKey = new TupleStreamKey(this.keyFields);
+            this.strict = false;
+            indexFields();
+        }
+    }
+
+    /**
+     * The Schema and block index of a file, read from its header and trailer.
+     */
+    static class Layout {
+        StoredSchema schema;
+        List<Block> blocks = new ArrayList<Block>();
+        long indexOffset;
+        long count;
+    }
+
+    static Layout readLayout (FileChannel channel) throws IOException {
+        Layout layout = new Layout();
+        long size = channel.size();
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        if (size >= TRAILER_SIZE) {
+            channel.read(trailer, size - TRAILER_SIZE);
+        }
+        trailer.flip();
+        if (trailer.remaining() < TRAILER_SIZE || trailer.getInt(8) != MAGIC) {
+            throw new IOException("Not a columnar Tuple file, or it is incomplete");
+        }
+        layout.indexOffset = trailer.getLong();
+        // The streams are not closed: that would close the channel.
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+        layout.schema = readHeader(in);
+
+        int keySize = layout.schema.getKeyFields().size();
+        in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(layout.indexOffset))));
+        int blocks = in.readInt();
+        for (int i=0; i<blocks; i++) {
+            long offset = in.readLong();
+            int length = in.readInt();
+            int rawLength = in.readInt();
+            int rows = in.readInt();
+            Comparable [] firstKey = readKey(in, keySize);
+            Comparable [] lastKey = readKey(in, keySize);
+            layout.blocks.add(new Block(offset, length, rawLength, rows, firstKey, lastKey));
+            layout.count += rows;
+        }
+        return layout;
+    }
+
+    private static Comparable [] readKey (DataInput in, int keySize) throws IOException {
+        Comparable [] key = new Comparable[keySize];
+        for (int i=0; i<keySize; i++) {
+            key[i] = (Comparable) TupleSerializer.readValue(in);
+        }
+        return key;
+    }
+
+    /**
+     * Decompresses a block and rebuilds its Tuples.
+     */
+    static List<Tuple> readBlock (byte [] compressed, Block block, Schema schema, Inflater inflater)
+            throws IOException {
+        byte [] raw = new byte[block.rawLength];
+        inflater.reset();
+        inflater.setInput(compressed, 0, block.length);
+        try {
+            int n = 0;
+            while (n < raw.length && !inflater.finished()) {
+                int inflated = inflater.inflate(raw, n, raw.length - n);
+                // Nothing more can be inflated from a truncated block, or one needing a dictionary.
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated block at " + block.offset + ": inflated " + n + " of "
+                            + raw.length + " bytes");
+                }
+                n += inflated;
+            }
+            if (n < raw.length) {
+                throw new IOException("Short block at " + block.offset + ": inflated " + n + " of " + raw.length
+                        + " bytes");
+            }
+        }
+        catch (DataFormatException e) {
+            throw new IOException("Corrupt block at " + block.offset + ": " + e.getMessage(), e);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+        int fields = schema.size();
+        Comparable [][] rows = new Comparable[block.rows][fields];
+        for (int f=0; f<fields; f++) {
+            for (int r=0; r<block.rows; r++) {
+                rows[r][f] = (Comparable) TupleSerializer.readValue(in);
+            }
+        }
+        List<Tuple> tuples = new ArrayList<Tuple>(block.rows);
+        for (Comparable [] row : rows) {
+            tuples.add(new Tuple(schema, row));
+        }
+        return tuples;
+    }
+
+    static void writeHeader (DataOutputStream out, Schema<?> schema) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        List<? extends Field> fields = schema.getAllFields();
+        out.writeInt(fields.size());
+        for (Field f : fields) {
+            TupleSerializer.writeString(out, f.getName());
+            TupleSerializer.writeString(out, f.getFieldClass() == null ? Object.class.getName()
+                    : f.getFieldClass().getName());
+        }
+        writeOrdinals(out, schema, schema.getKeyFields());
+        writeOrdinals(out, schema, schema.getCompareFields());
+    }
+
+    static StoredSchema readHeader (DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a columnar Tuple file of version " + VERSION);
+        }
+        int size = in.readInt();
+        List<Field> fields = new ArrayList<Field>(size);
+        for (int i=0; i<size; i++) {
+            Field f = new Field();
+            f.setName(TupleSerializer.readString(in));
+            String className = TupleSerializer.readString(in);
+            try {
+                f.setFieldClass(Class.forName(className));
+            }
+            catch (ClassNotFoundException e) {
+                f.setFieldClass(Comparable.class);
+            }
+            fields.add(f);
+        }
+        return new StoredSchema(readFields(in, fields), readFields(in, fields), fields);
+    }
+
+    private static void writeOrdinals (DataOutput out, Schema schema, List<? extends Field> fields)
+            throws IOException {
+        out.writeInt(fields.size());
+        for (Field f : fields) {
+            out.writeInt(schema.getOrdinal(f.getName()));
+        }
+    }
+
+    private static List<Field> readFields (DataInput in, List<Field> allFields) throws IOException {
+        int size = in.readInt();
+        List<Field> fields = new ArrayList<Field>(size);
+        for (int i=0; i<size; i++) {
+            fields.add(allFields.get(in.readInt()));
+        }
+        return fields;
+    }
+
+    static int [] ordinals (Schema schema, List<? extends Field> fields) {
+        int [] ordinals = new int[fields.size()];
+        for (int i=0; i<ordinals.length; i++) {
+            ordinals[i] = schema.getOrdinal(fields.get(i).getName());
+        }
+        return ordinals;
+    }
+
+    static Comparable [] key (Comparable [] values, int [] keyOrdinals) {
+        Comparable [] key = new Comparable[keyOrdinals.length];
+        for (int i=0; i<key.length; i++) {
+            key[i] = values[keyOrdinals[i]];
+        }
+        return key;
+    }
+}
@@ -0,0 +1,292 @@
+package com.hellion23.tuplediff.api.io;
+
+import com.hellion23.tuplediff.api.*;
+import com.hellion23.tuplediff.api.monitor.Monitor;
+import com.hellion23.tuplediff.api.monitor.Monitorable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.zip.Inflater;
+
+/**
+ * A TupleStream replaying a ColumnarTupleFile, e.g. one recorded by a TeeTupleStream, in key order.
+ *
+ * Blocks are read through read-only memory mappings of WINDOW_SIZE bytes and decompressed one at a time. The stream
+ * can be restricted to a KeyRange, in which case the block index is searched for the first block that can hold keys
+ * of the range and reading stops after the range's upper bound, so partitions (see PartitionedTupleComparison) only
+ * read their own blocks. Keys are sampled from the block index.
+ *
+ * @author: Hermann Leung
+ * Date: 3/4/2015
+ */
+public class ColumnarTupleStream implements PartitionableTupleStream, Monitorable {
+    private static final Logger logger = Logger.getLogger(ColumnarTupleStream.class.getName());
+    static final long WINDOW_SIZE = MappedInputStream.WINDOW_SIZE;
+
+    final File file;
+    final KeyRange range;
+    String name;
+    Monitor monitor;
+    ColumnarTupleFile.Layout layout;
+    Schema schema;
+    TupleStreamKey tupleStreamKey;
+    RandomAccessFile randomAccessFile;
+    FileChannel channel;
+    MappedByteBuffer window;
+    long windowStart;
+    Inflater inflater;
+    byte [] compressed = new byte[0];
+    int nextBlock;
+    Iterator<Tuple> current;
+    Tuple next;
+    boolean finished = false;
+    int blocksRead = 0;
+
+    public ColumnarTupleStream(File file) {
+        this(file, null);
+    }
+
+    public ColumnarTupleStream(File file, KeyRange range) {
+        this.file = file;
+        this.range = range;
+    }
+
+    private ColumnarTupleFile.Layout getLayout () {
+        if (layout == null) {
+            try {
+                openChannel();
+                layout = ColumnarTupleFile.readLayout(channel);
+            }
+            catch (IOException e) {
+                throw new TupleDiffException("Could not read " + file + ": " + e.getMessage(), this, e);
+            }
+        }
+        return layout;
+    }
+
+    private void openChannel () throws IOException {
+        if (channel == null) {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            channel = randomAccessFile.getChannel();
+        }
+    }
+
+    @Override
+    public void open() {
+        getSchema();
+        try {
+            openChannel();
+        }
+        catch (IOException e) {
+            throw new TupleDiffException("Could not open " + file + ": " + e.getMessage(), this, e);
+        }
+        inflater = new Inflater();
+        nextBlock = firstBlock();
+        if (monitor != null) {
+            monitor.reportEvent(this, Monitor.EVENT_STATS_ATTRIBUTE, "blocks", layout.blocks.size());
+            monitor.reportEvent(this, Monitor.EVENT_STATS_ATTRIBUTE, "firstBlock", nextBlock);
+        }
+    }
+
+    /**
+     * @return the index of the first block whose last key is not below the range, found by binary search.
+     */
+    private int firstBlock () {
+        List<ColumnarTupleFile.Block> blocks = layout.blocks;
+        if (range == null || range.getLower() == null) {
+            return 0;
+        }
+        int lo = 0, hi = blocks.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = TupleStreamKey.compareKeyValues(blocks.get(mid).lastKey, range.getLower());
+            if (c < 0 || (c == 0 && !range.isLowerInclusive())) {
+                lo = mid + 1;
+            }
+            else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private List<Tuple> readBlock (ColumnarTupleFile.Block block) throws IOException {
+        if (window == null || block.offset < windowStart
+                || block.offset + block.length > windowStart + window.limit()) {
+            windowStart = block.offset;
+            long size = Math.min(Math.max(WINDOW_SIZE, block.length), layout.indexOffset - block.offset);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, size);
+        }
+        if (compressed.length < block.length) {
+            compressed = new byte[block.length];
+        }
+        window.position((int) (block.offset - windowStart));
+        window.get(compressed, 0, block.length);
+        blocksRead++;
+        return ColumnarTupleFile.readBlock(compressed, block, schema, inflater);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && !finished) {
+            if (current == null || !current.hasNext()) {
+                if (inflater == null || nextBlock >= layout.blocks.size()) {
+                    finished = true;
+                    break;
+                }
+                ColumnarTupleFile.Block block = layout.blocks.get(nextBlock++);
+                if (range != null && range.getUpper() != null) {
+                    int c = TupleStreamKey.compareKeyValues(block.firstKey, range.getUpper());
+                    if (c > 0 || (c == 0 && !range.isUpperInclusive())) {
+                        finished = true;
+                        break;
+                    }
+                }
+                try {
+                    current = readBlock(block).iterator();
+                }
+                catch (IOException e) {
+                    throw new TupleDiffException("Error reading " + file + ": " + e.getMessage(), this, e);
+                }
+                continue;
+            }
+            Tuple t = current.next();
+            if (range == null) {
+                next = t;
+                continue;
+            }
+            int position = range.position(t);
+            if (position == 0) {
+                next = t;
+            }
+            else if (position > 0) {
+                finished = true;
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public Tuple getNext() {
+        if (!hasNext()) {
+            throw new TupleDiffException("No more Tuples in this ColumnarTupleStream <" + getName() + ">", this);
+        }
+        Tuple t = next;
+        next = null;
+        return t;
+    }
+
+    @Override
+    public void close() {
+        if (monitor != null && inflater != null) {
+            monitor.reportEvent(this, Monitor.EVENT_STATS_ATTRIBUTE, "blocksRead", blocksRead);
+        }
+        current = null;
+        next = null;
+        finished = true;
+        window = null;
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+        if (randomAccessFile != null) {
+            try {
+                randomAccessFile.close();
+            }
+            catch (IOException e) {
+                logger.warning("Could not close " + file + ": " + e.getMessage());
+            }
+            randomAccessFile = null;
+            channel = null;
+        }
+    }
+
+    /**
+     * Samples the first and last keys of the blocks (within this stream's KeyRange).
+     */
+    @Override
+    public List<Comparable[]> sampleKeys(int sampleSize) {
+        List<ColumnarTupleFile.Block> blocks = getLayout().blocks;
+        List<Comparable []> keys = new ArrayList<Comparable[]>();
+        int step = Math.max(1, blocks.size() * 2 / Math.max(1, sampleSize));
+        for (int i=0; i<blocks.size(); i+=step) {
+            for (Comparable [] key : Arrays.asList(blocks.get(i).firstKey, blocks.get(i).lastKey)) {
+                if (range == null || range.contains(key)) {
+                    keys.add(key);
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * The partition reads the same file through its own channel; this stream's KeyRange is not combined with the
+     * partition's, so partitions should be created from an unrestricted stream.
+     */
+    @Override
+    public PartitionableTupleStream createPartition(KeyRange range) {
+        ColumnarTupleStream partition = new ColumnarTupleStream(file, range);
+        partition.layout = getLayout();
+        partition.schema = getSchema();
+        partition.tupleStreamKey = getTupleStreamKey();
+        return partition;
+    }
+
+    public long getCount () {
+        return getLayout().count;
+    }
+
+    @Override
+    public TupleStreamKey getTupleStreamKey() {
+        if (tupleStreamKey == null) {
+            tupleStreamKey = getSchema().getTupleStreamKey();
+        }
+        return tupleStreamKey;
+    }
+
+    @Override
+    public void setTupleStreamKey(TupleStreamKey key) {
+        this.tupleStreamKey = key;
+    }
+
+    @Override
+    public Schema getSchema() {
+        if (schema == null) {
+            schema = getLayout().schema;
+        }
+        return schema;
+    }
+
+    @Override
+    public void setSchema(Schema schema) {
+        this.schema = schema;
+    }
+
+    @Override
+    public void setMonitor(Monitor monitor) {
+        this.monitor = monitor;
+    }
+
+    @Override
+    public String getName() {
+        return name == null ? file.getName() : name;
+    }
+
+    @Override
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public KeyRange getRange() {
+        return range;
+    }
+}
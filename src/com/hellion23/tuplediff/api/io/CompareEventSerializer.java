@@ -0,0 +1,60 @@
+package com.hellion23.tuplediff.api.io;
+
+import com.hellion23.tuplediff.api.CompareEvent;
+import com.hellion23.tuplediff.api.Schema;
+import com.hellion23.tuplediff.api.Tuple;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary encoding of CompareEvents, with their Tuples encoded by TupleSerializer. Reading requires the Schemas of the
+ * LEFT and RIGHT Tuples.
+ *
+ * @author: Hermann Leung
+ * Date: 2/25/2015
+ */
+public class CompareEventSerializer {
+
+    public static void writeEvent (DataOutput out, CompareEvent event) throws IOException {
+        out.writeByte(event.getType().ordinal());
+        writeOptionalTuple(out, event.getLeftTuple());
+        writeOptionalTuple(out, event.getRightTuple());
+        List<String> breakFields = event.getBreakFields();
+        out.writeInt(breakFields == null ? -1 : breakFields.size());
+        if (breakFields != null) {
+            for (String field : breakFields) {
+                TupleSerializer.writeString(out, field);
+            }
+        }
+    }
+
+    public static CompareEvent readEvent (DataInput in, Schema leftSchema, Schema rightSchema) throws IOException {
+        CompareEvent.TYPE type = CompareEvent.TYPE.values()[in.readByte()];
+        Tuple left = readOptionalTuple(in, leftSchema);
+        Tuple right = readOptionalTuple(in, rightSchema);
+        int breakFieldCount = in.readInt();
+        List<String> breakFields = null;
+        if (breakFieldCount >= 0) {
+            breakFields = new ArrayList<String>(breakFieldCount);
+            for (int i=0; i<breakFieldCount; i++) {
+                breakFields.add(TupleSerializer.readString(in));
+            }
+        }
+        return new CompareEvent(type, left, right, breakFields);
+    }
+
+    private static void writeOptionalTuple (DataOutput out, Tuple tuple) throws IOException {
+        out.writeBoolean(tuple != null);
+        if (tuple != null) {
+            TupleSerializer.writeTuple(out, tuple);
+        }
+    }
+
+    private static Tuple readOptionalTuple (DataInput in, Schema schema) throws IOException {
+        return in.readBoolean() ? TupleSerializer.readTuple(in, schema) : null;
+    }
+}
@@ -0,0 +1,154 @@
+package com.hellion23.tuplediff.api.io;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * A file of (key, row hash) entries in key order, as emitted by a checksum stream (see
+ * SqlTupleStream.createChecksumStream), used to tell which keys of a stream changed since the previous comparison.
+ * Values are encoded with TupleSerializer; the file is read sequentially through memory mappings.
+ *
+ * The header holds a signature describing how the keys and hashes were produced (fields, hash function). A snapshot
+ * whose signature differs from the current one must not be used. It also holds a generation, which the writer shares
+ * with the files committed along with the snapshot, so that a reader can tell whether they were all committed by the
+ * same run.
+ *
+ * Files are written to a temporary file next to the target, which replaces the target on commit().
+ *
+ * @author: Hermann Leung
+ * Date: 2/25/2015
+ */
+public class KeyHashSnapshot {
+    static final int MAGIC = 0x5444534E;
+    static final int VERSION = 2;
+
+    public static boolean exists (File file) {
+        return file.isFile();
+    }
+
+    public static class Writer implements Closeable {
+        final File file;
+        final File tempFile;
+        final int keySize;
+        final DataOutputStream out;
+        long count;
+
+        public Writer (File file, String signature, String generation, int keySize) throws IOException {
+            this.file = file;
+            this.keySize = keySize;
+            this.tempFile = new File(file.getPath() + ".tmp");
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile),
+                    TupleSpillFile.BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            TupleSerializer.writeString(out, signature);
+            TupleSerializer.writeString(out, generation);
+            out.writeInt(keySize);
+        }
+
+        /**
+         * Appends an entry; keys must be written in order.
+         */
+        public void write (Comparable [] key, Comparable hash) throws IOException {
+            out.writeBoolean(true);
+            for (int i=0; i<keySize; i++) {
+                TupleSerializer.writeValue(out, key[i]);
+            }
+            TupleSerializer.writeValue(out, hash);
+            count++;
+        }
+
+        /**
+         * Completes the file and moves it into place, replacing the previous snapshot.
+         */
+        public void commit () throws IOException {
+            out.writeBoolean(false);
+            out.close();
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Could not replace " + file);
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Could not rename " + tempFile + " to " + file);
+            }
+        }
+
+        /**
+         * Discards the file, leaving the previous snapshot in place.
+         */
+        @Override
+        public void close () throws IOException {
+            out.close();
+            tempFile.delete();
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * Reads the entries one at a time: current key and hash are available after advance() returned true.
+     */
+    public static class Reader implements Closeable {
+        final DataInputStream in;
+        final String signature;
+        final String generation;
+        final int keySize;
+        Comparable [] key;
+        Comparable hash;
+
+        public Reader (File file) throws IOException {
+            this.in = new DataInputStream(new MappedInputStream(file));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                in.close();
+                throw new IOException(file + " is not a key hash snapshot");
+            }
+            this.signature = TupleSerializer.readString(in);
+            this.generation = TupleSerializer.readString(in);
+            this.keySize = in.readInt();
+        }
+
+        public boolean advance () throws IOException {
+            key = null;
+            hash = null;
+            if (!in.readBoolean()) {
+                return false;
+            }
+            key = new Comparable[keySize];
+            for (int i=0; i<keySize; i++) {
+                key[i] = (Comparable) TupleSerializer.readValue(in);
+            }
+            hash = (Comparable) TupleSerializer.readValue(in);
+            return true;
+        }
+
+        public String getSignature() {
+            return signature;
+        }
+
+        public String getGeneration() {
+            return generation;
+        }
+
+        /**
+         * @return the current key, or null before the first or after the last advance().
+         */
+        public Comparable[] getKey() {
+            return key;
+        }
+
+        public Comparable getHash() {
+            return hash;
+        }
+
+        @Override
+        public void close () throws IOException {
+            in.close();
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(key) + "=" + hash;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.hellion23.tuplediff.api.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An InputStream reading a file through read-only memory mappings, WINDOW_SIZE bytes at a time, so files larger than
+ * 2GB can be read and the bytes are copied out of the page cache only once.
+ *
+ * @author: Hermann Leung
+ * Date: 2/25/2015
+ */
+public class MappedInputStream extends InputStream {
+    static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+    final RandomAccessFile file;
+    final FileChannel channel;
+    final long length;
+    long windowStart = 0;
+    MappedByteBuffer window;
+
+    public MappedInputStream(File f) throws IOException {
+        this.file = new RandomAccessFile(f, "r");
+        this.channel = file.getChannel();
+        this.length = channel.size();
+        map(0);
+    }
+
+    private void map (long position) throws IOException {
+        windowStart = position;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, length - position));
+    }
+
+    /**
+     * @return whether there are more bytes to read, moving to the next window if the current one is exhausted.
+     */
+    private boolean available (boolean advance) throws IOException {
+        if (window.hasRemaining()) {
+            return true;
+        }
+        long next = windowStart + window.limit();
+        if (next >= length || !advance) {
+            return false;
+        }
+        map(next);
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return available(true) ? window.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!available(true)) {
+            return -1;
+        }
+        int n = Math.min(len, window.remaining());
+        window.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return window.remaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+        file.close();
+    }
+}
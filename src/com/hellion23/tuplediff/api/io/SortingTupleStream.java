@@ -0,0 +1,413 @@
+package com.hellion23.tuplediff.api.io;
+
+import com.hellion23.tuplediff.api.*;
+import com.hellion23.tuplediff.api.db.SqlTupleStream;
+import com.hellion23.tuplediff.api.monitor.Monitor;
+import com.hellion23.tuplediff.api.monitor.Monitorable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * A TupleStream that emits the Tuples of an unordered TupleStream in TupleStreamKey order (an external merge sort),
+ * for sources that cannot sort themselves cheaply.
+ *
+ * open() reads the whole source. Tuples are collected in chunks that are sorted concurrently by sortThreads threads.
+ * As long as no more than memoryBudgetTuples Tuples have been read, the sorted chunks are kept in memory; beyond that
+ * every sorted chunk is written to a temporary run file in tempDirectory (see TupleSpillFile), with at most
+ * memoryBudgetTuples Tuples held in memory at any time. hasNext()/getNext() then perform a k-way merge of the runs.
+ * At most maxFanIn run files are read at a time: if there are more, groups of maxFanIn runs are first merged into
+ * larger run files, in as many passes as it takes for the remaining runs to fit.
+ *
+ * A SqlTupleStream source is switched to an unordered query.
+ *
+ * @author: Hermann Leung
+ * Date: 2/23/2015
+ */
+public class SortingTupleStream implements TupleStream, Monitorable {
+    private static final Logger logger = Logger.getLogger(SortingTupleStream.class.getName());
+    static final Comparator<Tuple> KEY_ORDER = new Comparator<Tuple>() {
+        @Override
+        public int compare(Tuple t1, Tuple t2) {
+            return t1.getKey().compareTo(t2.getKey());
+        }
+    };
+
+    TupleStream source;
+    String name;
+    int memoryBudgetTuples = 1000000;
+    int sortThreads = Runtime.getRuntime().availableProcessors();
+    int maxFanIn = 64;
+    File tempDirectory = new File(System.getProperty("java.io.tmpdir"));
+    Monitor monitor;
+    final List<TupleSpillFile> runFiles = new LinkedList<TupleSpillFile>();
+    PriorityQueue<RunCursor> merge;
+    int spilledRuns;
+    int mergedRuns;
+
+    public SortingTupleStream(TupleStream source) {
+        this.source = source;
+        if (source instanceof SqlTupleStream) {
+            ((SqlTupleStream) source).setOrdered(false);
+        }
+    }
+
+    @Override
+    public void open() {
+        source.open();
+        ExecutorService sortExecutor = Executors.newFixedThreadPool(sortThreads);
+        try {
+            List<Iterator<Tuple>> runs = sortRuns(sortExecutor);
+            merge = new PriorityQueue<RunCursor>(Math.max(1, runs.size()));
+            for (Iterator<Tuple> run : runs) {
+                if (run.hasNext()) {
+                    merge.add(new RunCursor(run));
+                }
+            }
+            if (monitor != null) {
+                monitor.reportEvent(this, Monitor.EVENT_STATS_ATTRIBUTE, "sortRuns", runs.size());
+                monitor.reportEvent(this, Monitor.EVENT_STATS_ATTRIBUTE, "spilledRuns", spilledRuns);
+                monitor.reportEvent(this, Monitor.EVENT_STATS_ATTRIBUTE, "mergedRuns", mergedRuns);
+            }
+        }
+        catch (IOException e) {
+            throw new TupleDiffException("Error writing sort runs of " + getName() + " to " + tempDirectory
+                    + ": " + e.getMessage(), this, e);
+        }
+        finally {
+            sortExecutor.shutdownNow();
+            source.close();
+        }
+    }
+
+    /**
+     * Reads the source in chunks and sorts each chunk on the executor, spilling it once memoryBudgetTuples have been
+     * read. The chunk size leaves room for one chunk being filled while sortThreads chunks are being sorted.
+     * @return the sorted runs.
+     */
+    private List<Iterator<Tuple>> sortRuns (ExecutorService sortExecutor) throws IOException {
+        final int chunkSize = Math.max(1, memoryBudgetTuples / (sortThreads + 1));
+        final Semaphore inFlight = new Semaphore(sortThreads);
+        List<Future<List<Tuple>>> sorted = new ArrayList<Future<List<Tuple>>>();
+        List<Future<TupleSpillFile>> spilled = new ArrayList<Future<TupleSpillFile>>();
+        long read = 0;
+        boolean spilling = false;
+
+        List<Tuple> chunk = new ArrayList<Tuple>(chunkSize);
+        while (source.hasNext()) {
+            chunk.add(source.getNext());
+            read++;
+            if (chunk.size() == chunkSize || !source.hasNext()) {
+                if (!spilling && read > memoryBudgetTuples) {
+                    // From here on every run goes to disk, including those already sorted in memory.
+                    logger.info(getName() + " exceeds " + memoryBudgetTuples + " Tuples, spilling sort runs to "
+                            + tempDirectory);
+                    spilling = true;
+                    for (Future<List<Tuple>> f : sorted) {
+                        spilled.add(sortExecutor.submit(new SpillTask(waitFor(f))));
+                    }
+                    sorted.clear();
+                }
+                acquire(inFlight);
+                if (spilling) {
+                    spilled.add(sortExecutor.submit(new SpillTask(chunk, inFlight)));
+                }
+                else {
+                    sorted.add(sortExecutor.submit(new SortTask(chunk, inFlight)));
+                }
+                chunk = new ArrayList<Tuple>(chunkSize);
+            }
+        }
+
+        List<Iterator<Tuple>> runs = new ArrayList<Iterator<Tuple>>();
+        for (Future<List<Tuple>> f : sorted) {
+            runs.add(waitFor(f).iterator());
+        }
+        LinkedList<TupleSpillFile> files = new LinkedList<TupleSpillFile>();
+        for (Future<TupleSpillFile> f : spilled) {
+            files.add(waitFor(f));
+        }
+        spilledRuns = files.size();
+        reduceRuns(files);
+        for (TupleSpillFile file : files) {
+            runs.add(file.openReader());
+        }
+        logger.info(getName() + " sorted " + read + " Tuples into " + runs.size() + " runs");
+        return runs;
+    }
+
+    /**
+     * Merges the first run files into one, appended to the end, until at most maxFanIn remain. Groups are of maxFanIn
+     * runs, except a first smaller one if that is all it takes.
+     */
+    private void reduceRuns (LinkedList<TupleSpillFile> files) throws IOException {
+        if (files.size() > maxFanIn) {
+            logger.info(getName() + " merging " + files.size() + " sort runs " + maxFanIn + " at a time");
+        }
+        while (files.size() > maxFanIn) {
+            int groupSize = Math.min(maxFanIn, files.size() - maxFanIn + 1);
+            List<TupleSpillFile> group = new ArrayList<TupleSpillFile>(groupSize);
+            PriorityQueue<RunCursor> groupMerge = new PriorityQueue<RunCursor>(maxFanIn);
+            List<TupleSpillFile.Reader> readers = new ArrayList<TupleSpillFile.Reader>(maxFanIn);
+            TupleSpillFile merged = new TupleSpillFile(tempDirectory, "tuplediff-sort-", getSchema());
+            synchronized (runFiles) {
+                runFiles.add(merged);
+            }
+            try {
+                while (group.size() < groupSize) {
+                    TupleSpillFile file = files.removeFirst();
+                    group.add(file);
+                    TupleSpillFile.Reader reader = file.openReader();
+                    readers.add(reader);
+                    if (reader.hasNext()) {
+                        groupMerge.add(new RunCursor(reader));
+                    }
+                }
+                while (!groupMerge.isEmpty()) {
+                    RunCursor cursor = groupMerge.poll();
+                    merged.write(cursor.current);
+                    if (cursor.advance()) {
+                        groupMerge.add(cursor);
+                    }
+                }
+                merged.finishWriting();
+            }
+            finally {
+                for (TupleSpillFile.Reader reader : readers) {
+                    reader.close();
+                }
+            }
+            synchronized (runFiles) {
+                for (TupleSpillFile file : group) {
+                    file.delete();
+                    runFiles.remove(file);
+                }
+            }
+            files.addLast(merged);
+            mergedRuns++;
+        }
+    }
+
+    private void acquire (Semaphore semaphore) {
+        try {
+            semaphore.acquire();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TupleDiffException("Interrupted sorting " + getName(), this, e);
+        }
+    }
+
+    private <T> T waitFor (Future<T> future) {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TupleDiffException("Interrupted sorting " + getName(), this, e);
+        }
+        catch (ExecutionException e) {
+            throw new TupleDiffException("Error sorting " + getName() + ": " + e.getCause().getMessage(),
+                    this, e.getCause());
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return merge != null && !merge.isEmpty();
+    }
+
+    @Override
+    public Tuple getNext() {
+        if (!hasNext()) {
+            throw new TupleDiffException("No more Tuples in this SortingTupleStream <" + getName() + ">", this);
+        }
+        RunCursor cursor = merge.poll();
+        Tuple t = cursor.current;
+        if (cursor.advance()) {
+            merge.add(cursor);
+        }
+        return t;
+    }
+
+    @Override
+    public void close() {
+        merge = null;
+        source.close();
+        synchronized (runFiles) {
+            for (TupleSpillFile f : runFiles) {
+                f.delete();
+            }
+            runFiles.clear();
+        }
+    }
+
+    @Override
+    public TupleStreamKey getTupleStreamKey() {
+        return source.getTupleStreamKey();
+    }
+
+    @Override
+    public void setTupleStreamKey(TupleStreamKey key) {
+        source.setTupleStreamKey(key);
+    }
+
+    @Override
+    public Schema getSchema() {
+        return source.getSchema();
+    }
+
+    @Override
+    public void setSchema(Schema schema) {
+        source.setSchema(schema);
+    }
+
+    @Override
+    public void setMonitor(Monitor monitor) {
+        this.monitor = monitor;
+        if (source instanceof Monitorable) {
+            ((Monitorable) source).setMonitor(monitor);
+        }
+    }
+
+    @Override
+    public void setName(String name) {
+        this.name = name;
+        if (source.getName() == null) {
+            source.setName(name + " - SOURCE");
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    public int getMemoryBudgetTuples() {
+        return memoryBudgetTuples;
+    }
+
+    /**
+     * The maximum number of Tuples held in memory while sorting.
+     */
+    public void setMemoryBudgetTuples(int memoryBudgetTuples) {
+        this.memoryBudgetTuples = memoryBudgetTuples;
+    }
+
+    public int getSortThreads() {
+        return sortThreads;
+    }
+
+    public void setSortThreads(int sortThreads) {
+        this.sortThreads = sortThreads;
+    }
+
+    public int getMaxFanIn() {
+        return maxFanIn;
+    }
+
+    /**
+     * The maximum number of run files read at the same time, each through a buffer of TupleSpillFile.BUFFER_SIZE
+     * bytes. Defaults to 64.
+     */
+    public void setMaxFanIn(int maxFanIn) {
+        assert (maxFanIn > 1);
+        this.maxFanIn = maxFanIn;
+    }
+
+    public File getTempDirectory() {
+        return tempDirectory;
+    }
+
+    public void setTempDirectory(File tempDirectory) {
+        this.tempDirectory = tempDirectory;
+    }
+
+    class SortTask implements Callable<List<Tuple>> {
+        List<Tuple> chunk;
+        Semaphore inFlight;
+
+        SortTask(List<Tuple> chunk, Semaphore inFlight) {
+            this.chunk = chunk;
+            this.inFlight = inFlight;
+        }
+
+        @Override
+        public List<Tuple> call() {
+            try {
+                Collections.sort(chunk, KEY_ORDER);
+                return chunk;
+            }
+            finally {
+                inFlight.release();
+            }
+        }
+    }
+
+    /**
+     * Sorts (unless already sorted) and writes a chunk to a run file.
+     */
+    class SpillTask implements Callable<TupleSpillFile> {
+        List<Tuple> chunk;
+        Semaphore inFlight;
+
+        SpillTask(List<Tuple> sortedChunk) {
+            this(sortedChunk, null);
+        }
+
+        SpillTask(List<Tuple> chunk, Semaphore inFlight) {
+            this.chunk = chunk;
+            this.inFlight = inFlight;
+        }
+
+        @Override
+        public TupleSpillFile call() throws IOException {
+            try {
+                if (inFlight != null) {
+                    Collections.sort(chunk, KEY_ORDER);
+                }
+                TupleSpillFile run = new TupleSpillFile(tempDirectory, "tuplediff-sort-", getSchema());
+                synchronized (runFiles) {
+                    runFiles.add(run);
+                }
+                for (Tuple t : chunk) {
+                    run.write(t);
+                }
+                run.finishWriting();
+                chunk = null;
+                return run;
+            }
+            finally {
+                if (inFlight != null) {
+                    inFlight.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * The head of a sorted run, ordered by the key of its current Tuple.
+     */
+    static class RunCursor implements Comparable<RunCursor> {
+        Iterator<Tuple> run;
+        Tuple current;
+
+        RunCursor(Iterator<Tuple> run) {
+            this.run = run;
+            this.current = run.next();
+        }
+
+        boolean advance() {
+            current = run.hasNext() ? run.next() : null;
+            return current != null;
+        }
+
+        @Override
+        public int compareTo(RunCursor o) {
+            return current.getKey().compareTo(o.current.getKey());
+        }
+    }
+}
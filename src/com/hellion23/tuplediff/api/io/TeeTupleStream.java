@@ -0,0 +1,153 @@
+package com.hellion23.tuplediff.api.io;
+
+import com.hellion23.tuplediff.api.*;
+import com.hellion23.tuplediff.api.monitor.Monitor;
+import com.hellion23.tuplediff.api.monitor.Monitorable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * Passes the Tuples of a TupleStream through while recording them into a ColumnarTupleFile, so the stream (e.g. an
+ * expensive production query) can later be replayed with a ColumnarTupleStream instead of being run again.
+ *
+ * The file is only put in place once the source has been read to the end; if the stream is closed before that, the
+ * partial file is discarded and any previous recording is kept.
+ *
+ * @author: Hermann Leung
+ * Date: 3/4/2015
+ */
+public class TeeTupleStream implements TupleStream, Monitorable {
+    private static final Logger logger = Logger.getLogger(TeeTupleStream.class.getName());
+
+    final TupleStream source;
+    final File file;
+    int blockRows = 8192;
+    ColumnarTupleFile.Writer writer;
+    boolean committed = false;
+    Monitor monitor;
+
+    public TeeTupleStream(TupleStream source, File file) {
+        this.source = source;
+        this.file = file;
+    }
+
+    @Override
+    public void open() {
+        source.open();
+        try {
+            writer = new ColumnarTupleFile.Writer(file, source.getSchema(), blockRows);
+        }
+        catch (IOException e) {
+            throw new TupleDiffException("Could not create " + file + ": " + e.getMessage(), this, e);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (source.hasNext()) {
+            return true;
+        }
+        if (writer != null && !committed) {
+            try {
+                writer.commit();
+                committed = true;
+                logger.info(getName() + " recorded " + writer.getCount() + " Tuples to " + file);
+                if (monitor != null) {
+                    monitor.reportEvent(this, Monitor.EVENT_STATS_ATTRIBUTE, "recordedTuples", writer.getCount());
+                }
+            }
+            catch (IOException e) {
+                throw new TupleDiffException("Could not complete " + file + ": " + e.getMessage(), this, e);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Tuple getNext() {
+        Tuple t = source.getNext();
+        try {
+            writer.write(t);
+        }
+        catch (IOException e) {
+            throw new TupleDiffException("Could not record to " + file + ": " + e.getMessage(), this, e);
+        }
+        return t;
+    }
+
+    @Override
+    public void close() {
+        source.close();
+        if (writer != null) {
+            if (!committed) {
+                logger.info(getName() + " closed before the end, discarding " + file);
+            }
+            try {
+                writer.close();
+            }
+            catch (IOException e) {
+                logger.warning("Could not close " + file + ": " + e.getMessage());
+            }
+            writer = null;
+        }
+    }
+
+    @Override
+    public TupleStreamKey getTupleStreamKey() {
+        return source.getTupleStreamKey();
+    }
+
+    @Override
+    public void setTupleStreamKey(TupleStreamKey key) {
+        source.setTupleStreamKey(key);
+    }
+
+    @Override
+    public Schema getSchema() {
+        return source.getSchema();
+    }
+
+    @Override
+    public void setSchema(Schema schema) {
+        source.setSchema(schema);
+    }
+
+    @Override
+    public void setMonitor(Monitor monitor) {
+        this.monitor = monitor;
+        if (source instanceof Monitorable) {
+            ((Monitorable) source).setMonitor(monitor);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return source.getName();
+    }
+
+    @Override
+    public void setName(String name) {
+        source.setName(name);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getBlockRows() {
+        return blockRows;
+    }
+
+    /**
+     * The number of Tuples per compressed block; smaller blocks make range reads more selective.
+     */
+    public void setBlockRows(int blockRows) {
+        this.blockRows = blockRows;
+    }
+
+    public boolean isCommitted() {
+        return committed;
+    }
+}
@@ -0,0 +1,199 @@
+package com.hellion23.tuplediff.api.io;
+
+import com.hellion23.tuplediff.api.Schema;
+import com.hellion23.tuplediff.api.Tuple;
+import com.hellion23.tuplediff.api.TupleDiffException;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary encoding of Tuple values, used wherever Tuples are written to local disk. Each value is written as a
+ * one byte type tag followed by a type specific payload; values of types not listed here are written with Java
+ * serialization. A Tuple is written as its values in Field ordinal order, so the Schema is needed to read it back.
+ *
+ * @author: Hermann Leung
+ * Date: 2/16/2015
+ */
+public class TupleSerializer {
+    static final byte NULL = 0;
+    static final byte STRING = 1;
+    static final byte INTEGER = 2;
+    static final byte LONG = 3;
+    static final byte DOUBLE = 4;
+    static final byte FLOAT = 5;
+    static final byte SHORT = 6;
+    static final byte BYTE = 7;
+    static final byte BOOLEAN = 8;
+    static final byte CHARACTER = 9;
+    static final byte BIG_DECIMAL = 10;
+    static final byte BIG_INTEGER = 11;
+    static final byte TIMESTAMP = 12;
+    static final byte SQL_DATE = 13;
+    static final byte SQL_TIME = 14;
+    static final byte DATE = 15;
+    static final byte SERIALIZED = 99;
+
+    public static void writeTuple (DataOutput out, Tuple tuple) throws IOException {
+        Comparable [] values = tuple.getValues();
+        for (int i=0; i<values.length; i++) {
+            writeValue(out, values[i]);
+        }
+    }
+
+    public static Tuple readTuple (DataInput in, Schema schema) throws IOException {
+        Comparable [] values = new Comparable[schema.size()];
+        for (int i=0; i<values.length; i++) {
+            values[i] = (Comparable) readValue(in);
+        }
+        return new Tuple(schema, values);
+    }
+
+    public static void writeValue (DataOutput out, Object o) throws IOException {
+        if (o == null) {
+            out.writeByte(NULL);
+        }
+        else if (o instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) o);
+        }
+        else if (o instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) o);
+        }
+        else if (o instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) o);
+        }
+        else if (o instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) o);
+        }
+        else if (o instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) o);
+        }
+        else if (o instanceof Short) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) o);
+        }
+        else if (o instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) o);
+        }
+        else if (o instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) o);
+        }
+        else if (o instanceof Character) {
+            out.writeByte(CHARACTER);
+            out.writeChar((Character) o);
+        }
+        else if (o instanceof BigDecimal) {
+            out.writeByte(BIG_DECIMAL);
+            BigDecimal bd = (BigDecimal) o;
+            out.writeInt(bd.scale());
+            writeBytes(out, bd.unscaledValue().toByteArray());
+        }
+        else if (o instanceof BigInteger) {
+            out.writeByte(BIG_INTEGER);
+            writeBytes(out, ((BigInteger) o).toByteArray());
+        }
+        else if (o instanceof java.sql.Timestamp) {
+            out.writeByte(TIMESTAMP);
+            out.writeLong(((java.sql.Timestamp) o).getTime());
+            out.writeInt(((java.sql.Timestamp) o).getNanos());
+        }
+        else if (o instanceof java.sql.Date) {
+            out.writeByte(SQL_DATE);
+            out.writeLong(((java.sql.Date) o).getTime());
+        }
+        else if (o instanceof java.sql.Time) {
+            out.writeByte(SQL_TIME);
+            out.writeLong(((java.sql.Time) o).getTime());
+        }
+        else if (o.getClass() == java.util.Date.class) {
+            out.writeByte(DATE);
+            out.writeLong(((java.util.Date) o).getTime());
+        }
+        else {
+            out.writeByte(SERIALIZED);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bytes);
+            oos.writeObject(o);
+            oos.close();
+            writeBytes(out, bytes.toByteArray());
+        }
+    }
+
+    public static Object readValue (DataInput in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case INTEGER:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case DOUBLE:
+                return in.readDouble();
+            case FLOAT:
+                return in.readFloat();
+            case SHORT:
+                return in.readShort();
+            case BYTE:
+                return in.readByte();
+            case BOOLEAN:
+                return in.readBoolean();
+            case CHARACTER:
+                return in.readChar();
+            case BIG_DECIMAL:
+                int scale = in.readInt();
+                return new BigDecimal(new BigInteger(readBytes(in)), scale);
+            case BIG_INTEGER:
+                return new BigInteger(readBytes(in));
+            case TIMESTAMP:
+                java.sql.Timestamp ts = new java.sql.Timestamp(in.readLong());
+                ts.setNanos(in.readInt());
+                return ts;
+            case SQL_DATE:
+                return new java.sql.Date(in.readLong());
+            case SQL_TIME:
+                return new java.sql.Time(in.readLong());
+            case DATE:
+                return new java.util.Date(in.readLong());
+            case SERIALIZED:
+                try {
+                    return new ObjectInputStream(new ByteArrayInputStream(readBytes(in))).readObject();
+                }
+                catch (ClassNotFoundException e) {
+                    throw new IOException("Could not deserialize value", e);
+                }
+            default:
+                throw new TupleDiffException("Unknown value type tag " + tag + " in serialized Tuple data", null);
+        }
+    }
+
+    public static void writeString (DataOutput out, String s) throws IOException {
+        writeBytes(out, s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static String readString (DataInput in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    static void writeBytes (DataOutput out, byte [] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static byte [] readBytes (DataInput in) throws IOException {
+        byte [] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
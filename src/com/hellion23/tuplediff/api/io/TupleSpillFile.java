@@ -0,0 +1,116 @@
+package com.hellion23.tuplediff.api.io;
+
+import com.hellion23.tuplediff.api.Schema;
+import com.hellion23.tuplediff.api.Tuple;
+import com.hellion23.tuplediff.api.TupleDiffException;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A temporary file of Tuples of a single Schema, written sequentially with TupleSerializer and then read back
+ * sequentially, possibly several times. The file is deleted by delete(), or when the JVM exits.
+ *
+ * @author: Hermann Leung
+ * Date: 2/16/2015
+ */
+public class TupleSpillFile {
+    static final int BUFFER_SIZE = 64 * 1024;
+    File file;
+    Schema schema;
+    DataOutputStream out;
+    long count = 0;
+
+    public TupleSpillFile(File directory, String prefix, Schema schema) throws IOException {
+        this.schema = schema;
+        this.file = File.createTempFile(prefix, ".spill", directory);
+        this.file.deleteOnExit();
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    }
+
+    public void write (Tuple tuple) throws IOException {
+        TupleSerializer.writeTuple(out, tuple);
+        count++;
+    }
+
+    /**
+     * Flushes and closes the file for writing. Must be called before the file is read.
+     */
+    public void finishWriting () throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    public Reader openReader () throws IOException {
+        finishWriting();
+        return new Reader();
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public void delete () {
+        try {
+            finishWriting();
+        }
+        catch (IOException e) {
+            // Deleting anyway.
+        }
+        file.delete();
+    }
+
+    /**
+     * Iterates over the Tuples of the file in the order they were written. IOExceptions are re-thrown as
+     * TupleDiffExceptions.
+     */
+    public class Reader implements Iterator<Tuple>, Closeable {
+        DataInputStream in;
+        long remaining;
+
+        Reader () throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            remaining = count;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        public Tuple next() {
+            if (remaining <= 0) {
+                throw new NoSuchElementException();
+            }
+            try {
+                remaining--;
+                Tuple t = TupleSerializer.readTuple(in, schema);
+                if (remaining == 0) {
+                    close();
+                }
+                return t;
+            }
+            catch (IOException e) {
+                throw new TupleDiffException("Error reading spill file " + file + ": " + e.getMessage(), null, e);
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package com.hellion23.tuplediff.api.listener;
+
+import com.hellion23.tuplediff.api.CompareEvent;
+import com.hellion23.tuplediff.api.Config;
+import com.hellion23.tuplediff.api.Tuple;
+import com.hellion23.tuplediff.api.TupleDiffException;
+import com.hellion23.tuplediff.api.monitor.Monitor;
+import com.hellion23.tuplediff.api.monitor.Monitorable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Hands CompareEvents over to another CompareEventListener on dedicated consumer threads, so that a slow listener
+ * (writing to a file, queue or database) does not hold up the comparison.
+ *
+ * Each consumer thread drains its own ring buffer of ringSize preallocated slots; with more than one consumer, events
+ * are assigned to a ring by the hash of their key, so the events of a key are delivered in order, but the delegate
+ * must then be thread safe. When a ring is full the comparison waits for space (OverflowPolicy.BLOCK) or the event is
+ * dropped and counted (OverflowPolicy.DROP). Threads waiting for events or space do so according to the
+ * WaitStrategy, trading latency for CPU.
+ *
+ * close() waits until all events have been delivered and then closes the delegate; getCompareEvents() returns the
+ * delegate's. The queue depth and the dispatch lag (time from handleCompareEvent to delivery) are reported to the
+ * Monitor as Stats attributes of this listener every reportIntervalMillis, along with their maxima, and the dispatched
+ * and dropped counts on close(). An exception thrown by the delegate is re-thrown from the next handleCompareEvent or
+ * close().
+ *
+ * @author: Hermann Leung
+ * Date: 3/6/2015
+ */
+public class AsyncCompareEventListener<T extends Collection<CompareEvent>> implements CompareEventListener<T>,
+        Monitorable {
+    private static final Logger logger = Logger.getLogger(AsyncCompareEventListener.class.getName());
+    static final int SPIN_TRIES = 100;
+    static final int YIELD_TRIES = 200;
+    static final long BLOCKING_WAIT_MICROS = 1000;
+
+    public enum WaitStrategy {
+        /** Waits on a lock condition; least CPU, highest latency. */
+        BLOCKING,
+        /** Spins, then yields, then parks briefly. */
+        SLEEPING,
+        /** Spins, then yields. */
+        YIELDING,
+        /** Spins; lowest latency, occupies a core per waiting thread. */
+        BUSY_SPIN
+    }
+
+    public enum OverflowPolicy {BLOCK, DROP}
+
+    final CompareEventListener<T> delegate;
+    String name;
+    int ringSize = 8192;
+    int consumers = 1;
+    WaitStrategy waitStrategy = WaitStrategy.SLEEPING;
+    OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    long reportIntervalMillis = 1000;
+    Monitor monitor;
+    List<Ring> rings;
+    volatile boolean closed = false;
+    volatile Throwable failure;
+    final AtomicLong dropped = new AtomicLong();
+    final AtomicLong dispatched = new AtomicLong();
+    volatile long maxQueueDepth;
+    volatile long maxDispatchLagNanos;
+
+    public AsyncCompareEventListener(CompareEventListener<T> delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void init(Config config) {
+        delegate.init(config);
+        if (name == null && config != null && config.getName() != null) {
+            name = config.getName() + " - async listener";
+        }
+        int size = Integer.highestOneBit(Math.max(1, ringSize - 1)) << 1;
+        rings = new ArrayList<Ring>();
+        for (int i=0; i<Math.max(1, consumers); i++) {
+            Ring ring = new Ring(size);
+            ring.thread = new Thread(ring, getName() + " - consumer " + (i + 1));
+            ring.thread.setDaemon(true);
+            rings.add(ring);
+        }
+        for (Ring ring : rings) {
+            ring.thread.start();
+        }
+    }
+
+    @Override
+    public void handleCompareEvent(CompareEvent compareEvent) {
+        if (failure != null) {
+            throw new TupleDiffException("Delivery of CompareEvents failed: " + failure.getMessage(), this, failure);
+        }
+        if (rings == null) {
+            throw new TupleDiffException(getName() + " was not initialized", this);
+        }
+        ringOf(compareEvent).publish(compareEvent);
+    }
+
+    private Ring ringOf (CompareEvent compareEvent) {
+        if (rings.size() == 1) {
+            return rings.get(0);
+        }
+        Tuple t = compareEvent.getLeftTuple() != null ? compareEvent.getLeftTuple() : compareEvent.getRightTuple();
+        int h = t == null ? 0 : t.getKey().hashCode();
+        h ^= h >>> 16;
+        return rings.get((h & 0x7FFFFFFF) % rings.size());
+    }
+
+    @Override
+    public T getCompareEvents() {
+        return delegate.getCompareEvents();
+    }
+
+    /**
+     * Waits for every event to be delivered, then closes the delegate.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (rings != null) {
+            for (Ring ring : rings) {
+                ring.wake();
+                try {
+                    ring.thread.join();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new TupleDiffException("Interrupted waiting for CompareEvents to be delivered", this, e);
+                }
+            }
+            reportAttribute("dispatched", dispatched.get());
+            reportAttribute("dropped", dropped.get());
+            reportAttribute("maxQueueDepth", maxQueueDepth);
+            reportAttribute("maxDispatchLagMillis", TimeUnit.NANOSECONDS.toMillis(maxDispatchLagNanos));
+        }
+        delegate.close();
+        if (failure != null) {
+            throw new TupleDiffException("Delivery of CompareEvents failed: " + failure.getMessage(), this, failure);
+        }
+    }
+
+    private void reportAttribute (String attribute, Object value) {
+        if (monitor != null) {
+            monitor.reportEvent(this, Monitor.EVENT_STATS_ATTRIBUTE, attribute, value);
+        }
+    }
+
+    /**
+     * A single producer (callers are serialized on the Ring), single consumer ring of reusable slots. published and
+     * consumed are the sequence numbers of the last slot written and the last slot delivered.
+     */
+    class Ring implements Runnable {
+        final CompareEvent [] events;
+        final long [] publishNanos;
+        final int mask;
+        final AtomicLong published = new AtomicLong(-1);
+        final AtomicLong consumed = new AtomicLong(-1);
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition changed = lock.newCondition();
+        volatile int waiters = 0;
+        long next = 0;
+        Thread thread;
+
+        Ring(int size) {
+            events = new CompareEvent[size];
+            publishNanos = new long[size];
+            mask = size - 1;
+        }
+
+        synchronized void publish (CompareEvent compareEvent) {
+            long wrapPoint = next - events.length;
+            int attempt = 0;
+            while (consumed.get() < wrapPoint) {
+                if (overflowPolicy == OverflowPolicy.DROP) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                if (failure != null || !thread.isAlive()) {
+                    throw new TupleDiffException("Delivery of CompareEvents stopped", AsyncCompareEventListener.this,
+                            failure);
+                }
+                idle(attempt++);
+            }
+            int slot = (int) next & mask;
+            events[slot] = compareEvent;
+            if (monitor != null) {
+                publishNanos[slot] = System.nanoTime();
+            }
+            published.lazySet(next++);
+            wake();
+        }
+
+        @Override
+        public void run() {
+            long lastReport = System.currentTimeMillis();
+            int attempt = 0;
+            try {
+                while (true) {
+                    long from = consumed.get() + 1;
+                    long to = published.get();
+                    if (to < from) {
+                        if (closed && published.get() < from) {
+                            break;
+                        }
+                        idle(attempt++);
+                        continue;
+                    }
+                    attempt = 0;
+                    long depth = to - from + 1;
+                    if (depth > maxQueueDepth) {
+                        maxQueueDepth = depth;
+                    }
+                    for (long s=from; s<=to; s++) {
+                        int slot = (int) s & mask;
+                        CompareEvent compareEvent = events[slot];
+                        events[slot] = null;
+                        if (monitor != null) {
+                            long lag = System.nanoTime() - publishNanos[slot];
+                            if (lag > maxDispatchLagNanos) {
+                                maxDispatchLagNanos = lag;
+                            }
+                        }
+                        delegate.handleCompareEvent(compareEvent);
+                        dispatched.incrementAndGet();
+                        consumed.lazySet(s);
+                    }
+                    wake();
+                    if (monitor != null && System.currentTimeMillis() - lastReport >= reportIntervalMillis) {
+                        lastReport = System.currentTimeMillis();
+                        reportAttribute("queueDepth", published.get() - consumed.get());
+                        reportAttribute("dispatchLagMillis", TimeUnit.NANOSECONDS.toMillis(
+                                System.nanoTime() - publishNanos[(int) to & mask]));
+                    }
+                }
+            }
+            catch (Throwable t) {
+                logger.severe(Thread.currentThread().getName() + " failed delivering CompareEvents: " + t);
+                failure = t;
+                wake();
+            }
+        }
+
+        void idle (int attempt) {
+            switch (waitStrategy) {
+                case BUSY_SPIN:
+                    break;
+                case YIELDING:
+                    if (attempt > SPIN_TRIES) {
+                        Thread.yield();
+                    }
+                    break;
+                case SLEEPING:
+                    if (attempt > SPIN_TRIES + YIELD_TRIES) {
+                        LockSupport.parkNanos(100000);
+                    }
+                    else if (attempt > SPIN_TRIES) {
+                        Thread.yield();
+                    }
+                    break;
+                case BLOCKING:
+                    lock.lock();
+                    try {
+                        waiters++;
+                        // Timed, as a wake-up between the caller's check and this wait is not seen.
+                        changed.await(BLOCKING_WAIT_MICROS, TimeUnit.MICROSECONDS);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new TupleDiffException("Interrupted waiting to deliver CompareEvents",
+                                AsyncCompareEventListener.this, e);
+                    }
+                    finally {
+                        waiters--;
+                        lock.unlock();
+                    }
+                    break;
+            }
+        }
+
+        void wake () {
+            if (waiters > 0) {
+                lock.lock();
+                try {
+                    changed.signalAll();
+                }
+                finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void setMonitor(Monitor monitor) {
+        this.monitor = monitor;
+    }
+
+    @Override
+    public String getName() {
+        return name == null ? "AsyncCompareEventListener" : name;
+    }
+
+    @Override
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public CompareEventListener<T> getDelegate() {
+        return delegate;
+    }
+
+    public int getRingSize() {
+        return ringSize;
+    }
+
+    /**
+     * The number of slots per consumer, rounded up to a power of two. Set before init().
+     */
+    public void setRingSize(int ringSize) {
+        this.ringSize = ringSize;
+    }
+
+    public int getConsumers() {
+        return consumers;
+    }
+
+    /**
+     * The number of consumer threads. With more than one, the delegate must be thread safe. Set before init().
+     */
+    public void setConsumers(int consumers) {
+        this.consumers = consumers;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public long getReportIntervalMillis() {
+        return reportIntervalMillis;
+    }
+
+    public void setReportIntervalMillis(long reportIntervalMillis) {
+        this.reportIntervalMillis = reportIntervalMillis;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getDispatched() {
+        return dispatched.get();
+    }
+}
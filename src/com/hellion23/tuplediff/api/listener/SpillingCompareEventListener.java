@@ -0,0 +1,259 @@
+package com.hellion23.tuplediff.api.listener;
+
+import com.hellion23.tuplediff.api.CompareEvent;
+import com.hellion23.tuplediff.api.Config;
+import com.hellion23.tuplediff.api.Schema;
+import com.hellion23.tuplediff.api.TupleDiffException;
+import com.hellion23.tuplediff.api.io.CompareEventSerializer;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * A CompareEventListener whose memory use is bounded: it keeps the latest memoryWindow CompareEvents in memory and
+ * appends older ones to a temporary file in spillDirectory (see CompareEventSerializer), so a comparison with millions
+ * of breaks does not run out of memory.
+ *
+ * getCompareEvents() returns a read-only Collection of all events in the order they were received; each iteration
+ * reads the spilled events back from the file in chunks, followed by those in memory. The file remains readable after
+ * close(), which TupleComparison calls when the comparison ends, and is deleted by delete() or when the JVM exits.
+ * An iterator created before delete() fails with a TupleDiffException if it goes on to read spilled events.
+ *
+ * The LEFT (and RIGHT) Tuples of all events must share one Schema, as they do within a comparison.
+ *
+ * @author: Hermann Leung
+ * Date: 3/5/2015
+ */
+public class SpillingCompareEventListener implements CompareEventListener<Collection<CompareEvent>> {
+    private static final Logger logger = Logger.getLogger(SpillingCompareEventListener.class.getName());
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final int CHUNK_EVENTS = 1024;
+
+    int memoryWindow;
+    File spillDirectory;
+    final ArrayDeque<CompareEvent> window = new ArrayDeque<CompareEvent>();
+    File file;
+    DataOutputStream out;
+    long spilled = 0;
+    Schema leftSchema;
+    Schema rightSchema;
+    final Collection<CompareEvent> compareEvents = new EventCollection();
+
+    public SpillingCompareEventListener() {
+        this(10000, new File(System.getProperty("java.io.tmpdir")));
+    }
+
+    /**
+     * @param memoryWindow the number of latest CompareEvents kept in memory.
+     */
+    public SpillingCompareEventListener(int memoryWindow, File spillDirectory) {
+        this.memoryWindow = memoryWindow;
+        this.spillDirectory = spillDirectory;
+    }
+
+    @Override
+    public synchronized void handleCompareEvent(CompareEvent compareEvent) {
+        if (leftSchema == null && compareEvent.getLeftTuple() != null) {
+            leftSchema = compareEvent.getLeftTuple().getSchema();
+        }
+        if (rightSchema == null && compareEvent.getRightTuple() != null) {
+            rightSchema = compareEvent.getRightTuple().getSchema();
+        }
+        window.addLast(compareEvent);
+        if (window.size() > memoryWindow) {
+            spill(window.removeFirst());
+        }
+    }
+
+    private void spill (CompareEvent compareEvent) {
+        try {
+            if (out == null) {
+                if (file == null) {
+                    file = File.createTempFile("tuplediff-breaks-", ".spill", spillDirectory);
+                    file.deleteOnExit();
+                    logger.info("Spilling CompareEvents beyond " + memoryWindow + " to " + file);
+                }
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE));
+            }
+            CompareEventSerializer.writeEvent(out, compareEvent);
+            spilled++;
+        }
+        catch (IOException e) {
+            throw new TupleDiffException("Error spilling CompareEvents to " + file + ": " + e.getMessage(), null, e);
+        }
+    }
+
+    @Override
+    public Collection<CompareEvent> getCompareEvents() {
+        return compareEvents;
+    }
+
+    @Override
+    public void init(Config config) {}
+
+    /**
+     * Flushes the spill file; the events remain readable.
+     */
+    @Override
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            }
+            catch (IOException e) {
+                throw new TupleDiffException("Error closing " + file + ": " + e.getMessage(), null, e);
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Discards all events and deletes the spill file.
+     */
+    public synchronized void delete() {
+        close();
+        window.clear();
+        spilled = 0;
+        if (file != null) {
+            file.delete();
+            file = null;
+        }
+    }
+
+    public synchronized long getSpilled() {
+        return spilled;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * All events, spilled ones first. An iterator sees the events received before it was created.
+     */
+    class EventCollection extends AbstractCollection<CompareEvent> {
+        @Override
+        public Iterator<CompareEvent> iterator() {
+            synchronized (SpillingCompareEventListener.this) {
+                if (out != null) {
+                    try {
+                        out.flush();
+                    }
+                    catch (IOException e) {
+                        throw new TupleDiffException("Error flushing " + file + ": " + e.getMessage(), null, e);
+                    }
+                }
+                return new EventIterator(file, spilled, new ArrayList<CompareEvent>(window).iterator());
+            }
+        }
+
+        @Override
+        public int size() {
+            synchronized (SpillingCompareEventListener.this) {
+                return (int) Math.min(Integer.MAX_VALUE, spilled + window.size());
+            }
+        }
+    }
+
+    /**
+     * Reads the spilled events back CHUNK_EVENTS at a time, each chunk through its own stream, so that no file is left
+     * open by an iteration that is abandoned early.
+     */
+    class EventIterator implements Iterator<CompareEvent> {
+        final File spillFile;
+        long remaining;
+        final Iterator<CompareEvent> inMemory;
+        final ArrayDeque<CompareEvent> chunk = new ArrayDeque<CompareEvent>();
+        long position = 0;
+
+        EventIterator(File spillFile, long spilled, Iterator<CompareEvent> inMemory) {
+            this.spillFile = spillFile;
+            this.remaining = spilled;
+            this.inMemory = inMemory;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !chunk.isEmpty() || remaining > 0 || inMemory.hasNext();
+        }
+
+        @Override
+        public CompareEvent next() {
+            if (chunk.isEmpty() && remaining > 0) {
+                readChunk();
+            }
+            return chunk.isEmpty() ? inMemory.next() : chunk.removeFirst();
+        }
+
+        private void readChunk () {
+            synchronized (SpillingCompareEventListener.this) {
+                if (file != spillFile) {
+                    throw new TupleDiffException("The spilled CompareEvents of " + spillFile + " were deleted", null);
+                }
+            }
+            FileInputStream fis = null;
+            try {
+                fis = new FileInputStream(spillFile);
+                fis.getChannel().position(position);
+                CountingInputStream counted = new CountingInputStream(new BufferedInputStream(fis, BUFFER_SIZE));
+                DataInputStream in = new DataInputStream(counted);
+                for (int i=0; i<CHUNK_EVENTS && remaining > 0; i++) {
+                    chunk.addLast(CompareEventSerializer.readEvent(in, leftSchema, rightSchema));
+                    remaining--;
+                }
+                position += counted.count;
+            }
+            catch (IOException e) {
+                throw new TupleDiffException("Error reading spilled CompareEvents from " + spillFile + ": "
+                        + e.getMessage(), null, e);
+            }
+            finally {
+                if (fis != null) {
+                    try {fis.close();} catch (IOException e) {}
+                }
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Counts the bytes read through it, i.e. those consumed from the buffer beneath.
+     */
+    static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
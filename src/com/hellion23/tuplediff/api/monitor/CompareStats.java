@@ -7,67 +7,108 @@ import java.util.logging.Logger;
 
 /**
  * Created by margaret on 9/30/2014.
+ *
+ * The totals are StripedCounters, counted by the TupleComparison through count() for every Tuple rather than through
+ * Monitor.reportEvent(), and may be counted by several threads at once.
  */
 public class CompareStats extends Stats {
     private static final Logger logger = Logger.getLogger(CompareStats.class.getName());
-    protected int totalOnlyLeft;
-    protected int totalOnlyRight;
-    protected int totalLeft;
-    protected int totalRight;
-    protected int totalBreaks;
-    protected int totalMatched;
+    protected final StripedCounter totalOnlyLeft = new StripedCounter();
+    protected final StripedCounter totalOnlyRight = new StripedCounter();
+    protected final StripedCounter totalLeft = new StripedCounter();
+    protected final StripedCounter totalRight = new StripedCounter();
+    protected final StripedCounter totalBreaks = new StripedCounter();
+    protected final StripedCounter totalMatched = new StripedCounter();
+    // The counter of each CompareEvent.TYPE, by ordinal.
+    final StripedCounter [] counters = new StripedCounter[CompareEvent.TYPE.values().length];
+    // Set by a SamplingTupleComparison once its sample has been compared.
+    volatile SampleEstimate sampleEstimate;
 
     public CompareStats(Nameable source) {
         super(source);
+        counters[CompareEvent.TYPE.DATA_LEFT.ordinal()] = totalLeft;
+        counters[CompareEvent.TYPE.DATA_RIGHT.ordinal()] = totalRight;
+        counters[CompareEvent.TYPE.LEFT_BREAK.ordinal()] = totalOnlyLeft;
+        counters[CompareEvent.TYPE.RIGHT_BREAK.ordinal()] = totalOnlyRight;
+        counters[CompareEvent.TYPE.PAIR_BREAK.ordinal()] = totalBreaks;
+        counters[CompareEvent.TYPE.PAIR_MATCHED.ordinal()] = totalMatched;
     }
 
-    public int getTotalOnlyLeft() {
-        return totalOnlyLeft;
+    public long getTotalOnlyLeft() {
+        return totalOnlyLeft.sum();
     }
 
-    public int getTotalOnlyRight() {
-        return totalOnlyRight;
+    public long getTotalOnlyRight() {
+        return totalOnlyRight.sum();
     }
 
-    public int getTotalLeft() {
-        return totalLeft;
+    public long getTotalLeft() {
+        return totalLeft.sum();
     }
 
-    public int getTotalRight() {
-        return totalRight;
+    public long getTotalRight() {
+        return totalRight.sum();
     }
 
-    public int getTotalBreaks() {
-        return totalBreaks;
+    public long getTotalBreaks() {
+        return totalBreaks.sum();
     }
 
-    public int getTotalMatched() {
-        return totalMatched;
+    public long getTotalMatched() {
+        return totalMatched.sum();
+    }
+
+    /**
+     * @return the break rates of the whole comparison estimated from the sample compared, or null if the comparison
+     * was not of a sample.
+     */
+    public SampleEstimate getSampleEstimate() {
+        return sampleEstimate;
+    }
+
+    public void setSampleEstimate(SampleEstimate sampleEstimate) {
+        this.sampleEstimate = sampleEstimate;
+    }
+
+    /**
+     * Counts one compare event of the given type.
+     */
+    public void count(CompareEvent.TYPE type) {
+        counters[type.ordinal()].increment();
+    }
+
+    /**
+     * @return the number of compare events of the given type counted.
+     */
+    public long getCount(CompareEvent.TYPE type) {
+        return counters[type.ordinal()].sum();
+    }
+
+    /**
+     * Counts count compare events of the given type, e.g. those counted by another CompareStats.
+     */
+    public void add(CompareEvent.TYPE type, long count) {
+        counters[type.ordinal()].add(count);
     }
 
     public void event(String event, Object ... params) {
         switch (event) {
             case TupleComparison.COMPARE_EVENT:
-                switch ((CompareEvent.TYPE)params[0]) {
-                    case DATA_LEFT:
-                        totalLeft++;
-                        break;
-                    case DATA_RIGHT:
-                        totalRight++;
-                        break;
-                    case LEFT_BREAK:
-                        totalOnlyLeft++;
-                        break;
-                    case RIGHT_BREAK:
-                        totalOnlyRight++;
-                        break;
-                    case PAIR_BREAK:
-                        totalBreaks++;
-                        break;
-                    case PAIR_MATCHED:
-                        totalMatched++;
-                        break;
-                }
+                // Already counted through count(); only reported to Monitors subscribed to it.
+                break;
+            case TupleComparison.BULK_MATCH_EVENT:
+                long pairs = ((Number) params[0]).longValue();
+                totalLeft.add(pairs);
+                totalRight.add(pairs);
+                totalMatched.add(pairs);
+                break;
+            case TupleComparison.RESUMED_EVENT:
+                totalLeft.add(((Number) params[0]).longValue());
+                totalRight.add(((Number) params[1]).longValue());
+                totalOnlyLeft.add(((Number) params[2]).longValue());
+                totalOnlyRight.add(((Number) params[3]).longValue());
+                totalBreaks.add(((Number) params[4]).longValue());
+                totalMatched.add(((Number) params[5]).longValue());
                 break;
             default:
                 logger.info("Unknown event, passing to super: " + event);
@@ -80,7 +121,8 @@ public class CompareStats extends Stats {
         return super.toString()+
             " totalLeft: " + totalLeft + ", totalRight: " + totalRight + "\n" +
             " totalOnlyLeft: " + totalOnlyLeft + ", totalOnlyRight: " + totalOnlyRight + "\n" +
-            " totalBreaks: " + totalBreaks + ", totalMatched: " + totalMatched + "\n"
+            " totalBreaks: " + totalBreaks + ", totalMatched: " + totalMatched + "\n" +
+            (sampleEstimate == null ? "" : sampleEstimate.toString())
         ;
     }
 }
@@ -0,0 +1,86 @@
+package com.hellion23.tuplediff.api.monitor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records durations, in nanoseconds, into power-of-two buckets: recording is a few atomic increments and no
+ * allocation, and percentiles are accurate to within a factor of two, which is enough to tell a slow fetch or
+ * comparator from a normal one. Thread safe.
+ *
+ * @author: Hermann Leung
+ * Date: 3/8/2015
+ */
+public class LatencyHistogram {
+    // Bucket i holds durations of i significant bits, i.e. in [2^(i-1), 2^i).
+    final AtomicLongArray buckets = new AtomicLongArray(64);
+    final StripedCounter count = new StripedCounter();
+    final StripedCounter total = new StripedCounter();
+    final AtomicLong max = new AtomicLong();
+
+    public void record (long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.getAndIncrement(64 - Long.numberOfLeadingZeros(nanos));
+        count.increment();
+        total.add(nanos);
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos)) {
+            m = max.get();
+        }
+    }
+
+    public long getCount () {
+        return count.sum();
+    }
+
+    public long getTotalNanos () {
+        return total.sum();
+    }
+
+    public long getMaxNanos () {
+        return max.get();
+    }
+
+    public long getMeanNanos () {
+        long n = count.sum();
+        return n == 0 ? 0 : total.sum() / n;
+    }
+
+    /**
+     * @param percentile e.g. 99.0
+     * @return the upper bound of the bucket holding the percentile, or 0 when nothing was recorded.
+     */
+    public long getPercentileNanos (double percentile) {
+        long [] counts = new long[buckets.length()];
+        long n = 0;
+        for (int i=0; i<counts.length; i++) {
+            counts[i] = buckets.get(i);
+            n += counts[i];
+        }
+        long rank = (long) Math.ceil(n * percentile / 100.0);
+        long seen = 0;
+        for (int i=0; i<counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(i == 0 ? 0 : (1L << i) - 1, max.get());
+            }
+        }
+        return 0;
+    }
+
+    public double getMeanMillis () {
+        return getMeanNanos() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public double getPercentileMillis (double percentile) {
+        return getPercentileNanos(percentile) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public String toString () {
+        return "count: " + getCount() + ", mean: " + getMeanNanos() + " ns, p99: " + getPercentileNanos(99)
+                + " ns, max: " + getMaxNanos() + " ns";
+    }
+}
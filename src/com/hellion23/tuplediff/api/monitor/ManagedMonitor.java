@@ -0,0 +1,28 @@
+package com.hellion23.tuplediff.api.monitor;
+
+import com.hellion23.tuplediff.api.TupleStream;
+
+/**
+ * The optional capabilities of a Monitor, checked for with instanceof by TupleComparisons and TupleStreams. A Monitor
+ * that does not implement ManagedMonitor is reported every event, is never closed, and is not asked for Metrics: the
+ * TupleComparison records its latencies into Metrics of its own (see TupleComparison.getMetrics()) and its streams
+ * record none.
+ *
+ * @author: Hermann Leung
+ * Date: 3/8/2015
+ */
+public interface ManagedMonitor extends Monitor {
+
+    // Whether reportEvent() should be called for events of this name. Sources reporting an event for every Tuple (e.g.
+    // TupleComparison.COMPARE_EVENT, which is counted into the CompareStats directly) check this once, at start up.
+    public boolean isSubscribed(String eventName);
+
+    // Invoked by TupleComparison when the comparison has ended, normally or not.
+    public void close();
+
+    // The live latency metrics of the comparison, and those of the side the given stream (left or right) is on, or
+    // null for other streams. Resolved once by TupleComparisons and TupleStreams (see Monitorable) and recorded into
+    // directly.
+    public Metrics getMetrics();
+    public StreamMetrics getStreamMetrics (TupleStream stream);
+}
@@ -0,0 +1,39 @@
+package com.hellion23.tuplediff.api.monitor;
+
+/**
+ * Live throughput and latency metrics of a comparison, kept by its Monitor next to the CompareStats (which hold the
+ * row and break counts): the fetch metrics of each side, the time spent comparing a pair's fields (sampled, one pair
+ * in COMPARE_SAMPLE_INTERVAL) and the time taken to hand a break to the CompareEventListener.
+ *
+ * @author: Hermann Leung
+ * Date: 3/8/2015
+ */
+public class Metrics {
+    public static final int COMPARE_SAMPLE_INTERVAL = 16;
+
+    final StreamMetrics left = new StreamMetrics();
+    final StreamMetrics right = new StreamMetrics();
+    final LatencyHistogram compareLatency = new LatencyHistogram();
+    final LatencyHistogram dispatchLatency = new LatencyHistogram();
+
+    public StreamMetrics getLeft() {
+        return left;
+    }
+
+    public StreamMetrics getRight() {
+        return right;
+    }
+
+    public LatencyHistogram getCompareLatency() {
+        return compareLatency;
+    }
+
+    public LatencyHistogram getDispatchLatency() {
+        return dispatchLatency;
+    }
+
+    public String toString () {
+        return " LEFT " + left + "\n RIGHT " + right + "\n compare: " + compareLatency + "\n dispatch: "
+                + dispatchLatency + "\n";
+    }
+}
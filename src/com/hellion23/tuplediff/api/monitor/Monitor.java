@@ -16,7 +16,13 @@ public interface Monitor {
     public static final String EVENT_STOP_NORMAL = "EVENT_STOP_NORMAL";
     public static final String EVENT_STOP_ABNORMAL = "EVENT_STOP_ABNORMAL";
 
-    // Don't know if these should be/can be used...
+    // Records a named value (e.g. a tuning parameter chosen by a TupleStream) in the source's Stats.
+    // Params: attribute name (String), attribute value.
+    public static final String EVENT_STATS_ATTRIBUTE = "EVENT_STATS_ATTRIBUTE";
+
+    // Reported instead of EVENT_STOP_NORMAL or EVENT_STOP_ABNORMAL by a comparison that was cancelled, and by a
+    // Monitor that stopped the comparison, before cancelling it (param: a TupleDiffException giving the reason). Stats
+    // keep the first stop event reported.
     public static final String EVENT_STOP_CANCELLED = "EVENT_STOP_CANCELLED";
     public static final String EVENT_STOP_BY_MONITOR = "EVENT_STOP_BY_MONITOR";
 
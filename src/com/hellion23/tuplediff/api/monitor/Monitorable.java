@@ -0,0 +1,12 @@
+package com.hellion23.tuplediff.api.monitor;
+
+/**
+ * Implemented by TupleStreams (and other participants of a TupleComparison) that want to report their own events to
+ * the comparison's Monitor. The TupleComparison hands its Monitor over during initialization, before open() is called.
+ *
+ * @author: Hermann Leung
+ * Date: 2/2/2015
+ */
+public interface Monitorable extends Nameable {
+    public void setMonitor(Monitor monitor);
+}
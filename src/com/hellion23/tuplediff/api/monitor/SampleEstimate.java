@@ -0,0 +1,284 @@
+package com.hellion23.tuplediff.api.monitor;
+
+import com.hellion23.tuplediff.api.CompareEvent;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The break rates of a whole comparison estimated from a sample of its keys (see SamplingTupleComparison), each
+ * with a Wilson score interval at the given confidence level.
+ *
+ * The keys are sampled in clusters: a cluster is either a group of key hash buckets, in which case every key is in
+ * the sample independently of the others and the sample is treated as a simple random one, or a key range, in which
+ * case the keys of a range are sampled together. Break rates of range samples are ratio estimates over the clusters,
+ * and their intervals are widened by the design effect (the variance of the ratio between clusters relative to that of
+ * a simple random sample of as many keys), which is taken to be at least 1. A single range tells nothing of the
+ * variance, so its intervals are [0, 1]. Intervals shrink to the rate itself as the sampled fraction approaches 1.
+ *
+ * The rates of the break types are per sampled key (keys on either side), those of the fields per sampled pair (keys
+ * on both sides).
+ *
+ * @author: Hermann Leung
+ * Date: 3/11/2015
+ */
+public class SampleEstimate {
+    final double fraction;
+    final double confidence;
+    final double z;
+    final boolean clustered;
+    final long [] keys;
+    final long [] pairs;
+    final Map<CompareEvent.TYPE, Rate> breakRates = new EnumMap<CompareEvent.TYPE, Rate>(CompareEvent.TYPE.class);
+    final Map<String, Rate> fieldBreakRates = new LinkedHashMap<String, Rate>();
+
+    /**
+     * @param fraction the expected fraction of all keys sampled, by which sampled counts are scaled up.
+     * @param confidence the confidence level of the intervals, e.g. 0.95.
+     * @param clustered whether the keys of a cluster were sampled together.
+     * @param keys the number of keys sampled per cluster.
+     * @param pairs the number of pairs (keys found on both sides) sampled per cluster.
+     */
+    public SampleEstimate(double fraction, double confidence, boolean clustered, long [] keys, long [] pairs) {
+        assert (fraction > 0 && fraction <= 1);
+        assert (confidence > 0 && confidence < 1);
+        this.fraction = fraction;
+        this.confidence = confidence;
+        this.z = normalQuantile(1 - (1 - confidence) / 2);
+        this.clustered = clustered;
+        this.keys = keys;
+        this.pairs = pairs;
+    }
+
+    /**
+     * The estimated rate of one kind of break, per key or pair.
+     */
+    public static class Rate {
+        final String name;
+        final long count;
+        final long sampled;
+        final double rate;
+        final double lower;
+        final double upper;
+        final double estimatedCount;
+
+        Rate(String name, long count, long sampled, double rate, double lower, double upper, double estimatedCount) {
+            this.name = name;
+            this.count = count;
+            this.sampled = sampled;
+            this.rate = rate;
+            this.lower = lower;
+            this.upper = upper;
+            this.estimatedCount = estimatedCount;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the number of breaks in the sample.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the number of keys (or pairs) in the sample.
+         */
+        public long getSampled() {
+            return sampled;
+        }
+
+        public double getRate() {
+            return rate;
+        }
+
+        public double getLower() {
+            return lower;
+        }
+
+        public double getUpper() {
+            return upper;
+        }
+
+        /**
+         * @return the estimated number of breaks of the whole comparison.
+         */
+        public double getEstimatedCount() {
+            return estimatedCount;
+        }
+
+        public String toString () {
+            return name + ": " + count + "/" + sampled + " = " + percent(rate) + " [" + percent(lower) + ", "
+                    + percent(upper) + "], ~" + Math.round(estimatedCount);
+        }
+    }
+
+    /**
+     * @param perCluster the number of breaks of the type per cluster, per sampled key.
+     */
+    public void addBreakRate (CompareEvent.TYPE type, long [] perCluster) {
+        breakRates.put(type, estimate(type.name(), perCluster, keys));
+    }
+
+    /**
+     * @param perCluster the number of pairs breaking on the field per cluster, per sampled pair.
+     */
+    public void addFieldBreakRate (String fieldName, long [] perCluster) {
+        fieldBreakRates.put(fieldName, estimate(fieldName, perCluster, pairs));
+    }
+
+    Rate estimate (String name, long [] y, long [] n) {
+        long count = 0, sampled = 0;
+        for (int i=0; i<y.length; i++) {
+            count += y[i];
+            sampled += n[i];
+        }
+        double rate = sampled == 0 ? 0 : (double) count / sampled;
+        // The size of a simple random sample as precise as this one: the finite population correction alone, unless
+        // the variance between clusters says otherwise. A single cluster has no variance to go by.
+        double fpc = 1 - fraction;
+        double effectiveSize = fpc <= 0 ? Double.POSITIVE_INFINITY : sampled / fpc;
+        if (clustered && y.length == 1 && fpc > 0) {
+            effectiveSize = 0;
+        }
+        else if (clustered && rate > 0 && rate < 1) {
+            double ss = 0;
+            for (int i=0; i<y.length; i++) {
+                double residual = y[i] - rate * n[i];
+                ss += residual * residual;
+            }
+            double variance = fpc * y.length / (y.length - 1.0) * ss / ((double) sampled * sampled);
+            effectiveSize = Math.min(effectiveSize, rate * (1 - rate) / variance);
+        }
+        double [] interval = wilson(rate, effectiveSize, z);
+        return new Rate(name, count, sampled, rate, interval[0], interval[1], count / fraction);
+    }
+
+    /**
+     * The Wilson score interval of a proportion p observed in a sample of size n.
+     */
+    static double [] wilson (double p, double n, double z) {
+        if (n <= 0) {
+            return new double [] {0, 1};
+        }
+        if (Double.isInfinite(n)) {
+            return new double [] {p, p};
+        }
+        double z2n = z * z / n;
+        double centre = (p + z2n / 2) / (1 + z2n);
+        double half = z / (1 + z2n) * Math.sqrt(p * (1 - p) / n + z2n / (4 * n));
+        return new double [] {Math.max(0, centre - half), Math.min(1, centre + half)};
+    }
+
+    /**
+     * The quantile function of the standard normal distribution, by Acklam's rational approximation (relative error
+     * below 1.2e-9).
+     */
+    static double normalQuantile (double p) {
+        final double [] a = {-3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02,
+                1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00};
+        final double [] b = {-5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02,
+                6.680131188771972e+01, -1.328068155288572e+01};
+        final double [] c = {-7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00,
+                -2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00};
+        final double [] d = {7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00,
+                3.754408661907416e+00};
+        final double low = 0.02425;
+        if (p < low) {
+            double q = Math.sqrt(-2 * Math.log(p));
+            return (((((c[0]*q + c[1])*q + c[2])*q + c[3])*q + c[4])*q + c[5])
+                    / ((((d[0]*q + d[1])*q + d[2])*q + d[3])*q + 1);
+        }
+        if (p > 1 - low) {
+            return -normalQuantile(1 - p);
+        }
+        double q = p - 0.5;
+        double r = q * q;
+        return (((((a[0]*r + a[1])*r + a[2])*r + a[3])*r + a[4])*r + a[5])*q
+                / (((((b[0]*r + b[1])*r + b[2])*r + b[3])*r + b[4])*r + 1);
+    }
+
+    private static String percent (double rate) {
+        return String.format("%.4f%%", rate * 100);
+    }
+
+    public double getFraction() {
+        return fraction;
+    }
+
+    public double getConfidence() {
+        return confidence;
+    }
+
+    public boolean isClustered() {
+        return clustered;
+    }
+
+    public int getClusters() {
+        return keys.length;
+    }
+
+    public long getSampledKeys() {
+        long sum = 0;
+        for (long k : keys) {
+            sum += k;
+        }
+        return sum;
+    }
+
+    public long getSampledPairs() {
+        long sum = 0;
+        for (long p : pairs) {
+            sum += p;
+        }
+        return sum;
+    }
+
+    /**
+     * @return the estimated number of keys of the whole comparison.
+     */
+    public double getEstimatedKeys() {
+        return getSampledKeys() / fraction;
+    }
+
+    /**
+     * @return the estimates of LEFT_BREAK, RIGHT_BREAK and PAIR_BREAK rates.
+     */
+    public Map<CompareEvent.TYPE, Rate> getBreakRates() {
+        return Collections.unmodifiableMap(breakRates);
+    }
+
+    public Rate getBreakRate(CompareEvent.TYPE type) {
+        return breakRates.get(type);
+    }
+
+    /**
+     * @return the estimates of the break rate of every compare field, in compare field order.
+     */
+    public Map<String, Rate> getFieldBreakRates() {
+        return Collections.unmodifiableMap(fieldBreakRates);
+    }
+
+    public Rate getFieldBreakRate(String fieldName) {
+        return fieldBreakRates.get(fieldName);
+    }
+
+    public String toString () {
+        StringBuilder sb = new StringBuilder(" sample: ").append(percent(fraction)).append(" of keys in ")
+                .append(keys.length).append(clustered ? " key ranges" : " hash bucket groups").append(", ")
+                .append(getSampledKeys()).append(" keys, ").append(getSampledPairs()).append(" pairs, ~")
+                .append(Math.round(getEstimatedKeys())).append(" keys in all; ")
+                .append(confidence * 100).append("% intervals\n");
+        for (Rate rate : breakRates.values()) {
+            sb.append("  ").append(rate).append("\n");
+        }
+        for (Rate rate : fieldBreakRates.values()) {
+            sb.append("  field ").append(rate).append("\n");
+        }
+        return sb.toString();
+    }
+}
@@ -2,7 +2,9 @@ package com.hellion23.tuplediff.api.monitor;
 
 import com.hellion23.tuplediff.api.Field;
 
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.logging.Logger;
 
@@ -14,8 +16,12 @@ public class Stats implements Nameable {
     protected long startTime = 0;
     protected long endTime = 0;
     Exception exception;
+    // The first stop event reported: how the source ended. Later ones (e.g. the cancellation following
+    // EVENT_STOP_BY_MONITOR) are consequences of it and ignored.
+    String stopEvent;
     Nameable source;
     String name;
+    Map<String, Object> attributes = Collections.synchronizedMap(new LinkedHashMap<String, Object>());
 
     public Stats (Nameable source) {
         this.source = source;
@@ -40,21 +46,43 @@ public class Stats implements Nameable {
         this.exception = exception;
     }
 
-    public void event (String event, Object ...params) {
+    /**
+     * @return the Monitor event with which the source stopped, e.g. Monitor.EVENT_STOP_BY_MONITOR, or null if it has
+     * not.
+     */
+    public String getStopEvent() {
+        return stopEvent;
+    }
+
+    /**
+     * @return named values reported by the source through Monitor.EVENT_STATS_ATTRIBUTE.
+     */
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    public synchronized void event (String event, Object ...params) {
         switch (event) {
+            case Monitor.EVENT_STATS_ATTRIBUTE:
+                attributes.put((String) params[0], params[1]);
+                break;
             case Monitor.EVENT_START:
                 logger.info(source.getName() + " EVENT START ");
                 startTime = System.currentTimeMillis();
                 break;
             case Monitor.EVENT_STOP_NORMAL:
+                if (stopEvent != null) break;
                 logger.info(source.getName() + " EVENT END ");
+                stopEvent = event;
                 endTime = System.currentTimeMillis();
                 break;
             case Monitor.EVENT_STOP_ABNORMAL:
             case Monitor.EVENT_STOP_CANCELLED:
             case Monitor.EVENT_STOP_BY_MONITOR:
+                if (stopEvent != null) break;
+                stopEvent = event;
                 endTime = System.currentTimeMillis();
-                if (params[0] instanceof Exception) {
+                if (params.length > 0 && params[0] instanceof Exception) {
                     this.exception = (Exception)params[0];
                 }
                 break;
@@ -72,6 +100,9 @@ public class Stats implements Nameable {
     }
 
     public String toString () {
-        return this.name + " Total Runtime: " + (endTime - startTime) + " ms. \n" ;
+        return this.name + " Total Runtime: " + (endTime - startTime) + " ms. \n" +
+                (stopEvent == null || Monitor.EVENT_STOP_NORMAL.equals(stopEvent) ? "" :
+                        " " + stopEvent + (exception == null ? "" : ": " + exception.getMessage()) + "\n") +
+                (attributes.isEmpty() ? "" : " " + attributes + "\n");
     }
 }
@@ -0,0 +1,194 @@
+package com.hellion23.tuplediff.api.monitor;
+
+import java.util.Date;
+
+/**
+ * A condition under which a TupleComparisonMonitor stops the comparison early, e.g. because one side is empty or
+ * points at the wrong environment and the comparison would otherwise produce millions of breaks.
+ *
+ * Policies are checked by the Monitor's sampler thread every healthCheckIntervalMillis, off the comparison's hot
+ * path, against the totals of the CompareStats. They may keep state between checks, so every Monitor needs its own
+ * instances; init() is called when the comparison starts.
+ *
+ * @author: Hermann Leung
+ * Date: 3/12/2015
+ */
+public abstract class StopPolicy {
+
+    public void init () {
+    }
+
+    /**
+     * @param stats the totals of the comparison so far.
+     * @param elapsedMillis the time since the comparison started, including the time its queries took to open.
+     * @return why the comparison should stop, or null if it should go on.
+     */
+    public abstract String check (CompareStats stats, long elapsedMillis);
+
+    static long breaks (CompareStats stats) {
+        return stats.getTotalOnlyLeft() + stats.getTotalOnlyRight() + stats.getTotalBreaks();
+    }
+
+    /**
+     * Stops once there are more than maxBreaks breaks of any type.
+     */
+    public static class MaxBreaks extends StopPolicy {
+        final long maxBreaks;
+
+        public MaxBreaks(long maxBreaks) {
+            this.maxBreaks = maxBreaks;
+        }
+
+        @Override
+        public String check(CompareStats stats, long elapsedMillis) {
+            long breaks = breaks(stats);
+            return breaks > maxBreaks ? breaks + " breaks exceed the maximum of " + maxBreaks : null;
+        }
+
+        public String toString () {
+            return "MaxBreaks " + maxBreaks;
+        }
+    }
+
+    /**
+     * Stops once more than maxRatio of the keys compared break, checked from afterKeys keys on so that a run of breaks
+     * at the start does not stop the comparison.
+     */
+    public static class MaxBreakRatio extends StopPolicy {
+        final double maxRatio;
+        final long afterKeys;
+
+        public MaxBreakRatio(double maxRatio, long afterKeys) {
+            this.maxRatio = maxRatio;
+            this.afterKeys = afterKeys;
+        }
+
+        @Override
+        public String check(CompareStats stats, long elapsedMillis) {
+            long breaks = breaks(stats);
+            long keys = breaks + stats.getTotalMatched();
+            if (keys < afterKeys || keys == 0 || (double) breaks / keys <= maxRatio) {
+                return null;
+            }
+            return breaks + " of " + keys + " keys break, more than the maximum ratio of " + maxRatio;
+        }
+
+        public String toString () {
+            return "MaxBreakRatio " + maxRatio + " after " + afterKeys + " keys";
+        }
+    }
+
+    /**
+     * Stops once either side has more than maxOrphans keys missing from the other.
+     */
+    public static class MaxOrphans extends StopPolicy {
+        final long maxOrphans;
+
+        public MaxOrphans(long maxOrphans) {
+            this.maxOrphans = maxOrphans;
+        }
+
+        @Override
+        public String check(CompareStats stats, long elapsedMillis) {
+            long onlyLeft = stats.getTotalOnlyLeft();
+            long onlyRight = stats.getTotalOnlyRight();
+            if (onlyLeft > maxOrphans) {
+                return onlyLeft + " keys only on the left exceed the maximum of " + maxOrphans;
+            }
+            if (onlyRight > maxOrphans) {
+                return onlyRight + " keys only on the right exceed the maximum of " + maxOrphans;
+            }
+            return null;
+        }
+
+        public String toString () {
+            return "MaxOrphans " + maxOrphans;
+        }
+    }
+
+    /**
+     * Stops a comparison that runs for longer than maxMillis, or past a given time.
+     */
+    public static class Deadline extends StopPolicy {
+        final long maxMillis;
+        final Date at;
+
+        public Deadline(long maxMillis) {
+            this.maxMillis = maxMillis;
+            this.at = null;
+        }
+
+        public Deadline(Date at) {
+            this.maxMillis = Long.MAX_VALUE;
+            this.at = at;
+        }
+
+        @Override
+        public String check(CompareStats stats, long elapsedMillis) {
+            if (elapsedMillis > maxMillis) {
+                return "ran for " + elapsedMillis + " ms, longer than the maximum of " + maxMillis + " ms";
+            }
+            if (at != null && System.currentTimeMillis() > at.getTime()) {
+                return "still running at the deadline of " + at;
+            }
+            return null;
+        }
+
+        public String toString () {
+            return "Deadline " + (at == null ? maxMillis + " ms" : at.toString());
+        }
+    }
+
+    /**
+     * Stops a comparison that reads fewer than minRowsPerSecond rows (left and right) per second over a window of
+     * windowMillis. Windows start graceMillis after the comparison, leaving the queries time to open.
+     */
+    public static class MinThroughput extends StopPolicy {
+        final double minRowsPerSecond;
+        final long windowMillis;
+        final long graceMillis;
+        long windowStart = -1;
+        long windowRows;
+
+        public MinThroughput(double minRowsPerSecond, long windowMillis, long graceMillis) {
+            assert (windowMillis > 0);
+            this.minRowsPerSecond = minRowsPerSecond;
+            this.windowMillis = windowMillis;
+            this.graceMillis = graceMillis;
+        }
+
+        @Override
+        public void init() {
+            windowStart = -1;
+        }
+
+        @Override
+        public String check(CompareStats stats, long elapsedMillis) {
+            if (elapsedMillis < graceMillis) {
+                return null;
+            }
+            long rows = stats.getTotalLeft() + stats.getTotalRight();
+            if (windowStart < 0) {
+                windowStart = elapsedMillis;
+                windowRows = rows;
+                return null;
+            }
+            long millis = elapsedMillis - windowStart;
+            if (millis < windowMillis) {
+                return null;
+            }
+            double rowsPerSecond = (rows - windowRows) * 1000.0 / millis;
+            windowStart = elapsedMillis;
+            windowRows = rows;
+            if (rowsPerSecond < minRowsPerSecond) {
+                return "read " + Math.round(rowsPerSecond) + " rows/s over the last " + millis
+                        + " ms, below the minimum of " + minRowsPerSecond;
+            }
+            return null;
+        }
+
+        public String toString () {
+            return "MinThroughput " + minRowsPerSecond + " rows/s over " + windowMillis + " ms";
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.hellion23.tuplediff.api.monitor;
+
+/**
+ * Live metrics of one side of a comparison, recorded by its TupleStream(s): the time taken by each batch of rows
+ * fetched and how full the stream's read-ahead buffer is.
+ *
+ * @author: Hermann Leung
+ * Date: 3/8/2015
+ */
+public class StreamMetrics {
+    final LatencyHistogram fetchLatency = new LatencyHistogram();
+    final StripedCounter fetchedRows = new StripedCounter();
+    volatile int bufferOccupancy;
+    volatile int bufferCapacity;
+
+    /**
+     * Records a batch of rows read from the source.
+     */
+    public void recordFetch (long nanos, int rows) {
+        fetchLatency.record(nanos);
+        fetchedRows.add(rows);
+    }
+
+    public void setBuffer (int occupancy, int capacity) {
+        this.bufferOccupancy = occupancy;
+        this.bufferCapacity = capacity;
+    }
+
+    public LatencyHistogram getFetchLatency() {
+        return fetchLatency;
+    }
+
+    public long getFetchedRows() {
+        return fetchedRows.sum();
+    }
+
+    public int getBufferOccupancy() {
+        return bufferOccupancy;
+    }
+
+    public int getBufferCapacity() {
+        return bufferCapacity;
+    }
+
+    public String toString () {
+        return "fetches: " + fetchLatency + ", buffer: " + bufferOccupancy + "/" + bufferCapacity;
+    }
+}
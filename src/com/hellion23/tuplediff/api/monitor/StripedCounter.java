@@ -0,0 +1,56 @@
+package com.hellion23.tuplediff.api.monitor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread safe counter for counts updated far more often than they are read, such as the per Tuple totals of
+ * CompareStats. Updates go to one of several cells, picked by the updating thread, each on its own cache line, so
+ * threads counting concurrently (e.g. the partitions of a PartitionedTupleComparison) rarely contend; sum() adds the
+ * cells up.
+ *
+ * @author: Hermann Leung
+ * Date: 3/7/2015
+ */
+public class StripedCounter {
+    // Longs per cell: one cell per 64 byte cache line.
+    static final int PAD = 8;
+    // Twice the number of processors, rounded up to a power of two.
+    static final int STRIPES = Math.min(64,
+            Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1);
+
+    final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+    public void increment () {
+        cells.getAndIncrement(cell());
+    }
+
+    public void add (long x) {
+        cells.getAndAdd(cell(), x);
+    }
+
+    /**
+     * @return the count. Not a snapshot: updates made while it is summed may or may not be included.
+     */
+    public long sum () {
+        long sum = 0;
+        for (int i=0; i<cells.length(); i+=PAD) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    public void reset () {
+        for (int i=0; i<cells.length(); i+=PAD) {
+            cells.set(i, 0);
+        }
+    }
+
+    private static int cell () {
+        long id = Thread.currentThread().getId();
+        return ((int) (id ^ (id >>> 32)) & (STRIPES - 1)) * PAD;
+    }
+
+    public String toString () {
+        return String.valueOf(sum());
+    }
+}
@@ -0,0 +1,156 @@
+package com.hellion23.tuplediff.api.monitor;
+
+/**
+ * Publishes the CompareStats and Metrics of a comparison as a TupleComparisonMetricsMBean. Rates are averages since
+ * the comparison started.
+ *
+ * @author: Hermann Leung
+ * Date: 3/8/2015
+ */
+public class TupleComparisonMetrics implements TupleComparisonMetricsMBean {
+    final ManagedMonitor monitor;
+    final String name;
+
+    public TupleComparisonMetrics(String name, ManagedMonitor monitor) {
+        this.name = name;
+        this.monitor = monitor;
+    }
+
+    private CompareStats stats () {
+        return monitor.getCompareStats();
+    }
+
+    private Metrics metrics () {
+        return monitor.getMetrics();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getElapsedMillis() {
+        CompareStats stats = stats();
+        if (stats.getStartTime() == 0) {
+            return 0;
+        }
+        long end = stats.getEndTime() == 0 ? System.currentTimeMillis() : stats.getEndTime();
+        return end - stats.getStartTime();
+    }
+
+    private double perSecond (long count) {
+        long elapsed = getElapsedMillis();
+        return elapsed == 0 ? 0 : count * 1000.0 / elapsed;
+    }
+
+    @Override
+    public long getLeftRows() {
+        return stats().getTotalLeft();
+    }
+
+    @Override
+    public long getRightRows() {
+        return stats().getTotalRight();
+    }
+
+    @Override
+    public double getLeftRowsPerSecond() {
+        return perSecond(getLeftRows());
+    }
+
+    @Override
+    public double getRightRowsPerSecond() {
+        return perSecond(getRightRows());
+    }
+
+    @Override
+    public long getLeftOnly() {
+        return stats().getTotalOnlyLeft();
+    }
+
+    @Override
+    public long getRightOnly() {
+        return stats().getTotalOnlyRight();
+    }
+
+    @Override
+    public long getPairBreaks() {
+        return stats().getTotalBreaks();
+    }
+
+    @Override
+    public long getMatched() {
+        return stats().getTotalMatched();
+    }
+
+    @Override
+    public long getLeftFetches() {
+        return metrics().getLeft().getFetchLatency().getCount();
+    }
+
+    @Override
+    public double getLeftFetchMeanMillis() {
+        return metrics().getLeft().getFetchLatency().getMeanMillis();
+    }
+
+    @Override
+    public double getLeftFetchP99Millis() {
+        return metrics().getLeft().getFetchLatency().getPercentileMillis(99);
+    }
+
+    @Override
+    public int getLeftBufferOccupancy() {
+        return metrics().getLeft().getBufferOccupancy();
+    }
+
+    @Override
+    public long getRightFetches() {
+        return metrics().getRight().getFetchLatency().getCount();
+    }
+
+    @Override
+    public double getRightFetchMeanMillis() {
+        return metrics().getRight().getFetchLatency().getMeanMillis();
+    }
+
+    @Override
+    public double getRightFetchP99Millis() {
+        return metrics().getRight().getFetchLatency().getPercentileMillis(99);
+    }
+
+    @Override
+    public int getRightBufferOccupancy() {
+        return metrics().getRight().getBufferOccupancy();
+    }
+
+    @Override
+    public long getCompareMeanNanos() {
+        return metrics().getCompareLatency().getMeanNanos();
+    }
+
+    @Override
+    public long getCompareP99Nanos() {
+        return metrics().getCompareLatency().getPercentileNanos(99);
+    }
+
+    @Override
+    public long getDispatchCount() {
+        return metrics().getDispatchLatency().getCount();
+    }
+
+    @Override
+    public long getDispatchMeanNanos() {
+        return metrics().getDispatchLatency().getMeanNanos();
+    }
+
+    @Override
+    public long getDispatchP99Nanos() {
+        return metrics().getDispatchLatency().getPercentileNanos(99);
+    }
+
+    @Override
+    public long getDispatchMaxNanos() {
+        return metrics().getDispatchLatency().getMaxNanos();
+    }
+}
@@ -0,0 +1,38 @@
+package com.hellion23.tuplediff.api.monitor;
+
+/**
+ * The live progress of a running TupleComparison, as published over JMX by its TupleComparisonMonitor under
+ * com.hellion23.tuplediff:type=TupleComparison,name=&lt;comparison name&gt;.
+ *
+ * @author: Hermann Leung
+ * Date: 3/8/2015
+ */
+public interface TupleComparisonMetricsMBean {
+    public String getName();
+    public long getElapsedMillis();
+
+    public long getLeftRows();
+    public long getRightRows();
+    public double getLeftRowsPerSecond();
+    public double getRightRowsPerSecond();
+    public long getLeftOnly();
+    public long getRightOnly();
+    public long getPairBreaks();
+    public long getMatched();
+
+    public long getLeftFetches();
+    public double getLeftFetchMeanMillis();
+    public double getLeftFetchP99Millis();
+    public int getLeftBufferOccupancy();
+    public long getRightFetches();
+    public double getRightFetchMeanMillis();
+    public double getRightFetchP99Millis();
+    public int getRightBufferOccupancy();
+
+    public long getCompareMeanNanos();
+    public long getCompareP99Nanos();
+    public long getDispatchCount();
+    public long getDispatchMeanNanos();
+    public long getDispatchP99Nanos();
+    public long getDispatchMaxNanos();
+}
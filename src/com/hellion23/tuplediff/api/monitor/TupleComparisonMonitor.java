@@ -2,20 +2,44 @@ package com.hellion23.tuplediff.api.monitor;
 
 import com.hellion23.tuplediff.api.*;
 
-import java.util.HashMap;
-import java.util.LinkedHashMap;
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Logger;
 
 /**
+ * Compare events are counted straight into the CompareStats (see CompareStats.count()), and are also reported through
+ * reportEvent() unless TupleComparison.COMPARE_EVENT is unsubscribed from (see unsubscribe()). The health of the comparison
+ * is checked by a sampler thread every healthCheckIntervalMillis, from init() until close(), rather than on every
+ * event: a comparison failing a check, e.g. breaching one of the StopPolicies, is cancelled, which closes its streams
+ * (and their database cursors), and EVENT_STOP_BY_MONITOR is reported to its CompareStats with the reason.
+ *
+ * While the comparison runs its CompareStats and Metrics are published over JMX as a TupleComparisonMetricsMBean
+ * named com.hellion23.tuplediff:type=TupleComparison,name=&lt;comparison name&gt; (with an instance number if that
+ * name is already taken), unless publishMBean is switched off.
+ *
  * @author: Hermann Leung
  * Date: 9/29/2014
  */
-public class TupleComparisonMonitor implements Monitor {
+public class TupleComparisonMonitor implements ManagedMonitor {
     private static final Logger logger = Logger.getLogger(TupleComparisonMonitor.class.getName());
+    public static final String MBEAN_DOMAIN = "com.hellion23.tuplediff";
     TupleStream leftStream, rightStream;
     TupleComparison tc;
-    protected Map<Nameable, Stats> allStats = new HashMap<Nameable, Stats>();
+    protected Map<Nameable, Stats> allStats = new ConcurrentHashMap<Nameable, Stats>();
+    protected Set<String> unsubscribed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    protected final Metrics metrics = new Metrics();
+    long healthCheckIntervalMillis = 1000;
+    Thread sampler;
+    long startMillis;
+    protected final List<StopPolicy> stopPolicies = new CopyOnWriteArrayList<StopPolicy>();
+    boolean publishMBean = true;
+    ObjectName mbeanName;
 
     public void setTupleComparison (TupleComparison tc) {
         this.tc = tc;
@@ -35,15 +59,57 @@ public class TupleComparisonMonitor implements Monitor {
     public void init() {
         allStats.put(leftStream, new Stats(leftStream));
         allStats.put(rightStream, new Stats(rightStream));
-        allStats.put(tc, new CompareStats(tc));
+        allStats.put(tc, createCompareStats(tc));
+        startMillis = System.currentTimeMillis();
+        for (StopPolicy policy : stopPolicies) {
+            policy.init();
+        }
+        startSampler();
+        if (publishMBean) {
+            registerMBean();
+        }
     }
 
     @Override
     public void reportEvent(Nameable source, String eventName, Object... params) throws TupleDiffException {
-        allStats.get(source).event(eventName, params);
-        validateHealth();
+        getStats(source).event(eventName, params);
     }
 
+    /**
+     * @return the CompareStats into which the comparison counts its compare events.
+     */
+    protected CompareStats createCompareStats(TupleComparison tc) {
+        return new CompareStats(tc);
+    }
+
+    /**
+     * Returns the Stats of the source, creating them for sources other than the comparison and its two streams the
+     * first time they report.
+     */
+    protected synchronized Stats getStats (Nameable source) {
+        Stats stats = allStats.get(source);
+        if (stats == null) {
+            stats = new Stats(source);
+            allStats.put(source, stats);
+        }
+        return stats;
+    }
+
+    @Override
+    public boolean isSubscribed(String eventName) {
+        return !unsubscribed.contains(eventName);
+    }
+
+    /**
+     * Has events of this name reported through reportEvent(). Takes effect for comparisons started afterwards.
+     */
+    public void subscribe (String eventName) {
+        unsubscribed.remove(eventName);
+    }
+
+    public void unsubscribe (String eventName) {
+        unsubscribed.add(eventName);
+    }
 
     @Override
     public Map <Nameable, Stats> getAllStats() {
@@ -52,7 +118,8 @@ public class TupleComparisonMonitor implements Monitor {
 
     @Override
     public CompareStats getCompareStats() {
-        return (CompareStats) allStats.get(tc);
+        // Null until the comparison starts.
+        return tc == null ? null : (CompareStats) allStats.get(tc);
     }
 
     @Override
@@ -65,17 +132,102 @@ public class TupleComparisonMonitor implements Monitor {
         return allStats.get(rightStream);
     }
 
+    @Override
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public StreamMetrics getStreamMetrics(TupleStream stream) {
+        if (stream == leftStream) {
+            return getMetrics().getLeft();
+        }
+        if (stream == rightStream) {
+            return getMetrics().getRight();
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        if (sampler != null) {
+            sampler.interrupt();
+            sampler = null;
+        }
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            }
+            catch (JMException e) {
+                logger.warning("Could not unregister " + mbeanName + ": " + e.getMessage());
+            }
+            mbeanName = null;
+        }
+    }
+
+    private void registerMBean () {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String base = MBEAN_DOMAIN + ":type=TupleComparison,name=" + ObjectName.quote(String.valueOf(tc.getName()));
+        try {
+            for (int instance = 1; mbeanName == null; instance++) {
+                ObjectName name = new ObjectName(instance == 1 ? base : base + ",instance=" + instance);
+                try {
+                    server.registerMBean(new TupleComparisonMetrics(tc.getName(), this), name);
+                    mbeanName = name;
+                }
+                catch (InstanceAlreadyExistsException e) {
+                    // Another comparison of the same name is running.
+                }
+            }
+        }
+        catch (JMException e) {
+            logger.warning("Could not publish the metrics of " + tc.getName() + " over JMX: " + e.getMessage());
+        }
+    }
+
+    private void startSampler () {
+        if (healthCheckIntervalMillis <= 0) {
+            return;
+        }
+        sampler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        Thread.sleep(healthCheckIntervalMillis);
+                        validateHealth();
+                    }
+                }
+                catch (InterruptedException e) {
+                    // closed.
+                }
+                catch (TupleDiffException e) {
+                    logger.severe("Stopping " + tc.getName() + ", which failed a health check: " + e.getMessage());
+                    reportEvent(tc, EVENT_STOP_BY_MONITOR, e);
+                    stopComparison();
+                }
+            }
+        }, "Monitor of " + tc.getName());
+        sampler.setDaemon(true);
+        sampler.start();
+    }
 
     /**
-     * Sub-Classes can be overriden to re-implement health checks. By default, this method is called every time an event
-     * is reported (as this assumes the reporting is frequent).
-     * Alternatively the monitor class can be run in it's own separate thread and periodically poll this method
-     * to verify the comparison is going well.
+     * Sub-Classes can be overriden to re-implement health checks. This method is called every
+     * healthCheckIntervalMillis by the sampler thread while the comparison runs; throwing a TupleDiffException
+     * cancels the comparison. Checks the StopPolicies.
      *
      * @throws TupleDiffException
      */
     protected void validateHealth ()throws TupleDiffException {
-//            TODO check whether there are too many breaks, etc...
+        CompareStats stats = getCompareStats();
+        long elapsedMillis = System.currentTimeMillis() - startMillis;
+        for (StopPolicy policy : stopPolicies) {
+            String reason = policy.check(stats, elapsedMillis);
+            if (reason != null) {
+                throw new TupleDiffException(policy + ": " + reason, tc);
+            }
+        }
     }
 
 
@@ -83,4 +235,38 @@ public class TupleComparisonMonitor implements Monitor {
         this.tc.cancel();
     }
 
+    public boolean isPublishMBean() {
+        return publishMBean;
+    }
+
+    public void setPublishMBean(boolean publishMBean) {
+        this.publishMBean = publishMBean;
+    }
+
+    public ObjectName getMBeanName() {
+        return mbeanName;
+    }
+
+    public List<StopPolicy> getStopPolicies() {
+        return stopPolicies;
+    }
+
+    /**
+     * Has the comparison stopped once the policy is breached. Requires health checks (see
+     * setHealthCheckIntervalMillis), and takes effect for comparisons started afterwards.
+     */
+    public void addStopPolicy(StopPolicy policy) {
+        stopPolicies.add(policy);
+    }
+
+    public long getHealthCheckIntervalMillis() {
+        return healthCheckIntervalMillis;
+    }
+
+    /**
+     * The time between health checks; 0 disables them. Set before the comparison starts.
+     */
+    public void setHealthCheckIntervalMillis(long healthCheckIntervalMillis) {
+        this.healthCheckIntervalMillis = healthCheckIntervalMillis;
+    }
 }
@@ -2,21 +2,44 @@ package com.hellion23.tuplediff.service;
 
 import com.hellion23.tuplediff.api.ComparisonResult;
 import com.hellion23.tuplediff.api.Config;
+import com.hellion23.tuplediff.api.PartitionedTupleComparison;
 import com.hellion23.tuplediff.api.TupleComparison;
+import com.hellion23.tuplediff.api.TupleDiffException;
+import com.hellion23.tuplediff.api.TupleStream;
+import com.hellion23.tuplediff.api.db.SqlTupleStream;
 import com.hellion23.tuplediff.api.listener.CompareEventListener;
+import com.hellion23.tuplediff.api.monitor.CompareStats;
 import com.hellion23.tuplediff.api.monitor.Monitor;
-import com.hellion23.tuplediff.service.com.hellion23.tuplediff.service.test.JavaDB;
-import com.hellion23.tuplediff.service.com.hellion23.tuplediff.service.test.TestDataLoader;
 
+import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Runs TupleComparisons as Jobs on a shared pool of at most maxConcurrent threads. Jobs wait in a queue, highest
+ * priority first and otherwise in the order submitted, until there is a free thread and every data source they read
+ * from has the sessions to spare: the sessions a Job opens against each data source are counted, and a Job is only
+ * started if they stay within the data source's limit (see setDataSourceLimit). A queued Job that does not fit does
+ * not hold up Jobs behind it against other data sources.
+ *
+ * The data sources of a comparison are, unless given on submit, those of its SqlTupleStreams: the ConnectionFactory of
+ * a stream if it has one, and otherwise its Connection. Each stream takes one session, or, given a ConnectionFactory,
+ * one per partition compared at a time by a PartitionedTupleComparison.
+ *
+ * The pool's threads are daemons and expire when idle.
+ *
  * @author: Hermann Leung
  * Date: 12/16/2014
  */
 public class TupleDiffService {
+    public static final int DEFAULT_PRIORITY = 0;
 
     static final TupleDiffService tds = new TupleDiffService();
 
@@ -24,11 +47,36 @@ public class TupleDiffService {
         return tds;
     }
 
+    final int maxConcurrent;
+    final ThreadPoolExecutor executor;
+    // All guarded by this.
+    final SortedSet<Job> queued = new TreeSet<Job>();
+    final Set<Job> running = new LinkedHashSet<Job>();
+    final Map<Object, Integer> dataSourceLimits = new HashMap<Object, Integer>();
+    final Map<Object, Integer> sessionsInUse = new HashMap<Object, Integer>();
+    final Map<Object, Integer> peakSessions = new HashMap<Object, Integer>();
+    int defaultDataSourceLimit = Integer.MAX_VALUE;
+    long submitted = 0;
+    boolean shutdown = false;
+
+    public TupleDiffService () {
+        this(Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public TupleDiffService (int maxConcurrent) {
+        assert (maxConcurrent > 0);
+        this.maxConcurrent = maxConcurrent;
+        this.executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), TupleComparison.daemonThreadFactory("TupleDiffService - job"));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
     public ComparisonResult compare (Config config) {
         return compare(config, null, null);
     }
 
     /**
+     * Runs the comparison as a Job of DEFAULT_PRIORITY and waits for it to complete.
      *
      * @param config
      * @param monitor
@@ -36,26 +84,392 @@ public class TupleDiffService {
      * @return
      */
     public ComparisonResult compare (Config config, Monitor monitor, CompareEventListener compareEventListener) {
-        TupleComparison tc = new TupleComparison(config, monitor, compareEventListener);
-        tc.compare();
-        return tc.getResult();
+        Job job = submit(config, monitor, compareEventListener, DEFAULT_PRIORITY);
+        try {
+            return job.get();
+        }
+        catch (CancellationException e) {
+            // A running Job is cancelled before its comparison stops; return its result once it has.
+            job.awaitEnd();
+            return job.getComparison().getResult();
+        }
+        catch (InterruptedException e) {
+            job.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new TupleDiffException("Interrupted while waiting for " + job.getName(), job.getComparison(), e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof TupleDiffException) {
+                throw (TupleDiffException) e.getCause();
+            }
+            throw new TupleDiffException("Unexpected exception during TupleDiff comparison: "
+                    + e.getCause().getMessage(), job.getComparison(), e.getCause());
+        }
     }
 
     public Future <ComparisonResult> compareAsynch (Config config, Monitor monitor, CompareEventListener compareEventListener) {
-        TupleComparison tc = new TupleComparison(config, monitor, compareEventListener);
-        ComparisonResult result = tc.getResult();
-        return new FutureTask <ComparisonResult> (new TupleComparisonCallable(tc));
+        return submit(config, monitor, compareEventListener, DEFAULT_PRIORITY);
+    }
+
+    public Job submit (Config config, Monitor monitor, CompareEventListener compareEventListener, int priority) {
+        return submit(new TupleComparison(config, monitor, compareEventListener), priority);
+    }
+
+    public Job submit (TupleComparison tc, int priority) {
+        return submit(tc, priority, sessionsOf(tc));
+    }
+
+    /**
+     * @param sessions the number of sessions the comparison opens per data source, which may be any key, e.g. the
+     *                 name of a database, given a limit by setDataSourceLimit.
+     */
+    public synchronized Job submit (TupleComparison tc, int priority, Map<Object, Integer> sessions) {
+        if (shutdown) {
+            throw new TupleDiffException("TupleDiffService has been shut down; cannot run " + tc.getName(), tc);
+        }
+        Job job = new Job(this, tc, priority, submitted++, sessions);
+        queued.add(job);
+        dispatch();
+        return job;
+    }
+
+    /**
+     * @return the sessions opened by the comparison per data source: one per SqlTupleStream, or one per partition
+     * compared at a time if a PartitionedTupleComparison reads the stream over connections from its ConnectionFactory.
+     */
+    public static Map<Object, Integer> sessionsOf (TupleComparison tc) {
+        Map<Object, Integer> sessions = new HashMap<Object, Integer>();
+        for (TupleStream stream : Arrays.asList(tc.getConfig().getLeftStream(), tc.getConfig().getRightStream())) {
+            if (stream instanceof SqlTupleStream) {
+                SqlTupleStream sqlStream = (SqlTupleStream) stream;
+                Object dataSource = sqlStream.getConnectionFactory() != null ? sqlStream.getConnectionFactory() :
+                        sqlStream.getConnection();
+                int count = tc instanceof PartitionedTupleComparison && sqlStream.getConnectionFactory() != null ?
+                        Math.max(1, ((PartitionedTupleComparison) tc).getParallelism()) : 1;
+                Integer inUse = sessions.get(dataSource);
+                sessions.put(dataSource, inUse == null ? count : inUse + count);
+            }
+        }
+        return sessions;
+    }
+
+    /**
+     * Starts queued Jobs, in priority order, for as long as there are free threads and they fit within the limits
+     * of their data sources. A Job needing more sessions of a data source than its limit fails.
+     */
+    synchronized void dispatch () {
+        Iterator<Job> iterator = queued.iterator();
+        while (iterator.hasNext() && running.size() < maxConcurrent && !shutdown) {
+            Job job = iterator.next();
+            Object exceeded = exceededLimit(job);
+            if (exceeded != null) {
+                iterator.remove();
+                job.fail(new TupleDiffException(job.getName() + " needs more sessions of " + exceeded
+                        + " than its limit of " + getDataSourceLimit(exceeded), job.getComparison()));
+            }
+            else if (fits(job)) {
+                iterator.remove();
+                for (Map.Entry<Object, Integer> entry : job.sessions.entrySet()) {
+                    int inUse = sessionsInUse(entry.getKey()) + entry.getValue();
+                    sessionsInUse.put(entry.getKey(), inUse);
+                    if (inUse > getPeakSessions(entry.getKey())) {
+                        peakSessions.put(entry.getKey(), inUse);
+                    }
+                }
+                running.add(job);
+                job.state = Job.State.RUNNING;
+                executor.execute(job);
+            }
+        }
+    }
+
+    private Object exceededLimit (Job job) {
+        for (Map.Entry<Object, Integer> entry : job.sessions.entrySet()) {
+            if (entry.getValue() > getDataSourceLimit(entry.getKey())) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    private boolean fits (Job job) {
+        for (Map.Entry<Object, Integer> entry : job.sessions.entrySet()) {
+            if (sessionsInUse(entry.getKey()) + entry.getValue() > getDataSourceLimit(entry.getKey())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int sessionsInUse (Object dataSource) {
+        Integer inUse = sessionsInUse.get(dataSource);
+        return inUse == null ? 0 : inUse;
+    }
+
+    synchronized void finished (Job job) {
+        if (running.remove(job)) {
+            for (Map.Entry<Object, Integer> entry : job.sessions.entrySet()) {
+                int inUse = sessionsInUse(entry.getKey()) - entry.getValue();
+                if (inUse > 0) {
+                    sessionsInUse.put(entry.getKey(), inUse);
+                }
+                else {
+                    sessionsInUse.remove(entry.getKey());
+                }
+            }
+        }
+        dispatch();
+    }
+
+    synchronized boolean dequeue (Job job) {
+        return queued.remove(job);
+    }
+
+    /**
+     * The maximum number of sessions the running Jobs may have open against the data source, e.g. a
+     * ConnectionFactory. Applies to Jobs started from now on.
+     */
+    public synchronized void setDataSourceLimit (Object dataSource, int maxSessions) {
+        dataSourceLimits.put(dataSource, maxSessions);
+        dispatch();
+    }
+
+    public synchronized int getDataSourceLimit (Object dataSource) {
+        Integer limit = dataSourceLimits.get(dataSource);
+        return limit == null ? defaultDataSourceLimit : limit;
+    }
+
+    /**
+     * The limit of data sources not given one by setDataSourceLimit. Unlimited by default.
+     */
+    public synchronized void setDefaultDataSourceLimit (int maxSessions) {
+        this.defaultDataSourceLimit = maxSessions;
+        dispatch();
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public synchronized int getSessionsInUse (Object dataSource) {
+        return sessionsInUse(dataSource);
+    }
+
+    /**
+     * @return the most sessions the running Jobs have had open against the data source at the same time.
+     */
+    public synchronized int getPeakSessions (Object dataSource) {
+        Integer peak = peakSessions.get(dataSource);
+        return peak == null ? 0 : peak;
+    }
+
+    /**
+     * @return the Jobs running, in the order started.
+     */
+    public synchronized List<Job> getRunningJobs () {
+        return new ArrayList<Job>(running);
+    }
+
+    /**
+     * @return the Jobs waiting to run, in the order they will be considered.
+     */
+    public synchronized List<Job> getQueuedJobs () {
+        return new ArrayList<Job>(queued);
+    }
+
+    /**
+     * Stops accepting Jobs and cancels those queued; running Jobs complete.
+     */
+    public void shutdown () {
+        List<Job> cancelled;
+        synchronized (this) {
+            shutdown = true;
+            cancelled = new ArrayList<Job>(queued);
+        }
+        for (Job job : cancelled) {
+            job.cancel(false);
+        }
+        executor.shutdown();
     }
 
-    static class TupleComparisonCallable implements Callable <ComparisonResult>  {
-        TupleComparison tc;
-        public TupleComparisonCallable (TupleComparison tc) {
+    /**
+     * Like shutdown, but also cancels the running Jobs.
+     */
+    public void shutdownNow () {
+        shutdown();
+        for (Job job : getRunningJobs()) {
+            job.cancel(true);
+        }
+    }
+
+    public synchronized boolean isShutdown () {
+        return shutdown;
+    }
+
+    public String toString () {
+        StringBuilder sb = new StringBuilder("TupleDiffService running:\n");
+        for (Job job : getRunningJobs()) {
+            sb.append("  ").append(job).append("\n");
+        }
+        sb.append("queued:\n");
+        for (Job job : getQueuedJobs()) {
+            sb.append("  ").append(job).append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A TupleComparison submitted to the service. Cancelling a running Job cancels its comparison, which closes its
+     * streams; the Job's thread is not interrupted.
+     */
+    public static class Job extends FutureTask<ComparisonResult> implements Comparable<Job> {
+        public enum State {QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED}
+
+        final TupleDiffService service;
+        final TupleComparison tc;
+        final int priority;
+        final long sequence;
+        final Map<Object, Integer> sessions;
+        final long submitMillis = System.currentTimeMillis();
+        volatile long startMillis;
+        volatile long endMillis;
+        volatile State state = State.QUEUED;
+        volatile Throwable failure;
+        final CountDownLatch ended = new CountDownLatch(1);
+
+        Job(TupleDiffService service, final TupleComparison tc, int priority, long sequence, Map<Object, Integer> sessions) {
+            super(new Callable<ComparisonResult>() {
+                @Override
+                public ComparisonResult call() throws Exception {
+                    tc.compare();
+                    return tc.getResult();
+                }
+            });
+            this.service = service;
             this.tc = tc;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.sessions = new HashMap<Object, Integer>(sessions);
         }
+
+        @Override
+        public void run() {
+            startMillis = System.currentTimeMillis();
+            try {
+                super.run();
+            }
+            finally {
+                endMillis = System.currentTimeMillis();
+                state = isCancelled() || tc.isCancelled() ? State.CANCELLED :
+                        failure != null ? State.FAILED : State.COMPLETED;
+                service.finished(this);
+                ended.countDown();
+            }
+        }
+
         @Override
-        public ComparisonResult call() throws Exception {
-            tc.compare();
-            return tc.getResult();
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean wasQueued = service.dequeue(this);
+            // Interrupting the thread would not stop a JDBC call; closing the streams does.
+            if (!super.cancel(false)) {
+                return false;
+            }
+            if (wasQueued) {
+                endMillis = System.currentTimeMillis();
+                state = State.CANCELLED;
+                ended.countDown();
+            }
+            else {
+                tc.cancel();
+            }
+            return true;
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            failure = t;
+            super.setException(t);
+        }
+
+        void fail (Throwable t) {
+            endMillis = System.currentTimeMillis();
+            state = State.FAILED;
+            setException(t);
+            ended.countDown();
+        }
+
+        /**
+         * Waits until the Job has ended: unlike get(), which returns as soon as the Job is cancelled, only once the
+         * comparison of a cancelled running Job has stopped.
+         */
+        public void awaitEnd () {
+            try {
+                ended.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TupleDiffException("Interrupted while waiting for " + getName() + " to end", tc, e);
+            }
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+        }
+
+        public TupleComparison getComparison() {
+            return tc;
+        }
+
+        public String getName() {
+            return tc.getName();
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * @return the sessions the Job opens per data source.
+         */
+        public Map<Object, Integer> getSessions() {
+            return Collections.unmodifiableMap(sessions);
+        }
+
+        public long getSubmitMillis() {
+            return submitMillis;
+        }
+
+        /**
+         * @return when the Job started running, or 0 if it has not.
+         */
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        public long getEndMillis() {
+            return endMillis;
+        }
+
+        /**
+         * @return the live CompareStats of the comparison, or null if it has not started.
+         */
+        public CompareStats getCompareStats() {
+            return state == State.QUEUED ? null : tc.getMonitor().getCompareStats();
+        }
+
+        public String toString () {
+            CompareStats stats = getCompareStats();
+            return getName() + " [" + state + ", priority " + priority + "]" + (stats == null ? "" :
+                    " left: " + stats.getTotalLeft() + ", right: " + stats.getTotalRight() + ", breaks: "
+                    + (stats.getTotalOnlyLeft() + stats.getTotalOnlyRight() + stats.getTotalBreaks()));
         }
     }
 
@@ -0,0 +1,214 @@
+package com.hellion23.tuplediff.service.com.hellion23.tuplediff.service.test;
+
+import com.hellion23.tuplediff.api.ComparisonResult;
+import com.hellion23.tuplediff.api.Config;
+import com.hellion23.tuplediff.api.db.SqlTupleStream;
+import com.hellion23.tuplediff.api.listener.SpillingCompareEventListener;
+import com.hellion23.tuplediff.api.monitor.CompareStats;
+import com.hellion23.tuplediff.service.TupleDiffService;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Measures how TupleDiffService.compare scales with the size and shape of the data: for each Scenario (see
+ * SyntheticDataGenerator.Scenario) the synthetic tables are generated into the embedded JavaDB database (or reused),
+ * compared end to end, and the totals checked against the expected outcome. One CSV line per Scenario is appended to
+ * the report with the wall time and rows per second of the comparison, the peak heap and the GC time it took.
+ *
+ * Usage: ScaleBenchmark [-report file] [scenario ...], e.g.
+ *   ScaleBenchmark -report scale.csv rows=1000000 rows=10000000,keyType=COMPOSITE,keySkew=0.8
+ * Without scenarios the DEFAULT_SCENARIOS are run. Run with a fixed heap (-Xms = -Xmx) so peak heaps are comparable.
+ *
+ * @author: Hermann Leung
+ * Date: 3/10/2015
+ */
+public class ScaleBenchmark {
+    private static final Logger logger = Logger.getLogger(ScaleBenchmark.class.getName());
+    static final String DB_NAME = "TUPLEDIFF_SCALE";
+    static final String [] DEFAULT_SCENARIOS = {"rows=10000", "rows=100000", "rows=1000000"};
+    static final String REPORT_HEADER = "scenario,rows,width,keyType,breakRate,orphanRate,keySkew,"
+            + "generateMillis,wallMillis,rowsPerSecond,peakHeapBytes,gcMillis,gcCount,"
+            + "onlyLeft,onlyRight,matched,breaks,correct";
+
+    final SyntheticDataGenerator generator;
+    final JavaDB.EmbeddedDB embeddedDB;
+    // Whether the header has been printed before the Results reported without a report file.
+    boolean headerPrinted = false;
+
+    public ScaleBenchmark() throws Exception {
+        this.embeddedDB = JavaDB.Instance().getDB(DB_NAME);
+        this.generator = new SyntheticDataGenerator(embeddedDB);
+    }
+
+    public static void main (String args[]) throws Exception {
+        File report = null;
+        List<String> specs = new ArrayList<String>();
+        for (int i=0; i<args.length; i++) {
+            if ("-report".equals(args[i]) && i + 1 < args.length) {
+                report = new File(args[++i]);
+            }
+            else {
+                specs.add(args[i]);
+            }
+        }
+        if (specs.isEmpty()) {
+            for (String spec : DEFAULT_SCENARIOS) {
+                specs.add(spec);
+            }
+        }
+        ScaleBenchmark benchmark = new ScaleBenchmark();
+        for (String spec : specs) {
+            Result result = benchmark.run(SyntheticDataGenerator.Scenario.parse(spec));
+            logger.info(result.toString());
+            benchmark.report(result, report);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * The measurements of one Scenario.
+     */
+    public static class Result {
+        SyntheticDataGenerator.Scenario scenario;
+        SyntheticDataGenerator.Expected expected;
+        CompareStats compareStats;
+        long generateMillis;
+        long wallMillis;
+        long peakHeapBytes;
+        long gcMillis;
+        long gcCount;
+
+        public double getRowsPerSecond () {
+            long rows = compareStats.getTotalLeft() + compareStats.getTotalRight();
+            return wallMillis == 0 ? 0 : rows * 1000.0 / wallMillis;
+        }
+
+        public boolean isCorrect () {
+            return compareStats.getTotalLeft() == expected.getLeft()
+                    && compareStats.getTotalRight() == expected.getRight()
+                    && compareStats.getTotalOnlyLeft() == expected.getOnlyLeft()
+                    && compareStats.getTotalOnlyRight() == expected.getOnlyRight()
+                    && compareStats.getTotalMatched() == expected.getMatched()
+                    && compareStats.getTotalBreaks() == expected.getBreaks();
+        }
+
+        public String toCsv () {
+            SyntheticDataGenerator.Scenario s = scenario;
+            return "\"" + s + "\"," + s.getRows() + "," + s.getWidth() + "," + s.getKeyType() + ","
+                    + s.getBreakRate() + "," + s.getOrphanRate() + "," + s.getKeySkew() + ","
+                    + generateMillis + "," + wallMillis + "," + Math.round(getRowsPerSecond()) + ","
+                    + peakHeapBytes + "," + gcMillis + "," + gcCount + ","
+                    + compareStats.getTotalOnlyLeft() + "," + compareStats.getTotalOnlyRight() + ","
+                    + compareStats.getTotalMatched() + "," + compareStats.getTotalBreaks() + "," + isCorrect();
+        }
+
+        public String toString () {
+            return "Scenario " + scenario + ": " + wallMillis + " ms, " + Math.round(getRowsPerSecond())
+                    + " rows/s, peak heap " + (peakHeapBytes >> 20) + " MB, GC " + gcMillis + " ms in " + gcCount
+                    + " collections. " + (isCorrect() ? "Correct." : "INCORRECT! Expected " + expected + ", got "
+                    + compareStats);
+        }
+    }
+
+    public Result run (SyntheticDataGenerator.Scenario scenario) throws Exception {
+        Result result = new Result();
+        result.scenario = scenario;
+        long start = System.currentTimeMillis();
+        result.expected = generator.generate(scenario);
+        result.generateMillis = System.currentTimeMillis() - start;
+
+        Connection leftConnection = embeddedDB.createConnection();
+        Connection rightConnection = embeddedDB.createConnection();
+        SqlTupleStream leftStream = SqlTupleStream.create(leftConnection,
+                "select * from " + scenario.getTableName('L'), scenario.getKeyColumns());
+        SqlTupleStream rightStream = SqlTupleStream.create(rightConnection,
+                "select * from " + scenario.getTableName('R'), scenario.getKeyColumns());
+        Config config = new Config("ScaleBenchmark " + scenario);
+        config.setLeftStream(leftStream);
+        config.setRightStream(rightStream);
+        // Bounds the memory the breaks take, which would otherwise dominate the peak heap of large Scenarios.
+        SpillingCompareEventListener listener = new SpillingCompareEventListener();
+
+        System.gc();
+        List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        long gcMillis = gcMillis();
+        long gcCount = gcCount();
+        start = System.currentTimeMillis();
+        try {
+            ComparisonResult comparisonResult = TupleDiffService.Instance().compare(config, null, listener);
+            result.wallMillis = System.currentTimeMillis() - start;
+            result.compareStats = comparisonResult.getCompareStats();
+        }
+        finally {
+            listener.delete();
+            leftConnection.close();
+            rightConnection.close();
+        }
+        result.gcMillis = gcMillis() - gcMillis;
+        result.gcCount = gcCount() - gcCount;
+        // The sum of the pools' peaks, which need not have been reached at the same time: an upper bound.
+        for (MemoryPoolMXBean pool : heapPools) {
+            result.peakHeapBytes += pool.getPeakUsage().getUsed();
+        }
+        return result;
+    }
+
+    private static long gcMillis () {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private static long gcCount () {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    /**
+     * Appends the Result to the report file, preceded by the header if the file is new, or prints it if there is none,
+     * preceded by the header the first time.
+     */
+    public void report (Result result, File report) throws Exception {
+        if (report == null) {
+            if (!headerPrinted) {
+                System.out.println(REPORT_HEADER);
+                headerPrinted = true;
+            }
+            System.out.println(result.toCsv());
+            return;
+        }
+        boolean header = !report.exists() || report.length() == 0;
+        PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(report, true), "UTF-8"));
+        try {
+            if (header) {
+                pw.println(REPORT_HEADER);
+            }
+            pw.println(result.toCsv());
+        }
+        finally {
+            pw.close();
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package com.hellion23.tuplediff.service.com.hellion23.tuplediff.service.test;
+
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Generates a left and a right table of synthetic rows into the embedded JavaDB database, as described by a Scenario,
+ * for ScaleBenchmark. The rows are a pure function of the Scenario (including its seed), so the tables of a Scenario
+ * generated before are reused and only the expected outcome is recomputed; the SCALE_SCENARIOS table records which
+ * tables were generated completely.
+ *
+ * @author: Hermann Leung
+ * Date: 3/10/2015
+ */
+public class SyntheticDataGenerator {
+    private static final Logger logger = Logger.getLogger(SyntheticDataGenerator.class.getName());
+    static final String SCENARIOS_TABLE = "SCALE_SCENARIOS";
+    // Caps the gap between consecutive keys of skewed Scenarios.
+    static final long MAX_GAP = 1 << 20;
+    static final long PROGRESS_ROWS = 1000000;
+
+    public enum KeyType {
+        /** A BIGINT ID. */
+        LONG,
+        /** A zero padded VARCHAR ID. */
+        STRING,
+        /** A VARCHAR group, an INTEGER account and an INTEGER ID. */
+        COMPOSITE
+    }
+
+    final JavaDB.EmbeddedDB embeddedDB;
+    int batchSize = 10000;
+    int commitInterval = 100000;
+
+    public SyntheticDataGenerator(JavaDB.EmbeddedDB embeddedDB) {
+        this.embeddedDB = embeddedDB;
+    }
+
+    /**
+     * The shape of a synthetic data set, written as comma separated name=value pairs, e.g.
+     * "rows=1000000,width=8,keyType=COMPOSITE,breakRate=0.01,orphanRate=0.001,keySkew=0.5". Omitted settings keep
+     * their defaults.
+     */
+    public static class Scenario {
+        /** The number of distinct keys; all but the orphans are on both sides. */
+        long rows = 100000;
+        /** The number of compare columns, cycling through DECIMAL, VARCHAR, DOUBLE and INTEGER. */
+        int width = 8;
+        KeyType keyType = KeyType.LONG;
+        /** The fraction of keys on both sides whose rows differ in one column. */
+        double breakRate = 0.01;
+        /** The fraction of keys on one side only, half of them left, half right. */
+        double orphanRate = 0.001;
+        /**
+         * 0 for consecutive keys; above 0 the gaps between keys are Pareto distributed with this exponent (capped at
+         * MAX_GAP), so keys crowd into some ranges and are sparse in others, as do e.g. trade ids over time.
+         */
+        double keySkew = 0;
+        long seed = 1;
+
+        public static Scenario parse (String spec) {
+            Scenario s = new Scenario();
+            for (String setting : spec.split(",")) {
+                String [] nv = setting.split("=", 2);
+                if (nv.length != 2) {
+                    throw new IllegalArgumentException("Expected name=value, got <" + setting + "> in " + spec);
+                }
+                String name = nv[0].trim();
+                String value = nv[1].trim();
+                switch (name) {
+                    case "rows": s.rows = Long.parseLong(value); break;
+                    case "width": s.width = Integer.parseInt(value); break;
+                    case "keyType": s.keyType = KeyType.valueOf(value.toUpperCase()); break;
+                    case "breakRate": s.breakRate = Double.parseDouble(value); break;
+                    case "orphanRate": s.orphanRate = Double.parseDouble(value); break;
+                    case "keySkew": s.keySkew = Double.parseDouble(value); break;
+                    case "seed": s.seed = Long.parseLong(value); break;
+                    default: throw new IllegalArgumentException("Unknown setting <" + name + "> in " + spec);
+                }
+            }
+            if (s.width < 1) {
+                throw new IllegalArgumentException("width must be at least 1 in " + spec);
+            }
+            return s;
+        }
+
+        /**
+         * The name of the left (side 'L') or right (side 'R') table, derived from all settings.
+         */
+        public String getTableName (char side) {
+            return "SCALE_" + Integer.toHexString(toString().hashCode()).toUpperCase() + "_" + side;
+        }
+
+        public String [] getKeyColumns () {
+            return keyType == KeyType.COMPOSITE ? new String[] {"GRP", "ACCOUNT", "ID"} : new String[] {"ID"};
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public KeyType getKeyType() {
+            return keyType;
+        }
+
+        public double getBreakRate() {
+            return breakRate;
+        }
+
+        public double getOrphanRate() {
+            return orphanRate;
+        }
+
+        public double getKeySkew() {
+            return keySkew;
+        }
+
+        public String toString () {
+            return "rows=" + rows + ",width=" + width + ",keyType=" + keyType + ",breakRate=" + breakRate
+                    + ",orphanRate=" + orphanRate + ",keySkew=" + keySkew + ",seed=" + seed;
+        }
+    }
+
+    /**
+     * The outcome a correct comparison of a Scenario's tables has.
+     */
+    public static class Expected {
+        long left, right, onlyLeft, onlyRight, matched, breaks;
+
+        public long getLeft() {
+            return left;
+        }
+
+        public long getRight() {
+            return right;
+        }
+
+        public long getOnlyLeft() {
+            return onlyLeft;
+        }
+
+        public long getOnlyRight() {
+            return onlyRight;
+        }
+
+        public long getMatched() {
+            return matched;
+        }
+
+        public long getBreaks() {
+            return breaks;
+        }
+
+        public String toString () {
+            return "left=" + left + ", right=" + right + ", onlyLeft=" + onlyLeft + ", onlyRight=" + onlyRight
+                    + ", matched=" + matched + ", breaks=" + breaks;
+        }
+    }
+
+    /**
+     * Creates the Scenario's tables unless they were generated before.
+     */
+    public Expected generate (Scenario scenario) throws SQLException {
+        Connection conn = embeddedDB.createConnection();
+        try {
+            if (isGenerated(conn, scenario)) {
+                logger.info("Reusing " + scenario.getTableName('L') + " and " + scenario.getTableName('R')
+                        + " for " + scenario);
+                return replay(scenario, null, null);
+            }
+            logger.info("Generating " + scenario.getTableName('L') + " and " + scenario.getTableName('R')
+                    + " for " + scenario);
+            createTable(conn, scenario, scenario.getTableName('L'));
+            createTable(conn, scenario, scenario.getTableName('R'));
+            conn.setAutoCommit(false);
+            PreparedStatement left = conn.prepareStatement(insertSql(scenario, scenario.getTableName('L')));
+            PreparedStatement right = conn.prepareStatement(insertSql(scenario, scenario.getTableName('R')));
+            Expected expected = replay(scenario, left, right);
+            left.close();
+            right.close();
+
+            PreparedStatement marker = conn.prepareStatement("insert into " + SCENARIOS_TABLE
+                    + " (TABLE_NAME, SPEC) values (?, ?)");
+            marker.setString(1, scenario.getTableName('L'));
+            marker.setString(2, scenario.toString());
+            marker.execute();
+            marker.close();
+            conn.commit();
+            return expected;
+        }
+        finally {
+            conn.close();
+        }
+    }
+
+    private boolean isGenerated (Connection conn, Scenario scenario) throws SQLException {
+        if (!tableExists(conn, SCENARIOS_TABLE)) {
+            Statement stmt = conn.createStatement();
+            stmt.execute("create table " + SCENARIOS_TABLE
+                    + " (TABLE_NAME VARCHAR(32) primary key, SPEC VARCHAR(256))");
+            stmt.close();
+            return false;
+        }
+        PreparedStatement stmt = conn.prepareStatement("select SPEC from " + SCENARIOS_TABLE + " where TABLE_NAME = ?");
+        stmt.setString(1, scenario.getTableName('L'));
+        ResultSet rs = stmt.executeQuery();
+        boolean generated = rs.next() && scenario.toString().equals(rs.getString(1));
+        rs.close();
+        stmt.close();
+        return generated;
+    }
+
+    private static boolean tableExists (Connection conn, String table) throws SQLException {
+        ResultSet rs = conn.getMetaData().getTables(null, "APP", table, new String[]{"TABLE"});
+        boolean exists = rs.next();
+        rs.close();
+        return exists;
+    }
+
+    private void createTable (Connection conn, Scenario scenario, String table) throws SQLException {
+        Statement stmt = conn.createStatement();
+        if (tableExists(conn, table)) {
+            logger.info("Dropping incomplete table " + table);
+            stmt.execute("drop table " + table);
+        }
+        StringBuilder sql = new StringBuilder("create table ").append(table).append(" (");
+        switch (scenario.keyType) {
+            case LONG: sql.append("ID BIGINT NOT NULL, "); break;
+            case STRING: sql.append("ID VARCHAR(24) NOT NULL, "); break;
+            case COMPOSITE: sql.append("GRP VARCHAR(12) NOT NULL, ACCOUNT INTEGER NOT NULL, ID INTEGER NOT NULL, ");
+                break;
+        }
+        for (int f=0; f<scenario.width; f++) {
+            sql.append(columnName(f)).append(' ').append(columnType(f)).append(", ");
+        }
+        sql.append("primary key (").append(commaSeparated(scenario.getKeyColumns())).append("))");
+        stmt.execute(sql.toString());
+        stmt.close();
+    }
+
+    private static String insertSql (Scenario scenario, String table) {
+        List<String> columns = new ArrayList<String>();
+        List<String> params = new ArrayList<String>();
+        for (String key : scenario.getKeyColumns()) {
+            columns.add(key);
+            params.add("?");
+        }
+        for (int f=0; f<scenario.width; f++) {
+            columns.add(columnName(f));
+            params.add("?");
+        }
+        return "insert into " + table + " (" + commaSeparated(columns.toArray(new String[columns.size()]))
+                + ") values (" + commaSeparated(params.toArray(new String[params.size()])) + ")";
+    }
+
+    static String columnName (int f) {
+        switch (f % 4) {
+            case 0: return "AMOUNT_" + f;
+            case 1: return "LABEL_" + f;
+            case 2: return "RATE_" + f;
+            default: return "QUANTITY_" + f;
+        }
+    }
+
+    static String columnType (int f) {
+        switch (f % 4) {
+            case 0: return "DECIMAL(22, 4)";
+            case 1: return "VARCHAR(32)";
+            case 2: return "DOUBLE";
+            default: return "INTEGER";
+        }
+    }
+
+    /**
+     * Walks the Scenario's rows in key order, inserting them if left and right are given, and counts the outcome.
+     */
+    Expected replay (Scenario scenario, PreparedStatement left, PreparedStatement right) throws SQLException {
+        Expected expected = new Expected();
+        Random random = new Random(scenario.seed);
+        long key = 0;
+        int pending = 0;
+        for (long row=0; row<scenario.rows; row++) {
+            key += gap(random, scenario.keySkew);
+            double r = random.nextDouble();
+            // Below orphanRate / 2 left only, then up to orphanRate right only.
+            boolean onRight = r >= scenario.orphanRate / 2;
+            boolean onLeft = !onRight || r >= scenario.orphanRate;
+            boolean broken = onLeft && onRight && random.nextDouble() < scenario.breakRate;
+            int changed = broken ? (int) (key % scenario.width) : -1;
+
+            if (onLeft) {
+                expected.left++;
+            }
+            if (onRight) {
+                expected.right++;
+            }
+            if (!onRight) {
+                expected.onlyLeft++;
+            }
+            else if (!onLeft) {
+                expected.onlyRight++;
+            }
+            else if (broken) {
+                expected.breaks++;
+            }
+            else {
+                expected.matched++;
+            }
+
+            if (left == null) {
+                continue;
+            }
+            if (onLeft) {
+                bind(left, scenario, key, -1);
+                left.addBatch();
+            }
+            if (onRight) {
+                bind(right, scenario, key, changed);
+                right.addBatch();
+            }
+            if (++pending == batchSize || row == scenario.rows - 1) {
+                left.executeBatch();
+                right.executeBatch();
+                pending = 0;
+            }
+            if ((row + 1) % commitInterval == 0) {
+                left.getConnection().commit();
+            }
+            if ((row + 1) % PROGRESS_ROWS == 0) {
+                logger.info("Generated " + (row + 1) + " of " + scenario.rows + " rows");
+            }
+        }
+        return expected;
+    }
+
+    private static long gap (Random random, double keySkew) {
+        if (keySkew <= 0) {
+            return 1;
+        }
+        double pareto = Math.pow(1 - random.nextDouble(), -keySkew);
+        return 1 + (long) Math.min(MAX_GAP - 1, pareto - 1);
+    }
+
+    /**
+     * Binds the row of key; column changed (-1 for none) differs from the other side's.
+     */
+    private static void bind (PreparedStatement ps, Scenario scenario, long key, int changed) throws SQLException {
+        int i = 1;
+        switch (scenario.keyType) {
+            case LONG:
+                ps.setLong(i++, key);
+                break;
+            case STRING:
+                ps.setString(i++, String.format("K%019d", key));
+                break;
+            case COMPOSITE:
+                // Ordered as the key: the group takes the high bits, account and id 12 bits each.
+                ps.setString(i++, String.format("G%08d", key >>> 24));
+                ps.setInt(i++, (int) ((key >>> 12) & 0xFFF));
+                ps.setInt(i++, (int) (key & 0xFFF));
+                break;
+        }
+        for (int f=0; f<scenario.width; f++) {
+            long v = key * 31 + f + (f == changed ? 1 : 0);
+            switch (f % 4) {
+                case 0: ps.setBigDecimal(i++, BigDecimal.valueOf(v, 4)); break;
+                case 1: ps.setString(i++, "label-" + v); break;
+                case 2: ps.setDouble(i++, v * 0.5); break;
+                default: ps.setInt(i++, (int) (v % 1000000000)); break;
+            }
+        }
+    }
+
+    private static String commaSeparated (String [] strings) {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<strings.length; i++) {
+            sb.append(strings[i]);
+            if (i < strings.length - 1) {
+                sb.append(", ");
+            }
+        }
+        return sb.toString();
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getCommitInterval() {
+        return commitInterval;
+    }
+
+    public void setCommitInterval(int commitInterval) {
+        this.commitInterval = commitInterval;
+    }
+}
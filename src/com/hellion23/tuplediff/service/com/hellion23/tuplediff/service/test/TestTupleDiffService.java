@@ -1,12 +1,49 @@
 package com.hellion23.tuplediff.service.com.hellion23.tuplediff.service.test;
 
 import com.hellion23.tuplediff.api.*;
+import com.hellion23.tuplediff.api.comparator.FieldComparator;
+import com.hellion23.tuplediff.api.comparator.FieldComparatorFactory;
+import com.hellion23.tuplediff.api.comparator.ThresholdNumberComparator;
+import com.hellion23.tuplediff.api.db.ConnectionFactory;
+import com.hellion23.tuplediff.api.db.JdbcCompareEventListener;
+import com.hellion23.tuplediff.api.db.SqlField;
 import com.hellion23.tuplediff.api.db.SqlTupleStream;
+import com.hellion23.tuplediff.api.file.DelimitedFileTupleStream;
+import com.hellion23.tuplediff.api.io.ColumnarTupleStream;
+import com.hellion23.tuplediff.api.io.SortingTupleStream;
+import com.hellion23.tuplediff.api.io.TeeTupleStream;
+import com.hellion23.tuplediff.api.listener.AsyncCompareEventListener;
+import com.hellion23.tuplediff.api.listener.CompareEventListener;
+import com.hellion23.tuplediff.api.listener.ListCompareEventListener;
+import com.hellion23.tuplediff.api.listener.SpillingCompareEventListener;
+import com.hellion23.tuplediff.api.monitor.CompareStats;
+import com.hellion23.tuplediff.api.monitor.Metrics;
+import com.hellion23.tuplediff.api.monitor.Monitor;
 import com.hellion23.tuplediff.api.monitor.Nameable;
+import com.hellion23.tuplediff.api.monitor.SampleEstimate;
+import com.hellion23.tuplediff.api.monitor.StopPolicy;
 import com.hellion23.tuplediff.api.monitor.TupleComparisonMonitor;
 import com.hellion23.tuplediff.service.TupleDiffService;
 
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 import java.util.logging.Logger;
 
 /**
@@ -28,6 +65,34 @@ public class TestTupleDiffService {
 
         // Run individual tests
         testComparisonCorrectness();
+        testPartitionedComparisonCorrectness();
+        testHashJoinComparisonCorrectness();
+        testHashJoinDuplicateKeysCorrectness();
+        testSortingStreamCorrectness();
+        testFingerprintComparisonCorrectness();
+        testChecksumComparisonCorrectness();
+        testChecksumLowBitsCorrectness();
+        testIncrementalComparisonCorrectness();
+        testResumedComparisonCorrectness();
+        testResumedListenerCorrectness();
+        testDelimitedFileComparisonCorrectness();
+        testColumnarReplayCorrectness();
+        testSpillingListenerCorrectness();
+        testSpillingListenerIterationCorrectness();
+        testAsyncListenerCorrectness();
+        testAsyncListenerFailureCorrectness();
+        testJdbcListenerCorrectness();
+        testJdbcListenerBatchingCorrectness();
+        testMetricsCorrectness();
+        testStreamTuningCorrectness();
+        testPrefetchCorrectness();
+        testEncodedKeyCorrectness();
+        testSamplingComparisonCorrectness();
+        testStopPolicyCorrectness();
+        testSchedulerCorrectness();
+        testMerkleSwappedValuesCorrectness();
+        testMixedKeyTypesCorrectness();
+        testMixedCompareTypesCorrectness();
     }
 
     public void testComparisonCorrectness() throws Exception {
@@ -48,12 +113,1414 @@ public class TestTupleDiffService {
         monitor.analyze();
     }
 
+    public void testFingerprintComparisonCorrectness() throws Exception {
+        SqlTupleStream leftStream = SqlTupleStream.create(tdl.getConnection(), sql + "'L'", keys);
+        leftStream.setExcludeFieldNames(ignoreFields);
+
+        SqlTupleStream rightStream = SqlTupleStream.create(tdl.getConnection(), sql + "'R'", keys);
+        rightStream.setExcludeFieldNames(ignoreFields);
+
+        Config config = new Config("testFingerprintComparisonCorrectness");
+        config.setLeftStream(leftStream);
+        config.setRightStream(rightStream);
+        config.setFingerprintCompare(true);
+
+        TestMonitor monitor = new TestMonitor();
+        ComparisonResult cr = TupleDiffService.Instance().compare(config, monitor, null);
+        logger.info(cr.toString());
+        monitor.analyze();
+    }
+
+    public void testPartitionedComparisonCorrectness() throws Exception {
+        ConnectionFactory connectionFactory = new ConnectionFactory() {
+            @Override
+            public Connection createConnection() throws SQLException {
+                return tdl.getConnection();
+            }
+        };
+
+        SqlTupleStream leftStream = SqlTupleStream.create(connectionFactory, sql + "'L'", keys);
+        leftStream.setExcludeFieldNames(ignoreFields);
+
+        SqlTupleStream rightStream = SqlTupleStream.create(connectionFactory, sql + "'R'", keys);
+        rightStream.setExcludeFieldNames(ignoreFields);
+
+        Config config = new Config("testPartitionedComparisonCorrectness");
+        config.setLeftStream(leftStream);
+        config.setRightStream(rightStream);
+
+        TestMonitor monitor = new TestMonitor();
+        PartitionedTupleComparison tc = new PartitionedTupleComparison(config, monitor, null, 3);
+        tc.compare();
+        logger.info(tc.getResult().toString());
+        monitor.analyze();
+    }
+
+    public void testHashJoinComparisonCorrectness() throws Exception {
+        SqlTupleStream leftStream = SqlTupleStream.create(tdl.getConnection(), sql + "'L'", keys);
+        leftStream.setExcludeFieldNames(ignoreFields);
+
+        SqlTupleStream rightStream = SqlTupleStream.create(tdl.getConnection(), sql + "'R'", keys);
+        rightStream.setExcludeFieldNames(ignoreFields);
+
+        Config config = new Config("testHashJoinComparisonCorrectness");
+        config.setLeftStream(leftStream);
+        config.setRightStream(rightStream);
+
+        // Small enough a budget to force the build side to be spilled.
+        TestMonitor monitor = new TestMonitor();
+        HashJoinTupleComparison tc = new HashJoinTupleComparison(config, monitor, null);
+        tc.setMemoryBudgetTuples(4);
+        tc.setSpillPartitions(2);
+        tc.compare();
+        logger.info(tc.getResult().toString());
+        monitor.analyze();
+    }
+
+    /**
+     * Build side Tuples sharing a key are paired in turn and the one left over is a LEFT_BREAK, as in a merge join,
+     * whether the build side is held in memory or spilled.
+     */
+    public void testHashJoinDuplicateKeysCorrectness() throws Exception {
+        String [] duplicateKeys = new String [] {"ID", "NAME"};
+        String leftSql = "select * from (values (1, 'A', 10), (1, 'A', 10), (2, 'A', 20)) as T(ID, NAME, AMOUNT)";
+        String rightSql = "select * from (values (1, 'A', 10), (2, 'A', 20)) as T(ID, NAME, AMOUNT)";
+
+        Config config = new Config("testHashJoinDuplicateKeysCorrectness - merge");
+        config.setLeftStream(SqlTupleStream.create(tdl.getConnection(), leftSql, duplicateKeys));
+        config.setRightStream(SqlTupleStream.create(tdl.getConnection(), rightSql, duplicateKeys));
+        TupleComparison merge = new TupleComparison(config);
+        merge.compare();
+        CompareStats expected = merge.getResult().getCompareStats();
+        boolean correct = expected.getTotalMatched() == 2 && expected.getTotalOnlyLeft() == 1;
+
+        for (int budget : new int [] {1000, 1}) {
+            config = new Config("testHashJoinDuplicateKeysCorrectness - budget " + budget);
+            config.setLeftStream(SqlTupleStream.create(tdl.getConnection(), leftSql, duplicateKeys));
+            config.setRightStream(SqlTupleStream.create(tdl.getConnection(), rightSql, duplicateKeys));
+            HashJoinTupleComparison tc = new HashJoinTupleComparison(config);
+            tc.setMemoryBudgetTuples(budget);
+            tc.setSpillPartitions(2);
+            tc.compare();
+            CompareStats stats = tc.getResult().getCompareStats();
+            logger.info(stats.toString());
+            correct = correct && sameTotals(expected, stats);
+        }
+        if (correct) {
+            logger.info("testHashJoinDuplicateKeysCorrectness SUCCEEDED.");
+        }
+        else {
+            logger.info("testHashJoinDuplicateKeysCorrectness FAILED! Merge join: " + expected);
+        }
+    }
+
+    public void testSortingStreamCorrectness() throws Exception {
+        SqlTupleStream leftSource = SqlTupleStream.create(tdl.getConnection(), sql + "'L'", keys);
+        leftSource.setExcludeFieldNames(ignoreFields);
+        SortingTupleStream leftStream = new SortingTupleStream(leftSource);
+
+        SqlTupleStream rightSource = SqlTupleStream.create(tdl.getConnection(), sql + "'R'", keys);
+        rightSource.setExcludeFieldNames(ignoreFields);
+        SortingTupleStream rightStream = new SortingTupleStream(rightSource);
+
+        // Small enough a budget to force the sort runs to be spilled, and a fan-in to force merge passes.
+        leftStream.setMemoryBudgetTuples(4);
+        rightStream.setMemoryBudgetTuples(4);
+        leftStream.setMaxFanIn(3);
+        rightStream.setMaxFanIn(3);
+
+        Config config = new Config("testSortingStreamCorrectness");
+        config.setLeftStream(leftStream);
+        config.setRightStream(rightStream);
+
+        TestMonitor monitor = new TestMonitor();
+        TupleComparison tc = new TupleComparison(config, monitor, null);
+        tc.compare();
+        logger.info(tc.getResult().toString());
+        monitor.analyze();
+    }
+
+    /**
+     * The checksum phase reports narrow Tuples, which TestMonitor cannot analyze, so the totals are checked against
+     * those of a regular comparison instead.
+     */
+    public void testChecksumComparisonCorrectness() throws Exception {
+        CompareStats expected = runChecksumTestComparison(false).getResult().getCompareStats();
+        CompareStats actual = runChecksumTestComparison(true).getResult().getCompareStats();
+        logger.info(actual.toString());
+        if (sameTotals(expected, actual)) {
+            logger.info("testChecksumComparisonCorrectness SUCCEEDED.");
+        }
+        else {
+            logger.info("testChecksumComparisonCorrectness FAILED! Expected " + expected);
+        }
+    }
+
+    /**
+     * Row hashes that differ only in their low bits are equal as doubles, so they must be compared exactly for the
+     * rows to be looked up: key 1 breaks on V, key 2 matches.
+     */
+    public void testChecksumLowBitsCorrectness() throws Exception {
+        String [] valueKeys = new String [] {"ID"};
+        Config config = new Config("testChecksumLowBitsCorrectness");
+        config.setLeftStream(new LowBitsHashTupleStream(tdl.getConnection(),
+                "select * from (values (1, 0), (2, 5)) as T(ID, V)", valueKeys));
+        config.setRightStream(new LowBitsHashTupleStream(tdl.getConnection(),
+                "select * from (values (1, 1), (2, 5)) as T(ID, V)", valueKeys));
+        ChecksumTupleComparison tc = new ChecksumTupleComparison(config);
+        tc.setDatabaseRowHash(false);
+        tc.compare();
+        CompareStats stats = tc.getResult().getCompareStats();
+        logger.info(stats.toString());
+        if (stats.getTotalBreaks() == 1 && stats.getTotalMatched() == 1) {
+            logger.info("testChecksumLowBitsCorrectness SUCCEEDED.");
+        }
+        else {
+            logger.info("testChecksumLowBitsCorrectness FAILED! Expected 1 break and 1 match");
+        }
+    }
+
+    /**
+     * The first run has no snapshots and looks up every break; the second finds no changed keys and carries all breaks
+     * forward. The third finds the left snapshot of the first run next to the right snapshot and breaks of the second,
+     * as if the second had crashed between replacing them, and must not use them. All must produce the totals of a
+     * regular comparison.
+     */
+    public void testIncrementalComparisonCorrectness() throws Exception {
+        CompareStats expected = runChecksumTestComparison(false).getResult().getCompareStats();
+        File snapshotDirectory = File.createTempFile("tuplediff-snapshots", "");
+        snapshotDirectory.delete();
+        snapshotDirectory.mkdirs();
+        File leftSnapshot = new File(snapshotDirectory, "testIncrementalComparisonCorrectness.left");
+        byte [] firstLeftSnapshot = null;
+        try {
+            for (int run=1; run<=3; run++) {
+                if (run == 3) {
+                    Files.write(leftSnapshot.toPath(), firstLeftSnapshot);
+                }
+                Config config = createChecksumTestConfig("testIncrementalComparisonCorrectness");
+                TupleComparison tc = new IncrementalTupleComparison(config, snapshotDirectory);
+                tc.compare();
+                if (run == 1) {
+                    firstLeftSnapshot = Files.readAllBytes(leftSnapshot.toPath());
+                }
+                CompareStats actual = tc.getResult().getCompareStats();
+                logger.info(actual.toString());
+                Object incremental = actual.getAttributes().get("incremental");
+                if (sameTotals(expected, actual) && Boolean.valueOf(run == 2).equals(incremental)) {
+                    logger.info("testIncrementalComparisonCorrectness run " + run + " SUCCEEDED.");
+                }
+                else {
+                    logger.info("testIncrementalComparisonCorrectness run " + run + " FAILED! Expected " + expected
+                            + ", incremental: " + incremental);
+                }
+            }
+        }
+        finally {
+            for (File f : snapshotDirectory.listFiles()) {
+                f.delete();
+            }
+            snapshotDirectory.delete();
+        }
+    }
+
+    /**
+     * The first run saves a checkpoint after a few results and then fails; the second resumes from it and must produce
+     * the totals and breaks of a regular comparison.
+     */
+    public void testResumedComparisonCorrectness() throws Exception {
+        TupleComparison regular = runChecksumTestComparison(false);
+        CompareStats expected = regular.getResult().getCompareStats();
+        int expectedBreaks = regular.getResult().getListener().getCompareEvents().size();
+        File checkpointDirectory = File.createTempFile("tuplediff-checkpoints", "");
+        checkpointDirectory.delete();
+        checkpointDirectory.mkdirs();
+        try {
+            TupleComparison failing = new ResumableTupleComparison(
+                    createChecksumTestConfig("testResumedComparisonCorrectness"), checkpointDirectory) {
+                int results = 0;
+                @Override
+                protected void comparisonEvent(CompareEvent.TYPE event, Tuple left, Tuple right,
+                                               List<String> breakFields) {
+                    super.comparisonEvent(event, left, right, breakFields);
+                    if (event != CompareEvent.TYPE.DATA_LEFT && event != CompareEvent.TYPE.DATA_RIGHT) {
+                        results++;
+                        if (results == 5) {
+                            checkpoint();
+                        }
+                        else if (results == 8) {
+                            throw new IllegalStateException("Simulated failure");
+                        }
+                    }
+                }
+            };
+            try {
+                failing.compare();
+            }
+            catch (TupleDiffException e) {
+                logger.info("First run failed as intended: " + e.getMessage());
+            }
+
+            ResumableTupleComparison resumed = new ResumableTupleComparison(
+                    createChecksumTestConfig("testResumedComparisonCorrectness"), checkpointDirectory);
+            resumed.compare();
+            CompareStats actual = resumed.getResult().getCompareStats();
+            int actualBreaks = resumed.getResult().getListener().getCompareEvents().size();
+            logger.info(actual.toString());
+            if (resumed.isResumed() && sameTotals(expected, actual) && expectedBreaks == actualBreaks) {
+                logger.info("testResumedComparisonCorrectness SUCCEEDED.");
+            }
+            else {
+                logger.info("testResumedComparisonCorrectness FAILED! Resumed: " + resumed.isResumed() + ", breaks: "
+                        + actualBreaks + " expected " + expectedBreaks + ", expected totals " + expected);
+            }
+        }
+        finally {
+            for (File f : checkpointDirectory.listFiles()) {
+                f.delete();
+            }
+            checkpointDirectory.delete();
+        }
+    }
+
+    /**
+     * A CompareEventListener given by the caller, which received the breaks up to the checkpoint in the failed run, is
+     * not passed them again on resume; and a checkpoint taken with other comparators is not resumed from.
+     */
+    public void testResumedListenerCorrectness() throws Exception {
+        TupleComparison regular = runChecksumTestComparison(false);
+        int expectedBreaks = regular.getResult().getListener().getCompareEvents().size();
+        File checkpointDirectory = File.createTempFile("tuplediff-checkpoints", "");
+        checkpointDirectory.delete();
+        checkpointDirectory.mkdirs();
+        try {
+            // Stands in for a persistent sink, such as a table, that outlives the failed run.
+            ListCompareEventListener sink = new ListCompareEventListener();
+            failAfterCheckpoint(checkpointDirectory, sink);
+            ResumableTupleComparison resumed = new ResumableTupleComparison(
+                    createChecksumTestConfig("testResumedListenerCorrectness"), null, sink, checkpointDirectory);
+            resumed.compare();
+            boolean correct = resumed.isResumed() && sink.getCompareEvents().size() == expectedBreaks;
+
+            failAfterCheckpoint(checkpointDirectory, null);
+            Config config = createChecksumTestConfig("testResumedListenerCorrectness");
+            config.setComparatorOverrides(Collections.singletonList(FieldComparatorFactory.Instance()
+                    .createByFieldName("DOUBLE_1", new ThresholdNumberComparator(1000) {})));
+            ResumableTupleComparison changed = new ResumableTupleComparison(config, checkpointDirectory);
+            changed.compare();
+            correct = correct && !changed.isResumed();
+            if (correct) {
+                logger.info("testResumedListenerCorrectness SUCCEEDED.");
+            }
+            else {
+                logger.info("testResumedListenerCorrectness FAILED! Breaks in the sink: "
+                        + sink.getCompareEvents().size() + " expected " + expectedBreaks
+                        + ", resumed with other comparators: " + changed.isResumed());
+            }
+        }
+        finally {
+            for (File f : checkpointDirectory.listFiles()) {
+                f.delete();
+            }
+            checkpointDirectory.delete();
+        }
+    }
+
+    /**
+     * Runs a ResumableTupleComparison that fails right after saving a checkpoint after 5 results, so that the listener
+     * has received exactly the breaks up to the checkpoint.
+     */
+    private void failAfterCheckpoint (File checkpointDirectory, CompareEventListener listener) throws Exception {
+        TupleComparison failing = new ResumableTupleComparison(
+                createChecksumTestConfig("testResumedListenerCorrectness"), null, listener, checkpointDirectory) {
+            int results = 0;
+            @Override
+            protected void comparisonEvent(CompareEvent.TYPE event, Tuple left, Tuple right,
+                                           List<String> breakFields) {
+                super.comparisonEvent(event, left, right, breakFields);
+                if (event != CompareEvent.TYPE.DATA_LEFT && event != CompareEvent.TYPE.DATA_RIGHT) {
+                    results++;
+                    if (results == 5) {
+                        checkpoint();
+                        throw new IllegalStateException("Simulated failure");
+                    }
+                }
+            }
+        };
+        try {
+            failing.compare();
+        }
+        catch (TupleDiffException e) {
+            logger.info("First run failed as intended: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Compares the test data exported to CSV files, read with several threads and small chunks.
+     */
+    public void testDelimitedFileComparisonCorrectness() throws Exception {
+        File leftFile = exportTestData("L");
+        File rightFile = exportTestData("R");
+        try {
+            Schema sqlSchema = SqlTupleStream.create(tdl.getConnection(), sql + "'L'", keys).getSchema();
+            DelimitedFileTupleStream leftStream = new DelimitedFileTupleStream(leftFile, keys);
+            DelimitedFileTupleStream rightStream = new DelimitedFileTupleStream(rightFile, keys);
+            for (DelimitedFileTupleStream stream : Arrays.asList(leftStream, rightStream)) {
+                for (Object f : sqlSchema.getAllFields()) {
+                    stream.setFieldType(((Field) f).getName(), ((Field) f).getFieldClass());
+                }
+                stream.setExcludeFieldNames(ignoreFields);
+                stream.setChunkSize(256);
+                stream.setParseThreads(3);
+            }
+
+            Config config = new Config("testDelimitedFileComparisonCorrectness");
+            config.setLeftStream(leftStream);
+            config.setRightStream(rightStream);
+
+            TestMonitor monitor = new TestMonitor();
+            ComparisonResult cr = TupleDiffService.Instance().compare(config, monitor, null);
+            logger.info(cr.toString());
+            monitor.analyze();
+        }
+        finally {
+            leftFile.delete();
+            rightFile.delete();
+        }
+    }
+
+    /**
+     * Records both streams while comparing them, then compares the recordings by partition.
+     */
+    public void testColumnarReplayCorrectness() throws Exception {
+        File leftFile = File.createTempFile("tuplediff-L", ".tdc");
+        File rightFile = File.createTempFile("tuplediff-R", ".tdc");
+        try {
+            SqlTupleStream leftStream = SqlTupleStream.create(tdl.getConnection(), sql + "'L'", keys);
+            leftStream.setExcludeFieldNames(ignoreFields);
+
+            SqlTupleStream rightStream = SqlTupleStream.create(tdl.getConnection(), sql + "'R'", keys);
+            rightStream.setExcludeFieldNames(ignoreFields);
+
+            TeeTupleStream leftTee = new TeeTupleStream(leftStream, leftFile);
+            TeeTupleStream rightTee = new TeeTupleStream(rightStream, rightFile);
+            leftTee.setBlockRows(4);
+            rightTee.setBlockRows(4);
+
+            Config config = new Config("testColumnarReplayCorrectness - record");
+            config.setLeftStream(leftTee);
+            config.setRightStream(rightTee);
+            TestMonitor monitor = new TestMonitor();
+            ComparisonResult cr = TupleDiffService.Instance().compare(config, monitor, null);
+            logger.info(cr.toString());
+            monitor.analyze();
+
+            config = new Config("testColumnarReplayCorrectness - replay");
+            config.setLeftStream(new ColumnarTupleStream(leftFile));
+            config.setRightStream(new ColumnarTupleStream(rightFile));
+            monitor = new TestMonitor();
+            PartitionedTupleComparison tc = new PartitionedTupleComparison(config, monitor, null, 3);
+            tc.compare();
+            logger.info(tc.getResult().toString());
+            monitor.analyze();
+        }
+        finally {
+            leftFile.delete();
+            rightFile.delete();
+        }
+    }
+
+    /**
+     * Keeps only a couple of breaks in memory; all breaks must be read back, in the order of a regular comparison.
+     */
+    public void testSpillingListenerCorrectness() throws Exception {
+        TupleComparison regular = runChecksumTestComparison(false);
+        List<CompareEvent> expected = new ArrayList<CompareEvent>(regular.getResult().getListener().getCompareEvents());
+
+        SpillingCompareEventListener listener = new SpillingCompareEventListener(2,
+                new File(System.getProperty("java.io.tmpdir")));
+        ComparisonResult cr = TupleDiffService.Instance().compare(
+                createChecksumTestConfig("testSpillingListenerCorrectness"), null, listener);
+        logger.info(cr.toString());
+        try {
+            List<CompareEvent> actual = new ArrayList<CompareEvent>(listener.getCompareEvents());
+            if (sameEvents(expected, actual)) {
+                logger.info("testSpillingListenerCorrectness SUCCEEDED. Spilled " + listener.getSpilled() + " of "
+                        + actual.size());
+            }
+            else {
+                logger.info("testSpillingListenerCorrectness FAILED! Expected " + expected.size() + " breaks, got "
+                        + actual.size());
+            }
+        }
+        finally {
+            listener.delete();
+        }
+    }
+
+    /**
+     * Feeds the breaks of a regular comparison, repeated over more than two chunks of 1024 spilled events, to a
+     * listener keeping 5 in memory. Full iterations, one abandoned halfway and one started before more events arrive
+     * must all see the events received before they were created, in order. After delete() the collection is empty,
+     * and an iterator created before it fails rather than reading a file that no longer exists.
+     */
+    public void testSpillingListenerIterationCorrectness() throws Exception {
+        List<CompareEvent> breaks = new ArrayList<CompareEvent>(
+                runChecksumTestComparison(false).getResult().getListener().getCompareEvents());
+        List<CompareEvent> fed = new ArrayList<CompareEvent>();
+        SpillingCompareEventListener listener = new SpillingCompareEventListener(5,
+                new File(System.getProperty("java.io.tmpdir")));
+        try {
+            for (int i=0; i<2 * 1024 + 100; i++) {
+                fed.add(breaks.get(i % breaks.size()));
+                listener.handleCompareEvent(fed.get(i));
+            }
+            Collection<CompareEvent> events = listener.getCompareEvents();
+            boolean correct = listener.getSpilled() == fed.size() - 5
+                    && sameEvents(fed, new ArrayList<CompareEvent>(events));
+
+            Iterator<CompareEvent> partial = events.iterator();
+            List<CompareEvent> head = new ArrayList<CompareEvent>();
+            while (head.size() < 1500) {
+                head.add(partial.next());
+            }
+            listener.handleCompareEvent(breaks.get(0));
+            correct = correct && sameEvents(fed.subList(0, 1500), head)
+                    && events.size() == fed.size() + 1 && sameEvents(fed, drain(partial, head));
+
+            Iterator<CompareEvent> beforeDelete = events.iterator();
+            for (int i=0; i<1024; i++) {
+                beforeDelete.next();
+            }
+            listener.delete();
+            boolean failed = false;
+            try {
+                beforeDelete.next();
+            }
+            catch (TupleDiffException e) {
+                failed = true;
+            }
+            correct = correct && failed && events.isEmpty() && !events.iterator().hasNext();
+            if (correct) {
+                logger.info("testSpillingListenerIterationCorrectness SUCCEEDED.");
+            }
+            else {
+                logger.info("testSpillingListenerIterationCorrectness FAILED! Iterator failed after delete(): "
+                        + failed);
+            }
+        }
+        finally {
+            listener.delete();
+        }
+    }
+
+    private List<CompareEvent> drain (Iterator<CompareEvent> iterator, List<CompareEvent> list) {
+        while (iterator.hasNext()) {
+            list.add(iterator.next());
+        }
+        return list;
+    }
+
+    /**
+     * Delivers the breaks through a ring of 2 slots, so the comparison keeps waiting for the consumer thread; the
+     * listener must still receive every break in order.
+     */
+    public void testAsyncListenerCorrectness() throws Exception {
+        TupleComparison regular = runChecksumTestComparison(false);
+        List<CompareEvent> expected = new ArrayList<CompareEvent>(regular.getResult().getListener().getCompareEvents());
+
+        AsyncCompareEventListener<List<CompareEvent>> listener =
+                new AsyncCompareEventListener<List<CompareEvent>>(new ListCompareEventListener());
+        listener.setRingSize(2);
+        listener.setWaitStrategy(AsyncCompareEventListener.WaitStrategy.BLOCKING);
+        ComparisonResult cr = TupleDiffService.Instance().compare(
+                createChecksumTestConfig("testAsyncListenerCorrectness"), null, listener);
+        logger.info(cr.toString());
+        List<CompareEvent> actual = listener.getCompareEvents();
+        if (sameEvents(expected, actual)) {
+            logger.info("testAsyncListenerCorrectness SUCCEEDED.");
+        }
+        else {
+            logger.info("testAsyncListenerCorrectness FAILED! Expected " + expected.size() + " breaks, got "
+                    + actual.size());
+        }
+    }
+
+    /**
+     * With OverflowPolicy.DROP, a ring of 2 slots whose consumer is held up in the delegate takes the first 2 of 10
+     * events and drops the other 8, which are delivered once the delegate resumes. A delegate that throws on the 3rd
+     * event has its exception re-thrown from close(), after receiving the first 2.
+     */
+    public void testAsyncListenerFailureCorrectness() throws Exception {
+        List<CompareEvent> breaks = new ArrayList<CompareEvent>(
+                runChecksumTestComparison(false).getResult().getListener().getCompareEvents());
+        List<CompareEvent> fed = new ArrayList<CompareEvent>();
+        for (int i=0; i<10; i++) {
+            fed.add(breaks.get(i % breaks.size()));
+        }
+
+        final CountDownLatch release = new CountDownLatch(1);
+        AsyncCompareEventListener<List<CompareEvent>> dropping = new AsyncCompareEventListener<List<CompareEvent>>(
+                new ListCompareEventListener() {
+                    @Override
+                    public void handleCompareEvent(CompareEvent compareEvent) {
+                        try {
+                            release.await();
+                        }
+                        catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        super.handleCompareEvent(compareEvent);
+                    }
+                });
+        dropping.setRingSize(2);
+        dropping.setOverflowPolicy(AsyncCompareEventListener.OverflowPolicy.DROP);
+        dropping.init(null);
+        for (CompareEvent event : fed) {
+            dropping.handleCompareEvent(event);
+        }
+        long dropped = dropping.getDropped();
+        release.countDown();
+        dropping.close();
+        boolean correct = dropped == 8 && dropping.getDispatched() == 2
+                && sameEvents(fed.subList(0, 2), dropping.getCompareEvents());
+
+        final RuntimeException thrown = new RuntimeException("testAsyncListenerFailureCorrectness");
+        AsyncCompareEventListener<List<CompareEvent>> failing = new AsyncCompareEventListener<List<CompareEvent>>(
+                new ListCompareEventListener() {
+                    @Override
+                    public void handleCompareEvent(CompareEvent compareEvent) {
+                        if (getCompareEvents().size() == 2) {
+                            throw thrown;
+                        }
+                        super.handleCompareEvent(compareEvent);
+                    }
+                });
+        failing.init(null);
+        try {
+            for (CompareEvent event : fed) {
+                failing.handleCompareEvent(event);
+            }
+        }
+        catch (TupleDiffException e) {
+            // The failure may be seen before all events are handed over.
+        }
+        Throwable failure = null;
+        try {
+            failing.close();
+        }
+        catch (TupleDiffException e) {
+            failure = e.getCause();
+        }
+        correct = correct && failure == thrown && sameEvents(fed.subList(0, 2), failing.getCompareEvents());
+        if (correct) {
+            logger.info("testAsyncListenerFailureCorrectness SUCCEEDED.");
+        }
+        else {
+            logger.info("testAsyncListenerFailureCorrectness FAILED! Dropped " + dropped + ", delegate failure "
+                    + failure);
+        }
+    }
+
+    /**
+     * Writes the breaks to a table created by the listener, in batches of 3 committed every 5 rows, and counts the rows
+     * per break type.
+     */
+    public void testJdbcListenerCorrectness() throws Exception {
+        TupleComparison regular = runChecksumTestComparison(false);
+        Map<String, Integer> expected = new TreeMap<String, Integer>();
+        for (Object o : regular.getResult().getListener().getCompareEvents()) {
+            String type = ((CompareEvent) o).getType().name();
+            expected.put(type, expected.containsKey(type) ? expected.get(type) + 1 : 1);
+        }
+
+        ConnectionFactory connectionFactory = new ConnectionFactory() {
+            @Override
+            public Connection createConnection() throws SQLException {
+                return tdl.getConnection();
+            }
+        };
+        JdbcCompareEventListener listener = new JdbcCompareEventListener(connectionFactory, "TD_TEST_BREAKS");
+        listener.setCreateTable(true);
+        listener.setBatchSize(3);
+        listener.setCommitInterval(5);
+        ComparisonResult cr = TupleDiffService.Instance().compare(
+                createChecksumTestConfig("testJdbcListenerCorrectness"), null, listener);
+        logger.info(cr.toString());
+
+        Connection conn = tdl.getConnection();
+        try {
+            Map<String, Integer> actual = new TreeMap<String, Integer>();
+            Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery("select BREAK_TYPE, count(*) from TD_TEST_BREAKS group by BREAK_TYPE");
+            while (rs.next()) {
+                actual.put(rs.getString(1), rs.getInt(2));
+            }
+            rs.close();
+            stmt.execute("drop table TD_TEST_BREAKS");
+            stmt.close();
+            if (expected.equals(actual)) {
+                logger.info("testJdbcListenerCorrectness SUCCEEDED. " + actual);
+            }
+            else {
+                logger.info("testJdbcListenerCorrectness FAILED! Expected " + expected + ", got " + actual);
+            }
+        }
+        finally {
+            conn.close();
+        }
+    }
+
+    /**
+     * Writes 8 breaks over a connection recording the batches executed and the commits, in batches of 3 committed
+     * every 5 rows: after creating the table, 2 batches and a commit once 6 rows are written, then the last 2 rows and
+     * a commit on close(). Rows become visible to other connections at the commits.
+     */
+    public void testJdbcListenerBatchingCorrectness() throws Exception {
+        List<CompareEvent> breaks = new ArrayList<CompareEvent>(
+                runChecksumTestComparison(false).getResult().getListener().getCompareEvents());
+        final Connection connection = tdl.getConnection();
+        Statement stmt = connection.createStatement();
+        try {
+            stmt.execute("drop table TD_TEST_BATCHES");
+        }
+        catch (SQLException e) {
+            // Not created yet.
+        }
+        stmt.close();
+
+        final List<String> calls = new ArrayList<String>();
+        Connection recording = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class [] {Connection.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("commit".equals(method.getName())) {
+                            calls.add("commit");
+                        }
+                        try {
+                            Object result = method.invoke(connection, args);
+                            return "prepareStatement".equals(method.getName())
+                                    ? recordBatches((PreparedStatement) result, calls) : result;
+                        }
+                        catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+        JdbcCompareEventListener listener = new JdbcCompareEventListener(recording, "TD_TEST_BATCHES");
+        listener.setCreateTable(true);
+        listener.setBatchSize(3);
+        listener.setCommitInterval(5);
+        try {
+            listener.init(new Config("testJdbcListenerBatchingCorrectness"));
+            List<Integer> visible = new ArrayList<Integer>();
+            for (int i=0; i<8; i++) {
+                listener.handleCompareEvent(breaks.get(i % breaks.size()));
+                // Executed rows are locked until committed, so only look after the commit.
+                if (i >= 5) {
+                    visible.add(countRows("TD_TEST_BATCHES"));
+                }
+            }
+            listener.close();
+            visible.add(countRows("TD_TEST_BATCHES"));
+            List<String> expected = Arrays.asList("commit", "batch 3", "batch 3", "commit", "batch 2", "commit");
+            if (expected.equals(calls) && visible.equals(Arrays.asList(6, 6, 6, 8)) && listener.getWritten() == 8) {
+                logger.info("testJdbcListenerBatchingCorrectness SUCCEEDED.");
+            }
+            else {
+                logger.info("testJdbcListenerBatchingCorrectness FAILED! Expected " + expected + ", got " + calls
+                        + ", rows visible " + visible);
+            }
+        }
+        finally {
+            stmt = connection.createStatement();
+            stmt.execute("drop table TD_TEST_BATCHES");
+            stmt.close();
+            connection.commit();
+            connection.close();
+        }
+    }
+
+    /**
+     * @return the PreparedStatement, recording "batch <rows>" for each batch executed.
+     */
+    private PreparedStatement recordBatches (final PreparedStatement statement, final List<String> calls) {
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class [] {PreparedStatement.class}, new InvocationHandler() {
+                    int rows = 0;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("addBatch".equals(method.getName())) {
+                            rows++;
+                        }
+                        else if ("executeBatch".equals(method.getName())) {
+                            calls.add("batch " + rows);
+                            rows = 0;
+                        }
+                        try {
+                            return method.invoke(statement, args);
+                        }
+                        catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+    private int countRows (String table) throws SQLException {
+        Connection conn = tdl.getConnection();
+        try {
+            Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery("select count(*) from " + table);
+            rs.next();
+            int count = rs.getInt(1);
+            stmt.close();
+            return count;
+        }
+        finally {
+            conn.close();
+        }
+    }
+
+    /**
+     * Prefetched streams read to the end produce the results of regular ones; a prefetched stream closed midway stops
+     * its producer thread before its connection is closed.
+     */
+    public void testPrefetchCorrectness() throws Exception {
+        CompareStats expected = runChecksumTestComparison(false).getResult().getCompareStats();
+        Config config = createChecksumTestConfig("testPrefetchCorrectness - to the end");
+        for (TupleStream stream : Arrays.asList(config.getLeftStream(), config.getRightStream())) {
+            ((SqlTupleStream) stream).setPrefetch(true);
+            ((SqlTupleStream) stream).setPrefetchCapacity(2);
+        }
+        TupleComparison tc = new TupleComparison(config);
+        tc.compare();
+        boolean correct = sameTotals(expected, tc.getResult().getCompareStats());
+
+        SqlTupleStream stream = SqlTupleStream.create(tdl.getConnection(), sql + "'L'", keys);
+        stream.setExcludeFieldNames(ignoreFields);
+        stream.setName("testPrefetchCorrectness - closed midway");
+        stream.setPrefetch(true);
+        stream.setPrefetchCapacity(1);
+        stream.open();
+        correct = correct && stream.hasNext() && stream.getNext() != null;
+        stream.close();
+        boolean producerAlive = false;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            producerAlive |= thread.getName().equals(stream.getName() + " - PREFETCH") && thread.isAlive();
+        }
+        correct = correct && !producerAlive && stream.getConnection().isClosed();
+        if (correct) {
+            logger.info("testPrefetchCorrectness SUCCEEDED.");
+        }
+        else {
+            logger.info("testPrefetchCorrectness FAILED! Totals: " + tc.getResult().getCompareStats()
+                    + ", producer alive after close: " + producerAlive);
+        }
+    }
+
+    /**
+     * Adaptive batch sizing and disabling auto-commit are off unless asked for. When asked for, the batch size grows to
+     * its maximum while the database is the bottleneck, and the caller's auto-commit setting is restored on close.
+     */
+    public void testStreamTuningCorrectness() throws Exception {
+        final Connection connection = tdl.getConnection();
+        final List<Boolean> autoCommits = new ArrayList<Boolean>();
+        // Records the auto-commit changes, and is left open by the streams so that it can be inspected.
+        Connection recording = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class [] {Connection.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("close".equals(method.getName())) {
+                            return null;
+                        }
+                        if ("setAutoCommit".equals(method.getName())) {
+                            autoCommits.add((Boolean) args[0]);
+                        }
+                        try {
+                            return method.invoke(connection, args);
+                        }
+                        catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+        try {
+            SqlTupleStream leftStream = SqlTupleStream.create(recording, sql + "'L'", keys);
+            leftStream.setExcludeFieldNames(ignoreFields);
+            Config config = createChecksumTestConfig("testStreamTuningCorrectness - default");
+            config.setLeftStream(leftStream);
+            TupleComparisonMonitor monitor = new TupleComparisonMonitor();
+            new TupleComparison(config, monitor, null).compare();
+            boolean correct = autoCommits.isEmpty() && connection.getAutoCommit()
+                    && !monitor.getLeftStats().getAttributes().containsKey("batchSize");
+
+            AdaptingTupleStream tuned = new AdaptingTupleStream(recording, sql + "'L'", keys);
+            tuned.setExcludeFieldNames(ignoreFields);
+            tuned.setAdaptiveBatchSize(true);
+            tuned.setDisableAutoCommit(true);
+            tuned.setBufferSize(1);
+            tuned.setMinBatchSize(1);
+            tuned.setMaxBatchSize(4);
+            config = createChecksumTestConfig("testStreamTuningCorrectness - tuned");
+            config.setLeftStream(tuned);
+            monitor = new TupleComparisonMonitor();
+            new TupleComparison(config, monitor, null).compare();
+            Object batchSize = monitor.getLeftStats().getAttributes().get("batchSize");
+            correct = correct && Integer.valueOf(4).equals(batchSize)
+                    && autoCommits.equals(Arrays.asList(false, true)) && connection.getAutoCommit();
+            if (correct) {
+                logger.info("testStreamTuningCorrectness SUCCEEDED.");
+            }
+            else {
+                logger.info("testStreamTuningCorrectness FAILED! Batch size: " + batchSize + ", auto-commit changes: "
+                        + autoCommits + ", auto-commit: " + connection.getAutoCommit());
+            }
+        }
+        finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Every break is timed on its way to the listener, both streams record their fetches, and the MBean is gone once
+     * the comparison has ended.
+     */
+    public void testMetricsCorrectness() throws Exception {
+        TupleComparisonMonitor monitor = new TupleComparisonMonitor();
+        TupleComparison tc = new TupleComparison(createChecksumTestConfig("testMetricsCorrectness"), monitor, null);
+        tc.compare();
+        Metrics metrics = tc.getResult().getMetrics();
+        logger.info(metrics.toString());
+        int breaks = tc.getResult().getListener().getCompareEvents().size();
+        ObjectName pattern = new ObjectName(TupleComparisonMonitor.MBEAN_DOMAIN + ":name=\"testMetricsCorrectness\",*");
+        boolean unregistered = ManagementFactory.getPlatformMBeanServer().queryNames(pattern, null).isEmpty();
+        if (metrics.getDispatchLatency().getCount() == breaks && metrics.getLeft().getFetchLatency().getCount() > 0
+                && metrics.getRight().getFetchLatency().getCount() > 0 && unregistered) {
+            logger.info("testMetricsCorrectness SUCCEEDED.");
+        }
+        else {
+            logger.info("testMetricsCorrectness FAILED! " + breaks + " breaks, MBean unregistered: " + unregistered);
+        }
+    }
+
+    /**
+     * Whether both lists hold the same types of breaks of the same keys and fields, in the same order.
+     */
+    private boolean sameEvents (List<CompareEvent> expected, List<CompareEvent> actual) {
+        boolean same = expected.size() == actual.size();
+        for (int i=0; same && i<expected.size(); i++) {
+            CompareEvent e = expected.get(i);
+            CompareEvent a = actual.get(i);
+            Tuple et = e.getLeftTuple() != null ? e.getLeftTuple() : e.getRightTuple();
+            Tuple at = a.getLeftTuple() != null ? a.getLeftTuple() : a.getRightTuple();
+            same = e.getType() == a.getType() && et.getKey().equals(at.getKey())
+                    && String.valueOf(e.getBreakFields()).equals(String.valueOf(a.getBreakFields()));
+        }
+        return same;
+    }
+
+    /**
+     * Writes the rows of one side, in key order, to a CSV file with a header.
+     */
+    private File exportTestData (String side) throws Exception {
+        SqlTupleStream stream = SqlTupleStream.create(tdl.getConnection(), sql + "'" + side + "'", keys);
+        File file = File.createTempFile("tuplediff-" + side, ".csv");
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            stream.open();
+            List<? extends Field> fields = stream.getSchema().getAllFields();
+            for (int i=0; i<fields.size(); i++) {
+                out.print((i > 0 ? "," : "") + fields.get(i).getName());
+            }
+            out.print("\n");
+            while (stream.hasNext()) {
+                Tuple t = stream.getNext();
+                for (int i=0; i<fields.size(); i++) {
+                    Object v = t.getValue(i);
+                    out.print(i > 0 ? "," : "");
+                    if (v instanceof String) {
+                        out.print("\"" + ((String) v).replace("\"", "\"\"") + "\"");
+                    }
+                    else if (v != null) {
+                        out.print(v);
+                    }
+                }
+                out.print("\n");
+            }
+        }
+        finally {
+            out.close();
+            stream.close();
+        }
+        return file;
+    }
+
+    /**
+     * The composite test keys are encoded (see TupleStreamKey.KeyType). Comparing them field by field must give the
+     * same totals, and KeyEncoder must order every pair of keys as compareKeyValues does.
+     */
+    public void testEncodedKeyCorrectness() throws Exception {
+        Config config = createChecksumTestConfig("testEncodedKeyCorrectness");
+        TestMonitor monitor = new TestMonitor();
+        TupleComparison tc = new TupleComparison(config, monitor, null);
+        tc.compare();
+        monitor.analyze();
+        TupleStreamKey.KeyType keyType = config.getLeftStream().getSchema().getTupleStreamKey().getKeyType();
+
+        Config generic = createChecksumTestConfig("testEncodedKeyCorrectness - generic");
+        generic.getLeftStream().getSchema().getTupleStreamKey().setKeyType(TupleStreamKey.KeyType.GENERIC);
+        generic.getRightStream().getSchema().getTupleStreamKey().setKeyType(TupleStreamKey.KeyType.GENERIC);
+        TupleComparison gtc = new TupleComparison(generic);
+        gtc.compare();
+
+        List<Comparable []> keyValues = new ArrayList<Comparable[]>();
+        for (Tuple t : monitor.allData) {
+            keyValues.add(new Comparable[] {t.getValue(keys[0]), t.getValue(keys[1])});
+        }
+        int misordered = 0;
+        for (Comparable [] a : keyValues) {
+            for (Comparable [] b : keyValues) {
+                int expected = Integer.signum(TupleStreamKey.compareKeyValues(a, b));
+                if (expected != Integer.signum(KeyEncoder.compare(KeyEncoder.encode(a), KeyEncoder.encode(b)))) {
+                    misordered++;
+                }
+            }
+        }
+        if (keyType == TupleStreamKey.KeyType.ENCODED && misordered == 0
+                && sameTotals(gtc.getResult().getCompareStats(), tc.getResult().getCompareStats())) {
+            logger.info("testEncodedKeyCorrectness SUCCEEDED.");
+        }
+        else {
+            logger.info("testEncodedKeyCorrectness FAILED! Key type " + keyType + ", " + misordered
+                    + " misordered key pairs, expected " + gtc.getResult().getCompareStats());
+        }
+    }
+
+    /**
+     * A sample of all keys is the whole comparison: its estimates must be the counts of the breaks of a full
+     * comparison, with intervals of no width.
+     */
+    public void testSamplingComparisonCorrectness() throws Exception {
+        TupleComparison tc = new TupleComparison(createChecksumTestConfig("testSamplingComparisonCorrectness - full"));
+        tc.compare();
+        long onlyLeft = 0, onlyRight = 0, breaks = 0;
+        Map<String, Long> fieldBreaks = new HashMap<String, Long>();
+        List<CompareEvent> events = new ArrayList<CompareEvent>(tc.getResult().getListener().getCompareEvents());
+        for (CompareEvent e : events) {
+            if (e.getRightTuple() == null) {
+                onlyLeft++;
+            }
+            else if (e.getLeftTuple() == null) {
+                onlyRight++;
+            }
+            else {
+                breaks++;
+                for (String field : e.getBreakFields()) {
+                    Long count = fieldBreaks.get(field);
+                    fieldBreaks.put(field, count == null ? 1 : count + 1);
+                }
+            }
+        }
+
+        SamplingTupleComparison stc = new SamplingTupleComparison(
+                createChecksumTestConfig("testSamplingComparisonCorrectness"), 1.0);
+        stc.setClusters(4);
+        stc.compare();
+        SampleEstimate estimate = stc.getResult().getCompareStats().getSampleEstimate();
+        logger.info(estimate.toString());
+        boolean exact = estimate.getBreakRate(CompareEvent.TYPE.LEFT_BREAK).getCount() == onlyLeft
+                && estimate.getBreakRate(CompareEvent.TYPE.RIGHT_BREAK).getCount() == onlyRight
+                && estimate.getBreakRate(CompareEvent.TYPE.PAIR_BREAK).getCount() == breaks;
+        for (SampleEstimate.Rate rate : estimate.getFieldBreakRates().values()) {
+            Long count = fieldBreaks.get(rate.getName());
+            exact = exact && rate.getCount() == (count == null ? 0 : count) && rate.getLower() == rate.getUpper();
+        }
+        if (exact && estimate.getFieldBreakRates().keySet().containsAll(fieldBreaks.keySet())) {
+            logger.info("testSamplingComparisonCorrectness SUCCEEDED.");
+        }
+        else {
+            logger.info("testSamplingComparisonCorrectness FAILED! Expected " + onlyLeft + " left, " + onlyRight
+                    + " right, " + breaks + " pair breaks, field breaks " + fieldBreaks);
+        }
+    }
+
+    /**
+     * Each StopPolicy holds at the totals of a complete comparison given limits at those totals, and trips given
+     * limits just below them. A comparison breaching a policy is cancelled, with the reason recorded.
+     */
+    public void testStopPolicyCorrectness() throws Exception {
+        TupleComparison tc = new TupleComparison(createChecksumTestConfig("testStopPolicyCorrectness - full"));
+        tc.compare();
+        CompareStats stats = tc.getResult().getCompareStats();
+        long breaks = stats.getTotalOnlyLeft() + stats.getTotalOnlyRight() + stats.getTotalBreaks();
+        long keys = breaks + stats.getTotalMatched();
+        long orphans = Math.max(stats.getTotalOnlyLeft(), stats.getTotalOnlyRight());
+        StopPolicy [] holding = {new StopPolicy.MaxBreaks(breaks), new StopPolicy.MaxOrphans(orphans),
+                new StopPolicy.MaxBreakRatio((double) breaks / keys, 0), new StopPolicy.MaxBreakRatio(0, keys + 1),
+                new StopPolicy.Deadline(Long.MAX_VALUE)};
+        StopPolicy [] tripping = {new StopPolicy.MaxBreaks(breaks - 1), new StopPolicy.MaxOrphans(orphans - 1),
+                new StopPolicy.MaxBreakRatio((double) (breaks - 1) / keys, keys), new StopPolicy.Deadline(0)};
+        boolean correct = true;
+        for (StopPolicy policy : holding) {
+            correct = correct && policy.check(stats, 1) == null;
+        }
+        for (StopPolicy policy : tripping) {
+            correct = correct && policy.check(stats, 1) != null;
+        }
+
+        TupleComparisonMonitor monitor = new TupleComparisonMonitor();
+        monitor.setHealthCheckIntervalMillis(1);
+        monitor.addStopPolicy(new StopPolicy.Deadline(0));
+        TupleComparison stopped = new TupleComparison(createChecksumTestConfig("testStopPolicyCorrectness"), monitor,
+                null);
+        stopped.compare();
+        CompareStats stoppedStats = stopped.getResult().getCompareStats();
+        logger.info(stoppedStats.toString());
+        if (correct && stopped.isCancelled() && Monitor.EVENT_STOP_BY_MONITOR.equals(stoppedStats.getStopEvent())
+                && stoppedStats.getException() != null) {
+            logger.info("testStopPolicyCorrectness SUCCEEDED.");
+        }
+        else {
+            logger.info("testStopPolicyCorrectness FAILED! Policies correct: " + correct + ", stopped with "
+                    + stoppedStats.getStopEvent());
+        }
+    }
+
+    /**
+     * Jobs submitted to a TupleDiffService run no more sessions against a data source than its limit, are started
+     * highest priority first, can be cancelled while queued, and produce the results of a comparison run directly.
+     * The first Job is held running (by its listener) until the others have been queued.
+     */
+    public void testSchedulerCorrectness() throws Exception {
+        TupleComparison tc = new TupleComparison(createChecksumTestConfig("testSchedulerCorrectness - direct"));
+        tc.compare();
+        CompareStats expected = tc.getResult().getCompareStats();
+
+        TupleDiffService service = new TupleDiffService(4);
+        service.setDataSourceLimit("derby", 2);
+        Map<Object, Integer> sessions = Collections.<Object, Integer>singletonMap("derby", 2);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ListCompareEventListener gate = new ListCompareEventListener() {
+            @Override
+            public void init(Config config) {
+                started.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        List<TupleDiffService.Job> jobs = new ArrayList<TupleDiffService.Job>();
+        jobs.add(service.submit(new TupleComparison(createChecksumTestConfig("testSchedulerCorrectness - 0"), null,
+                gate), 0, sessions));
+        started.await();
+        for (int i=1; i<4; i++) {
+            jobs.add(service.submit(new TupleComparison(createChecksumTestConfig("testSchedulerCorrectness - " + i)),
+                    i, sessions));
+        }
+        // The first runs; the others are queued highest priority first, and the lowest is cancelled.
+        List<TupleDiffService.Job> queued = service.getQueuedJobs();
+        boolean correct = service.getRunningJobs().equals(Collections.singletonList(jobs.get(0)))
+                && queued.equals(Arrays.asList(jobs.get(3), jobs.get(2), jobs.get(1))) && jobs.get(1).cancel(true);
+        release.countDown();
+        for (TupleDiffService.Job job : jobs) {
+            job.awaitEnd();
+            if (job == jobs.get(1)) {
+                correct = correct && job.isCancelled() && job.getState() == TupleDiffService.Job.State.CANCELLED;
+            }
+            else {
+                correct = correct && job.getState() == TupleDiffService.Job.State.COMPLETED
+                        && sameTotals(expected, job.get().getCompareStats());
+            }
+        }
+        // Started after job 2, which had the higher priority.
+        correct = correct && jobs.get(3).getStartMillis() <= jobs.get(2).getStartMillis();
+        int peakSessions = service.getPeakSessions("derby");
+        service.shutdown();
+        if (correct && peakSessions == 2) {
+            logger.info("testSchedulerCorrectness SUCCEEDED.");
+        }
+        else {
+            logger.info("testSchedulerCorrectness FAILED! Most sessions in use: " + peakSessions);
+        }
+    }
+
+    /**
+     * Two keys of the same KeyHashBucket swap their values on the right: the bucket's row count and the sum of the
+     * hashes of its compare fields stay the same, so only hashing the keys too keeps MerkleTupleComparison from bulk
+     * matching the bucket and losing both breaks. Derby has no hash function, so rows are hashed by TD_TEST_HASH.
+     */
+    public void testMerkleSwappedValuesCorrectness() throws Exception {
+        Connection connection = tdl.getConnection();
+        Statement stmt = connection.createStatement();
+        try {
+            stmt.execute("drop function TD_TEST_HASH");
+        }
+        catch (SQLException e) {
+            // Not created yet.
+        }
+        stmt.execute("create function TD_TEST_HASH(TEXT varchar(32672)) returns bigint language java "
+                + "parameter style java no sql external name '" + TestTupleDiffService.class.getName() + ".testHash'");
+        stmt.close();
+
+        // Two keys in the same one of the 2 buckets the root is split into, by the key hash of HashingTupleStream.
+        int keyCount = 8, swapA = -1, swapB = -1;
+        for (int a=1; a<=keyCount && swapB < 0; a++) {
+            for (int b=a+1; b<=keyCount && swapB < 0; b++) {
+                if (testHash(String.valueOf(a)) % 2 == testHash(String.valueOf(b)) % 2) {
+                    swapA = a;
+                    swapB = b;
+                }
+            }
+        }
+        StringBuilder left = new StringBuilder("select * from (values ");
+        StringBuilder right = new StringBuilder("select * from (values ");
+        for (int k=1; k<=keyCount; k++) {
+            int value = k == swapA ? swapB : k == swapB ? swapA : k;
+            left.append(k == 1 ? "" : ", ").append("(").append(k).append(", 'V").append(k).append("')");
+            right.append(k == 1 ? "" : ", ").append("(").append(k).append(", 'V").append(value).append("')");
+        }
+        left.append(") as T(ID, V)");
+        right.append(") as T(ID, V)");
+
+        Config config = new Config("testMerkleSwappedValuesCorrectness");
+        config.setLeftStream(new HashingTupleStream(connection, left.toString(), new String [] {"ID"}));
+        config.setRightStream(new HashingTupleStream(connection, right.toString(), new String [] {"ID"}));
+        MerkleTupleComparison tc = new MerkleTupleComparison(config);
+        tc.setFanout(2);
+        tc.compare();
+        CompareStats stats = tc.getResult().getCompareStats();
+        logger.info(stats.toString());
+        if (stats.getTotalBreaks() == 2 && stats.getTotalMatched() == keyCount - 2) {
+            logger.info("testMerkleSwappedValuesCorrectness SUCCEEDED.");
+        }
+        else {
+            logger.info("testMerkleSwappedValuesCorrectness FAILED! Expected 2 breaks, found "
+                    + stats.getTotalBreaks());
+        }
+    }
+
+    /**
+     * Composite keys whose numeric key column is an INTEGER on one side: against a BIGINT the keys are encoded alike
+     * and every row matches; against a DECIMAL, which encodes differently, both sides fall back to GENERIC keys and
+     * the comparison fails rather than reporting every row as an orphan.
+     */
+    public void testMixedKeyTypesCorrectness() throws Exception {
+        String values = "(values (1, 'A', 10), (2, 'A', 20), (2, 'B', 30)) as T(ID, NAME, AMOUNT)";
+        String [] mixedKeys = new String [] {"ID", "NAME"};
+        String integerSql = "select ID, NAME, AMOUNT from " + values;
+
+        Config config = new Config("testMixedKeyTypesCorrectness - BIGINT");
+        config.setLeftStream(SqlTupleStream.create(tdl.getConnection(), integerSql, mixedKeys));
+        config.setRightStream(SqlTupleStream.create(tdl.getConnection(),
+                "select cast(ID as bigint) as ID, NAME, AMOUNT from " + values, mixedKeys));
+        TupleComparison tc = new TupleComparison(config);
+        tc.compare();
+        CompareStats stats = tc.getResult().getCompareStats();
+        boolean correct = stats.getTotalMatched() == 3 && stats.getTotalOnlyLeft() == 0
+                && config.getLeftStream().getSchema().getTupleStreamKey().getKeyType()
+                == TupleStreamKey.KeyType.ENCODED;
+
+        config = new Config("testMixedKeyTypesCorrectness - DECIMAL");
+        config.setLeftStream(SqlTupleStream.create(tdl.getConnection(), integerSql, mixedKeys));
+        config.setRightStream(SqlTupleStream.create(tdl.getConnection(),
+                "select cast(ID as decimal(10, 0)) as ID, NAME, AMOUNT from " + values, mixedKeys));
+        tc = new TupleComparison(config);
+        boolean failed = false;
+        try {
+            tc.compare();
+        }
+        catch (TupleDiffException e) {
+            failed = true;
+        }
+        correct = correct && failed && config.getLeftStream().getSchema().getTupleStreamKey().getKeyType()
+                == TupleStreamKey.KeyType.GENERIC && config.getRightStream().getSchema().getTupleStreamKey()
+                .getKeyType() == TupleStreamKey.KeyType.GENERIC;
+        if (correct) {
+            logger.info("testMixedKeyTypesCorrectness SUCCEEDED.");
+        }
+        else {
+            logger.info("testMixedKeyTypesCorrectness FAILED! " + stats + ", DECIMAL comparison failed: " + failed);
+        }
+    }
+
+    /**
+     * Compare fields whose classes differ between the sides: an INTEGER against a BIGINT is compared within a threshold
+     * by default and a DATE against a TIMESTAMP by compareTo(), so every row matches; compared by ComparableComparator,
+     * the INTEGER and BIGINT cannot be, and the comparison fails before reading any row.
+     */
+    public void testMixedCompareTypesCorrectness() throws Exception {
+        String leftSql = "select * from (values (1, 10, date('2015-03-10')), (2, 20, date('2015-03-11'))) "
+                + "as T(ID, V, D)";
+        String rightSql = "select * from (values (1, cast(10 as bigint), timestamp('2015-03-10 00:00:00')), "
+                + "(2, cast(20 as bigint), timestamp('2015-03-11 00:00:00'))) as T(ID, V, D)";
+        String [] valueKeys = new String [] {"ID"};
+
+        Config config = new Config("testMixedCompareTypesCorrectness - default");
+        config.setLeftStream(SqlTupleStream.create(tdl.getConnection(), leftSql, valueKeys));
+        config.setRightStream(SqlTupleStream.create(tdl.getConnection(), rightSql, valueKeys));
+        TupleComparison tc = new TupleComparison(config);
+        tc.compare();
+        CompareStats stats = tc.getResult().getCompareStats();
+        boolean correct = stats.getTotalMatched() == 2 && stats.getTotalBreaks() == 0;
+
+        config = new Config("testMixedCompareTypesCorrectness - ComparableComparator");
+        config.setLeftStream(SqlTupleStream.create(tdl.getConnection(), leftSql, valueKeys));
+        config.setRightStream(SqlTupleStream.create(tdl.getConnection(), rightSql, valueKeys));
+        config.setComparatorOverrides(Collections.singletonList(FieldComparatorFactory.Instance()
+                .createByFieldName("V", new FieldComparator.ComparableComparator())));
+        boolean failed = false;
+        try {
+            new TupleComparison(config).compare();
+        }
+        catch (TupleDiffException e) {
+            failed = true;
+        }
+        if (correct && failed) {
+            logger.info("testMixedCompareTypesCorrectness SUCCEEDED.");
+        }
+        else {
+            logger.info("testMixedCompareTypesCorrectness FAILED! " + stats + ", ComparableComparator comparison "
+                    + "failed: " + failed);
+        }
+    }
+
+    /**
+     * TD_TEST_HASH: the first 48 bits of the MD5 of the text, as a non-negative number.
+     */
+    public static long testHash (String text) throws Exception {
+        byte [] md5 = MessageDigest.getInstance("MD5").digest(text.getBytes("UTF-8"));
+        long hash = 0;
+        for (int i=0; i<6; i++) {
+            hash = (hash << 8) | (md5[i] & 0xff);
+        }
+        return hash;
+    }
+
+    private boolean sameTotals (CompareStats expected, CompareStats actual) {
+        return expected.getTotalLeft() == actual.getTotalLeft() && expected.getTotalRight() == actual.getTotalRight()
+                && expected.getTotalOnlyLeft() == actual.getTotalOnlyLeft()
+                && expected.getTotalOnlyRight() == actual.getTotalOnlyRight()
+                && expected.getTotalBreaks() == actual.getTotalBreaks()
+                && expected.getTotalMatched() == actual.getTotalMatched();
+    }
+
+    private Config createChecksumTestConfig (String name) throws Exception {
+        SqlTupleStream leftStream = SqlTupleStream.create(tdl.getConnection(), sql + "'L'", keys);
+        leftStream.setExcludeFieldNames(ignoreFields);
+
+        SqlTupleStream rightStream = SqlTupleStream.create(tdl.getConnection(), sql + "'R'", keys);
+        rightStream.setExcludeFieldNames(ignoreFields);
+
+        Config config = new Config(name);
+        config.setLeftStream(leftStream);
+        config.setRightStream(rightStream);
+        return config;
+    }
+
+    private TupleComparison runChecksumTestComparison (boolean checksum) throws Exception {
+        Config config = createChecksumTestConfig("testChecksumComparisonCorrectness");
+
+        TupleComparison tc;
+        if (checksum) {
+            ChecksumTupleComparison ctc = new ChecksumTupleComparison(config);
+            ctc.setLookupBatchSize(3);
+            tc = ctc;
+        }
+        else {
+            tc = new TupleComparison(config);
+        }
+        tc.compare();
+        return tc;
+    }
+
     public static void main (String args[]) throws Exception {
         TestTupleDiffService ttd = new TestTupleDiffService();
         ttd.test(args[0]);
         System.exit(0);
     }
 
+    /**
+     * A SqlTupleStream of Derby that hashes rows with TD_TEST_HASH, so that it supports key hash buckets.
+     */
+    public static class HashingTupleStream extends SqlTupleStream {
+        final String sql;
+        final String [] primaryKeys;
+
+        public HashingTupleStream(Connection connection, String sql, String [] primaryKeys) {
+            super(connection, sql, primaryKeys);
+            this.sql = sql;
+            this.primaryKeys = primaryKeys;
+        }
+
+        @Override
+        protected String hashNumberExpression(List<SqlField> fields) {
+            StringBuilder sb = new StringBuilder("TD_TEST_HASH(");
+            if (fields.isEmpty()) sb.append("'-'");
+            for (int i=0; i<fields.size(); i++) {
+                if (i > 0) sb.append(" || '|' || ");
+                sb.append("coalesce(trim(char(").append(fields.get(i).getName()).append(")), 'N')");
+            }
+            return sb.append(")").toString();
+        }
+
+        @Override
+        protected String bucketExpression(String hash, long divisor, long modulus) {
+            return "mod((" + hash + ") / " + divisor + ", " + modulus + ")";
+        }
+
+        @Override
+        protected SqlTupleStream newInstance(Connection connection) {
+            return new HashingTupleStream(connection, sql, primaryKeys);
+        }
+    }
+
+    /**
+     * A SqlTupleStream whose Java row hash is 2^60 plus the value of column V, so that the hashes of different rows
+     * differ only in their low bits.
+     */
+    public static class LowBitsHashTupleStream extends SqlTupleStream {
+        final String sql;
+        final String [] primaryKeys;
+
+        public LowBitsHashTupleStream(Connection connection, String sql, String [] primaryKeys) {
+            super(connection, sql, primaryKeys);
+            this.sql = sql;
+            this.primaryKeys = primaryKeys;
+        }
+
+        @Override
+        protected Tuple createChecksumTuple(ResultSet rs) throws SQLException {
+            Comparable [] values = super.createChecksumTuple(rs).getValues().clone();
+            values[values.length - 1] = (1L << 60) + rs.getLong("V");
+            return new Tuple(getSchema(), values);
+        }
+
+        @Override
+        protected SqlTupleStream newInstance(Connection connection) {
+            return new LowBitsHashTupleStream(connection, sql, primaryKeys);
+        }
+    }
+
+    /**
+     * A SqlTupleStream that always finds the database slower than the comparison, so its batch size only grows.
+     */
+    public static class AdaptingTupleStream extends SqlTupleStream {
+        public AdaptingTupleStream(Connection connection, String sql, String [] primaryKeys) {
+            super(connection, sql, primaryKeys);
+        }
+
+        @Override
+        protected int adjustBatchSize(long fetchNanos, long consumeNanos) {
+            return super.adjustBatchSize(1, 0);
+        }
+    }
+
     public static class TestMonitor extends TupleComparisonMonitor {
         Set<Tuple> allData = new HashSet<Tuple>();
         Set<Tuple> leftOnly = new HashSet<Tuple>();